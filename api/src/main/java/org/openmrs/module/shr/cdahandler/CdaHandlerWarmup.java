@@ -0,0 +1,323 @@
+package org.openmrs.module.shr.cdahandler;
+
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.marc.everest.formatters.xml.its1.XmlIts1Formatter;
+import org.marc.everest.interfaces.IFormatterParseResult;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component3;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Entry;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.StructuredBody;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+import org.openmrs.module.shr.cdahandler.everest.ClinicalDocumentHeaderScanner;
+import org.openmrs.module.shr.cdahandler.everest.XmlIts1FormatterPool;
+import org.openmrs.module.shr.cdahandler.processor.factory.impl.DocumentProcessorFactory;
+import org.openmrs.module.shr.cdahandler.processor.factory.impl.EntryProcessorFactory;
+import org.openmrs.module.shr.cdahandler.processor.factory.impl.SectionProcessorFactory;
+import org.openmrs.module.shr.cdahandler.processor.util.AssignedEntityProcessorUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.DatatypeProcessorUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.LocationOrganizationProcessorUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsConceptUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsDataUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsMetadataUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.PatientRoleProcessorUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.PersonProcessorUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.WellKnownConcept;
+import org.openmrs.module.shr.cdahandler.processor.util.WellKnownConceptRegistry;
+
+/**
+ * Initializes everything the first import would otherwise initialize lazily, so that a
+ * freshly started node handles its first documents as quickly as later ones
+ */
+public final class CdaHandlerWarmup {
+
+	// The document parsed during warm-up
+	public static final String SAMPLE_DOCUMENT = "/warmup/sampleDocument.xml";
+
+	/**
+	 * A step of the warm-up
+	 */
+	private interface Step {
+
+		/**
+		 * Run the step
+		 */
+		void run() throws Exception;
+	}
+
+	/**
+	 * Gets the current singleton instance
+	 */
+	public static CdaHandlerWarmup getInstance()
+	{
+		if(s_instance == null)
+			synchronized (s_lockObject) {
+				if(s_instance == null)
+					s_instance = new CdaHandlerWarmup();
+			}
+		return s_instance;
+	}
+
+	// Singleton instance
+	private static CdaHandlerWarmup s_instance;
+
+	private static Object s_lockObject = new Object();
+
+	// Log
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	// Milliseconds spent in each step of the last warm-up
+	private volatile Map<String, Long> m_timings = Collections.emptyMap();
+
+	/**
+	 * Private ctor
+	 */
+	private CdaHandlerWarmup()
+	{
+	}
+
+	/**
+	 * Run the warm-up if enabled by shr-cdahandler.warmup, returning the milliseconds spent in
+	 * each step. A step which fails is logged and the remaining steps still run
+	 */
+	public Map<String, Long> warm()
+	{
+		if(!CdaHandlerConfiguration.getInstance().getWarmup())
+		{
+			log.info("Warm-up is disabled");
+			return Collections.emptyMap();
+		}
+
+		Map<String, Long> timings = new LinkedHashMap<String, Long>();
+		long start = System.currentTimeMillis();
+
+		this.run("configuration", timings, new Step() {
+			@Override
+			public void run() throws Exception {
+				warmConfiguration();
+			}
+		});
+		this.run("singletons", timings, new Step() {
+			@Override
+			public void run() throws Exception {
+				warmSingletons();
+			}
+		});
+		this.run("terminology", timings, new Step() {
+			@Override
+			public void run() throws Exception {
+				OpenmrsConceptUtil.getInstance().warmCaches();
+			}
+		});
+		this.run("concepts", timings, new Step() {
+			@Override
+			public void run() throws Exception {
+				warmConcepts();
+			}
+		});
+		this.run("formatters", timings, new Step() {
+			@Override
+			public void run() throws Exception {
+				XmlIts1FormatterPool formatterPool = XmlIts1FormatterPool.getInstance();
+				formatterPool.warm(formatterPool.getMaxSize());
+			}
+		});
+		this.run("sampleDocument", timings, new Step() {
+			@Override
+			public void run() throws Exception {
+				warmSampleDocument();
+			}
+		});
+
+		long total = System.currentTimeMillis() - start;
+		timings.put("total", total);
+		this.m_timings = Collections.unmodifiableMap(timings);
+		log.info(String.format("Warm-up completed in %d ms %s", total, timings));
+		return this.m_timings;
+	}
+
+	/**
+	 * Run and time a step
+	 */
+	private void run(String name, Map<String, Long> timings, Step step)
+	{
+		long start = System.currentTimeMillis();
+		try
+		{
+			step.run();
+		}
+		catch(Exception e)
+		{
+			log.warn(String.format("Warm-up step %s failed", name), e);
+		}
+		timings.put(name, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Read (or create) the global properties read while importing a document
+	 */
+	private void warmConfiguration()
+	{
+		CdaHandlerConfiguration configuration = CdaHandlerConfiguration.getInstance();
+		// Auto-creation
+		configuration.getAutoCreateConcepts();
+		configuration.getAutoCreateLocations();
+		configuration.getAutoCreateMetaData();
+		configuration.getAutoCreatePatientIdType();
+		configuration.getAutoCreatePatients();
+		configuration.getAutoCreatePersons();
+		configuration.getAutoCreateProviders();
+		configuration.getAutoCreateUsers();
+		// Processing
+		configuration.getFormatterPoolSize();
+		configuration.getConceptCreateWait();
+		configuration.getCacheMappedConcepts();
+		configuration.getCacheMappedConceptsSize();
+		configuration.getCacheReferenceTermsSize();
+		configuration.getCacheTerminologyQueries();
+		configuration.getUnitOfWork();
+		configuration.getManualFlush();
+		configuration.getStreamThreshold();
+		configuration.getNarrativeBlobStore();
+		configuration.getUpdateExisting();
+		configuration.getValidateConceptStructure();
+		configuration.getValidationEnabled();
+		// Identifier roots
+		configuration.getIdFormat();
+		configuration.getEpidRoot();
+		configuration.getEcidRoot();
+		configuration.getShrRoot();
+		configuration.getVisitRoot();
+		configuration.getEncounterRoot();
+		configuration.getObsRoot();
+		configuration.getOrderRoot();
+		configuration.getProblemRoot();
+		configuration.getAllergyRoot();
+		configuration.getProviderRoot();
+		configuration.getLocationRoot();
+		configuration.getPatientRoot();
+		configuration.getUserRoot();
+	}
+
+	/**
+	 * Create the importer, processor factories and utility singletons
+	 */
+	private void warmSingletons()
+	{
+		// Importer, which scans for processors
+		CdaImporter.getInstance();
+		DocumentProcessorFactory.getInstance();
+		SectionProcessorFactory.getInstance();
+		EntryProcessorFactory.getInstance();
+		ClinicalDocumentHeaderScanner.getInstance();
+		// Utilities
+		DatatypeProcessorUtil.getInstance();
+		OpenmrsConceptUtil.getInstance();
+		OpenmrsDataUtil.getInstance();
+		OpenmrsMetadataUtil.getInstance();
+		AssignedEntityProcessorUtil.getInstance();
+		LocationOrganizationProcessorUtil.getInstance();
+		PatientRoleProcessorUtil.getInstance();
+		PersonProcessorUtil.getInstance();
+	}
+
+	/**
+	 * Resolve the well known concepts and load the concepts the processors refer to by uuid (*_CONCEPT_UUID_*)
+	 */
+	private void warmConcepts() throws Exception
+	{
+		Map<WellKnownConcept, Integer> wellKnown = WellKnownConceptRegistry.getInstance().refresh();
+		ConceptService conceptService = Context.getConceptService();
+		int loaded = wellKnown.size(), missing = WellKnownConcept.values().length - wellKnown.size();
+		for(Field field : CdaHandlerConstants.class.getFields())
+		{
+			if(!Modifier.isStatic(field.getModifiers()) || 
+					!field.getName().contains("_CONCEPT_UUID_") || field.getType() != String.class)
+				continue;
+
+			if(conceptService.getConceptByUuid((String)field.get(null)) == null)
+			{
+				missing++;
+				log.debug(String.format("Concept %s is not in the dictionary", field.getName()));
+			}
+			else
+				loaded++;
+		}
+		log.info(String.format("Loaded %d well known concepts (%d not in the dictionary)", loaded, missing));
+	}
+
+	/**
+	 * Scan, parse and route (without importing) the bundled sample document
+	 */
+	private void warmSampleDocument() throws Exception
+	{
+		// Scan the header
+		InputStream sample = this.getClass().getResourceAsStream(SAMPLE_DOCUMENT);
+		if(sample == null)
+		{
+			log.warn(String.format("Sample document %s is missing", SAMPLE_DOCUMENT));
+			return;
+		}
+		try
+		{
+			ClinicalDocumentHeaderScanner.getInstance().scan(sample);
+		}
+		finally
+		{
+			sample.close();
+		}
+
+		// Parse
+		XmlIts1FormatterPool formatterPool = XmlIts1FormatterPool.getInstance();
+		XmlIts1Formatter formatter = formatterPool.borrow();
+		IFormatterParseResult parseResult = null;
+		sample = this.getClass().getResourceAsStream(SAMPLE_DOCUMENT);
+		try
+		{
+			parseResult = formatter.parse(sample);
+		}
+		finally
+		{
+			formatterPool.release(formatter);
+			sample.close();
+		}
+
+		// Route to processors
+		ClinicalDocument document = (ClinicalDocument)parseResult.getStructure();
+		if(document == null)
+			return;
+		DocumentProcessorFactory documentFactory = DocumentProcessorFactory.getInstance();
+		documentFactory.releaseProcessor(documentFactory.createProcessor(document));
+
+		StructuredBody body = document.getComponent() == null ? null : document.getComponent().getBodyChoiceIfStructuredBody();
+		if(body == null)
+			return;
+		SectionProcessorFactory sectionFactory = SectionProcessorFactory.getInstance();
+		EntryProcessorFactory entryFactory = EntryProcessorFactory.getInstance();
+		for(Component3 comp : body.getComponent())
+		{
+			if(comp == null || comp.getSection() == null || comp.getSection().getNullFlavor() != null)
+				continue;
+			sectionFactory.releaseProcessor(sectionFactory.createProcessor(comp.getSection()));
+			for(Entry ent : comp.getSection().getEntry())
+				if(ent != null && ent.getClinicalStatement() != null && ent.getClinicalStatement().getTemplateId() != null)
+					entryFactory.releaseProcessor(entryFactory.createProcessor(ent.getClinicalStatement()));
+		}
+	}
+
+	/**
+	 * Get the milliseconds spent in each step of the last warm-up
+	 */
+	public Map<String, Long> getTimings() {
+		return this.m_timings;
+	}
+}
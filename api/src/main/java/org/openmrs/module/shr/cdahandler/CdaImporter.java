@@ -77,7 +77,15 @@ public final class CdaImporter {
 		DocumentProcessorFactory factory = DocumentProcessorFactory.getInstance();
 		DocumentProcessor processor = factory.createProcessor(doc);
 
-		Visit visitInformation = processor.process(doc);
+		Visit visitInformation = null;
+		try
+		{
+			visitInformation = processor.process(doc);
+		}
+		finally
+		{
+			factory.releaseProcessor(processor);
+		}
 		
 		
 		// Copy the original
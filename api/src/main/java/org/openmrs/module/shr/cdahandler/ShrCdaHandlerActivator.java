@@ -20,8 +20,13 @@ import java.util.Map;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.DaemonTokenAware;
 import org.openmrs.module.ModuleActivator;
 import org.openmrs.module.shr.cdahandler.contenthandler.CdaContentHandler;
+import org.openmrs.module.shr.cdahandler.processor.util.WellKnownConceptRegistry;
+import org.openmrs.module.shr.cdahandler.queue.CdaImportQueueProcessor;
+import org.openmrs.module.shr.cdahandler.subscriber.CdaImportNotifier;
 import org.openmrs.module.shr.contenthandler.api.AlreadyRegisteredException;
 import org.openmrs.module.shr.contenthandler.api.CodedValue;
 import org.openmrs.module.shr.contenthandler.api.ContentHandlerService;
@@ -30,10 +35,13 @@ import org.openmrs.module.shr.contenthandler.api.InvalidCodedValueException;
 /**
  * This class contains the logic that is run every time this module is either started or stopped.
  */
-public class ShrCdaHandlerActivator implements ModuleActivator {
+public class ShrCdaHandlerActivator implements ModuleActivator, DaemonTokenAware {
 	
 	protected Log log = LogFactory.getLog(getClass());
 	
+	// Token used to run the import queue and notification workers
+	private DaemonToken m_daemonToken;
+	
 	// Format codes this handler supports
 	protected final Map<String, String> m_formatTypeCodes = new HashMap<String, String>()
 			{{
@@ -86,6 +94,25 @@ public class ShrCdaHandlerActivator implements ModuleActivator {
 	 */
 	public void started() {
 		this.registerContentHandler();
+		// Resolve the well known concepts again when their global properties change
+		Context.getAdministrationService().addGlobalPropertyListener(WellKnownConceptRegistry.getInstance());
+		// Initialize settings, processors, caches and formatters so the first documents don't pay for it
+		try
+		{
+			CdaHandlerWarmup.getInstance().warm();
+		}
+		catch(Exception e)
+		{
+			log.warn("Could not warm up the CDA handler", e);
+		}
+		// Start draining the import queue
+		if(this.m_daemonToken != null)
+		{
+			CdaImportQueueProcessor.getInstance().start(this.m_daemonToken);
+			CdaImportNotifier.getInstance().start(this.m_daemonToken);
+		}
+		else
+			log.warn("No daemon token was provided, queued documents will not be imported and subscribers will be notified synchronously");
 		log.info("SHR CDA Handler Module started");
 		
 	}
@@ -97,6 +124,13 @@ public class ShrCdaHandlerActivator implements ModuleActivator {
 		log.info("SHR CDA Handler Module stopped");
 	}
 	
+	/**
+	 * @see DaemonTokenAware#setDaemonToken(DaemonToken)
+	 */
+	public void setDaemonToken(DaemonToken token) {
+		this.m_daemonToken = token;
+	}
+	
 	/**
 	 * @see ModuleActivator#willRefreshContext()
 	 */
@@ -115,6 +149,9 @@ public class ShrCdaHandlerActivator implements ModuleActivator {
 	 * @see ModuleActivator#willStop()
 	 */
 	public void willStop() {
+		CdaImportQueueProcessor.getInstance().stop();
+		CdaImportNotifier.getInstance().stop();
+		Context.getAdministrationService().removeGlobalPropertyListener(WellKnownConceptRegistry.getInstance());
 		log.info("Stopping SHR CDA Handler Module");
 	}
 		
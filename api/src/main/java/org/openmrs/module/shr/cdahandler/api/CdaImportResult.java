@@ -0,0 +1,55 @@
+package org.openmrs.module.shr.cdahandler.api;
+
+import org.openmrs.Visit;
+import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
+
+/**
+ * The outcome of importing one document in a batch
+ */
+public class CdaImportResult {
+
+	// Position of the document in the batch
+	private final int m_index;
+	// The visit created by the import
+	private final Visit m_visit;
+	// The reason the import failed
+	private final DocumentImportException m_exception;
+
+	/**
+	 * Creates a new import result
+	 */
+	public CdaImportResult(int index, Visit visit, DocumentImportException exception)
+	{
+		this.m_index = index;
+		this.m_visit = visit;
+		this.m_exception = exception;
+	}
+
+	/**
+	 * Get the position of the document within the batch
+	 */
+	public int getIndex() {
+		return this.m_index;
+	}
+
+	/**
+	 * Get the visit created by the import, or null if the import failed
+	 */
+	public Visit getVisit() {
+		return this.m_visit;
+	}
+
+	/**
+	 * Get the exception which caused the import to fail
+	 */
+	public DocumentImportException getException() {
+		return this.m_exception;
+	}
+
+	/**
+	 * True if the document was imported
+	 */
+	public boolean isSuccessful() {
+		return this.m_exception == null;
+	}
+}
@@ -14,19 +14,26 @@
 package org.openmrs.module.shr.cdahandler.api;
 
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
 import org.openmrs.Concept;
 import org.openmrs.ConceptReferenceTerm;
 import org.openmrs.ConceptSource;
+import org.openmrs.Encounter;
 import org.openmrs.Obs;
 import org.openmrs.Order;
+import org.openmrs.Patient;
 import org.openmrs.Visit;
+import org.openmrs.VisitAttributeType;
 import org.openmrs.activelist.ActiveListItem;
 import org.openmrs.api.OpenmrsService;
+import org.openmrs.module.shr.cdahandler.everest.ClinicalDocumentHeader;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
+import org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem;
 import org.springframework.transaction.annotation.Transactional;
 
 /**
@@ -52,12 +59,87 @@ public interface CdaImportService extends OpenmrsService {
 	 */
 	Visit importDocument(ClinicalDocument inputStream) throws DocumentImportException;
 
+	/**
+	 * Import a batch of documents in one transaction. Each document is isolated by a
+	 * savepoint so one failed document does not roll back the others. A document which fails
+	 * in a core service (marking the transaction for rollback) fails the whole batch with an
+	 * APIException
+	 */
+	List<CdaImportResult> importDocuments(Collection<InputStream> inputStreams);
+
+	/**
+	 * Import a batch of parsed documents in one transaction
+	 * @see #importDocuments(Collection)
+	 */
+	List<CdaImportResult> importClinicalDocuments(Collection<ClinicalDocument> documents);
+
+	/**
+	 * Stage a document for import by the background queue workers, returning
+	 * the queue item as an acknowledgement of receipt
+	 */
+	CdaImportQueueItem queueDocument(InputStream inputStream) throws DocumentImportException;
+
+	/**
+	 * Get a queue item by its uuid
+	 */
+	@Transactional(readOnly = true)
+	CdaImportQueueItem getQueueItemByUuid(String uuid);
+
+	/**
+	 * Get queue items in the specified status, oldest first
+	 */
+	@Transactional(readOnly = true)
+	List<CdaImportQueueItem> getQueueItems(CdaImportQueueItem.Status status, int maxResults);
+
+	/**
+	 * Get the number of queue items in the specified status
+	 */
+	@Transactional(readOnly = true)
+	long getQueueDepth(CdaImportQueueItem.Status status);
+
+	/**
+	 * Claim the next pending queue item for processing, or null if none are due. The claim
+	 * is made in the database so only one worker (on any node) gets each item
+	 */
+	CdaImportQueueItem claimNextQueueItem();
+
+	/**
+	 * Import a claimed queue item and mark it complete. A failed import is rolled back
+	 * entirely so that the retry doesn't find a partial copy of the document
+	 */
+	@Transactional(rollbackFor = DocumentImportException.class)
+	Visit importQueueItem(CdaImportQueueItem queueItem) throws DocumentImportException;
+
+	/**
+	 * Record a failed import attempt, scheduling a retry or dead lettering the item
+	 */
+	CdaImportQueueItem failQueueItem(Integer queueItemId, Throwable cause);
+
+	/**
+	 * Return items which were being processed when the server stopped to the pending state
+	 */
+	int resetProcessingQueueItems();
+
+	/**
+	 * Validate a pre-scanned document header, rejecting documents which would fail import
+	 * (no single recordTarget, or a duplicate of an existing document) before they are parsed
+	 */
+	@Transactional(readOnly = true)
+	void validateDocumentHeader(ClinicalDocumentHeader header) throws DocumentImportException;
+
 	/**
 	 * Subscribe to the import operation
 	 * 
 	 * @param templateId The identifier of the template to subscribe to, or null for all
 	 */
 	void subscribeImport(String templateId, CdaImportSubscriber singletonImporter);
+
+	/**
+	 * Remove a subscription to the import operation
+	 * 
+	 * @param templateId The identifier of the template subscribed to, or null for all
+	 */
+	void unsubscribeImport(String templateId, CdaImportSubscriber singletonImporter);
 	
 	
 	/**
@@ -75,6 +157,16 @@ public interface CdaImportService extends OpenmrsService {
 	 */
 	List<Obs> getObsByAccessionNumber(String an);
 
+	/**
+	 * Get the id of the first active order with each of the accession numbers
+	 */
+	Map<String, Integer> getOrderIdsByAccessionNumbers(Collection<String> accessionNumbers);
+
+	/**
+	 * Get the id of the first active observation with each of the accession numbers
+	 */
+	Map<String, Integer> getObsIdsByAccessionNumbers(Collection<String> accessionNumbers);
+
 	/**
 	 * Create a concept reference term without re-indexing
 	 */
@@ -100,10 +192,51 @@ public interface CdaImportService extends OpenmrsService {
 	 */
 	ConceptSource getConceptSourceByHl7(String hl7);
 
+	/**
+	 * Get the patient's most recent visit having an attribute of the type with the value reference
+	 */
+	Visit getVisitByAttribute(Patient patient, VisitAttributeType attributeType, String valueReference);
+
+	/**
+	 * Void the visit, its encounters, their obs and orders, and the active list items those obs
+	 * start or stop, as a few bulk updates. Returns the number of rows voided
+	 */
+	int voidVisitData(Visit visit, String voidReason);
+
+	/**
+	 * Void the encounter's obs, except those of concepts whose name in the current locale contains
+	 * excludedConceptName (if not null), as one bulk update. Returns the number of obs voided
+	 */
+	int voidEncounterObs(Encounter encounter, String excludedConceptName, String voidReason);
+
 	/**
 	 * Get concepts by mapping with specified relation
 	 */
 	List<Concept> getConceptsByMapping(ConceptReferenceTerm term, String strength);
 
+	/**
+	 * Store the narrative deflated under its digest, or add a reference to the copy already
+	 * stored, returning the digest
+	 */
+	String saveNarrative(byte[] narrative);
+
+	/**
+	 * Get a stream which inflates the narrative with the digest as it is read, or null if
+	 * no narrative is stored with the digest
+	 */
+	@Transactional(readOnly = true)
+	InputStream getNarrative(String digest);
+
+	/**
+	 * Add a reference to the narrative with the digest which is already stored
+	 */
+	void addNarrativeReference(String digest);
+
+	/**
+	 * Remove a reference to the narrative with the digest by the obs with obsId (which may be null),
+	 * deleting the narrative once no other obs points to it. Returns true if the narrative was deleted
+	 */
+	boolean releaseNarrative(String digest, Integer obsId);
+
 
 }
\ No newline at end of file
@@ -0,0 +1,10 @@
+package org.openmrs.module.shr.cdahandler.api;
+
+/**
+ * An import subscriber which must be notified on the importing thread, within
+ * the import transaction. An exception thrown by a synchronous subscriber fails the import.
+ * Subscribers which don't implement this are notified asynchronously once the import commits
+ */
+public interface SynchronousCdaImportSubscriber extends CdaImportSubscriber {
+
+}
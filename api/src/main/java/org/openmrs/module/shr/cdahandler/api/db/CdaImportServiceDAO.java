@@ -1,15 +1,27 @@
 package org.openmrs.module.shr.cdahandler.api.db;
 
+import java.sql.Savepoint;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import org.openmrs.Concept;
 import org.openmrs.ConceptMapType;
 import org.openmrs.ConceptReferenceTerm;
 import org.openmrs.ConceptSource;
+import org.openmrs.Encounter;
 import org.openmrs.Obs;
 import org.openmrs.Order;
+import org.openmrs.Patient;
+import org.openmrs.User;
+import org.openmrs.Visit;
+import org.openmrs.VisitAttributeType;
 import org.openmrs.activelist.ActiveListItem;
 import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
+import org.openmrs.module.shr.cdahandler.obs.NarrativeBlob;
+import org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem;
 
 /**
  * Represents a DAO for extended CDA properties
@@ -31,6 +43,16 @@ public interface CdaImportServiceDAO {
 	 */
 	List<Obs> getObsByAccessionNumber(String an, boolean includeVoided);
 
+	/**
+	 * Get the id of the first non-voided order with each of the accession numbers
+	 */
+	Map<String, Integer> getOrderIdsByAccessionNumbers(Collection<String> accessionNumbers);
+
+	/**
+	 * Get the id of the first non-voided observation with each of the accession numbers
+	 */
+	Map<String, Integer> getObsIdsByAccessionNumbers(Collection<String> accessionNumbers);
+
 	/**
 	 * Create a reference term
 	 */
@@ -56,5 +78,119 @@ public interface CdaImportServiceDAO {
 	 */
 	ConceptSource getConceptSourceByHl7(String hl7);
 
+	/**
+	 * Get the ids of the non-retired concepts mapped to the reference term with the map type (case insensitive)
+	 */
+	List<Integer> getConceptIdsByMapping(ConceptReferenceTerm term, String mapType);
+
+	/**
+	 * Get the patient's most recent non-voided visit having an attribute of the type with the value reference
+	 */
+	Visit getVisitByAttribute(Patient patient, VisitAttributeType attributeType, String valueReference);
+
+	/**
+	 * Void the visit, its encounters, their obs and orders, and the active list items started or
+	 * stopped by those obs, with one update per table. Returns the number of rows voided
+	 */
+	int voidVisitData(Visit visit, User user, Date dateVoided, String voidReason);
+
+	/**
+	 * Void the encounter's obs, except those of concepts whose name in the locale (the preferred name, or
+	 * the fully specified name if there is none) contains excludedConceptName, with one update. Returns
+	 * the number of obs voided
+	 */
+	int voidEncounterObs(Encounter encounter, String excludedConceptName, Locale locale, User user, Date dateVoided, String voidReason);
+
+	/**
+	 * Turn flushing of the current session before queries on or off, returning whether it was on
+	 */
+	boolean setAutoFlush(boolean autoFlush);
+
+	/**
+	 * Get the narrative blob with the digest
+	 */
+	NarrativeBlob getNarrativeBlobByDigest(String digest);
+
+	/**
+	 * Insert a new narrative blob under a savepoint, returning false (and leaving the
+	 * transaction usable) if a blob with its digest was stored concurrently
+	 */
+	boolean insertNarrativeBlob(NarrativeBlob blob);
+
+	/**
+	 * Add delta to the reference count of the narrative blob with the digest in one update,
+	 * returning the number of blobs updated
+	 */
+	int updateNarrativeBlobReferenceCount(String digest, int delta);
+
+	/**
+	 * Delete the narrative blob with the digest if its reference count has reached zero and no
+	 * obs other than the one with excludedObsId (if not null) points to it, returning the number
+	 * of blobs deleted
+	 */
+	int deleteUnreferencedNarrativeBlob(String digest, Integer excludedObsId);
+
+	
+	/**
+	 * Save a queue item
+	 */
+	CdaImportQueueItem saveQueueItem(CdaImportQueueItem queueItem);
+
+	/**
+	 * Get a queue item by id
+	 */
+	CdaImportQueueItem getQueueItem(Integer id);
+
+	/**
+	 * Get a queue item by uuid
+	 */
+	CdaImportQueueItem getQueueItemByUuid(String uuid);
+
+	/**
+	 * Get the most recent queue item with the specified payload digest which is waiting to be imported
+	 * (pending, including retries) or being imported
+	 */
+	CdaImportQueueItem getQueueItemByDigest(String digest);
+
+	/**
+	 * Get the oldest pending queue item which is due to be attempted at the specified date
+	 */
+	CdaImportQueueItem getNextQueueItem(Date asOf);
+
+	/**
+	 * Move the pending queue item to processing and count the attempt with one conditional
+	 * update, returning false if another worker claimed it first
+	 */
+	boolean claimQueueItem(CdaImportQueueItem queueItem, Date asOf);
+
+	/**
+	 * Get queue items in the specified status, oldest first
+	 */
+	List<CdaImportQueueItem> getQueueItems(CdaImportQueueItem.Status status, int maxResults);
+
+	/**
+	 * Count the queue items in the specified status
+	 */
+	long getQueueItemCount(CdaImportQueueItem.Status status);
+
+	/**
+	 * Move all queue items in one status to another
+	 */
+	int updateQueueItemStatus(CdaImportQueueItem.Status from, CdaImportQueueItem.Status to);
+	
+	/**
+	 * Flush pending changes and set a savepoint on the current connection
+	 */
+	Savepoint createSavepoint();
+
+	/**
+	 * Roll back to the savepoint and clear the session of the discarded changes
+	 */
+	void rollbackToSavepoint(Savepoint savepoint);
+
+	/**
+	 * Flush pending changes and release the savepoint
+	 */
+	void releaseSavepoint(Savepoint savepoint);
 	
 }
@@ -1,30 +1,79 @@
 package org.openmrs.module.shr.cdahandler.api.db.hibernate;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
+import org.hibernate.FlushMode;
+import org.hibernate.Query;
+import org.hibernate.Session;
 import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.jdbc.Work;
 import org.openmrs.Concept;
+import org.openmrs.ConceptNameType;
 import org.openmrs.ConceptReferenceTerm;
 import org.openmrs.ConceptSource;
+import org.openmrs.Encounter;
 import org.openmrs.Obs;
 import org.openmrs.Order;
+import org.openmrs.Patient;
+import org.openmrs.User;
+import org.openmrs.Visit;
+import org.openmrs.VisitAttributeType;
+import org.openmrs.Voidable;
 import org.openmrs.activelist.ActiveListItem;
 import org.openmrs.api.db.hibernate.DbSessionFactory;
 import org.openmrs.api.db.hibernate.HibernateConceptDAO;
 import org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
 import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
+import org.openmrs.module.shr.cdahandler.obs.NarrativeBlob;
+import org.openmrs.module.shr.cdahandler.obs.NarrativeBlobHandler;
+import org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem;
 
 /**
  * Hibernate DAO for CDA import service
  */
 public class HibernateCdaImportServiceDAO implements CdaImportServiceDAO {
 	
+	// Sets the void fields of the updated entity (aliased a)
+	private static final String VOID_SET_CLAUSE = "set a.voided = true, a.voidedBy = :voidedBy, a.dateVoided = :dateVoided, a.voidReason = :voidReason";
+	
+	// The most accession numbers bound to one IN query
+	private static final int MAX_IN_PARAMETERS = 500;
+	
+	// Query cache region of the terminology queries. Only the queries are cached by the module: whether
+	// Concept, ConceptMap, ConceptReferenceTerm, ConceptSource, ConceptMapType and ConceptDatatype are
+	// cached (and the size of any region) is fixed by core's mappings and cache provider configuration
+	// when the session factory is built, so the module can't configure it
+	public static final String TERMINOLOGY_QUERY_REGION = "org.openmrs.module.shr.cdahandler.terminology";
+	
+	// Log
+	protected final Log log = LogFactory.getLog(this.getClass());
+	
 	// Hibernate session factory
 	private DbSessionFactory m_sessionFactory;
 	
+	// True once the disabled query cache has been reported
+	private volatile boolean m_queryCacheDisabledLogged = false;
+	
     /**
      * @param sessionFactory the sessionFactory to set
      */
@@ -40,7 +89,10 @@ public class HibernateCdaImportServiceDAO implements CdaImportServiceDAO {
 	public Concept saveConceptQuick(Concept concept) {
 		HibernateConceptDAO wrappedDao = new HibernateConceptDAO();
 		wrappedDao.setSessionFactory(this.m_sessionFactory.getHibernateSessionFactory());
-		return wrappedDao.saveConcept(concept);
+		Concept retVal = wrappedDao.saveConcept(concept);
+		this.flushIfNotAuto();
+		this.evictTerminologyQueries();
+		return retVal;
 	}
 	
 	@Override
@@ -49,7 +101,13 @@ public class HibernateCdaImportServiceDAO implements CdaImportServiceDAO {
 				.add(Restrictions.eq("accessionNumber", an));
 		if(!includeVoided)
 				crit.add(Restrictions.eq("voided", includeVoided));
-		return (List<Order>)crit.list();
+		List<Order> retVal = (List<Order>)crit.list();
+		// Voided in the session but not flushed
+		if(!includeVoided)
+			for(Iterator<Order> iterator = retVal.iterator(); iterator.hasNext();)
+				if(iterator.next().isVoided())
+					iterator.remove();
+		return retVal;
 	}
 	
 	@Override
@@ -58,14 +116,64 @@ public class HibernateCdaImportServiceDAO implements CdaImportServiceDAO {
 				.add(Restrictions.eq("accessionNumber", an));
 		if(!includeVoided)
 				crit.add(Restrictions.eq("voided", includeVoided));
-		return (List<Obs>)crit.list();
+		List<Obs> retVal = (List<Obs>)crit.list();
+		// Voided in the session but not flushed
+		if(!includeVoided)
+			for(Iterator<Obs> iterator = retVal.iterator(); iterator.hasNext();)
+				if(iterator.next().isVoided())
+					iterator.remove();
+		return retVal;
+	}
+
+	/**
+	 * Get order ids by accession numbers
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getOrderIdsByAccessionNumbers(java.util.Collection)
+	 */
+	@Override
+	public Map<String, Integer> getOrderIdsByAccessionNumbers(Collection<String> accessionNumbers) {
+		return this.getIdsByAccessionNumbers("select o.accessionNumber, min(o.orderId) from Order o where o.accessionNumber in (:accessionNumbers) " +
+				"and o.voided = false group by o.accessionNumber", accessionNumbers);
+	}
+
+	/**
+	 * Get obs ids by accession numbers
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getObsIdsByAccessionNumbers(java.util.Collection)
+	 */
+	@Override
+	public Map<String, Integer> getObsIdsByAccessionNumbers(Collection<String> accessionNumbers) {
+		return this.getIdsByAccessionNumbers("select o.accessionNumber, min(o.obsId) from Obs o where o.accessionNumber in (:accessionNumbers) " +
+				"and o.voided = false group by o.accessionNumber", accessionNumbers);
+	}
+
+	/**
+	 * Run an accession number / id query in chunks of at most MAX_IN_PARAMETERS accession numbers
+	 */
+	private Map<String, Integer> getIdsByAccessionNumbers(String hql, Collection<String> accessionNumbers) {
+		Map<String, Integer> retVal = new HashMap<String, Integer>();
+		List<String> chunk = new ArrayList<String>(MAX_IN_PARAMETERS);
+		Iterator<String> iterator = accessionNumbers.iterator();
+		while(iterator.hasNext())
+		{
+			chunk.add(iterator.next());
+			if(chunk.size() < MAX_IN_PARAMETERS && iterator.hasNext())
+				continue;
+			
+			for(Object[] row : (List<Object[]>)this.m_sessionFactory.getCurrentSession().createQuery(hql)
+					.setParameterList("accessionNumbers", chunk).list())
+				retVal.put((String)row[0], (Integer)row[1]);
+			chunk.clear();
+		}
+		return retVal;
 	}
 
 	@Override
     public ConceptReferenceTerm saveReferenceTermQuick(ConceptReferenceTerm referenceTerm) {
 		HibernateConceptDAO wrappedDao = new HibernateConceptDAO();
 		wrappedDao.setSessionFactory(this.m_sessionFactory.getHibernateSessionFactory());
-		return wrappedDao.saveConceptReferenceTerm(referenceTerm);
+		ConceptReferenceTerm retVal = wrappedDao.saveConceptReferenceTerm(referenceTerm);
+		this.flushIfNotAuto();
+		this.evictTerminologyQueries();
+		return retVal;
     }
 
 	/**
@@ -119,7 +227,443 @@ public class HibernateCdaImportServiceDAO implements CdaImportServiceDAO {
 
 		Criteria crit = this.m_sessionFactory.getCurrentSession().createCriteria(ConceptSource.class)
 				.add(Restrictions.eq("hl7Code", hl7));
+		if(this.isTerminologyQueryCacheable())
+			crit.setCacheable(true).setCacheRegion(TERMINOLOGY_QUERY_REGION);
 		return (ConceptSource)crit.uniqueResult();
 	}
 
+	/**
+	 * Get the ids of concepts mapped to a reference term
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getConceptIdsByMapping(org.openmrs.ConceptReferenceTerm, java.lang.String)
+	 */
+	@Override
+	public List<Integer> getConceptIdsByMapping(ConceptReferenceTerm term, String mapType) {
+		Query query = this.m_sessionFactory.getCurrentSession()
+				.createQuery("select distinct m.concept.conceptId from ConceptMap m where m.conceptReferenceTerm.conceptReferenceTermId = :termId " +
+						"and lower(m.conceptMapType.name) = :mapType and m.concept.retired = false order by m.concept.conceptId")
+				.setInteger("termId", term.getId())
+				.setString("mapType", mapType.toLowerCase());
+		if(this.isTerminologyQueryCacheable())
+			query.setCacheable(true).setCacheRegion(TERMINOLOGY_QUERY_REGION);
+		return (List<Integer>)query.list();
+	}
+
+	/**
+	 * True if the terminology queries should be cached, i.e. it is configured and core enabled the query
+	 * cache (hibernate.cache.use_query_cache). Otherwise caching them would silently do nothing
+	 */
+	private boolean isTerminologyQueryCacheable() {
+		if(!CdaHandlerConfiguration.getInstance().getCacheTerminologyQueries())
+			return false;
+		if(((SessionFactoryImplementor)this.m_sessionFactory.getHibernateSessionFactory()).getSettings().isQueryCacheEnabled())
+			return true;
+		
+		if(!this.m_queryCacheDisabledLogged)
+		{
+			this.m_queryCacheDisabledLogged = true;
+			log.warn(String.format("%s is set but the Hibernate query cache is disabled, set hibernate.cache.use_query_cache=true in the runtime properties to cache the terminology queries", 
+					CdaHandlerConfiguration.PROP_CACHE_TERMINOLOGY_QUERIES));
+		}
+		return false;
+	}
+
+	/**
+	 * Discard the cached terminology query results after a concept or reference term is saved, rather
+	 * than relying on Hibernate noticing the tables changed when the session is eventually flushed
+	 */
+	private void evictTerminologyQueries() {
+		this.m_sessionFactory.getHibernateSessionFactory().getCache().evictQueryRegion(TERMINOLOGY_QUERY_REGION);
+	}
+
+	/**
+	 * Get a visit by attribute value, most recent first as the visit service orders a patient's visits
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getVisitByAttribute(org.openmrs.Patient, org.openmrs.VisitAttributeType, java.lang.String)
+	 */
+	@Override
+	public Visit getVisitByAttribute(Patient patient, VisitAttributeType attributeType, String valueReference) {
+		return (Visit)this.m_sessionFactory.getCurrentSession()
+				.createQuery("select a.visit from VisitAttribute a where a.attributeType = :attributeType and a.valueReference = :valueReference " +
+						"and a.visit.patient = :patient and a.visit.voided = false order by a.visit.startDatetime desc, a.visit.visitId desc")
+				.setParameter("attributeType", attributeType)
+				.setString("valueReference", valueReference)
+				.setParameter("patient", patient)
+				.setMaxResults(1)
+				.uniqueResult();
+	}
+
+	/**
+	 * Void the visit's data with bulk updates, refreshing the affected entities held in the session
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#voidVisitData(org.openmrs.Visit, org.openmrs.User, java.util.Date, java.lang.String)
+	 */
+	@Override
+	public int voidVisitData(Visit visit, User user, Date dateVoided, String voidReason) {
+		Session session = this.m_sessionFactory.getCurrentSession();
+		// Active list items first, they are found by the obs which are not yet voided
+		int retVal = this.setVoided(session.createQuery("update ActiveListItem a " + VOID_SET_CLAUSE + " where a.voided = false " +
+				"and (a.startObs.id in (select o.obsId from Obs o where o.encounter.visit = :visit and o.voided = false and o.accessionNumber is not null) " +
+				"or a.stopObs.id in (select o.obsId from Obs o where o.encounter.visit = :visit and o.voided = false and o.accessionNumber is not null))"), 
+				user, dateVoided, voidReason).setParameter("visit", visit).executeUpdate();
+		retVal += this.setVoided(session.createQuery("update Obs a " + VOID_SET_CLAUSE + " where a.voided = false " +
+				"and a.encounter in (select e from Encounter e where e.visit = :visit)"), 
+				user, dateVoided, voidReason).setParameter("visit", visit).executeUpdate();
+		retVal += this.setVoided(session.createQuery("update Order a " + VOID_SET_CLAUSE + " where a.voided = false " +
+				"and a.encounter in (select e from Encounter e where e.visit = :visit)"), 
+				user, dateVoided, voidReason).setParameter("visit", visit).executeUpdate();
+		retVal += this.setVoided(session.createQuery("update Encounter a " + VOID_SET_CLAUSE + " where a.voided = false and a.visit = :visit"), 
+				user, dateVoided, voidReason).setParameter("visit", visit).executeUpdate();
+		retVal += this.setVoided(session.createQuery("update Visit a " + VOID_SET_CLAUSE + " where a.voided = false and a.visitId = :visitId"), 
+				user, dateVoided, voidReason).setParameter("visitId", visit.getVisitId()).executeUpdate();
+		
+		// The bulk updates bypass the session, so reload what it holds or a later flush would un-void it
+		for(Object entity : this.getUnvoidedSessionEntities(session))
+		{
+			boolean affected = false;
+			if(entity instanceof Visit)
+				affected = visit.getVisitId().equals(((Visit)entity).getVisitId());
+			else if(entity instanceof Encounter)
+				affected = this.isInVisit((Encounter)entity, visit);
+			else if(entity instanceof Obs)
+				affected = this.isInVisit(((Obs)entity).getEncounter(), visit);
+			else if(entity instanceof Order)
+				affected = this.isInVisit(((Order)entity).getEncounter(), visit);
+			else if(entity instanceof ActiveListItem)
+			{
+				ActiveListItem item = (ActiveListItem)entity;
+				affected = item.getStartObs() != null && this.isInVisit(item.getStartObs().getEncounter(), visit) ||
+						item.getStopObs() != null && this.isInVisit(item.getStopObs().getEncounter(), visit);
+			}
+			
+			if(affected)
+				session.refresh(entity);
+		}
+		return retVal;
+	}
+
+	/**
+	 * True if the encounter is part of the visit
+	 */
+	private boolean isInVisit(Encounter encounter, Visit visit) {
+		return encounter != null && encounter.getVisit() != null && visit.getVisitId().equals(encounter.getVisit().getVisitId());
+	}
+
+	/**
+	 * Get the voidable entities in the session which are not voided, i.e. those a bulk void may have changed
+	 */
+	private List<Object> getUnvoidedSessionEntities(Session session) {
+		List<Object> retVal = new ArrayList<Object>();
+		for(Object entity : ((SessionImplementor)session).getPersistenceContext().getEntitiesByKey().values())
+			if(entity instanceof Voidable && !Boolean.TRUE.equals(((Voidable)entity).isVoided()))
+				retVal.add(entity);
+		return retVal;
+	}
+
+	/**
+	 * Void an encounter's obs with a bulk update, refreshing the affected entities held in the session
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#voidEncounterObs(org.openmrs.Encounter, java.lang.String, java.util.Locale, org.openmrs.User, java.util.Date, java.lang.String)
+	 */
+	@Override
+	public int voidEncounterObs(Encounter encounter, String excludedConceptName, Locale locale, User user, Date dateVoided, String voidReason) {
+		Session session = this.m_sessionFactory.getCurrentSession();
+		Query query = null;
+		if(excludedConceptName == null)
+			query = session.createQuery("update Obs a " + VOID_SET_CLAUSE + " where a.voided = false and a.encounter = :encounter");
+		else
+			// Only the name Concept.getName() returns: the preferred name in the locale, otherwise the fully specified name
+			query = session.createQuery("update Obs a " + VOID_SET_CLAUSE + " where a.voided = false and a.encounter = :encounter " +
+					"and a.concept not in (select n.concept from ConceptName n where n.voided = false and n.locale = :locale and n.name like :excludedConceptName " +
+					"and (n.localePreferred = true or (n.conceptNameType = :fullySpecified and not exists " +
+					"(select p.conceptNameId from ConceptName p where p.concept = n.concept and p.voided = false and p.locale = :locale and p.localePreferred = true))))")
+					.setString("excludedConceptName", "%" + excludedConceptName + "%")
+					.setParameter("locale", locale)
+					.setParameter("fullySpecified", ConceptNameType.FULLY_SPECIFIED);
+		int retVal = this.setVoided(query, user, dateVoided, voidReason).setParameter("encounter", encounter).executeUpdate();
+
+		// The bulk update bypasses the session, so reload what it holds or a later flush would un-void it
+		for(Object entity : this.getUnvoidedSessionEntities(session))
+			if(entity instanceof Obs && ((Obs)entity).getEncounter() != null && encounter.getEncounterId().equals(((Obs)entity).getEncounter().getEncounterId()))
+				session.refresh(entity);
+		if(session.contains(encounter))
+			session.refresh(encounter);
+		return retVal;
+	}
+
+	/**
+	 * Set the flush mode of the current session to AUTO or COMMIT
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#setAutoFlush(boolean)
+	 */
+	@Override
+	public boolean setAutoFlush(boolean autoFlush) {
+		Session session = this.m_sessionFactory.getCurrentSession();
+		boolean retVal = session.getFlushMode() == FlushMode.AUTO || session.getFlushMode() == FlushMode.ALWAYS;
+		session.setFlushMode(autoFlush ? FlushMode.AUTO : FlushMode.COMMIT);
+		return retVal;
+	}
+
+	/**
+	 * Get a narrative blob by digest
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getNarrativeBlobByDigest(java.lang.String)
+	 */
+	@Override
+	public NarrativeBlob getNarrativeBlobByDigest(String digest) {
+		Criteria crit = this.m_sessionFactory.getCurrentSession().createCriteria(NarrativeBlob.class)
+				.add(Restrictions.eq("digest", digest));
+		return (NarrativeBlob)crit.uniqueResult();
+	}
+
+	/**
+	 * Insert a narrative blob, a duplicate digest is rolled back to the savepoint rather than
+	 * failing the import which stored the same narrative at the same time
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#insertNarrativeBlob(org.openmrs.module.shr.cdahandler.obs.NarrativeBlob)
+	 */
+	@Override
+	public boolean insertNarrativeBlob(final NarrativeBlob blob) {
+		final boolean[] retVal = new boolean[1];
+		this.m_sessionFactory.getCurrentSession().doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				Savepoint savepoint = connection.setSavepoint();
+				PreparedStatement statement = connection.prepareStatement("INSERT INTO shr_cda_narrative_blob (uuid, digest, content, size, reference_count, date_created) VALUES (?, ?, ?, ?, ?, ?)");
+				try
+				{
+					statement.setString(1, blob.getUuid());
+					statement.setString(2, blob.getDigest());
+					statement.setBytes(3, blob.getContent());
+					statement.setInt(4, blob.getSize());
+					statement.setInt(5, blob.getReferenceCount());
+					statement.setTimestamp(6, new Timestamp(blob.getDateCreated().getTime()));
+					statement.executeUpdate();
+					connection.releaseSavepoint(savepoint);
+					retVal[0] = true;
+				}
+				catch(SQLException e)
+				{
+					connection.rollback(savepoint);
+					// Integrity constraint violation (the unique digest), anything else is a real failure
+					if(e.getSQLState() == null || !e.getSQLState().startsWith("23"))
+						throw e;
+				}
+				finally
+				{
+					statement.close();
+				}
+			}
+		});
+		return retVal[0];
+	}
+
+	/**
+	 * Update the reference count in the database so concurrent imports don't lose references
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#updateNarrativeBlobReferenceCount(java.lang.String, int)
+	 */
+	@Override
+	public int updateNarrativeBlobReferenceCount(String digest, int delta) {
+		return this.m_sessionFactory.getCurrentSession()
+				.createQuery("update NarrativeBlob set referenceCount = referenceCount + :delta where digest = :digest")
+				.setInteger("delta", delta)
+				.setString("digest", digest)
+				.executeUpdate();
+	}
+
+	/**
+	 * Delete a narrative blob which has no references left
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#deleteUnreferencedNarrativeBlob(java.lang.String, java.lang.Integer)
+	 */
+	@Override
+	public int deleteUnreferencedNarrativeBlob(String digest, Integer excludedObsId) {
+		// Core copies the value complex to the new version of a revised obs without counting it
+		return this.m_sessionFactory.getCurrentSession()
+				.createQuery("delete from NarrativeBlob b where b.digest = :digest and b.referenceCount <= 0 " +
+						"and not exists (select o.obsId from Obs o where o.valueComplex like :reference and o.obsId <> :excludedObsId)")
+				.setString("digest", digest)
+				.setString("reference", "%|" + NarrativeBlobHandler.BLOB_PREFIX + digest)
+				.setInteger("excludedObsId", excludedObsId == null ? -1 : excludedObsId)
+				.executeUpdate();
+	}
+
+	/**
+	 * Flush the current session if it isn't flushed before queries, so that terminology
+	 * saved during an import is found by the lookups which follow
+	 */
+	private void flushIfNotAuto() {
+		Session session = this.m_sessionFactory.getCurrentSession();
+		if(session.getFlushMode() == FlushMode.COMMIT || session.getFlushMode() == FlushMode.MANUAL)
+			session.flush();
+	}
+
+	/**
+	 * Bind the parameters of VOID_SET_CLAUSE
+	 */
+	private Query setVoided(Query query, User user, Date dateVoided, String voidReason) {
+		return query.setParameter("voidedBy", user)
+				.setTimestamp("dateVoided", dateVoided)
+				.setString("voidReason", voidReason);
+	}
+
+	/**
+	 * Save a queue item
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#saveQueueItem(org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem)
+	 */
+	@Override
+	public CdaImportQueueItem saveQueueItem(CdaImportQueueItem queueItem) {
+		this.m_sessionFactory.getCurrentSession().saveOrUpdate(queueItem);
+		return queueItem;
+	}
+
+	/**
+	 * Get a queue item by id
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getQueueItem(java.lang.Integer)
+	 */
+	@Override
+	public CdaImportQueueItem getQueueItem(Integer id) {
+		return (CdaImportQueueItem)this.m_sessionFactory.getCurrentSession().get(CdaImportQueueItem.class, id);
+	}
+
+	/**
+	 * Get a queue item by uuid
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getQueueItemByUuid(java.lang.String)
+	 */
+	@Override
+	public CdaImportQueueItem getQueueItemByUuid(String uuid) {
+		Criteria crit = this.m_sessionFactory.getCurrentSession().createCriteria(CdaImportQueueItem.class)
+				.add(Restrictions.eq("uuid", uuid));
+		return (CdaImportQueueItem)crit.uniqueResult();
+	}
+
+	/**
+	 * Get a live queue item by digest
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getQueueItemByDigest(java.lang.String)
+	 */
+	@Override
+	public CdaImportQueueItem getQueueItemByDigest(String digest) {
+		Criteria crit = this.m_sessionFactory.getCurrentSession().createCriteria(CdaImportQueueItem.class)
+				.add(Restrictions.eq("digest", digest))
+				.add(Restrictions.in("status", new Object[] { CdaImportQueueItem.Status.PENDING, CdaImportQueueItem.Status.PROCESSING }))
+				.addOrder(org.hibernate.criterion.Order.desc("id"))
+				.setMaxResults(1);
+		return (CdaImportQueueItem)crit.uniqueResult();
+	}
+
+	/**
+	 * Get the next pending queue item
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getNextQueueItem(java.util.Date)
+	 */
+	@Override
+	public CdaImportQueueItem getNextQueueItem(Date asOf) {
+		Criteria crit = this.m_sessionFactory.getCurrentSession().createCriteria(CdaImportQueueItem.class)
+				.add(Restrictions.eq("status", CdaImportQueueItem.Status.PENDING))
+				.add(Restrictions.or(Restrictions.isNull("nextAttemptDate"), Restrictions.le("nextAttemptDate", asOf)))
+				.addOrder(org.hibernate.criterion.Order.asc("id"))
+				.setMaxResults(1);
+		return (CdaImportQueueItem)crit.uniqueResult();
+	}
+
+	/**
+	 * Claim a queue item, the status check in the update makes the claim atomic across nodes
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#claimQueueItem(org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem, java.util.Date)
+	 */
+	@Override
+	public boolean claimQueueItem(CdaImportQueueItem queueItem, Date asOf) {
+		Session session = this.m_sessionFactory.getCurrentSession();
+		int updated = session.createQuery("update CdaImportQueueItem set status = :processing, attempts = attempts + 1, dateChanged = :now where id = :id and status = :pending")
+				.setParameter("processing", CdaImportQueueItem.Status.PROCESSING)
+				.setParameter("pending", CdaImportQueueItem.Status.PENDING)
+				.setTimestamp("now", asOf)
+				.setInteger("id", queueItem.getId())
+				.executeUpdate();
+		
+		// The bulk update bypasses the session
+		if(updated > 0)
+			session.refresh(queueItem);
+		else
+			session.evict(queueItem);
+		return updated > 0;
+	}
+
+	/**
+	 * Get queue items by status
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getQueueItems(org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem.Status, int)
+	 */
+	@Override
+	public List<CdaImportQueueItem> getQueueItems(CdaImportQueueItem.Status status, int maxResults) {
+		Criteria crit = this.m_sessionFactory.getCurrentSession().createCriteria(CdaImportQueueItem.class)
+				.add(Restrictions.eq("status", status))
+				.addOrder(org.hibernate.criterion.Order.asc("id"))
+				.setMaxResults(maxResults);
+		return (List<CdaImportQueueItem>)crit.list();
+	}
+
+	/**
+	 * Count queue items by status
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#getQueueItemCount(org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem.Status)
+	 */
+	@Override
+	public long getQueueItemCount(CdaImportQueueItem.Status status) {
+		Criteria crit = this.m_sessionFactory.getCurrentSession().createCriteria(CdaImportQueueItem.class)
+				.add(Restrictions.eq("status", status))
+				.setProjection(Projections.rowCount());
+		return ((Number)crit.uniqueResult()).longValue();
+	}
+
+	/**
+	 * Move queue items between states
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#updateQueueItemStatus(org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem.Status, org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem.Status)
+	 */
+	@Override
+	public int updateQueueItemStatus(CdaImportQueueItem.Status from, CdaImportQueueItem.Status to) {
+		return this.m_sessionFactory.getCurrentSession()
+				.createQuery("update CdaImportQueueItem set status = :to, dateChanged = :now where status = :from")
+				.setParameter("to", to)
+				.setParameter("from", from)
+				.setTimestamp("now", new Date())
+				.executeUpdate();
+	}
+
+	/**
+	 * Create a JDBC savepoint
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#createSavepoint()
+	 */
+	@Override
+	public Savepoint createSavepoint() {
+		final Savepoint[] retVal = new Savepoint[1];
+		this.m_sessionFactory.getCurrentSession().flush();
+		this.m_sessionFactory.getCurrentSession().doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				retVal[0] = connection.setSavepoint();
+			}
+		});
+		return retVal[0];
+	}
+
+	/**
+	 * Roll back to a JDBC savepoint
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#rollbackToSavepoint(java.sql.Savepoint)
+	 */
+	@Override
+	public void rollbackToSavepoint(final Savepoint savepoint) {
+		// Anything in the session after the savepoint is no longer in the database
+		this.m_sessionFactory.getCurrentSession().clear();
+		this.m_sessionFactory.getCurrentSession().doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				connection.rollback(savepoint);
+			}
+		});
+	}
+
+	/**
+	 * Release a JDBC savepoint
+	 * @see org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO#releaseSavepoint(java.sql.Savepoint)
+	 */
+	@Override
+	public void releaseSavepoint(final Savepoint savepoint) {
+		this.m_sessionFactory.getCurrentSession().flush();
+		this.m_sessionFactory.getCurrentSession().doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				connection.releaseSavepoint(savepoint);
+			}
+		});
+	}
+
 }
@@ -13,8 +13,24 @@
  */
 package org.openmrs.module.shr.cdahandler.api.impl;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Savepoint;
 import java.util.*;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,15 +48,32 @@ import org.openmrs.api.ConceptService;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.openmrs.module.shr.cdahandler.CdaImporter;
+import org.openmrs.module.shr.cdahandler.api.CdaImportResult;
 import org.openmrs.module.shr.cdahandler.api.CdaImportService;
 import org.openmrs.module.shr.cdahandler.api.CdaImportSubscriber;
 import org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO;
-import org.openmrs.module.shr.cdahandler.everest.EverestUtil;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+import org.openmrs.module.shr.cdahandler.everest.ClinicalDocumentHeader;
+import org.openmrs.module.shr.cdahandler.everest.ClinicalDocumentHeaderScanner;
+import org.openmrs.module.shr.cdahandler.everest.DocumentSpool;
+import org.openmrs.module.shr.cdahandler.everest.NonXmlBodyExtractor;
+import org.openmrs.module.shr.cdahandler.everest.XmlIts1FormatterPool;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.exception.DocumentValidationException;
 import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
 import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
+import org.openmrs.module.shr.cdahandler.obs.NarrativeBlob;
+import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsConceptUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsDataUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.PatientRoleProcessorUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.WellKnownConceptRegistry;
+import org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem;
+import org.openmrs.module.shr.cdahandler.queue.CdaImportQueueProcessor;
+import org.openmrs.module.shr.cdahandler.subscriber.CdaImportNotifier;
+import org.openmrs.module.shr.cdahandler.subscriber.CdaImportSubscriberRegistry;
+import org.springframework.transaction.NoTransactionException;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 /**
  * It is a default implementation of {@link CdaImportService}.
@@ -49,6 +82,9 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 	
 	protected final Log log = LogFactory.getLog(this.getClass());
 	
+	// Items another worker claimed first before giving up until the next poll
+	private static final int MAX_CLAIM_ATTEMPTS = 5;
+	
 	// Processor
 	private CdaImporter m_processor = null;
 	
@@ -56,7 +92,10 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 	private CdaImportServiceDAO dao;
 	
 	// Subscribers
-	protected final Map<String, Set<CdaImportSubscriber>> m_subscribers = new HashMap<String, Set<CdaImportSubscriber>>();
+	protected final CdaImportSubscriberRegistry m_subscribers = new CdaImportSubscriberRegistry();
+	
+	// Concepts by mapping
+	private volatile ConceptMappingCache m_conceptMappingCache = null;
 	
 	/** 
 	 * TODO: This needs to be more thread/process safe.. 
@@ -66,13 +105,132 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 	public Visit importDocument(InputStream doc) throws DocumentImportException 
 	{
 		
+		// Copy the document so it can be read more than once, large documents are copied to disk
+		DocumentSpool spool = null;
+		try
+		{
+			spool = new DocumentSpool(doc, CdaHandlerConfiguration.getInstance().getStreamThreshold());
+		}
+		catch(IOException e)
+		{
+			throw new DocumentImportException("Could not read document", e);
+		}
+		
+		File strippedDoc = null, extractedBody = null;
+		try
+		{
+			// Scan the header first so that bad or duplicate documents are rejected before the full parse
+			try
+			{
+				InputStream headerStream = spool.open();
+				try
+				{
+					this.validateDocumentHeader(ClinicalDocumentHeaderScanner.getInstance().scan(headerStream));
+				}
+				finally
+				{
+					headerStream.close();
+				}
+				
+				// Decode a large level 1 document's body to a file so it is never in memory
+				if(spool.isOnDisk())
+				{
+					strippedDoc = DocumentSpool.createTempFile(".xml");
+					extractedBody = DocumentSpool.createTempFile(".bin");
+					if(this.extractNonXmlBody(spool, strippedDoc, extractedBody))
+						NonXmlBodyExtractor.getInstance().setExtractedBody(extractedBody);
+					else
+					{
+						deleteTempFile(strippedDoc);
+						strippedDoc = null;
+					}
+				}
+				
+				doc = strippedDoc != null ? new BufferedInputStream(new FileInputStream(strippedDoc)) : spool.open();
+			}
+			catch(XMLStreamException e)
+			{
+				ValidationIssueCollection scanIssues = new ValidationIssueCollection();
+				scanIssues.error(String.format("Could not read ClinicalDocument: %s", e.getMessage()));
+				throw new DocumentValidationException(e, null, scanIssues);
+			}
+			catch(IOException e)
+			{
+				throw new DocumentImportException("Could not read document", e);
+			}
+			
+			return this.importDocument(this.parseDocument(doc));
+		}
+		finally
+		{
+			NonXmlBodyExtractor.getInstance().setExtractedBody(null);
+			spool.delete();
+			deleteTempFile(strippedDoc);
+			deleteTempFile(extractedBody);
+		}
+	}
+
+	/**
+	 * Copy the spooled document to strippedDoc without its base64 nonXMLBody, which is decoded to body.
+	 * Returns false if the document has no such body
+	 */
+	private boolean extractNonXmlBody(DocumentSpool spool, File strippedDoc, File body) throws XMLStreamException, IOException
+	{
+		InputStream in = spool.open();
+		OutputStream strippedOut = new BufferedOutputStream(new FileOutputStream(strippedDoc));
+		OutputStream bodyOut = null;
+		try
+		{
+			bodyOut = new BufferedOutputStream(new FileOutputStream(body));
+			return NonXmlBodyExtractor.getInstance().extract(in, strippedOut, bodyOut);
+		}
+		finally
+		{
+			in.close();
+			strippedOut.close();
+			if(bodyOut != null)
+				bodyOut.close();
+		}
+	}
+
+	/**
+	 * Delete a temporary file of the import (if any)
+	 */
+	private static void deleteTempFile(File file)
+	{
+		if(file != null && !file.delete())
+			file.deleteOnExit();
+	}
+
+	/**
+	 * Parse the document (closing the stream), throwing if it is not a valid ClinicalDocument
+	 */
+	private ClinicalDocument parseDocument(InputStream doc) throws DocumentImportException
+	{
 		// Formatter
-		XmlIts1Formatter formatter = EverestUtil.createFormatter();
+		XmlIts1FormatterPool formatterPool = XmlIts1FormatterPool.getInstance();
+		XmlIts1Formatter formatter = formatterPool.borrow();
 		
 		// Parse the document
-		log.debug("Starting processing of document");
-		IFormatterParseResult parseResult = formatter.parse(doc);
-		log.debug("Process document complete.");
+		IFormatterParseResult parseResult = null;
+		try
+		{
+			log.debug("Starting processing of document");
+			parseResult = formatter.parse(doc);
+			log.debug("Process document complete.");
+		}
+		finally
+		{
+			formatterPool.release(formatter);
+			try
+			{
+				doc.close();
+			}
+			catch(IOException e)
+			{
+				log.warn("Could not close document stream", e);
+			}
+		}
 
 		// Validation messages?
 		ValidationIssueCollection parsingIssues = new ValidationIssueCollection();
@@ -95,10 +253,285 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 			throw new DocumentValidationException(parseResult.getStructure(), parsingIssues);
 		
 		// Get the clinical document
-		return this.importDocument((ClinicalDocument)parseResult.getStructure());
+		return (ClinicalDocument)parseResult.getStructure();
 
 	}
 	
+	/**
+	 * Import a batch of documents
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#importDocuments(java.util.Collection)
+	 */
+	@Override
+	public List<CdaImportResult> importDocuments(Collection<InputStream> inputStreams) {
+		return this.importBatch(inputStreams);
+	}
+
+	/**
+	 * Import a batch of parsed documents
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#importClinicalDocuments(java.util.Collection)
+	 */
+	@Override
+	public List<CdaImportResult> importClinicalDocuments(Collection<ClinicalDocument> documents) {
+		return this.importBatch(documents);
+	}
+
+	/**
+	 * Import each document of a batch (InputStreams or ClinicalDocuments)
+	 */
+	private List<CdaImportResult> importBatch(Collection<?> documents)
+	{
+		List<CdaImportResult> retVal = new ArrayList<CdaImportResult>(documents.size());
+		for(Object doc : documents)
+		{
+			CdaImportResult result = this.importBatchDocument(retVal.size(), doc);
+			
+			// Rolling back the failed document cleared the session, reload the visits of the earlier documents
+			if(!result.isSuccessful())
+				for(int i = 0; i < retVal.size(); i++)
+					if(retVal.get(i).isSuccessful())
+						retVal.set(i, new CdaImportResult(i, Context.getVisitService().getVisitByUuid(retVal.get(i).getVisit().getUuid()), null));
+			retVal.add(result);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Import one document of a batch (either an InputStream or ClinicalDocument) within a savepoint.
+	 * An exception thrown by the module rolls back only this document and is recorded in its result. 
+	 * An exception which passed through a core service has marked the whole transaction for rollback, 
+	 * so the batch fails with an APIException rather than reporting documents which won't be committed
+	 */
+	private CdaImportResult importBatchDocument(int index, Object document)
+	{
+		Savepoint savepoint = this.dao.createSavepoint();
+		try
+		{
+			Visit visit = null;
+			if(document instanceof ClinicalDocument)
+				visit = this.importDocument((ClinicalDocument)document);
+			else
+				visit = this.importDocument((InputStream)document);
+			this.dao.releaseSavepoint(savepoint);
+			return new CdaImportResult(index, visit, null);
+		}
+		catch(DocumentImportException e)
+		{
+			log.error(String.format("Document %s of batch failed to import", index), e);
+			this.rollbackBatchDocument(index, savepoint, e);
+			return new CdaImportResult(index, null, e);
+		}
+		catch(RuntimeException e)
+		{
+			// Processors throw runtime exceptions (e.g. NotImplementedException) for content they can't handle
+			log.error(String.format("Document %s of batch failed to import", index), e);
+			this.rollbackBatchDocument(index, savepoint, e);
+			return new CdaImportResult(index, null, new DocumentImportException(String.format("Document %s of batch failed to import", index), e));
+		}
+	}
+
+	/**
+	 * Roll back a failed document of a batch to its savepoint, throwing if the transaction can only be 
+	 * rolled back as a whole
+	 */
+	private void rollbackBatchDocument(int index, Savepoint savepoint, Exception cause)
+	{
+		if(isRollbackOnly())
+			throw new APIException(String.format("Document %s of batch failed in a core service, the batch is rolled back", index), cause);
+		this.dao.rollbackToSavepoint(savepoint);
+	}
+
+	/**
+	 * True if the current transaction has been marked for rollback
+	 */
+	private static boolean isRollbackOnly()
+	{
+		try
+		{
+			return TransactionAspectSupport.currentTransactionStatus().isRollbackOnly();
+		}
+		catch(NoTransactionException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Stage the document in the import queue
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#queueDocument(java.io.InputStream)
+	 */
+	@Override
+	public CdaImportQueueItem queueDocument(InputStream doc) throws DocumentImportException
+	{
+		byte[] payload = null;
+		String digest = null;
+		try
+		{
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			MessageDigest sha = MessageDigest.getInstance("SHA-1");
+			byte[] buffer = new byte[4096];
+			int bufRead = 0;
+			while((bufRead = doc.read(buffer)) > 0)
+			{
+				bos.write(buffer, 0, bufRead);
+				sha.update(buffer, 0, bufRead);
+			}
+			payload = bos.toByteArray();
+			StringBuilder hex = new StringBuilder();
+			for(byte b : sha.digest())
+				hex.append(String.format("%02x", b));
+			digest = hex.toString();
+		}
+		catch(IOException e)
+		{
+			throw new DocumentImportException("Could not read document to be queued", e);
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new DocumentImportException("Could not compute document digest", e);
+		}
+		
+		if(payload.length == 0)
+			throw new DocumentImportException("Cannot queue an empty document");
+		
+		// Re-submission of a document still waiting in the queue? Acknowledge with the existing item. Once 
+		// imported the document may be submitted again (e.g. after its visit was voided)
+		CdaImportQueueItem retVal = this.dao.getQueueItemByDigest(digest);
+		if(retVal != null)
+		{
+			log.warn(String.format("Document with digest %s is already queued as %s", digest, retVal.getUuid()));
+			return retVal;
+		}
+		
+		retVal = new CdaImportQueueItem();
+		retVal.setPayload(payload);
+		retVal.setDigest(digest);
+		retVal.setDateCreated(new Date());
+		retVal = this.dao.saveQueueItem(retVal);
+		CdaImportQueueProcessor.getInstance().signal();
+		return retVal;
+	}
+
+	/**
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getQueueItemByUuid(java.lang.String)
+	 */
+	@Override
+	public CdaImportQueueItem getQueueItemByUuid(String uuid) {
+		return this.dao.getQueueItemByUuid(uuid);
+	}
+
+	/**
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getQueueItems(org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem.Status, int)
+	 */
+	@Override
+	public List<CdaImportQueueItem> getQueueItems(CdaImportQueueItem.Status status, int maxResults) {
+		return this.dao.getQueueItems(status, maxResults);
+	}
+
+	/**
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getQueueDepth(org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem.Status)
+	 */
+	@Override
+	public long getQueueDepth(CdaImportQueueItem.Status status) {
+		return this.dao.getQueueItemCount(status);
+	}
+
+	/**
+	 * Claim the next due item
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#claimNextQueueItem()
+	 */
+	@Override
+	public CdaImportQueueItem claimNextQueueItem() {
+		Date now = new Date();
+		// Another worker may claim the item between the select and the update, then try the next one
+		for(int i = 0; i < MAX_CLAIM_ATTEMPTS; i++)
+		{
+			CdaImportQueueItem retVal = this.dao.getNextQueueItem(now);
+			if(retVal == null || this.dao.claimQueueItem(retVal, now))
+				return retVal;
+		}
+		return null;
+	}
+
+	/**
+	 * Import the payload of the queue item
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#importQueueItem(org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem)
+	 */
+	@Override
+	public Visit importQueueItem(CdaImportQueueItem queueItem) throws DocumentImportException {
+		Visit retVal = this.importDocument(new ByteArrayInputStream(queueItem.getPayload()));
+		queueItem.setStatus(CdaImportQueueItem.Status.COMPLETE);
+		queueItem.setDateChanged(new Date());
+		queueItem.setLastError(null);
+		if(retVal != null)
+			queueItem.setVisitUuid(retVal.getUuid());
+		this.dao.saveQueueItem(queueItem);
+		return retVal;
+	}
+
+	/**
+	 * Record the failure of a queue item
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#failQueueItem(java.lang.Integer, java.lang.Throwable)
+	 */
+	@Override
+	public CdaImportQueueItem failQueueItem(Integer queueItemId, Throwable cause) {
+		CdaImportQueueItem queueItem = this.dao.getQueueItem(queueItemId);
+		if(queueItem == null)
+			return null;
+		
+		CdaHandlerConfiguration configuration = CdaHandlerConfiguration.getInstance();
+		Date now = new Date();
+		String message = cause.getMessage() != null ? cause.getMessage() : cause.getClass().getName();
+		if(message.length() > 1024)
+			message = message.substring(0, 1024);
+		queueItem.setLastError(message);
+		queueItem.setDateChanged(now);
+		
+		// Invalid documents will never succeed so don't bother retrying them
+		if(cause instanceof DocumentValidationException || queueItem.getAttempts() >= configuration.getQueueMaxAttempts())
+			queueItem.setStatus(CdaImportQueueItem.Status.DEAD_LETTER);
+		else
+		{
+			queueItem.setStatus(CdaImportQueueItem.Status.PENDING);
+			queueItem.setNextAttemptDate(new Date(now.getTime() + 1000L * configuration.getQueueRetryDelay() * queueItem.getAttempts()));
+		}
+		return this.dao.saveQueueItem(queueItem);
+	}
+
+	/**
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#resetProcessingQueueItems()
+	 */
+	@Override
+	public int resetProcessingQueueItems() {
+		return this.dao.updateQueueItemStatus(CdaImportQueueItem.Status.PROCESSING, CdaImportQueueItem.Status.PENDING);
+	}
+	
+	/**
+	 * Validate the pre-scanned header of a document
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#validateDocumentHeader(org.openmrs.module.shr.cdahandler.everest.ClinicalDocumentHeader)
+	 */
+	@Override
+	public void validateDocumentHeader(ClinicalDocumentHeader header) throws DocumentImportException
+	{
+		ValidationIssueCollection headerIssues = new ValidationIssueCollection();
+		if(header.getId() == null)
+			headerIssues.error("ClinicalDocument is missing an id");
+		if(header.getRecordTargetCount() != 1)
+			headerIssues.error("Can only handle documents with exactly one recordTarget");
+		else if(header.getPatientIds().isEmpty())
+			headerIssues.error("No patient identifiers found in document");
+		if(headerIssues.hasErrors())
+			throw new DocumentValidationException(null, headerIssues);
+
+		// Duplicate? We can only tell if the patient is already known
+		if(!CdaHandlerConfiguration.getInstance().getUpdateExisting())
+		{
+			Patient patient = PatientRoleProcessorUtil.getInstance().findPatient(header.getPatientIds());
+			OpenmrsDataUtil dataUtil = OpenmrsDataUtil.getInstance();
+			if(patient != null && dataUtil.getVisitById(dataUtil.getVisitId(header.getId()), patient) != null)
+				throw new DocumentImportException(String.format("Cannot persist a duplicate document %s!", header.getId()));
+		}
+	}
+	
 	/**
 	 * Import the parsed clinical document
 	 * Auto generated method comment
@@ -113,34 +546,17 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 		if(this.m_processor == null)
 			this.m_processor = CdaImporter.getInstance();
 	
-		// TODO: Store incoming to a temporary table for CDAs (like the HL7 queue)
 		Visit retVal = this.m_processor.processCdaDocument(clinicalDocument);
 
 		// Notify of successful import
 		if(retVal != null)
 		{
-			Stack<CdaImportSubscriber> toBeNotified = new Stack<CdaImportSubscriber>();
-			
-			// The generic ones for all 
-			Set<CdaImportSubscriber> candidates = this.m_subscribers.get("*");
-			if(candidates != null)
-				for(CdaImportSubscriber subscriber : candidates)
-					toBeNotified.push(subscriber);
-			
-			// Notify the default always
-			for(II templateId : clinicalDocument.getTemplateId())
-			{
-				candidates = this.m_subscribers.get(templateId.getRoot());
-				if(candidates == null) continue; // no candidates
-				
-				for(CdaImportSubscriber subscriber : candidates)
-					if(!toBeNotified.contains(subscriber))
-						toBeNotified.push(subscriber);
-			}
+			// The generic ones for all and those for the document's templates
+			List<CdaImportSubscriber> toBeNotified = this.m_subscribers.getSubscribers(clinicalDocument.getTemplateId());
 			
 			// Notify the found subscribers
-			while(!toBeNotified.isEmpty())
-				toBeNotified.pop().onDocumentImported(clinicalDocument, retVal);
+			if(!toBeNotified.isEmpty())
+				CdaImportNotifier.getInstance().dispatch(clinicalDocument, retVal, toBeNotified);
 		}
 		
 		return retVal;
@@ -151,20 +567,18 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 	 */
 	@Override
     public void subscribeImport(String templateId, CdaImportSubscriber singletonImporter) {
-	    
-		// Ensure template ID has a value
-		if(templateId == null)
-	    	templateId = "*";
-	    
-		// Does the key exist?
-		if(!this.m_subscribers.containsKey(templateId))
-			this.m_subscribers.put(templateId, new HashSet<CdaImportSubscriber>());
-		
-		// Add
-		if(!this.m_subscribers.get(templateId).contains(singletonImporter))
-			this.m_subscribers.get(templateId).add(singletonImporter);
+		this.m_subscribers.subscribe(templateId, singletonImporter);
     }
 
+	/**
+	 * Remove a subscription to the import function
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#unsubscribeImport(java.lang.String, org.openmrs.module.shr.cdahandler.api.CdaImportSubscriber)
+	 */
+	@Override
+	public void unsubscribeImport(String templateId, CdaImportSubscriber singletonImporter) {
+		this.m_subscribers.unsubscribe(templateId, singletonImporter);
+	}
+
 	/**
 	 * Get an active order by accession number
 	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getOrdersByAccessionNumber(java.lang.String)
@@ -194,8 +608,15 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 		concept.setDateChanged(new Date());
 		concept.setChangedBy(Context.getAuthenticatedUser());
 		
+		// Mappings may have changed
+		ConceptMappingCache cache = this.getConceptMappingCache();
+		if(cache != null)
+			cache.invalidateConcept(concept);
+		
 		// add/remove entries in the concept_word table (used for searching)
-		return this.dao.saveConceptQuick(concept);
+		Concept retVal = this.dao.saveConceptQuick(concept);
+		WellKnownConceptRegistry.getInstance().conceptChanged(retVal);
+		return retVal;
     }
 
 	
@@ -216,8 +637,33 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 		return this.dao.getObsByAccessionNumber(an, false);
     }
 
+	/**
+	 * Get active order ids by accession numbers
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getOrderIdsByAccessionNumbers(java.util.Collection)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public Map<String, Integer> getOrderIdsByAccessionNumbers(Collection<String> accessionNumbers) {
+		return this.dao.getOrderIdsByAccessionNumbers(accessionNumbers);
+	}
+
+	/**
+	 * Get active obs ids by accession numbers
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getObsIdsByAccessionNumbers(java.util.Collection)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public Map<String, Integer> getObsIdsByAccessionNumbers(Collection<String> accessionNumbers) {
+		return this.dao.getObsIdsByAccessionNumbers(accessionNumbers);
+	}
+
 	@Override
     public ConceptReferenceTerm saveConceptReferenceTerm(ConceptReferenceTerm referenceTerm) {
+		ConceptMappingCache cache = this.getConceptMappingCache();
+		if(cache != null)
+			cache.invalidateTerm(referenceTerm.getId());
+		if(referenceTerm.getId() != null)
+			OpenmrsConceptUtil.getInstance().invalidateReferenceTerm(referenceTerm.getId());
 		return this.dao.saveReferenceTermQuick(referenceTerm);
     }
 
@@ -256,9 +702,53 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 		return this.dao.getConceptSourceByHl7(hl7);
     }
 
-    private static final Map<String, List<Integer>> conceptCache = Collections.synchronizedMap(new HashMap<String, List<Integer>>());
-    private static final String GP_CACHE_MAPPED_CONCEPTS = "shr-cdahandler.cacheMappedConcepts";
-    private static Boolean cacheMappedConcepts = null;
+	/**
+	 * Get a visit by attribute value
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getVisitByAttribute(org.openmrs.Patient, org.openmrs.VisitAttributeType, java.lang.String)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public Visit getVisitByAttribute(Patient patient, VisitAttributeType attributeType, String valueReference) {
+		return this.dao.getVisitByAttribute(patient, attributeType, valueReference);
+	}
+
+	/**
+	 * Void a visit's data in bulk
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#voidVisitData(org.openmrs.Visit, java.lang.String)
+	 */
+	@Override
+	public int voidVisitData(Visit visit, String voidReason) {
+		int retVal = this.dao.voidVisitData(visit, Context.getAuthenticatedUser(), new Date(), voidReason);
+		log.info(String.format("Voided %s rows of %s", retVal, visit));
+		return retVal;
+	}
+
+	/**
+	 * Void an encounter's obs in bulk
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#voidEncounterObs(org.openmrs.Encounter, java.lang.String, java.lang.String)
+	 */
+	@Override
+	public int voidEncounterObs(Encounter encounter, String excludedConceptName, String voidReason) {
+		int retVal = this.dao.voidEncounterObs(encounter, excludedConceptName, Context.getLocale(), Context.getAuthenticatedUser(), new Date(), voidReason);
+		log.info(String.format("Voided %s obs of %s", retVal, encounter));
+		return retVal;
+	}
+
+
+	/**
+	 * Get the mapped concept cache, or null if caching is disabled
+	 */
+	public ConceptMappingCache getConceptMappingCache() {
+		CdaHandlerConfiguration configuration = CdaHandlerConfiguration.getInstance();
+		if(!configuration.getCacheMappedConcepts())
+			return null;
+		if(this.m_conceptMappingCache == null)
+			synchronized (this) {
+				if(this.m_conceptMappingCache == null)
+					this.m_conceptMappingCache = new ConceptMappingCache(configuration.getCacheMappedConceptsSize());
+			}
+		return this.m_conceptMappingCache;
+	}
 
 	/**
 	 * Get concept by mapping
@@ -266,53 +756,127 @@ public class CdaImportServiceImpl extends BaseOpenmrsService implements CdaImpor
 	 */
 	@Override
     public List<Concept> getConceptsByMapping(ConceptReferenceTerm term, String strength) {
-        synchronized (this) {
-            if (cacheMappedConcepts == null) {
-                if (Context.getAdministrationService().getGlobalProperty(GP_CACHE_MAPPED_CONCEPTS).equalsIgnoreCase("true")) {
-                    cacheMappedConcepts = true;
-                } else {
-                    cacheMappedConcepts = false;
-                }
-            }
-        }
 
         ConceptService cs = Context.getConceptService();
-        List<Concept> terms = null;
-        String key = null;
+        ConceptMappingCache cache = term.getId() != null ? this.getConceptMappingCache() : null;
 
-        if (cacheMappedConcepts) {
-            key = term.getCode() + ':' + term.getConceptSource().getName() + ':' + strength;
-            List<Integer> conceptIds = conceptCache.get(key);
+        // Cached ids are already filtered by map type
+        if (cache != null) {
+            List<Integer> conceptIds = cache.get(term.getId(), strength);
             if (conceptIds != null) {
-                terms = new ArrayList<Concept>();
+                List<Concept> retVal = new ArrayList<Concept>(conceptIds.size());
                 for (Integer conceptId : conceptIds) {
-                    terms.add(cs.getConcept(conceptId));
-                }
-            }
-        }
-
-        if (terms == null) {
-            terms = cs.getConceptsByMapping(term.getCode(), term.getConceptSource().getName(), false);
-            if (cacheMappedConcepts) {
-                List<Integer> conceptIds = new ArrayList<Integer>();
-                for (Concept c : terms) {
-                    conceptIds.add(c.getConceptId());
+                    Concept concept = cs.getConcept(conceptId);
+                    if (concept != null) // Created by a transaction which was rolled back
+                        retVal.add(concept);
                 }
-                conceptCache.put(key, conceptIds);
+                return retVal;
             }
         }
 
+		// Not saved so nothing can be mapped to it
 		List<Concept> retVal = new ArrayList<Concept>();
-		
-		for(Concept concept : terms)
+		if(term.getId() == null)
+			return retVal;
+
+		for(Integer conceptId : this.dao.getConceptIdsByMapping(term, strength))
 		{
-			for(ConceptMap map : concept.getConceptMappings())
-				if(map.getConceptReferenceTerm().getId().equals(term.getId()) &&
-						map.getConceptMapType().getName().toLowerCase().equals(strength.toLowerCase()))
-					retVal.add(concept);
+			Concept concept = cs.getConcept(conceptId);
+			if(concept != null)
+				retVal.add(concept);
+		}
+
+		// Don't cache misses, the caller is about to create the concept
+		if (cache != null && !retVal.isEmpty()) {
+			List<Integer> conceptIds = new ArrayList<Integer>(retVal.size());
+			for (Concept concept : retVal)
+				conceptIds.add(concept.getConceptId());
+			cache.put(term.getId(), strength, conceptIds);
 		}
 
 		return retVal;
     }
+
+	/**
+	 * Store a narrative once per distinct content
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#saveNarrative(byte[])
+	 */
+	@Override
+	public String saveNarrative(byte[] narrative) {
+		String digest = null;
+		try
+		{
+			MessageDigest sha = MessageDigest.getInstance("SHA-1");
+			StringBuilder hex = new StringBuilder();
+			for(byte b : sha.digest(narrative))
+				hex.append(String.format("%02x", b));
+			digest = hex.toString();
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new APIException("Could not compute narrative digest", e);
+		}
+
+		// Templated narrative recurs across documents, so most are already stored
+		if(this.dao.updateNarrativeBlobReferenceCount(digest, 1) > 0)
+			return digest;
+
+		ByteArrayOutputStream content = new ByteArrayOutputStream(narrative.length / 4 + 16);
+		try
+		{
+			DeflaterOutputStream deflater = new DeflaterOutputStream(content);
+			deflater.write(narrative);
+			deflater.close();
+		}
+		catch(IOException e)
+		{
+			throw new APIException("Could not compress narrative", e);
+		}
+
+		NarrativeBlob blob = new NarrativeBlob();
+		blob.setDigest(digest);
+		blob.setContent(content.toByteArray());
+		blob.setSize(narrative.length);
+		blob.setReferenceCount(1);
+		blob.setDateCreated(new Date());
+		if(this.dao.insertNarrativeBlob(blob))
+			log.debug(String.format("Stored narrative %s (%s bytes deflated to %s)", digest, narrative.length, blob.getContent().length));
+		// Another import stored the same narrative first
+		else if(this.dao.updateNarrativeBlobReferenceCount(digest, 1) == 0)
+			throw new APIException(String.format("Could not store narrative %s", digest));
+		return digest;
+	}
+
+	/**
+	 * Count another reference to a stored narrative
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#addNarrativeReference(java.lang.String)
+	 */
+	@Override
+	public void addNarrativeReference(String digest) {
+		if(this.dao.updateNarrativeBlobReferenceCount(digest, 1) == 0)
+			log.warn(String.format("Narrative %s is not stored", digest));
+	}
+
+	/**
+	 * Get a narrative which is inflated as it is read
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#getNarrative(java.lang.String)
+	 */
+	@Override
+	public InputStream getNarrative(String digest) {
+		NarrativeBlob blob = this.dao.getNarrativeBlobByDigest(digest);
+		if(blob == null)
+			return null;
+		return new InflaterInputStream(new ByteArrayInputStream(blob.getContent()));
+	}
+
+	/**
+	 * Remove a reference to a narrative
+	 * @see org.openmrs.module.shr.cdahandler.api.CdaImportService#releaseNarrative(java.lang.String, java.lang.Integer)
+	 */
+	@Override
+	public boolean releaseNarrative(String digest, Integer obsId) {
+		this.dao.updateNarrativeBlobReferenceCount(digest, -1);
+		return this.dao.deleteUnreferencedNarrativeBlob(digest, obsId) > 0;
+	}
 	
 }
@@ -0,0 +1,151 @@
+package org.openmrs.module.shr.cdahandler.api.impl;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.openmrs.Concept;
+import org.openmrs.ConceptMap;
+import org.openmrs.module.shr.cdahandler.processor.util.LruCache;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Caches the ids of the concepts mapped to a reference term with a given map type
+ */
+public final class ConceptMappingCache {
+
+	/**
+	 * Cache key (reference term and map type)
+	 */
+	private static final class MappingKey {
+
+		// The reference term
+		private final Integer m_termId;
+		// The map type (lower case)
+		private final String m_mapType;
+
+		/**
+		 * Creates a new key
+		 */
+		private MappingKey(Integer termId, String mapType)
+		{
+			this.m_termId = termId;
+			this.m_mapType = mapType.toLowerCase();
+		}
+
+		/**
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+			return 31 * this.m_termId.hashCode() + this.m_mapType.hashCode();
+		}
+
+		/**
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof MappingKey))
+				return false;
+			MappingKey other = (MappingKey)obj;
+			return this.m_termId.equals(other.m_termId) && this.m_mapType.equals(other.m_mapType);
+		}
+	}
+
+	// The cached concept ids
+	private final LruCache<MappingKey, List<Integer>> m_cache;
+
+	/**
+	 * Creates a new cache holding at most capacity term / map type pairs
+	 */
+	public ConceptMappingCache(int capacity)
+	{
+		this.m_cache = new LruCache<MappingKey, List<Integer>>(capacity);
+	}
+
+	/**
+	 * Get the ids of concepts mapped to the term with the map type, or null if not cached
+	 */
+	public List<Integer> get(Integer termId, String mapType)
+	{
+		return this.m_cache.get(new MappingKey(termId, mapType));
+	}
+
+	/**
+	 * Cache the ids of concepts mapped to the term with the map type
+	 */
+	public void put(Integer termId, String mapType, List<Integer> conceptIds)
+	{
+		this.m_cache.put(new MappingKey(termId, mapType), Collections.unmodifiableList(conceptIds));
+	}
+
+	/**
+	 * Remove entries for a reference term which is being changed
+	 */
+	public void invalidateTerm(final Integer termId)
+	{
+		if(termId == null)
+			return;
+		this.invalidate(new LruCache.Matcher<MappingKey, List<Integer>>() {
+			@Override
+			public boolean matches(MappingKey key, List<Integer> value) {
+				return termId.equals(key.m_termId);
+			}
+		});
+	}
+
+	/**
+	 * Remove entries which mention a concept which is being changed, or a term it is (now) mapped to
+	 */
+	public void invalidateConcept(Concept concept)
+	{
+		final Integer conceptId = concept.getConceptId();
+		final Set<Integer> termIds = new HashSet<Integer>();
+		for(ConceptMap map : concept.getConceptMappings())
+			if(map.getConceptReferenceTerm() != null && map.getConceptReferenceTerm().getId() != null)
+				termIds.add(map.getConceptReferenceTerm().getId());
+		if(conceptId == null && termIds.isEmpty())
+			return;
+
+		this.invalidate(new LruCache.Matcher<MappingKey, List<Integer>>() {
+			@Override
+			public boolean matches(MappingKey key, List<Integer> value) {
+				return termIds.contains(key.m_termId) || conceptId != null && value.contains(conceptId);
+			}
+		});
+	}
+
+	/**
+	 * Remove matching entries now, and again when the current transaction completes in case
+	 * another thread cached the old mappings before the change was visible
+	 */
+	private void invalidate(final LruCache.Matcher<MappingKey, List<Integer>> matcher)
+	{
+		this.m_cache.removeMatching(matcher);
+		if(TransactionSynchronizationManager.isSynchronizationActive())
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					m_cache.removeMatching(matcher);
+				}
+			});
+	}
+
+	/**
+	 * Remove all entries
+	 */
+	public void clear()
+	{
+		this.m_cache.clear();
+	}
+
+	/**
+	 * Get the underlying cache (for metrics)
+	 */
+	public LruCache<?, ?> getStatistics() {
+		return this.m_cache;
+	}
+}
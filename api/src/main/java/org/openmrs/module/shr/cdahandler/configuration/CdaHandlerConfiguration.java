@@ -48,6 +48,44 @@ public final class CdaHandlerConfiguration {
 	
     // Update existing
     public static final String PROP_UPDATE_EXISTING = "shr-cdahandler.updateExisting";
+    // Number of pooled formatters
+    public static final String PROP_FORMATTER_POOL_SIZE = "shr-cdahandler.formatter.poolSize";
+    // Number of import queue workers
+    public static final String PROP_QUEUE_WORKERS = "shr-cdahandler.queue.workers";
+    // Maximum attempts for a queued document
+    public static final String PROP_QUEUE_MAX_ATTEMPTS = "shr-cdahandler.queue.maxAttempts";
+    // Seconds between retries of a queued document
+    public static final String PROP_QUEUE_RETRY_DELAY = "shr-cdahandler.queue.retryDelay";
+    // Milliseconds between polls of the queue
+    public static final String PROP_QUEUE_POLL_INTERVAL = "shr-cdahandler.queue.pollInterval";
+    // Milliseconds to wait for another thread creating the same concept / reference term
+    public static final String PROP_CONCEPT_CREATE_WAIT = "shr-cdahandler.concept.createWait";
+    // Threads delivering import notifications to subscribers
+    public static final String PROP_SUBSCRIBER_WORKERS = "shr-cdahandler.subscriber.workers";
+    // Maximum undelivered notifications per subscriber
+    public static final String PROP_SUBSCRIBER_QUEUE_CAPACITY = "shr-cdahandler.subscriber.queueCapacity";
+    // What to do when a subscriber's queue is full (BLOCK, CALLER_RUNS, DROP)
+    public static final String PROP_SUBSCRIBER_REJECTION_POLICY = "shr-cdahandler.subscriber.rejectionPolicy";
+    // Cache the concepts mapped to reference terms
+    public static final String PROP_CACHE_MAPPED_CONCEPTS = "shr-cdahandler.cacheMappedConcepts";
+    // Maximum number of reference term / map type pairs in the mapped concept cache
+    public static final String PROP_CACHE_MAPPED_CONCEPTS_SIZE = "shr-cdahandler.cacheMappedConcepts.size";
+    // Maximum number of reference term ids cached by code
+    public static final String PROP_CACHE_REFERENCE_TERMS_SIZE = "shr-cdahandler.cacheReferenceTerms.size";
+    // Cache the results of the terminology queries in the Hibernate query cache
+    public static final String PROP_CACHE_TERMINOLOGY_QUERIES = "shr-cdahandler.cacheTerminologyQueries";
+    // Scan the classpath for processors not in the generated registry
+    public static final String PROP_PROCESSOR_SCAN_CLASSPATH = "shr-cdahandler.processor.scanClasspath";
+    // Initialize caches, processors and parsers when the module starts
+    public static final String PROP_WARMUP = "shr-cdahandler.warmup";
+    // Persist the data built from a document's body together when the body is complete
+    public static final String PROP_UNIT_OF_WORK = "shr-cdahandler.unitOfWork";
+    // Don't flush the session before each query while a document's body is processed
+    public static final String PROP_MANUAL_FLUSH = "shr-cdahandler.manualFlush";
+    // Documents larger than this (in bytes) are spooled to disk and their level 1 body decoded straight to a file
+    public static final String PROP_STREAM_THRESHOLD = "shr-cdahandler.streamThreshold";
+    // Store section narrative deflated and once per distinct content
+    public static final String PROP_NARRATIVE_BLOB_STORE = "shr-cdahandler.narrativeBlobStore";
     
     private final Boolean m_defaultAutoCreateProviders = true;
     private final Boolean m_defaultAutoCreateLocations = true;
@@ -62,6 +100,25 @@ public final class CdaHandlerConfiguration {
     private final String m_defaultEcidRoot = "";
     private final String m_defaultShrRoot = "1.2.3.4.5";
     private final Boolean m_defaultAutoCreateUsers = true;
+    private final Integer m_defaultFormatterPoolSize = 4;
+    private final Integer m_defaultQueueWorkers = 2;
+    private final Integer m_defaultQueueMaxAttempts = 5;
+    private final Integer m_defaultQueueRetryDelay = 60;
+    private final Integer m_defaultQueuePollInterval = 5000;
+    private final Integer m_defaultConceptCreateWait = 10000;
+    private final Integer m_defaultSubscriberWorkers = 2;
+    private final Integer m_defaultSubscriberQueueCapacity = 1000;
+    private final String m_defaultSubscriberRejectionPolicy = "BLOCK";
+    private final Boolean m_defaultCacheMappedConcepts = true;
+    private final Integer m_defaultCacheMappedConceptsSize = 10000;
+    private final Integer m_defaultCacheReferenceTermsSize = 50000;
+    private final Boolean m_defaultCacheTerminologyQueries = true;
+    private final Boolean m_defaultProcessorScanClasspath = false;
+    private final Boolean m_defaultWarmup = true;
+    private final Boolean m_defaultUnitOfWork = true;
+    private final Boolean m_defaultManualFlush = true;
+    private final Integer m_defaultStreamThreshold = 4194304;
+    private final Boolean m_defaultNarrativeBlobStore = true;
     
     private String m_idFormat = "%2$s";
     
@@ -154,6 +211,139 @@ public final class CdaHandlerConfiguration {
 		
 	}
 	
+	/**
+	 * Get the shr-cdahandler.formatter.poolSize value
+	 */
+	public int getFormatterPoolSize() {
+		return this.getOrCreateGlobalProperty(PROP_FORMATTER_POOL_SIZE, this.m_defaultFormatterPoolSize);
+	}
+	
+	/**
+	 * Get the shr-cdahandler.queue.workers value
+	 */
+	public int getQueueWorkers() {
+		return this.getOrCreateGlobalProperty(PROP_QUEUE_WORKERS, this.m_defaultQueueWorkers);
+	}
+
+	/**
+	 * Get the shr-cdahandler.queue.maxAttempts value
+	 */
+	public int getQueueMaxAttempts() {
+		return this.getOrCreateGlobalProperty(PROP_QUEUE_MAX_ATTEMPTS, this.m_defaultQueueMaxAttempts);
+	}
+
+	/**
+	 * Get the shr-cdahandler.queue.retryDelay value (seconds)
+	 */
+	public int getQueueRetryDelay() {
+		return this.getOrCreateGlobalProperty(PROP_QUEUE_RETRY_DELAY, this.m_defaultQueueRetryDelay);
+	}
+
+	/**
+	 * Get the shr-cdahandler.queue.pollInterval value (milliseconds)
+	 */
+	public int getQueuePollInterval() {
+		return this.getOrCreateGlobalProperty(PROP_QUEUE_POLL_INTERVAL, this.m_defaultQueuePollInterval);
+	}
+
+	/**
+	 * Get the shr-cdahandler.concept.createWait value (milliseconds)
+	 */
+	public int getConceptCreateWait() {
+		return this.getOrCreateGlobalProperty(PROP_CONCEPT_CREATE_WAIT, this.m_defaultConceptCreateWait);
+	}
+
+	/**
+	 * Get the shr-cdahandler.subscriber.workers value
+	 */
+	public int getSubscriberWorkers() {
+		return this.getOrCreateGlobalProperty(PROP_SUBSCRIBER_WORKERS, this.m_defaultSubscriberWorkers);
+	}
+
+	/**
+	 * Get the shr-cdahandler.subscriber.queueCapacity value
+	 */
+	public int getSubscriberQueueCapacity() {
+		return this.getOrCreateGlobalProperty(PROP_SUBSCRIBER_QUEUE_CAPACITY, this.m_defaultSubscriberQueueCapacity);
+	}
+
+	/**
+	 * Get the shr-cdahandler.subscriber.rejectionPolicy value
+	 */
+	public String getSubscriberRejectionPolicy() {
+		return this.getOrCreateGlobalProperty(PROP_SUBSCRIBER_REJECTION_POLICY, this.m_defaultSubscriberRejectionPolicy);
+	}
+
+	/**
+	 * Get the shr-cdahandler.cacheMappedConcepts value
+	 */
+	public boolean getCacheMappedConcepts() {
+		return this.getOrCreateGlobalProperty(PROP_CACHE_MAPPED_CONCEPTS, this.m_defaultCacheMappedConcepts);
+	}
+
+	/**
+	 * Get the shr-cdahandler.cacheMappedConcepts.size value
+	 */
+	public int getCacheMappedConceptsSize() {
+		return this.getOrCreateGlobalProperty(PROP_CACHE_MAPPED_CONCEPTS_SIZE, this.m_defaultCacheMappedConceptsSize);
+	}
+
+	/**
+	 * Get the shr-cdahandler.cacheReferenceTerms.size value
+	 */
+	public int getCacheReferenceTermsSize() {
+		return this.getOrCreateGlobalProperty(PROP_CACHE_REFERENCE_TERMS_SIZE, this.m_defaultCacheReferenceTermsSize);
+	}
+
+	/**
+	 * Get the shr-cdahandler.cacheTerminologyQueries value
+	 */
+	public boolean getCacheTerminologyQueries() {
+		return this.getOrCreateGlobalProperty(PROP_CACHE_TERMINOLOGY_QUERIES, this.m_defaultCacheTerminologyQueries);
+	}
+	
+	/**
+	 * Get the shr-cdahandler.processor.scanClasspath value
+	 */
+	public boolean getProcessorScanClasspath() {
+		return this.getOrCreateGlobalProperty(PROP_PROCESSOR_SCAN_CLASSPATH, this.m_defaultProcessorScanClasspath);
+	}
+	
+	/**
+	 * Get the shr-cdahandler.warmup value
+	 */
+	public boolean getWarmup() {
+		return this.getOrCreateGlobalProperty(PROP_WARMUP, this.m_defaultWarmup);
+	}
+	
+	/**
+	 * Get the shr-cdahandler.unitOfWork value
+	 */
+	public boolean getUnitOfWork() {
+		return this.getOrCreateGlobalProperty(PROP_UNIT_OF_WORK, this.m_defaultUnitOfWork);
+	}
+	
+	/**
+	 * Get the shr-cdahandler.manualFlush value
+	 */
+	public boolean getManualFlush() {
+		return this.getOrCreateGlobalProperty(PROP_MANUAL_FLUSH, this.m_defaultManualFlush);
+	}
+	
+	/**
+	 * Get the shr-cdahandler.streamThreshold value
+	 */
+	public int getStreamThreshold() {
+		return this.getOrCreateGlobalProperty(PROP_STREAM_THRESHOLD, this.m_defaultStreamThreshold);
+	}
+	
+	/**
+	 * Get the shr-cdahandler.narrativeBlobStore value
+	 */
+	public boolean getNarrativeBlobStore() {
+		return this.getOrCreateGlobalProperty(PROP_NARRATIVE_BLOB_STORE, this.m_defaultNarrativeBlobStore);
+	}
+	
 	/**
 	 * Get the EPID root
 	 * @return
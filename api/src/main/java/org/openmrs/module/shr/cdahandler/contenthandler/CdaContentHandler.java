@@ -5,11 +5,13 @@ import java.io.IOException;
 import java.util.Map;
 import java.util.Set;
 
+import javax.xml.stream.XMLStreamException;
+
 import org.apache.commons.lang.NotImplementedException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.marc.everest.formatters.interfaces.IFormatterParseResult;
-import org.marc.everest.formatters.interfaces.IXmlStructureFormatter;
+import org.marc.everest.formatters.xml.its1.XmlIts1Formatter;
 import org.marc.everest.interfaces.IResultDetail;
 import org.marc.everest.interfaces.ResultDetailType;
 import org.marc.everest.resultdetails.DatatypeValidationResultDetail;
@@ -24,7 +26,9 @@ import org.openmrs.Provider;
 import org.openmrs.Visit;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.shr.cdahandler.api.CdaImportService;
-import org.openmrs.module.shr.cdahandler.everest.EverestUtil;
+import org.openmrs.module.shr.cdahandler.everest.ClinicalDocumentHeader;
+import org.openmrs.module.shr.cdahandler.everest.ClinicalDocumentHeaderScanner;
+import org.openmrs.module.shr.cdahandler.everest.XmlIts1FormatterPool;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.exception.DocumentValidationException;
 import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
@@ -117,33 +121,62 @@ public class CdaContentHandler implements ContentHandler {
 
 			log.info(new String(data, offset, data.length - offset));
 
-			// Process the content
-			IXmlStructureFormatter formatter = EverestUtil.createFormatter();
-			IFormatterParseResult parseResult = formatter.parse(new ByteArrayInputStream(data, offset, data.length - offset));
-			ValidationIssueCollection parseIssues = new ValidationIssueCollection();
-			for(IResultDetail dtl : parseResult.getDetails())
+			// Scan the header and validate that the record target matches the XDS meta-data before parsing the whole document
+			ClinicalDocumentHeader header = null;
+			ValidationIssueCollection headerIssues = new ValidationIssueCollection();
+			try
 			{
-				if(dtl.getType() == ResultDetailType.ERROR && !(dtl instanceof DatatypeValidationResultDetail))
-					parseIssues.error(String.format("HL7 Processing Error: %s at %s", dtl.getMessage(), dtl.getLocation()));
-				else
-					parseIssues.warn(String.format("HL7 Processing Warning: %s at %s", dtl.getMessage(), dtl.getLocation()));
+				header = ClinicalDocumentHeaderScanner.getInstance().scan(new ByteArrayInputStream(data, offset, data.length - offset));
+			}
+			catch(XMLStreamException e)
+			{
+				headerIssues.error(String.format("HL7 Processing Error: %s", e.getMessage()));
+				throw convertToContentHandlerException(new DocumentValidationException(e, null, headerIssues));
 			}
-			
-			// Now validate that the record target matches the XDS meta-data
-			ClinicalDocument document = (ClinicalDocument)parseResult.getStructure();
 			
 			// Validate record target
-			if(document == null || document.getRecordTarget().size() != 1)
-				parseIssues.error("Missing recordTarget on ClinicalDocument");
+			if(header.getRecordTargetCount() != 1 || header.getPatientIds().isEmpty())
+				headerIssues.error("Missing recordTarget on ClinicalDocument");
 			else
 			{
-				PatientIdentifier pid = this.m_patientUtil.getApplicablePatientIdentifier(document.getRecordTarget().get(0).getPatientRole().getId());
+				PatientIdentifier pid = this.m_patientUtil.getApplicablePatientIdentifier(header.getPatientIds());
 				boolean containsPid = false;
 				for(PatientIdentifier xdsPid : patient.getIdentifiers())
 					containsPid |= xdsPid.getIdentifier().equals(pid.getIdentifier()) && xdsPid.getIdentifierType().getId().equals(pid.getIdentifierType().getId());
 				if(!containsPid)
-					parseIssues.error(String.format("Patient identifier '%s^^^&%s&ISO' in recordTarget must match patientIdentifier provided in XDS meta-data", pid.getIdentifier(), pid.getIdentifierType().getName()));
+					headerIssues.error(String.format("Patient identifier '%s^^^&%s&ISO' in recordTarget must match patientIdentifier provided in XDS meta-data", pid.getIdentifier(), pid.getIdentifierType().getName()));
+			}
+			
+			if(headerIssues.hasErrors())
+				throw convertToContentHandlerException(new DocumentValidationException(null, headerIssues));
+			
+			// Reject duplicates
+			importService.validateDocumentHeader(header);
+			
+			// Process the content
+			XmlIts1FormatterPool formatterPool = XmlIts1FormatterPool.getInstance();
+			XmlIts1Formatter formatter = formatterPool.borrow();
+			IFormatterParseResult parseResult = null;
+			try
+			{
+				parseResult = formatter.parse(new ByteArrayInputStream(data, offset, data.length - offset));
+			}
+			finally
+			{
+				formatterPool.release(formatter);
 			}
+			ValidationIssueCollection parseIssues = new ValidationIssueCollection();
+			for(IResultDetail dtl : parseResult.getDetails())
+			{
+				if(dtl.getType() == ResultDetailType.ERROR && !(dtl instanceof DatatypeValidationResultDetail))
+					parseIssues.error(String.format("HL7 Processing Error: %s at %s", dtl.getMessage(), dtl.getLocation()));
+				else
+					parseIssues.warn(String.format("HL7 Processing Warning: %s at %s", dtl.getMessage(), dtl.getLocation()));
+			}
+			
+			ClinicalDocument document = (ClinicalDocument)parseResult.getStructure();
+			if(document == null)
+				parseIssues.error("Could not parse ClinicalDocument");
 			
 			if(parseIssues.hasErrors() || document == null) {
 				throw convertToContentHandlerException(new DocumentValidationException(parseResult.getStructure(), parseIssues));
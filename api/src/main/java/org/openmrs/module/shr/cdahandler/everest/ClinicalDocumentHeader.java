@@ -0,0 +1,134 @@
+package org.openmrs.module.shr.cdahandler.everest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.marc.everest.datatypes.II;
+import org.marc.everest.datatypes.generic.SET;
+
+/**
+ * The identifying portion of a ClinicalDocument header, read without
+ * parsing the entire document
+ * @see ClinicalDocumentHeaderScanner
+ */
+public class ClinicalDocumentHeader {
+
+	/**
+	 * A relatedDocument reference from the header
+	 */
+	public static class RelatedDocument {
+
+		// The typeCode (RPLC, APND, XFRM)
+		private final String m_typeCode;
+		// The identifiers of the parent document
+		private final List<II> m_parentDocumentIds = new ArrayList<II>();
+
+		/**
+		 * Creates a new related document with the specified typeCode
+		 */
+		public RelatedDocument(String typeCode)
+		{
+			this.m_typeCode = typeCode;
+		}
+
+		/**
+		 * Get the typeCode of the relationship
+		 */
+		public String getTypeCode() {
+			return this.m_typeCode;
+		}
+
+		/**
+		 * Get the identifiers of the parent document
+		 */
+		public List<II> getParentDocumentIds() {
+			return this.m_parentDocumentIds;
+		}
+	}
+
+	// The document identifier
+	private II m_id;
+	// The template identifiers
+	private final List<II> m_templateIds = new ArrayList<II>();
+	// The number of recordTargets
+	private int m_recordTargetCount = 0;
+	// The identifiers of the (first) recordTarget patientRole
+	private final SET<II> m_patientIds = new SET<II>();
+	// Related documents
+	private final List<RelatedDocument> m_relatedDocuments = new ArrayList<RelatedDocument>();
+	// The effective time in wire format
+	private String m_effectiveTime;
+
+	/**
+	 * Get the document id
+	 */
+	public II getId() {
+		return this.m_id;
+	}
+
+	/**
+	 * Set the document id
+	 */
+	public void setId(II id) {
+		this.m_id = id;
+	}
+
+	/**
+	 * Get the template identifiers
+	 */
+	public List<II> getTemplateIds() {
+		return this.m_templateIds;
+	}
+
+	/**
+	 * Get the number of recordTarget elements
+	 */
+	public int getRecordTargetCount() {
+		return this.m_recordTargetCount;
+	}
+
+	/**
+	 * Set the number of recordTarget elements
+	 */
+	public void setRecordTargetCount(int recordTargetCount) {
+		this.m_recordTargetCount = recordTargetCount;
+	}
+
+	/**
+	 * Get the patient identifiers from the first recordTarget
+	 */
+	public SET<II> getPatientIds() {
+		return this.m_patientIds;
+	}
+
+	/**
+	 * Get the related documents
+	 */
+	public List<RelatedDocument> getRelatedDocuments() {
+		return this.m_relatedDocuments;
+	}
+
+	/**
+	 * Get the effective time of the document (wire format)
+	 */
+	public String getEffectiveTime() {
+		return this.m_effectiveTime;
+	}
+
+	/**
+	 * Set the effective time of the document (wire format)
+	 */
+	public void setEffectiveTime(String effectiveTime) {
+		this.m_effectiveTime = effectiveTime;
+	}
+
+	/**
+	 * True if the header carries a relatedDocument with the specified typeCode
+	 */
+	public boolean hasRelatedDocument(String typeCode) {
+		for(RelatedDocument related : this.m_relatedDocuments)
+			if(typeCode.equals(related.getTypeCode()))
+				return true;
+		return false;
+	}
+}
@@ -0,0 +1,130 @@
+package org.openmrs.module.shr.cdahandler.everest;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.marc.everest.datatypes.II;
+
+/**
+ * Reads the header of a ClinicalDocument with StAX, stopping at the first
+ * top level component element so the (potentially large) body is never read
+ */
+public final class ClinicalDocumentHeaderScanner {
+
+	// The HL7v3 namespace
+	public static final String NS_HL7V3 = "urn:hl7-org:v3";
+
+	// Singleton instance
+	private static ClinicalDocumentHeaderScanner s_instance;
+	private static Object s_lockObject = new Object();
+
+	// Input factory (thread safe once configured)
+	private final XMLInputFactory m_inputFactory;
+
+	/**
+	 * Private ctor
+	 */
+	private ClinicalDocumentHeaderScanner()
+	{
+		this.m_inputFactory = XMLInputFactory.newInstance();
+		this.m_inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		this.m_inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		this.m_inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+
+	/**
+	 * Get the singleton instance
+	 */
+	public static ClinicalDocumentHeaderScanner getInstance()
+	{
+		if(s_instance == null)
+			synchronized (s_lockObject) {
+				if(s_instance == null)
+					s_instance = new ClinicalDocumentHeaderScanner();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Scan the header of the ClinicalDocument in the stream. The stream is not closed
+	 * @throws XMLStreamException When the stream is not well formed or is not a ClinicalDocument
+	 */
+	public ClinicalDocumentHeader scan(InputStream stream) throws XMLStreamException
+	{
+		ClinicalDocumentHeader retVal = new ClinicalDocumentHeader();
+		XMLStreamReader reader = this.m_inputFactory.createXMLStreamReader(stream);
+		try
+		{
+			int depth = 0;
+			String headerElement = null, childElement = null;
+			ClinicalDocumentHeader.RelatedDocument relatedDocument = null;
+
+			while(reader.hasNext())
+			{
+				int event = reader.next();
+				if(event == XMLStreamConstants.END_ELEMENT)
+				{
+					depth--;
+					continue;
+				}
+				else if(event != XMLStreamConstants.START_ELEMENT)
+					continue;
+
+				depth++;
+				String name = reader.getLocalName();
+				boolean isHl7 = NS_HL7V3.equals(reader.getNamespaceURI());
+
+				if(depth == 1 && (!isHl7 || !"ClinicalDocument".equals(name)))
+					throw new XMLStreamException(String.format("Expected ClinicalDocument but found %s", name), reader.getLocation());
+				else if(depth == 2)
+				{
+					headerElement = isHl7 ? name : null;
+					childElement = null;
+					if("component".equals(headerElement)) // The body, we're done
+						break;
+					else if("id".equals(headerElement))
+						retVal.setId(this.readIdentifier(reader));
+					else if("templateId".equals(headerElement))
+						retVal.getTemplateIds().add(this.readIdentifier(reader));
+					else if("effectiveTime".equals(headerElement))
+						retVal.setEffectiveTime(reader.getAttributeValue(null, "value"));
+					else if("recordTarget".equals(headerElement))
+						retVal.setRecordTargetCount(retVal.getRecordTargetCount() + 1);
+					else if("relatedDocument".equals(headerElement))
+					{
+						relatedDocument = new ClinicalDocumentHeader.RelatedDocument(reader.getAttributeValue(null, "typeCode"));
+						retVal.getRelatedDocuments().add(relatedDocument);
+					}
+				}
+				else if(depth == 3)
+					childElement = isHl7 ? name : null;
+				else if(depth == 4 && isHl7 && "id".equals(name))
+				{
+					if("recordTarget".equals(headerElement) && "patientRole".equals(childElement) && retVal.getRecordTargetCount() == 1)
+						retVal.getPatientIds().add(this.readIdentifier(reader));
+					else if("relatedDocument".equals(headerElement) && "parentDocument".equals(childElement))
+						relatedDocument.getParentDocumentIds().add(this.readIdentifier(reader));
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		return retVal;
+	}
+
+	/**
+	 * Read an II from the current element's attributes
+	 */
+	private II readIdentifier(XMLStreamReader reader)
+	{
+		II retVal = new II(reader.getAttributeValue(null, "root"), reader.getAttributeValue(null, "extension"));
+		retVal.setAssigningAuthorityName(reader.getAttributeValue(null, "assigningAuthorityName"));
+		return retVal;
+	}
+}
@@ -0,0 +1,107 @@
+package org.openmrs.module.shr.cdahandler.everest;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A copy of a submitted document which can be read more than once. Documents up to the
+ * threshold are held in memory, larger ones are copied to a temporary file through a
+ * fixed size buffer
+ */
+public final class DocumentSpool {
+
+	// Bytes copied at a time
+	private static final int BUFFER_SIZE = 8192;
+
+	// The document when held in memory
+	private byte[] m_data;
+	// The document when spooled to disk
+	private File m_file;
+
+	/**
+	 * Copy the stream (which is not closed) holding at most threshold bytes in memory
+	 */
+	public DocumentSpool(InputStream stream, int threshold) throws IOException
+	{
+		ByteArrayOutputStream memory = new ByteArrayOutputStream();
+		OutputStream out = memory;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try
+		{
+			try
+			{
+				int read = 0;
+				long total = 0;
+				while((read = stream.read(buffer)) > 0)
+				{
+					total += read;
+					if(this.m_file == null && total > threshold)
+					{
+						this.m_file = createTempFile(".xml");
+						out = new FileOutputStream(this.m_file);
+						memory.writeTo(out);
+						memory = null;
+					}
+					out.write(buffer, 0, read);
+				}
+			}
+			finally
+			{
+				if(out != memory)
+					out.close();
+			}
+		}
+		catch(IOException e)
+		{
+			this.delete();
+			throw e;
+		}
+
+		if(this.m_file == null)
+			this.m_data = memory.toByteArray();
+	}
+
+	/**
+	 * Create a temporary file for the module's import
+	 */
+	public static File createTempFile(String suffix) throws IOException
+	{
+		return File.createTempFile("shr-cdahandler", suffix);
+	}
+
+	/**
+	 * Read the document from the start
+	 */
+	public InputStream open() throws IOException
+	{
+		if(this.m_file != null)
+			return new BufferedInputStream(new FileInputStream(this.m_file), BUFFER_SIZE);
+		return new ByteArrayInputStream(this.m_data);
+	}
+
+	/**
+	 * True if the document was too large to hold in memory
+	 */
+	public boolean isOnDisk()
+	{
+		return this.m_file != null;
+	}
+
+	/**
+	 * Delete the temporary file (if any)
+	 */
+	public void delete()
+	{
+		if(this.m_file != null && !this.m_file.delete())
+			this.m_file.deleteOnExit();
+		this.m_file = null;
+		this.m_data = null;
+	}
+}
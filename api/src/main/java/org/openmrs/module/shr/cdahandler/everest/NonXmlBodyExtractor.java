@@ -0,0 +1,238 @@
+package org.openmrs.module.shr.cdahandler.everest;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.codec.binary.Base64OutputStream;
+
+/**
+ * Copies a level 1 ClinicalDocument with StAX, decoding the base64 content of its
+ * nonXMLBody text to another stream through a fixed size buffer and leaving the text
+ * empty in the copy. The copy is then parsed without the attachment ever being held in memory
+ */
+public final class NonXmlBodyExtractor {
+
+	// Characters decoded at a time
+	private static final int BUFFER_SIZE = 8192;
+
+	// Singleton instance
+	private static NonXmlBodyExtractor s_instance;
+	private static Object s_lockObject = new Object();
+
+	// Input factory (thread safe once configured)
+	private final XMLInputFactory m_inputFactory;
+	// Output factory
+	private final XMLOutputFactory m_outputFactory;
+
+	// The extracted body of the document being imported by the current thread
+	private final ThreadLocal<File> m_extractedBody = new ThreadLocal<File>();
+
+	/**
+	 * Private ctor
+	 */
+	private NonXmlBodyExtractor()
+	{
+		this.m_inputFactory = XMLInputFactory.newInstance();
+		this.m_inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		this.m_inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+		this.m_inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		this.m_inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		this.m_outputFactory = XMLOutputFactory.newInstance();
+	}
+
+	/**
+	 * Get the singleton instance
+	 */
+	public static NonXmlBodyExtractor getInstance()
+	{
+		if(s_instance == null)
+			synchronized (s_lockObject) {
+				if(s_instance == null)
+					s_instance = new NonXmlBodyExtractor();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Copy the document to strippedDocument, decoding a base64 nonXMLBody text to body. Returns
+	 * true if the body was extracted, otherwise the copy is complete and body was not written.
+	 * Neither stream is closed
+	 * @throws XMLStreamException When the document is not well formed
+	 */
+	public boolean extract(InputStream document, OutputStream strippedDocument, OutputStream body) throws XMLStreamException, IOException
+	{
+		boolean retVal = false;
+		XMLStreamReader reader = this.m_inputFactory.createXMLStreamReader(document);
+		XMLStreamWriter writer = this.m_outputFactory.createXMLStreamWriter(strippedDocument, "UTF-8");
+		try
+		{
+			// ClinicalDocument/component/nonXMLBody/text
+			String[] path = new String[4];
+			int depth = 0;
+
+			writer.writeStartDocument("UTF-8", "1.0");
+			while(reader.hasNext())
+			{
+				int event = reader.next();
+				if(event == XMLStreamConstants.START_ELEMENT)
+				{
+					this.copyStartElement(reader, writer);
+					if(depth < path.length)
+						path[depth] = ClinicalDocumentHeaderScanner.NS_HL7V3.equals(reader.getNamespaceURI()) ? reader.getLocalName() : null;
+					depth++;
+
+					if(depth == 4 && !retVal && "ClinicalDocument".equals(path[0]) && "component".equals(path[1]) &&
+							"nonXMLBody".equals(path[2]) && "text".equals(path[3]) &&
+							"B64".equals(reader.getAttributeValue(null, "representation")))
+					{
+						this.decodeText(reader, writer, body);
+						writer.writeEndElement();
+						depth--;
+						retVal = true;
+					}
+				}
+				else if(event == XMLStreamConstants.END_ELEMENT)
+				{
+					writer.writeEndElement();
+					depth--;
+				}
+				else
+					this.copyContent(reader, writer, event);
+			}
+			writer.writeEndDocument();
+			writer.flush();
+		}
+		finally
+		{
+			reader.close();
+			writer.close();
+		}
+		return retVal;
+	}
+
+	/**
+	 * Decode the text content of the current element to body, copying any child elements
+	 * (reference, thumbnail), until the element's end tag
+	 */
+	private void decodeText(XMLStreamReader reader, XMLStreamWriter writer, OutputStream body) throws XMLStreamException, IOException
+	{
+		// Closing the decoder writes the final bytes, but mustn't close body
+		Base64OutputStream decoder = new Base64OutputStream(new FilterOutputStream(body) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				this.out.write(b, off, len);
+			}
+			@Override
+			public void close() throws IOException {
+				this.flush();
+			}
+		}, false);
+		char[] chars = new char[BUFFER_SIZE];
+		byte[] bytes = new byte[BUFFER_SIZE];
+		int depth = 0;
+		while(reader.hasNext())
+		{
+			int event = reader.next();
+			if(event == XMLStreamConstants.START_ELEMENT)
+			{
+				this.copyStartElement(reader, writer);
+				depth++;
+			}
+			else if(event == XMLStreamConstants.END_ELEMENT)
+			{
+				if(depth-- == 0)
+					break;
+				writer.writeEndElement();
+			}
+			else if(depth == 0 && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA))
+			{
+				// Base64 is ASCII and whitespace is ignored by the decoder
+				int read = 0;
+				for(int start = 0; (read = reader.getTextCharacters(start, chars, 0, chars.length)) > 0; start += read)
+				{
+					for(int i = 0; i < read; i++)
+						bytes[i] = (byte)chars[i];
+					decoder.write(bytes, 0, read);
+				}
+			}
+			else
+				this.copyContent(reader, writer, event);
+		}
+		decoder.close();
+	}
+
+	/**
+	 * Copy the current start element with its namespace declarations and attributes
+	 */
+	private void copyStartElement(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException
+	{
+		String prefix = reader.getPrefix(), namespaceUri = reader.getNamespaceURI();
+		if(namespaceUri == null)
+			writer.writeStartElement(reader.getLocalName());
+		else
+			writer.writeStartElement(prefix == null ? "" : prefix, reader.getLocalName(), namespaceUri);
+
+		for(int i = 0; i < reader.getNamespaceCount(); i++)
+		{
+			String namespacePrefix = reader.getNamespacePrefix(i);
+			if(namespacePrefix == null || namespacePrefix.length() == 0)
+				writer.writeDefaultNamespace(reader.getNamespaceURI(i));
+			else
+				writer.writeNamespace(namespacePrefix, reader.getNamespaceURI(i));
+		}
+
+		for(int i = 0; i < reader.getAttributeCount(); i++)
+		{
+			String attributeNamespace = reader.getAttributeNamespace(i);
+			if(attributeNamespace == null || attributeNamespace.length() == 0)
+				writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+			else
+				writer.writeAttribute(reader.getAttributePrefix(i), attributeNamespace, reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+		}
+	}
+
+	/**
+	 * Copy text, comments and processing instructions
+	 */
+	private void copyContent(XMLStreamReader reader, XMLStreamWriter writer, int event) throws XMLStreamException
+	{
+		if(event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE)
+			writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+		else if(event == XMLStreamConstants.CDATA)
+			writer.writeCData(reader.getText());
+		else if(event == XMLStreamConstants.COMMENT)
+			writer.writeComment(reader.getText());
+		else if(event == XMLStreamConstants.PROCESSING_INSTRUCTION)
+			writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+	}
+
+	/**
+	 * Get the extracted body of the document being imported by the current thread, or null
+	 * if its body is in the parsed ClinicalDocument
+	 */
+	public File getExtractedBody()
+	{
+		return this.m_extractedBody.get();
+	}
+
+	/**
+	 * Set (or clear with null) the extracted body of the document being imported by the current thread
+	 */
+	public void setExtractedBody(File body)
+	{
+		if(body == null)
+			this.m_extractedBody.remove();
+		else
+			this.m_extractedBody.set(body);
+	}
+}
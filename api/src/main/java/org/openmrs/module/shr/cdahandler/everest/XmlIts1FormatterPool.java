@@ -0,0 +1,190 @@
+package org.openmrs.module.shr.cdahandler.everest;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.marc.everest.formatters.xml.its1.XmlIts1Formatter;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+
+/**
+ * A bounded pool of pre-configured XmlIts1Formatter instances
+ *
+ * Creating a formatter registers graph aides, XSI types and the cached ClinicalDocument
+ * class each time, so formatters are created once and re-used between documents. A formatter
+ * is only ever used by one thread at a time, callers must {@link #release(XmlIts1Formatter)}
+ * each formatter they {@link #borrow()}
+ */
+public final class XmlIts1FormatterPool {
+
+	// Log
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	// Singleton instance
+	private static XmlIts1FormatterPool s_instance;
+	private static Object s_lockObject = new Object();
+
+	// Maximum number of formatters which may be checked out at once
+	private final int m_maxSize;
+	// Permits for checking out formatters
+	private final Semaphore m_permits;
+	// Formatters which are warm and not in use
+	private final LinkedBlockingQueue<XmlIts1Formatter> m_idle = new LinkedBlockingQueue<XmlIts1Formatter>();
+
+	// Metrics
+	private final AtomicLong m_checkoutCount = new AtomicLong();
+	private final AtomicLong m_createdCount = new AtomicLong();
+	private final AtomicLong m_activeCount = new AtomicLong();
+	private final AtomicLong m_totalBorrowWaitNanos = new AtomicLong();
+	private final AtomicLong m_maxBorrowWaitNanos = new AtomicLong();
+
+	/**
+	 * Private ctor
+	 */
+	private XmlIts1FormatterPool(int maxSize)
+	{
+		this.m_maxSize = maxSize < 1 ? 1 : maxSize;
+		this.m_permits = new Semaphore(this.m_maxSize, true);
+	}
+
+	/**
+	 * Get the singleton instance, sized from the shr-cdahandler.formatter.poolSize value
+	 */
+	public static XmlIts1FormatterPool getInstance()
+	{
+		if(s_instance == null)
+			synchronized (s_lockObject) {
+				if(s_instance == null)
+					s_instance = new XmlIts1FormatterPool(CdaHandlerConfiguration.getInstance().getFormatterPoolSize());
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Borrow a formatter from the pool, blocking while the pool is exhausted
+	 */
+	public XmlIts1Formatter borrow()
+	{
+		long start = System.nanoTime();
+		this.m_permits.acquireUninterruptibly();
+		long waited = System.nanoTime() - start;
+
+		this.m_checkoutCount.incrementAndGet();
+		this.m_activeCount.incrementAndGet();
+		this.m_totalBorrowWaitNanos.addAndGet(waited);
+		long max = this.m_maxBorrowWaitNanos.get();
+		while(waited > max && !this.m_maxBorrowWaitNanos.compareAndSet(max, waited))
+			max = this.m_maxBorrowWaitNanos.get();
+
+		XmlIts1Formatter retVal = this.m_idle.poll();
+		if(retVal == null)
+		{
+			try
+			{
+				retVal = this.createFormatter();
+			}
+			catch(RuntimeException e)
+			{
+				this.m_activeCount.decrementAndGet();
+				this.m_permits.release();
+				throw e;
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Return a formatter to the pool
+	 */
+	public void release(XmlIts1Formatter formatter)
+	{
+		if(formatter == null)
+			return;
+		this.m_idle.offer(formatter);
+		this.m_activeCount.decrementAndGet();
+		this.m_permits.release();
+	}
+
+	/**
+	 * Pre-create formatters so the first documents don't pay the warm-up cost
+	 */
+	public void warm(int count)
+	{
+		long start = System.currentTimeMillis();
+		int toCreate = Math.min(count, this.m_maxSize) - this.m_idle.size();
+		for(int i = 0; i < toCreate; i++)
+			this.m_idle.offer(this.createFormatter());
+		log.info(String.format("Warmed %s XmlIts1Formatter instances in %s ms", Math.max(toCreate, 0), System.currentTimeMillis() - start));
+	}
+
+	/**
+	 * Create a new formatter instance
+	 */
+	private XmlIts1Formatter createFormatter()
+	{
+		XmlIts1Formatter retVal = EverestUtil.createFormatter();
+		this.m_createdCount.incrementAndGet();
+		return retVal;
+	}
+
+	/**
+	 * Get the maximum number of formatters which can be checked out at once
+	 */
+	public int getMaxSize() {
+		return this.m_maxSize;
+	}
+
+	/**
+	 * Get the number of formatters idle in the pool
+	 */
+	public int getIdleCount() {
+		return this.m_idle.size();
+	}
+
+	/**
+	 * Get the number of formatters currently checked out
+	 */
+	public long getActiveCount() {
+		return this.m_activeCount.get();
+	}
+
+	/**
+	 * Get the total number of formatters created by the pool
+	 */
+	public long getCreatedCount() {
+		return this.m_createdCount.get();
+	}
+
+	/**
+	 * Get the total number of checkouts
+	 */
+	public long getCheckoutCount() {
+		return this.m_checkoutCount.get();
+	}
+
+	/**
+	 * Get the total time (in ms) callers have waited to borrow a formatter
+	 */
+	public long getTotalBorrowWaitMillis() {
+		return this.m_totalBorrowWaitNanos.get() / 1000000L;
+	}
+
+	/**
+	 * Get the longest time (in ms) a caller has waited to borrow a formatter
+	 */
+	public long getMaxBorrowWaitMillis() {
+		return this.m_maxBorrowWaitNanos.get() / 1000000L;
+	}
+
+	/**
+	 * Get the mean time (in ms) a caller has waited to borrow a formatter
+	 */
+	public double getMeanBorrowWaitMillis() {
+		long checkouts = this.m_checkoutCount.get();
+		if(checkouts == 0)
+			return 0;
+		return (double)this.m_totalBorrowWaitNanos.get() / checkouts / 1000000.0d;
+	}
+}
@@ -0,0 +1,112 @@
+package org.openmrs.module.shr.cdahandler.obs;
+
+import java.util.Date;
+
+import org.openmrs.BaseOpenmrsObject;
+
+/**
+ * Represents the deflated narrative of a section, stored once per distinct content
+ * and shared by the complex obs which reference its digest
+ */
+public class NarrativeBlob extends BaseOpenmrsObject {
+
+	// Identifier
+	private Integer id;
+	// SHA-1 digest of the uncompressed narrative
+	private String digest;
+	// The deflated narrative
+	private byte[] content;
+	// Length of the uncompressed narrative
+	private Integer size;
+	// Number of complex obs referencing the narrative
+	private Integer referenceCount = 0;
+	// Date the narrative was first stored
+	private Date dateCreated;
+
+	/**
+	 * @see org.openmrs.OpenmrsObject#getId()
+	 */
+	@Override
+	public Integer getId() {
+		return id;
+	}
+
+	/**
+	 * @see org.openmrs.OpenmrsObject#setId(java.lang.Integer)
+	 */
+	@Override
+	public void setId(Integer id) {
+		this.id = id;
+	}
+
+	/**
+	 * @return the digest
+	 */
+	public String getDigest() {
+		return digest;
+	}
+
+	/**
+	 * @param digest the digest to set
+	 */
+	public void setDigest(String digest) {
+		this.digest = digest;
+	}
+
+	/**
+	 * @return the content
+	 */
+	public byte[] getContent() {
+		return content;
+	}
+
+	/**
+	 * @param content the content to set
+	 */
+	public void setContent(byte[] content) {
+		this.content = content;
+	}
+
+	/**
+	 * @return the size
+	 */
+	public Integer getSize() {
+		return size;
+	}
+
+	/**
+	 * @param size the size to set
+	 */
+	public void setSize(Integer size) {
+		this.size = size;
+	}
+
+	/**
+	 * @return the referenceCount
+	 */
+	public Integer getReferenceCount() {
+		return referenceCount;
+	}
+
+	/**
+	 * @param referenceCount the referenceCount to set
+	 */
+	public void setReferenceCount(Integer referenceCount) {
+		this.referenceCount = referenceCount;
+	}
+
+	/**
+	 * @return the dateCreated
+	 */
+	public Date getDateCreated() {
+		return dateCreated;
+	}
+
+	/**
+	 * @param dateCreated the dateCreated to set
+	 */
+	public void setDateCreated(Date dateCreated) {
+		this.dateCreated = dateCreated;
+	}
+
+}
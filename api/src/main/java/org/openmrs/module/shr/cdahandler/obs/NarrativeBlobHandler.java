@@ -0,0 +1,157 @@
+package org.openmrs.module.shr.cdahandler.obs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Obs;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.cdahandler.api.CdaImportService;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+import org.openmrs.obs.ComplexData;
+import org.openmrs.obs.ComplexObsHandler;
+import org.openmrs.obs.handler.BinaryDataHandler;
+
+/**
+ * Complex obs handler which keeps section narrative in the narrative blob store rather than
+ * a file per obs. The obs' value complex is "title|narrative:digest", obs saved before the
+ * store was enabled keep their file and are handled as binary data
+ */
+public class NarrativeBlobHandler extends BinaryDataHandler {
+
+	// The name the handler is registered under
+	public static final String HANDLER_NAME = "NarrativeBlobHandler";
+
+	// Prefix of the value complex of narrative in the blob store
+	public static final String BLOB_PREFIX = "narrative:";
+
+	// Log
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	/**
+	 * Store the complex data in the narrative blob store
+	 * @see org.openmrs.obs.handler.BinaryDataHandler#saveObs(org.openmrs.Obs)
+	 */
+	@Override
+	public Obs saveObs(Obs obs) throws APIException {
+		ComplexData complexData = obs.getComplexData();
+		
+		// A new version of a revised obs shares its predecessor's narrative
+		String digest = this.getDigest(obs);
+		if(complexData == null && digest != null)
+		{
+			Context.getService(CdaImportService.class).addNarrativeReference(digest);
+			return obs;
+		}
+		
+		if(complexData == null || !CdaHandlerConfiguration.getInstance().getNarrativeBlobStore())
+			return super.saveObs(obs);
+
+		byte[] narrative = null;
+		try
+		{
+			narrative = this.getBytes(complexData.getData());
+		}
+		catch(IOException e)
+		{
+			throw new APIException("Could not read narrative", e);
+		}
+		if(narrative == null)
+			return super.saveObs(obs);
+
+		digest = Context.getService(CdaImportService.class).saveNarrative(narrative);
+		obs.setValueComplex(complexData.getTitle() + "|" + BLOB_PREFIX + digest);
+		obs.setComplexData(null);
+		return obs;
+	}
+
+	/**
+	 * Get the narrative, which is inflated as the raw view is read
+	 * @see org.openmrs.obs.handler.BinaryDataHandler#getObs(org.openmrs.Obs, java.lang.String)
+	 */
+	@Override
+	public Obs getObs(Obs obs, String view) {
+		String digest = this.getDigest(obs);
+		if(digest == null)
+			return super.getObs(obs, view);
+
+		InputStream narrative = Context.getService(CdaImportService.class).getNarrative(digest);
+		if(narrative == null)
+		{
+			log.error(String.format("Narrative %s of obs %s is not stored", digest, obs.getObsId()));
+			return obs;
+		}
+
+		Object data = narrative;
+		if(!ComplexObsHandler.RAW_VIEW.equals(view))
+			try
+			{
+				data = this.getBytes(narrative);
+			}
+			catch(IOException e)
+			{
+				throw new APIException("Could not read narrative", e);
+			}
+
+		obs.setComplexData(new ComplexData(obs.getValueComplex().substring(0, obs.getValueComplex().indexOf('|')), data));
+		return obs;
+	}
+
+	/**
+	 * Release the obs' reference to its narrative
+	 * @see org.openmrs.obs.handler.AbstractHandler#purgeComplexData(org.openmrs.Obs)
+	 */
+	@Override
+	public boolean purgeComplexData(Obs obs) {
+		String digest = this.getDigest(obs);
+		if(digest == null)
+			return super.purgeComplexData(obs);
+
+		Context.getService(CdaImportService.class).releaseNarrative(digest, obs.getObsId());
+		obs.setComplexData(null);
+		return true;
+	}
+
+	/**
+	 * Get the digest of the obs' narrative, or null if it isn't in the blob store
+	 */
+	private String getDigest(Obs obs) {
+		String valueComplex = obs.getValueComplex();
+		if(valueComplex == null)
+			return null;
+		int start = valueComplex.indexOf('|') + 1;
+		if(start == 0 || !valueComplex.startsWith(BLOB_PREFIX, start))
+			return null;
+		return valueComplex.substring(start + BLOB_PREFIX.length());
+	}
+
+	/**
+	 * Read complex data into a byte array (closing a stream), or return null if it isn't binary or text
+	 */
+	private byte[] getBytes(Object data) throws IOException {
+		if(data instanceof byte[])
+			return (byte[])data;
+		else if(data instanceof String)
+			return ((String)data).getBytes("UTF-8");
+		else if(!(data instanceof InputStream))
+			return null;
+
+		InputStream stream = (InputStream)data;
+		try
+		{
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int bufRead = 0;
+			while((bufRead = stream.read(buffer)) > 0)
+				bos.write(buffer, 0, bufRead);
+			return bos.toByteArray();
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package org.openmrs.module.shr.cdahandler.processor.annotation;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates the processor registry at compile time from the classes annotated with 
+ * {@link ProcessTemplates}, so that the classpath doesn't have to be scanned at runtime.
+ * 
+ * This class is compiled on its own before the rest of the API (see the api pom) and
+ * must not depend on any other class in the module
+ */
+@SupportedAnnotationTypes(ProcessTemplatesAnnotationProcessor.ANNOTATION_NAME)
+public class ProcessTemplatesAnnotationProcessor extends AbstractProcessor {
+
+	// The annotation which marks a processor
+	public static final String ANNOTATION_NAME = "org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates";
+	// The interface processors implement
+	public static final String PROCESSOR_NAME = "org.openmrs.module.shr.cdahandler.processor.Processor";
+	// The package processors are registered from (the same one which is scanned at runtime)
+	public static final String BASE_PACKAGE = "org.openmrs.module.shr.cdahandler.processor";
+	// The generated registry
+	public static final String REGISTRY_PACKAGE = "org.openmrs.module.shr.cdahandler.processor.factory.impl";
+	public static final String REGISTRY_NAME = "GeneratedProcessorRegistry";
+	
+	// The binary names of the processors found (sorted so the registry is deterministic)
+	private final Set<String> m_processors = new TreeSet<String>();
+	
+	// True when the registry has been written
+	private boolean m_generated = false;
+	
+	/**
+	 * Supports whatever source version the compiler does
+	 * @see javax.annotation.processing.AbstractProcessor#getSupportedSourceVersion()
+	 */
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	/**
+	 * Collect the annotated processors and write the registry in the first round which has any
+	 * @see javax.annotation.processing.AbstractProcessor#process(java.util.Set, javax.annotation.processing.RoundEnvironment)
+	 */
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		TypeElement annotation = this.processingEnv.getElementUtils().getTypeElement(ANNOTATION_NAME);
+		TypeElement processor = this.processingEnv.getElementUtils().getTypeElement(PROCESSOR_NAME);
+		if(annotation == null || processor == null)
+			return false;
+		
+		TypeMirror processorType = this.processingEnv.getTypeUtils().erasure(processor.asType());
+		for(Element element : roundEnv.getElementsAnnotatedWith(annotation))
+		{
+			if(!this.isRegistrable(element, processorType))
+				continue;
+			if(this.m_generated)
+				this.processingEnv.getMessager().printMessage(Kind.WARNING, "@ProcessTemplates class was generated after the processor registry and will not be routed to", element);
+			else
+				this.m_processors.add(this.processingEnv.getElementUtils().getBinaryName((TypeElement)element).toString());
+		}
+		
+		// Written in the round the processors are found (not the last one) so the registry is itself compiled
+		if(!roundEnv.processingOver() && !this.m_generated && !this.m_processors.isEmpty())
+		{
+			this.writeRegistry();
+			this.m_generated = true;
+		}
+		return false;
+	}
+
+	/**
+	 * True if the runtime scanner would have registered the element, that is a concrete, 
+	 * independent processor class in the processor package
+	 */
+	private boolean isRegistrable(Element element, TypeMirror processorType)
+	{
+		if(element.getKind() != ElementKind.CLASS || element.getModifiers().contains(Modifier.ABSTRACT))
+			return false;
+		
+		TypeElement type = (TypeElement)element;
+		if(type.getNestingKind() != NestingKind.TOP_LEVEL && 
+				(type.getNestingKind() != NestingKind.MEMBER || !type.getModifiers().contains(Modifier.STATIC)))
+			return false;
+		if(!type.getQualifiedName().toString().startsWith(BASE_PACKAGE + "."))
+			return false;
+		
+		if(!this.processingEnv.getTypeUtils().isAssignable(type.asType(), processorType))
+		{
+			this.processingEnv.getMessager().printMessage(Kind.WARNING, "@ProcessTemplates class does not implement Processor and will not be routed to", element);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Write the registry source file
+	 */
+	private void writeRegistry()
+	{
+		StringBuilder source = new StringBuilder();
+		source.append("package ").append(REGISTRY_PACKAGE).append(";\n\n");
+		source.append("/**\n * Processors annotated with @ProcessTemplates, generated by ")
+			.append(this.getClass().getSimpleName()).append(". Do not edit\n */\n");
+		source.append("public final class ").append(REGISTRY_NAME).append(" {\n\n");
+		source.append("\t// Binary names of the processor classes\n");
+		source.append("\tpublic static final String[] PROCESSORS = {\n");
+		for(String name : this.m_processors)
+			source.append("\t\t\"").append(name).append("\",\n");
+		source.append("\t};\n\n");
+		source.append("\tprivate ").append(REGISTRY_NAME).append("() {\n\t}\n}\n");
+		
+		Writer writer = null;
+		try {
+			JavaFileObject file = this.processingEnv.getFiler().createSourceFile(REGISTRY_PACKAGE + "." + REGISTRY_NAME);
+			writer = file.openWriter();
+			writer.write(source.toString());
+		}
+		catch (IOException e) {
+			this.processingEnv.getMessager().printMessage(Kind.ERROR, "Could not write the processor registry: " + e.getMessage());
+		}
+		finally {
+			if(writer != null)
+				try {
+					writer.close();
+				}
+				catch (IOException e) {
+					this.processingEnv.getMessager().printMessage(Kind.ERROR, "Could not write the processor registry: " + e.getMessage());
+				}
+		}
+	}
+}
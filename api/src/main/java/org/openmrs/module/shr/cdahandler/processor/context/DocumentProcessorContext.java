@@ -10,6 +10,7 @@ import org.openmrs.EncounterRole;
 import org.openmrs.Provider;
 import org.openmrs.Visit;
 import org.openmrs.module.shr.cdahandler.processor.document.DocumentProcessor;
+import org.openmrs.module.shr.cdahandler.processor.util.AccessionNumberLookup;
 
 /**
  * Represents a specialized context from the DocumentProcessor
@@ -23,6 +24,12 @@ public class DocumentProcessorContext extends ProcessorContext {
 	private Map<EncounterRole, Set<Provider>> m_providers;
 	// The data enterer
 	private Provider m_dataEnterer;
+	// Existing obs / orders for the accession numbers in the document
+	private AccessionNumberLookup m_accessionNumbers;
+	// New data waiting to be saved when the document body is complete
+	private DocumentUnitOfWork m_unitOfWork;
+	// True if the session isn't flushed before each query while the body is processed
+	private boolean m_manualFlush;
 
 	
 	/**
@@ -73,4 +80,34 @@ public class DocumentProcessorContext extends ProcessorContext {
 	 */
 	public Map<EncounterRole, Set<Provider>> getProviders() { return this.m_providers; }
 
+	/**
+	 * Gets the existing obs / orders for the accession numbers in the document (null if not resolved)
+	 */
+	public AccessionNumberLookup getAccessionNumberLookup() { return this.m_accessionNumbers; }
+	
+	/**
+	 * Sets the existing obs / orders for the accession numbers in the document
+	 */
+	public void setAccessionNumberLookup(AccessionNumberLookup accessionNumbers) { this.m_accessionNumbers = accessionNumbers; }
+
+	/**
+	 * Gets the unit of work the document's new data is added to (null if it is saved as it is built)
+	 */
+	public DocumentUnitOfWork getUnitOfWork() { return this.m_unitOfWork; }
+	
+	/**
+	 * Sets the unit of work the document's new data is added to
+	 */
+	public void setUnitOfWork(DocumentUnitOfWork unitOfWork) { this.m_unitOfWork = unitOfWork; }
+
+	/**
+	 * True if the session isn't flushed before each query while the body is processed
+	 */
+	public boolean isManualFlush() { return this.m_manualFlush; }
+	
+	/**
+	 * Sets whether the session is flushed before each query while the body is processed
+	 */
+	public void setManualFlush(boolean manualFlush) { this.m_manualFlush = manualFlush; }
+
 }
@@ -0,0 +1,115 @@
+package org.openmrs.module.shr.cdahandler.processor.context;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.activelist.ActiveListItem;
+import org.openmrs.api.context.Context;
+
+/**
+ * The new observations and active list items built from a document's body, which are
+ * persisted together when the body has been processed. Processors only build the graph
+ * of obs under the encounter, so the session isn't flushed and cascaded for each save.
+ * The inserts themselves aren't JDBC batched: core maps obs ids as database generated
+ * (identity), so Hibernate has to insert each obs on its own to read back its id
+ */
+public class DocumentUnitOfWork {
+
+	// Log
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	// New obs in the order they were built
+	private final List<Obs> m_obs = new ArrayList<Obs>();
+	// New obs by accession number
+	private final Map<String, Obs> m_obsByAccessionNumber = new HashMap<String, Obs>();
+	// New active list items, saved after the obs they start or stop
+	private final List<ActiveListItem> m_activeListItems = new ArrayList<ActiveListItem>();
+
+	/**
+	 * Add a new obs (and its group members) to be saved with its encounter
+	 */
+	public void addObs(Obs obs)
+	{
+		for(Obs pending : this.m_obs)
+			if(pending == obs)
+				return;
+		this.m_obs.add(obs);
+		if(obs.getAccessionNumber() != null)
+			this.m_obsByAccessionNumber.put(obs.getAccessionNumber(), obs);
+	}
+
+	/**
+	 * Get the new obs with the accession number, or null if there is none
+	 */
+	public Obs getObs(String accessionNumber)
+	{
+		if(accessionNumber == null)
+			return null;
+		return this.m_obsByAccessionNumber.get(accessionNumber);
+	}
+
+	/**
+	 * Add a new active list item to be saved after the obs
+	 */
+	public void addActiveListItem(ActiveListItem item)
+	{
+		for(ActiveListItem pending : this.m_activeListItems)
+			if(pending == item)
+				return;
+		this.m_activeListItems.add(item);
+	}
+
+	/**
+	 * Get the new active list items of the class which are started or stopped by the obs
+	 */
+	public <T extends ActiveListItem> List<T> getActiveListItemsByObs(Obs obs, Class<T> clazz)
+	{
+		List<T> retVal = new ArrayList<T>();
+		for(ActiveListItem item : this.m_activeListItems)
+			if(clazz.isInstance(item) && (item.getStartObs() == obs || item.getStopObs() == obs))
+				retVal.add(clazz.cast(item));
+		return retVal;
+	}
+
+	/**
+	 * Save the new obs through their encounters, then the active list items, and flush the session.
+	 * Returns the number of obs and active list items saved
+	 */
+	public int commit()
+	{
+		// Attach the obs to their encounters in the order they were built
+		Set<Encounter> encounters = new LinkedHashSet<Encounter>();
+		for(Obs obs : this.m_obs)
+		{
+			obs.getEncounter().addObs(obs);
+			encounters.add(obs.getEncounter());
+		}
+		for(Encounter encounter : encounters)
+			Context.getEncounterService().saveEncounter(encounter);
+		for(ActiveListItem item : this.m_activeListItems)
+			Context.getActiveListService().saveActiveListItem(item);
+		Context.flushSession();
+
+		int retVal = this.m_obs.size() + this.m_activeListItems.size();
+		log.debug(String.format("Saved %s obs in %s encounters and %s list items", this.m_obs.size(), encounters.size(), this.m_activeListItems.size()));
+		this.m_obs.clear();
+		this.m_obsByAccessionNumber.clear();
+		this.m_activeListItems.clear();
+		return retVal;
+	}
+
+	/**
+	 * Get the number of new obs waiting to be saved
+	 */
+	public int getObsCount() {
+		return this.m_obs.size();
+	}
+}
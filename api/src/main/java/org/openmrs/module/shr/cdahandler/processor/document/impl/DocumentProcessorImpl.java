@@ -1,6 +1,12 @@
 package org.openmrs.module.shr.cdahandler.processor.document.impl;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
 import java.util.Date;
 import java.util.Iterator;
@@ -31,23 +37,23 @@ import org.marc.everest.rmim.uv.cdar2.vocabulary.x_ActRelationshipDocument;
 import org.openmrs.Encounter;
 import org.openmrs.EncounterRole;
 import org.openmrs.Obs;
-import org.openmrs.Order;
 import org.openmrs.Patient;
 import org.openmrs.Provider;
 import org.openmrs.Relationship;
 import org.openmrs.User;
 import org.openmrs.Visit;
 import org.openmrs.VisitAttribute;
-import org.openmrs.activelist.Allergy;
-import org.openmrs.activelist.Problem;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
 import org.openmrs.module.shr.cdahandler.api.CdaImportService;
 import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+import org.openmrs.module.shr.cdahandler.everest.NonXmlBodyExtractor;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
+import org.openmrs.module.shr.cdahandler.exception.DocumentPersistenceException;
 import org.openmrs.module.shr.cdahandler.exception.DocumentValidationException;
 import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
 import org.openmrs.module.shr.cdahandler.processor.context.DocumentProcessorContext;
+import org.openmrs.module.shr.cdahandler.processor.context.DocumentUnitOfWork;
 import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 import org.openmrs.module.shr.cdahandler.processor.document.DocumentProcessor;
 import org.openmrs.module.shr.cdahandler.processor.factory.impl.SectionProcessorFactory;
@@ -170,7 +176,7 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 					log.warn(String.format("Can't find the visit identified as %s to be associated", FormatterUtil.toWireFormat(dr.getParentDocument().getId())));
 				else if(dr.getTypeCode().getCode().equals(x_ActRelationshipDocument.RPLC)) // Replacement of
 				{
-					this.voidVisitData(oldVisit, getVisitId(doc.getId()));
+					this.voidVisitData(oldVisit, this.m_openmrsDataUtil.getVisitId(doc.getId()));
 				}
 				else if(dr.getTypeCode().getCode().equals(x_ActRelationshipDocument.APND))
 				{
@@ -385,20 +391,8 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 	}
 
 	private void voidPreviousObservations(Encounter createdEncounter) {
-		for (Obs obs : createdEncounter.getAllObs(false)) {
-			//If obs is unstructured attachment skip
-			if (!obs.getConcept().getName().getName().contains("Unstructured Attachment")) {
-				Context.getObsService().voidObs(obs, "Auto update via CDA module");
-			}
-		}
-	}
-
-	private II getVisitId(II id) {
-		String visitId = this.m_datatypeProcessorUtil.formatIdentifier(id);
-		if (visitId != null && visitId.contains("/")) {
-			visitId = visitId.split("/")[0];
-		}
-		return new II("visit", visitId);
+		//If obs is unstructured attachment skip
+		Context.getService(CdaImportService.class).voidEncounterObs(createdEncounter, "Unstructured Attachment", "Auto update via CDA module");
 	}
 
 	private String getEncounterUuid(II id) {
@@ -415,7 +409,7 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 	}
 
 	private Visit findOrCreateVisit(ClinicalDocument doc, Patient patient) throws DocumentImportException {
-		II visitId = getVisitId(doc.getId());
+		II visitId = this.m_openmrsDataUtil.getVisitId(doc.getId());
 		Visit visit = this.m_openmrsDataUtil.getVisitById(visitId, patient);
 		if (visit == null) {
 			visit = new Visit();
@@ -437,7 +431,7 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 		// These are kind of visit attributes
 		//	Authorization = The authority under which the operation/action was done
 		//	Participants = Spouses, fathers, etc. related to the record target
-		II visitId = getVisitId(doc.getId());
+		II visitId = this.m_openmrsDataUtil.getVisitId(doc.getId());
 		String visitIdentifier = this.m_datatypeProcessorUtil.formatIdentifier(visitId);
 		if (StringUtils.isNotBlank(visitIdentifier)) {
 			VisitAttribute provenance = new VisitAttribute();
@@ -485,36 +479,10 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 	 * @param oldVisit
 	 */
 	private void voidVisitData(Visit oldVisit, II newId) {
-		// Void the old visit with reason of replaced by this one
-		log.info(String.format("Voided %s", oldVisit));
+		// Void the old visit with reason of replaced by this one, along with its encounters, 
+		// their obs and orders and the problems / allergies started or stopped by the obs
 		String voidReason = this.m_datatypeProcessorUtil.formatIdentifier(newId);
-		Context.getVisitService().voidVisit(oldVisit, voidReason);
-
-		// Void the encounter and all observations 
-		for(Encounter enc : oldVisit.getEncounters())
-		{
-			log.info(String.format("Voided %s", enc));
-			Context.getEncounterService().voidEncounter(enc, voidReason);
-			for(Obs obs : enc.getObs())
-			{
-				log.info(String.format("Voided %s", obs));
-				Context.getObsService().voidObs(obs, voidReason);
-				if(obs.getAccessionNumber() != null)
-				{
-					// TODO: Validate this is the correct behavior?
-					for(Problem p : Context.getService(CdaImportService.class).getActiveListItemByObs(obs, Problem.class))
-						Context.getActiveListService().voidActiveListItem(p, voidReason);
-					for(Allergy a : Context.getService(CdaImportService.class).getActiveListItemByObs(obs, Allergy.class))
-						Context.getActiveListService().voidActiveListItem(a, voidReason);
-					//					Context.getActiveListService().voidActiveListItem(p, voidReason);
-				}
-			}
-			for(Order ord : enc.getOrders())
-			{
-				log.info(String.format("Voided %s", ord));
-				Context.getOrderService().voidOrder(ord, voidReason);
-			}
-		}
+		Context.getService(CdaImportService.class).voidVisitData(oldVisit, voidReason);
     }
 
 	/**
@@ -544,14 +512,38 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 		binaryContentObs.setEncounter(binaryContentEncounter);
 		binaryContentObs.setObsDatetime(binaryContentEncounter.getDateCreated());
 
-		// Set the binary content
-		ByteArrayInputStream textStream = new ByteArrayInputStream(bodyChoiceIfNonXMLBody.getText().getData());
-		ComplexData complexData = new ComplexData(UUID.randomUUID().toString() + ".bin", textStream);
-		binaryContentObs.setComplexData(complexData);
-		binaryContentEncounter.addObs(binaryContentObs);
-		
-		// Update encounter
-		Context.getEncounterService().saveEncounter(binaryContentEncounter);
+		// Set the binary content, streamed from the file it was decoded to if it was too large to parse
+		File extractedBody = NonXmlBodyExtractor.getInstance().getExtractedBody();
+		InputStream textStream = null;
+		try
+		{
+			if(extractedBody != null)
+				textStream = new BufferedInputStream(new FileInputStream(extractedBody));
+			else
+				textStream = new ByteArrayInputStream(bodyChoiceIfNonXMLBody.getText().getData());
+			ComplexData complexData = new ComplexData(UUID.randomUUID().toString() + ".bin", textStream);
+			binaryContentObs.setComplexData(complexData);
+			binaryContentEncounter.addObs(binaryContentObs);
+			
+			// Update encounter
+			Context.getEncounterService().saveEncounter(binaryContentEncounter);
+		}
+		catch(FileNotFoundException e)
+		{
+			throw new DocumentPersistenceException(e);
+		}
+		finally
+		{
+			if(textStream != null)
+				try
+				{
+					textStream.close();
+				}
+				catch(IOException e)
+				{
+					log.warn("Could not close document body stream", e);
+				}
+		}
 		
 		return visitInformation;
     }
@@ -568,30 +560,62 @@ public abstract class DocumentProcessorImpl implements DocumentProcessor {
 
 		// Add visit to context
 		DocumentProcessorContext rootContext = new DocumentProcessorContext(doc, visitInformation, this);
+		// Resolve duplicates / replaced entries for the whole document up front
+		rootContext.setAccessionNumberLookup(this.m_openmrsDataUtil.createAccessionNumberLookup(doc));
+		// Build the data for the whole body then save it together
+		if(this.m_configuration.getUnitOfWork())
+			rootContext.setUnitOfWork(new DocumentUnitOfWork());
 		// Add encounter to context
 		ProcessorContext childContext = new ProcessorContext(structuredBody, visitEncounter, this, rootContext);
-				
-		// Iterate through sections saving them
-		for(Component3 comp : structuredBody.getComponent())
+		
+		// Flush the header, then don't flush before each of the body's lookups
+		boolean autoFlush = true;
+		if(this.m_configuration.getManualFlush())
+		{
+			Context.flushSession();
+			autoFlush = this.m_openmrsDataUtil.setAutoFlush(false);
+			rootContext.setManualFlush(true);
+		}
+		
+		try
 		{
-			// empty section?
-			if(comp == null || comp.getNullFlavor() != null ||
-					comp.getSection() == null || comp.getSection().getNullFlavor() != null)
+			// Iterate through sections saving them
+			for(Component3 comp : structuredBody.getComponent())
 			{
-				log.warn("Component is missing section. Skipping");
-				continue;
+				// empty section?
+				if(comp == null || comp.getNullFlavor() != null ||
+						comp.getSection() == null || comp.getSection().getNullFlavor() != null)
+				{
+					log.warn("Component is missing section. Skipping");
+					continue;
+				}
+				
+				Section section = comp.getSection();
+				
+				// TODO: Now process section
+				SectionProcessor processor = factory.createProcessor(section);
+				try
+				{
+					processor.setContext(childContext);
+					processor.process(section);
+				}
+				finally
+				{
+					factory.releaseProcessor(processor);
+				}
+				
 			}
 			
-			Section section = comp.getSection();
-			
-			// TODO: Now process section
-			SectionProcessor processor = factory.createProcessor(section);
-			processor.setContext(childContext);
-			
-			processor.process(section);
-			
+			if(rootContext.getUnitOfWork() != null)
+				rootContext.getUnitOfWork().commit();
+			else if(rootContext.isManualFlush())
+				Context.flushSession();
+		}
+		finally
+		{
+			if(rootContext.isManualFlush())
+				this.m_openmrsDataUtil.setAutoFlush(autoFlush);
 		}
-		
 		
 		return visitInformation;
     }
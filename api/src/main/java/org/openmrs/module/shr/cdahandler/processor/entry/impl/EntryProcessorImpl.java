@@ -31,14 +31,18 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
+import org.openmrs.module.shr.cdahandler.processor.context.DocumentProcessorContext;
+import org.openmrs.module.shr.cdahandler.processor.context.DocumentUnitOfWork;
 import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 import org.openmrs.module.shr.cdahandler.processor.entry.EntryProcessor;
 import org.openmrs.module.shr.cdahandler.processor.factory.impl.EntryProcessorFactory;
+import org.openmrs.module.shr.cdahandler.processor.util.AccessionNumberLookup;
 import org.openmrs.module.shr.cdahandler.processor.util.AssignedEntityProcessorUtil;
 import org.openmrs.module.shr.cdahandler.processor.util.DatatypeProcessorUtil;
 import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsConceptUtil;
 import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsDataUtil;
 import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsMetadataUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.WellKnownConceptRegistry;
 
 /**
  * Represents an implementation of an EntryProcessor
@@ -58,6 +62,7 @@ public abstract class EntryProcessorImpl implements EntryProcessor {
 	protected final OpenmrsDataUtil m_dataUtil = OpenmrsDataUtil.getInstance();
 	protected final AssignedEntityProcessorUtil m_assignedEntityUtil = AssignedEntityProcessorUtil.getInstance();
 	protected final OpenmrsMetadataUtil m_metadataUtil = OpenmrsMetadataUtil.getInstance();
+	protected final WellKnownConceptRegistry m_wellKnownConcepts = WellKnownConceptRegistry.getInstance();
 
 	/**
 	 * Find an entry relationship
@@ -152,8 +157,15 @@ public abstract class EntryProcessorImpl implements EntryProcessor {
 				EntryProcessor processor = factory.createProcessor(relationship.getClinicalStatement());
 				if(processor != null)
 				{
-					processor.setContext(childContext);
-					processor.process(relationship.getClinicalStatement());
+					try
+					{
+						processor.setContext(childContext);
+						processor.process(relationship.getClinicalStatement());
+					}
+					finally
+					{
+						factory.releaseProcessor(processor);
+					}
 				}
 			}
 		}
@@ -277,6 +289,33 @@ public abstract class EntryProcessorImpl implements EntryProcessor {
 		return (Section)context.getRawObject();
     }
 
+	/**
+	 * Get the existing obs / orders resolved for the document being processed, or null if none were
+	 */
+	protected AccessionNumberLookup getAccessionNumberLookup() {
+		ProcessorContext rootContext = this.getContext().getRootContext();
+		if(rootContext instanceof DocumentProcessorContext)
+			return ((DocumentProcessorContext)rootContext).getAccessionNumberLookup();
+		return null;
+	}
+
+	/**
+	 * Find a new obs of the document being processed which has one of the ids and is waiting
+	 * to be saved with the document's unit of work
+	 */
+	protected Obs findNewObs(SET<II> ids) {
+		DocumentUnitOfWork unitOfWork = this.m_dataUtil.getUnitOfWork(this.getContext());
+		if(unitOfWork == null)
+			return null;
+		for(II id : ids)
+		{
+			Obs retVal = unitOfWork.getObs(this.m_datatypeUtil.formatIdentifier(id));
+			if(retVal != null)
+				return retVal;
+		}
+		return null;
+	}
+
 	/**
 	 * Void an existing obs or throw an exception if duplicate identifiers are not allowed
 	 * @throws DocumentImportException 
@@ -289,7 +328,7 @@ public abstract class EntryProcessorImpl implements EntryProcessor {
 				!reference.getTypeCode().getCode().equals(x_ActRelationshipExternalReference.RPLC))
 				continue;
 			else 
-				previousObs = this.m_dataUtil.findExistingObs(reference.getExternalActChoiceIfExternalAct().getId(), patient);
+				previousObs = this.m_dataUtil.findExistingObs(reference.getExternalActChoiceIfExternalAct().getId(), patient, this.getAccessionNumberLookup());
 
 		if(previousObs != null)
 			Context.getObsService().voidObs(previousObs, "Replaced");
@@ -297,7 +336,9 @@ public abstract class EntryProcessorImpl implements EntryProcessor {
 		// Validate no duplicates on AN
 		if(statementIds != null)
 		{
-			Obs existingObs = this.m_dataUtil.findExistingObs(statementIds, patient) ;
+			Obs existingObs = this.findNewObs(statementIds);
+			if(existingObs == null)
+				existingObs = this.m_dataUtil.findExistingObs(statementIds, patient, this.getAccessionNumberLookup()) ;
 			
 			//    An replacement from the auto-replace
 			 if(existingObs != null && this.m_configuration.getUpdateExisting())
@@ -307,8 +348,13 @@ public abstract class EntryProcessorImpl implements EntryProcessor {
 				existingObs.setVoided(true);
 				existingObs.setVoidedBy(Context.getAuthenticatedUser());
 				existingObs.setVoidReason("Auto-Replaced");
-				Context.getObsService().voidObs(existingObs, "Auto-Replaced");
-				previousObs = Context.getObsService().getObs(existingObs.getId()); 
+				if(existingObs.getObsId() == null) // Not saved yet, it will be saved voided with the document
+					previousObs = existingObs;
+				else
+				{
+					Context.getObsService().voidObs(existingObs, "Auto-Replaced");
+					previousObs = Context.getObsService().getObs(existingObs.getId()); 
+				}
 			}
 			else if(existingObs != null)
 				throw new DocumentImportException(String.format("Duplicate entry %s. If you intend to replace it please use the replacement mechanism for CDA", FormatterUtil.toWireFormat(statementIds)));
@@ -332,20 +378,24 @@ public abstract class EntryProcessorImpl implements EntryProcessor {
 				!reference.getTypeCode().getCode().equals(x_ActRelationshipExternalReference.RPLC))
 				continue;
 			else 
-				previousOrder = this.m_dataUtil.findExistingOrder(reference.getExternalActChoiceIfExternalAct().getId(), patient);
+				previousOrder = this.m_dataUtil.findExistingOrder(reference.getExternalActChoiceIfExternalAct().getId(), patient, this.getAccessionNumberLookup());
 
 		if(previousOrder != null)
+		{
 			Context.getOrderService().voidOrder(previousOrder, "Replaced");
+			this.m_dataUtil.flush(this.getContext());
+		}
 		
 		// Validate no duplicates on AN
 		if(statementIds != null)
 		{
-			Order existingOrder = this.m_dataUtil.findExistingOrder(statementIds, patient) ;
+			Order existingOrder = this.m_dataUtil.findExistingOrder(statementIds, patient, this.getAccessionNumberLookup()) ;
 			
 			// An replacement from the auto-replace
 			if(existingOrder != null && this.m_configuration.getUpdateExisting())
 			{
 				Context.getOrderService().voidOrder(existingOrder, "Auto-Replaced");
+				this.m_dataUtil.flush(this.getContext());
 				previousOrder = Context.getOrderService().getOrder(existingOrder.getId()); 
 			}
 			else if(existingOrder != null)
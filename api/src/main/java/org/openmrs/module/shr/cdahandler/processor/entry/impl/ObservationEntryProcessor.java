@@ -45,7 +45,7 @@ import org.openmrs.module.shr.cdahandler.order.ObservationOrder;
 import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 import org.openmrs.module.shr.cdahandler.processor.util.AssignedEntityProcessorUtil;
 import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsMetadataUtil;
-import org.openmrs.util.OpenmrsConstants;
+import org.openmrs.module.shr.cdahandler.processor.util.WellKnownConcept;
 
 
 /**
@@ -246,6 +246,8 @@ public abstract class ObservationEntryProcessor extends EntryProcessorImpl {
 				throw new DocumentPersistenceException(e);
 			}
 
+		// The active orders are checked when the next order is saved
+		this.m_dataUtil.flush(this.getContext());
 		return res;
     }
 
@@ -390,12 +392,12 @@ public abstract class ObservationEntryProcessor extends EntryProcessorImpl {
 			return null;
 		
 		res = (ExtendedObs)this.m_dataUtil.setObsValue(res, value);
-		Context.getObsService().saveObs(res, null);
+		this.m_dataUtil.saveObs(res, this.getContext());
 		
 		// Is this really an indicator that is enabled?
 		if(BL.FALSE.equals(observation.getValue()) || BL.TRUE.equals(observation.getNegationInd()))
 		{
-			Obs sub = this.m_dataUtil.addSubObservationValue(res, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_SIGN_SYMPTOM_PRESENT), Context.getConceptService().getConcept(Integer.valueOf(Context.getAdministrationService().getGlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_FALSE_CONCEPT))));
+			Obs sub = this.m_dataUtil.addSubObservationValue(res, this.m_wellKnownConcepts.getConcept(WellKnownConcept.SIGN_SYMPTOM_PRESENT), this.m_wellKnownConcepts.getConcept(WellKnownConcept.FALSE));
 			sub.setObsGroup(res);
 			//Context.getObsService().saveObs(sub, null);
 		}
@@ -16,7 +16,6 @@ import org.openmrs.BaseOpenmrsData;
 import org.openmrs.Concept;
 import org.openmrs.Encounter;
 import org.openmrs.Obs;
-import org.openmrs.api.context.Context;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.exception.DocumentValidationException;
 import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
@@ -161,7 +160,7 @@ public abstract class OrganizerEntryProcessor extends EntryProcessorImpl {
 		// We want to process the organizer as an Obs
 		Organizer organizer = (Organizer)entry;
 		Obs organizerObs = this.parseOrganizer(organizer);
-		organizerObs = Context.getObsService().saveObs(organizerObs, null);
+		organizerObs = this.m_dataUtil.saveObs(organizerObs, this.getContext());
 
 		// Cascade properties and process
 		ProcessorContext organizerContext = new ProcessorContext(organizer, organizerObs, this);
@@ -186,8 +185,15 @@ public abstract class OrganizerEntryProcessor extends EntryProcessorImpl {
 	    		continue;
 	    	}
 			
-			processor.setContext(organizerContext);
-			processor.process(statement);
+			try
+			{
+				processor.setContext(organizerContext);
+				processor.process(statement);
+			}
+			finally
+			{
+				factory.releaseProcessor(processor);
+			}
 			
 		}
 
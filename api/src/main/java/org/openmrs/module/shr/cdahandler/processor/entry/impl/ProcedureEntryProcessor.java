@@ -36,6 +36,7 @@ import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
 import org.openmrs.module.shr.cdahandler.order.ProcedureOrder;
 import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 import org.openmrs.module.shr.cdahandler.processor.util.AssignedEntityProcessorUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.WellKnownConcept;
 
 /**
  * An entry processor that can handle the processing of procedures into obs
@@ -207,6 +208,8 @@ public abstract class ProcedureEntryProcessor extends EntryProcessorImpl {
 				throw new DocumentPersistenceException(e);
 			}
 
+		// The active orders are checked when the next order is saved
+		this.m_dataUtil.flush(this.getContext());
 		return res;
     }
 
@@ -246,18 +249,18 @@ public abstract class ProcedureEntryProcessor extends EntryProcessorImpl {
 		super.setCreator(res, procedure);
 		
 		// The concept for the procedure is "Procedure History"
-		res.setConcept(Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_PROCEDURE_HISTORY));
+		res.setConcept(this.m_wellKnownConcepts.getConcept(WellKnownConcept.PROCEDURE_HISTORY));
 
 		// The procedure performed is a sub-observation
 		if(procedure.getCode() != null && procedure.getCode().isNull())
-			this.m_dataUtil.addSubObservationValue(res, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_PROCEDURE), procedure.getCode());
+			this.m_dataUtil.addSubObservationValue(res, this.m_wellKnownConcepts.getConcept(WellKnownConcept.PROCEDURE), procedure.getCode());
 		
 		// The procedure date/time
 		if(procedure.getEffectiveTime() != null && !procedure.getEffectiveTime().isNull())
 		{
 			if(procedure.getEffectiveTime().getValue() != null)
 			{
-				this.m_dataUtil.addSubObservationValue(res, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_PROCEDURE_DATE), procedure.getEffectiveTime().getValue());
+				this.m_dataUtil.addSubObservationValue(res, this.m_wellKnownConcepts.getConcept(WellKnownConcept.PROCEDURE_DATE), procedure.getEffectiveTime().getValue());
 				res.setObsDatetime(procedure.getEffectiveTime().getValue().getDateValue().getTime());
 				res.setObsDatePrecision(procedure.getEffectiveTime().getValue().getDateValuePrecision());
 			}
@@ -281,7 +284,7 @@ public abstract class ProcedureEntryProcessor extends EntryProcessorImpl {
 			if(prf.getAssignedEntity() != null)
 			{
 				Provider pvdr = this.m_assignedEntityUtil.processProvider(prf.getAssignedEntity());
-				this.m_dataUtil.addSubObservationValue(res, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_PROVIDER_NAME), pvdr.getIdentifier());
+				this.m_dataUtil.addSubObservationValue(res, this.m_wellKnownConcepts.getConcept(WellKnownConcept.PROVIDER_NAME), pvdr.getIdentifier());
 			}
 		}
 		
@@ -332,7 +335,7 @@ public abstract class ProcedureEntryProcessor extends EntryProcessorImpl {
 			
 		
 		// Save
-		res = (ExtendedObs)Context.getObsService().saveObs(res, null);
+		res = (ExtendedObs)this.m_dataUtil.saveObs(res, this.getContext());
 		
 		
 		// Process any components
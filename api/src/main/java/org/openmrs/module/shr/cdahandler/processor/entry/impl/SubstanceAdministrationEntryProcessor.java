@@ -31,7 +31,7 @@ import org.openmrs.module.shr.cdahandler.exception.DocumentValidationException;
 import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
 import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
 import org.openmrs.module.shr.cdahandler.processor.util.AssignedEntityProcessorUtil;
-import org.openmrs.util.OpenmrsConstants;
+import org.openmrs.module.shr.cdahandler.processor.util.WellKnownConcept;
 
 import java.util.Date;
 
@@ -151,22 +151,22 @@ public abstract class SubstanceAdministrationEntryProcessor extends EntryProcess
 
 		// Procedure?
 		if(administration.getCode() != null && !administration.getCode().isNull() && administration.getCode().getCode() != null)
-			this.m_dataUtil.addSubObservationValue(medicationHistoryObs, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_PROCEDURE), administration.getCode());
+			this.m_dataUtil.addSubObservationValue(medicationHistoryObs, this.m_wellKnownConcepts.getConcept(WellKnownConcept.PROCEDURE), administration.getCode());
 		
 		// Dosage? 
 		if(administration.getDoseQuantity() != null)
 		{
 			if(administration.getDoseQuantity().getValue() != null && administration.getDoseQuantity().getValue().getUnit() == null )
-				this.m_dataUtil.addSubObservationValue(medicationHistoryObs, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_MEDICATION_QUANTITY), administration.getDoseQuantity().getValue().getValue());
+				this.m_dataUtil.addSubObservationValue(medicationHistoryObs, this.m_wellKnownConcepts.getConcept(WellKnownConcept.MEDICATION_QUANTITY), administration.getDoseQuantity().getValue().getValue());
 			else
-				this.m_dataUtil.addSubObservationValue(medicationHistoryObs, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_MEDICATION_STRENGTH), administration.getDoseQuantity().toString());
+				this.m_dataUtil.addSubObservationValue(medicationHistoryObs, this.m_wellKnownConcepts.getConcept(WellKnownConcept.MEDICATION_STRENGTH), administration.getDoseQuantity().toString());
 		}
 			
 		// Now form
 		if(administration.getAdministrationUnitCode() != null && !administration.getAdministrationUnitCode().isNull())
 		{
 			Concept formCode = this.m_conceptUtil.getOrCreateDrugAdministrationFormConcept(administration.getAdministrationUnitCode());
-			this.m_dataUtil.addSubObservationValue(medicationHistoryObs, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_MEDICATION_FORM), formCode);
+			this.m_dataUtil.addSubObservationValue(medicationHistoryObs, this.m_wellKnownConcepts.getConcept(WellKnownConcept.MEDICATION_FORM), formCode);
 		}
 		
 		// Now route
@@ -197,10 +197,10 @@ public abstract class SubstanceAdministrationEntryProcessor extends EntryProcess
 
 				String textStr = textNode.toPlainString();
 
-				this.m_dataUtil.processObsData(textStr, observation);
+				this.m_dataUtil.processObsData(textStr, observation, this.m_dataUtil.getUnitOfWork(this.getContext()));
 
 				if (observation.getId() == null) {
-					Context.getObsService().saveObs(observation, null);
+					this.m_dataUtil.saveObs(observation, this.getContext());
 				} else {
 					Context.getObsService().saveObs(observation, OBJECT_CHANGE_MESSAGE);
 				}
@@ -219,7 +219,7 @@ public abstract class SubstanceAdministrationEntryProcessor extends EntryProcess
 			{
 				StructDocNode instructionNode = parentSection.getText().findNodeById(instructionAct.getText().getReference().getValue());
 				if(instructionNode != null)
-					this.m_dataUtil.addSubObservationValue(medicationHistoryObs, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_MEDICATION_TEXT), String.format("Instructions: %s", instructionNode.toPlainString()));
+					this.m_dataUtil.addSubObservationValue(medicationHistoryObs, this.m_wellKnownConcepts.getConcept(WellKnownConcept.MEDICATION_TEXT), String.format("Instructions: %s", instructionNode.toPlainString()));
 			}
 			break;
 		}		
@@ -252,7 +252,7 @@ public abstract class SubstanceAdministrationEntryProcessor extends EntryProcess
 		
 		// Negation indicator?
 		if(BL.TRUE.equals(administration.getNegationInd())) 
-			this.m_dataUtil.addSubObservationValue(medicationHistoryObs, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_SIGN_SYMPTOM_PRESENT), Context.getConceptService().getConcept(Integer.valueOf(Context.getAdministrationService().getGlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_FALSE_CONCEPT))));
+			this.m_dataUtil.addSubObservationValue(medicationHistoryObs, this.m_wellKnownConcepts.getConcept(WellKnownConcept.SIGN_SYMPTOM_PRESENT), this.m_wellKnownConcepts.getConcept(WellKnownConcept.FALSE));
 		
 		// Prescription (supply) entry relationship?
 		for(EntryRelationship er : this.findEntryRelationship(administration, CdaHandlerConstants.ENT_TEMPLATE_SUPPLY))
@@ -264,7 +264,7 @@ public abstract class SubstanceAdministrationEntryProcessor extends EntryProcess
 				
 				ExtendedObs supplyObs = new ExtendedObs();
 				supplyObs.setEncounter(encounterInfo);
-				supplyObs.setConcept(Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_SUPPLY));
+				supplyObs.setConcept(this.m_wellKnownConcepts.getConcept(WellKnownConcept.SUPPLY));
 				supplyObs.setObsDatetime(medicationHistoryObs.getObsDatetime());
 				medicationHistoryObs.setObsMood(this.m_conceptUtil.getOrCreateConcept(new CV<x_DocumentSubstanceMood>(supply.getMoodCode().getCode())));
 				super.setCreator(supplyObs, supply);
@@ -279,20 +279,20 @@ public abstract class SubstanceAdministrationEntryProcessor extends EntryProcess
 				
 				// Medications?
 				if(administeredDrug != null)
-					this.m_dataUtil.addSubObservationValue(supplyObs, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_MEDICATION_DRUG), administeredDrug);
+					this.m_dataUtil.addSubObservationValue(supplyObs, this.m_wellKnownConcepts.getConcept(WellKnownConcept.MEDICATION_DRUG), administeredDrug);
 				
 				// Quantity? 
 				if(supply.getQuantity() != null)
 				{
 					if(supply.getQuantity().getUnit() == null && supply.getQuantity().getValue() != null)
-						this.m_dataUtil.addSubObservationValue(supplyObs, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_MEDICATION_DISPENSED), supply.getQuantity().getValue());
+						this.m_dataUtil.addSubObservationValue(supplyObs, this.m_wellKnownConcepts.getConcept(WellKnownConcept.MEDICATION_DISPENSED), supply.getQuantity().getValue());
 					else
-						this.m_dataUtil.addSubObservationValue(supplyObs, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_MEDICATION_STRENGTH), supply.getQuantity().toString());
+						this.m_dataUtil.addSubObservationValue(supplyObs, this.m_wellKnownConcepts.getConcept(WellKnownConcept.MEDICATION_STRENGTH), supply.getQuantity().toString());
 				}
 				
 				// Fill
 				if(er.getSequenceNumber() != null)
-					this.m_dataUtil.addSubObservationValue(supplyObs, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_MEDICATION_TREATMENT_NUMBER), er.getSequenceNumber());
+					this.m_dataUtil.addSubObservationValue(supplyObs, this.m_wellKnownConcepts.getConcept(WellKnownConcept.MEDICATION_TREATMENT_NUMBER), er.getSequenceNumber());
 				
 				// Date that it was filled
 				for(Performer2 prf : supply.getPerformer())
@@ -301,11 +301,11 @@ public abstract class SubstanceAdministrationEntryProcessor extends EntryProcess
 					if(prf.getAssignedEntity() != null)
 					{
 						Provider provider = this.m_providerUtil.processProvider(prf.getAssignedEntity());
-						this.m_dataUtil.addSubObservationValue(supplyObs, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_PROVIDER_NAME), provider.getIdentifier());
+						this.m_dataUtil.addSubObservationValue(supplyObs, this.m_wellKnownConcepts.getConcept(WellKnownConcept.PROVIDER_NAME), provider.getIdentifier());
 					}
 					// 2) the date of the dispense
 					if(prf.getTime() != null && !prf.getTime().isNull())
-						this.m_dataUtil.addSubObservationValue(supplyObs, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_DATE_OF_EVENT), prf.getTime().getValue());
+						this.m_dataUtil.addSubObservationValue(supplyObs, this.m_wellKnownConcepts.getConcept(WellKnownConcept.DATE_OF_EVENT), prf.getTime().getValue());
 				}
 				
 				// TODO: Instructions
@@ -335,7 +335,7 @@ public abstract class SubstanceAdministrationEntryProcessor extends EntryProcess
 			// Add instructions
 			StructDocNode instructionsNode = this.getSection().getText().findNodeById(condition.getCriterion().getText().getReference().getValue());
 			if(instructionsNode != null)
-				this.m_dataUtil.addSubObservationValue(medicationHistoryObs, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_MEDICATION_TEXT), String.format("Pre-Condition: %s", instructionsNode.toPlainString()));
+				this.m_dataUtil.addSubObservationValue(medicationHistoryObs, this.m_wellKnownConcepts.getConcept(WellKnownConcept.MEDICATION_TEXT), String.format("Pre-Condition: %s", instructionsNode.toPlainString()));
 		}
 	 
 		return medicationHistoryObs;
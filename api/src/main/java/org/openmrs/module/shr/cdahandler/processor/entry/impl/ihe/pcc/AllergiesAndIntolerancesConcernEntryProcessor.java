@@ -60,17 +60,27 @@ public class AllergiesAndIntolerancesConcernEntryProcessor extends ConcernEntryP
     protected ActiveListItem parseActContents(Act act, ClinicalStatement statement) throws DocumentImportException {
 		
 		// Get processor factory
-		EntryProcessor processor = EntryProcessorFactory.getInstance().createProcessor(statement);
-		processor.setContext(this.getContext());
+		EntryProcessorFactory factory = EntryProcessorFactory.getInstance();
+		EntryProcessor processor = factory.createProcessor(statement);
 		
-		BaseOpenmrsData processedData = processor.process(statement);
+		BaseOpenmrsData processedData = null;
+		try
+		{
+			processor.setContext(this.getContext());
+			processedData = processor.process(statement);
+		}
+		finally
+		{
+			factory.releaseProcessor(processor);
+		}
 
 		// Not an allergy so process like normal
 		if(!statement.getTemplateId().contains(new II(CdaHandlerConstants.ENT_TEMPLATE_ALLERGY_AND_INTOLERANCE_OBSERVATION)))
 			return null;
 
 		// Get Some information that assists in processing
-		ExtendedObs obs = Context.getService(CdaImportService.class).getExtendedObs(processedData.getId());
+		ExtendedObs obs = processedData instanceof ExtendedObs ? (ExtendedObs)processedData : 
+			Context.getService(CdaImportService.class).getExtendedObs(processedData.getId());
 		Observation observation = (Observation)statement;
 		
 		// We don't track the allergy to an obs if we can help it..
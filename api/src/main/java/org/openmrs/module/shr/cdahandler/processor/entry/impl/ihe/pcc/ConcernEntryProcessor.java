@@ -24,6 +24,7 @@ import org.openmrs.module.shr.cdahandler.exception.DocumentValidationException;
 import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
 import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
 import org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates;
+import org.openmrs.module.shr.cdahandler.processor.context.DocumentUnitOfWork;
 import org.openmrs.module.shr.cdahandler.processor.entry.impl.ActEntryProcessor;
 
 /**
@@ -99,8 +100,14 @@ public class ConcernEntryProcessor extends ActEntryProcessor {
 		// Try to load by observation?
 		if(previousItem == null && obs.getPreviousVersion() != null)
 		{
-			List<? extends ActiveListItem> candidates = Context.getService(CdaImportService.class).getActiveListItemByObs(obs.getPreviousVersion(), clazz);
-			if(candidates.size() > 0)
+			// A previous version from this document isn't saved yet, so neither is its item
+			List<? extends ActiveListItem> candidates = null;
+			DocumentUnitOfWork unitOfWork = this.m_dataUtil.getUnitOfWork(this.getContext());
+			if(obs.getPreviousVersion().getObsId() != null)
+				candidates = Context.getService(CdaImportService.class).getActiveListItemByObs(obs.getPreviousVersion(), clazz);
+			else if(unitOfWork != null)
+				candidates = unitOfWork.getActiveListItemsByObs(obs.getPreviousVersion(), clazz);
+			if(candidates != null && candidates.size() > 0)
 				previousItem = candidates.get(0);
 		}
 
@@ -263,7 +270,7 @@ public class ConcernEntryProcessor extends ActEntryProcessor {
 			// Process the active list item
 			ActiveListItem listItem = this.parseActContents(act, relationship.getClinicalStatement());
 			if(listItem != null)
-				Context.getActiveListService().saveActiveListItem(listItem);
+				this.m_dataUtil.saveActiveListItem(listItem, this.getContext());
 		}
 		
 		return null;
@@ -14,7 +14,6 @@ import org.openmrs.BaseOpenmrsData;
 import org.openmrs.Concept;
 import org.openmrs.Encounter;
 import org.openmrs.Obs;
-import org.openmrs.api.context.Context;
 import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.exception.DocumentValidationException;
@@ -118,7 +117,7 @@ public class ExternalReferencesEntryProcessor extends EntryProcessorImpl {
 		}
 		
 		// Save the obs
-		res = Context.getObsService().saveObs(res, null);
+		res = this.m_dataUtil.saveObs(res, this.getContext());
 		
 		return res;
 	}
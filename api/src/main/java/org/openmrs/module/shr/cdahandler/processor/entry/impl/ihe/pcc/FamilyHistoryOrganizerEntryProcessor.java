@@ -28,7 +28,7 @@ import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
 import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
 import org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates;
 import org.openmrs.module.shr.cdahandler.processor.entry.impl.OrganizerEntryProcessor;
-import org.openmrs.util.OpenmrsConstants;
+import org.openmrs.module.shr.cdahandler.processor.util.WellKnownConcept;
 
 /**
  * Processor for the Family History Organizer 
@@ -162,7 +162,7 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 					familyHistoryObs.setComment(node.toPlainString());
 			}
 			
-			familyHistoryObs = (ExtendedObs)Context.getObsService().saveObs(familyHistoryObs, null);
+			familyHistoryObs = (ExtendedObs)this.m_dataUtil.saveObs(familyHistoryObs, this.getContext());
 			
 			// Process participant data
 			RelatedSubject subject = organizer.getSubject().getRelatedSubject();
@@ -176,7 +176,7 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 					{
 						Obs idObs = this.m_dataUtil.createSubObservationValue(familyHistoryObs, Context.getConceptService().getConcept(160752), this.m_datatypeUtil.formatIdentifier(id));
 						idObs.setObsGroup(familyHistoryObs);
-						Context.getObsService().saveObs(idObs, null);
+						this.m_dataUtil.saveObs(idObs, this.getContext());
 					}
 				
 				// Name
@@ -185,7 +185,7 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 					{
 						Obs nameObs =this.m_dataUtil.createSubObservationValue(familyHistoryObs, Context.getConceptService().getConcept(160750), name.toString());
 						nameObs.setObsGroup(familyHistoryObs);
-						Context.getObsService().saveObs(nameObs, null);
+						this.m_dataUtil.saveObs(nameObs, this.getContext());
 					}
 				
 				
@@ -194,7 +194,7 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 					Obs dobObs = this.m_dataUtil.createSubObservationValue(familyHistoryObs, Context.getConceptService().getConcept(160751), person.getBirthTime());
 					dobObs.setObsGroup(familyHistoryObs);
 					dobObs.setComment(person.getBirthTime().getDateValuePrecision().toString());
-					Context.getObsService().saveObs(dobObs, null);
+					this.m_dataUtil.saveObs(dobObs, this.getContext());
 				}
 					
 				
@@ -205,7 +205,7 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 					INT age =  (INT)ageObservation.get(0).getClinicalStatementIfObservation().getValue();
 					Obs ageObs = this.m_dataUtil.createSubObservationValue(familyHistoryObs, Context.getConceptService().getConcept(160617), age);
 					ageObs.setObsGroup(familyHistoryObs);
-					Context.getObsService().saveObs(ageObs, null);
+					this.m_dataUtil.saveObs(ageObs, this.getContext());
 					componentObservation.getEntryRelationship().remove(ageObservation.get(0));
 				}
 				/*
@@ -214,7 +214,7 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 					PQ age =  componentObservation.getEffectiveTime().getValue().subtract(person.getBirthTime()).convert("a");
 					Obs ageObs = this.m_dataUtil.createSubObservationValue(familyHistoryObs, Context.getConceptService().getConcept(160617), age);
 					ageObs.setObsGroup(familyHistoryObs);
-					Context.getObsService().saveObs(ageObs, null);
+					this.m_dataUtil.saveObs(ageObs, this.getContext());
 				}*/
 			}
 	
@@ -222,7 +222,7 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 			{
 				Obs relationObs = this.m_dataUtil.createSubObservationValue(familyHistoryObs, Context.getConceptService().getConcept(1560), subject.getCode());
 				relationObs.setObsGroup(familyHistoryObs);
-				Context.getObsService().saveObs(relationObs, null);
+				this.m_dataUtil.saveObs(relationObs, this.getContext());
 			}
 			else
 				throw new DocumentImportException("Family member must have a relationship type specified");
@@ -231,9 +231,9 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 			// Present?
 			if(BL.TRUE.equals(componentObservation.getNegationInd()))
 			{
-				Obs negateObs = this.m_dataUtil.createSubObservationValue(familyHistoryObs, Context.getConceptService().getConcept(1729), Context.getConceptService().getConcept(Integer.valueOf(Context.getAdministrationService().getGlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_FALSE_CONCEPT))));
+				Obs negateObs = this.m_dataUtil.createSubObservationValue(familyHistoryObs, this.m_wellKnownConcepts.getConcept(WellKnownConcept.SIGN_SYMPTOM_PRESENT), this.m_wellKnownConcepts.getConcept(WellKnownConcept.FALSE));
 				negateObs.setObsGroup(familyHistoryObs);
-				Context.getObsService().saveObs(negateObs, null);
+				this.m_dataUtil.saveObs(negateObs, this.getContext());
 			}
 			
 
@@ -242,7 +242,7 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 			{
 				Obs dxObs = this.m_dataUtil.createSubObservationValue(familyHistoryObs, Context.getConceptService().getConcept(160592), Context.getConceptService().getConcept(160432));
 				dxObs.setObsGroup(familyHistoryObs);
-				Context.getObsService().saveObs(dxObs, null);
+				this.m_dataUtil.saveObs(dxObs, this.getContext());
 			}
 
 			// Write the diagnosis
@@ -250,7 +250,7 @@ public class FamilyHistoryOrganizerEntryProcessor extends OrganizerEntryProcesso
 			{
 				Obs dxObs = this.m_dataUtil.createSubObservationValue(parentObs, this.m_conceptUtil.getOrCreateConceptAndEquivalents(componentObservation.getCode()), componentObservation.getValue());
 				dxObs.setObsGroup(familyHistoryObs);
-				Context.getObsService().saveObs(dxObs, null);
+				this.m_dataUtil.saveObs(dxObs, this.getContext());
 			}
 			
 		}
@@ -11,7 +11,6 @@ import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.EntryRelationship;
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Observation;
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.SubstanceAdministration;
 import org.openmrs.BaseOpenmrsData;
-import org.openmrs.api.context.Context;
 import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
@@ -19,6 +18,7 @@ import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
 import org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates;
 import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 import org.openmrs.module.shr.cdahandler.processor.entry.impl.SubstanceAdministrationEntryProcessor;
+import org.openmrs.module.shr.cdahandler.processor.util.WellKnownConcept;
 
 /**
  * Entry processor for an immunization entry
@@ -54,7 +54,7 @@ public class ImmunizationEntryProcessor extends SubstanceAdministrationEntryProc
 	protected BaseOpenmrsData processAdministrationAsObservation(SubstanceAdministration administration)
 	    throws DocumentImportException {
 		
-		ExtendedObs immunizationObs = super.createSubstanceAdministrationObs(administration, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_IMMUNIZATION_HISTORY), Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_IMMUNIZATION_DRUG));
+		ExtendedObs immunizationObs = super.createSubstanceAdministrationObs(administration, this.m_wellKnownConcepts.getConcept(WellKnownConcept.IMMUNIZATION_HISTORY), this.m_wellKnownConcepts.getConcept(WellKnownConcept.IMMUNIZATION_DRUG));
 		
 		// Set the effective time 
 		for(ISetComponent<TS> eft : administration.getEffectiveTime())
@@ -67,7 +67,7 @@ public class ImmunizationEntryProcessor extends SubstanceAdministrationEntryProc
 				{
 					immunizationObs.setObsDatetime(eftIvl.getValue().getDateValue().getTime());
 					immunizationObs.setObsDatePrecision(eftIvl.getValue().getDateValuePrecision());
-					this.m_dataUtil.addSubObservationValue(immunizationObs, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_IMMUNIZATION_DATE), eftIvl.getValue());
+					this.m_dataUtil.addSubObservationValue(immunizationObs, this.m_wellKnownConcepts.getConcept(WellKnownConcept.IMMUNIZATION_DATE), eftIvl.getValue());
 				}
 			}
 		
@@ -80,10 +80,10 @@ public class ImmunizationEntryProcessor extends SubstanceAdministrationEntryProc
 			else if(seriesObservation.getCode() == null || !seriesObservation.getCode().getCode().equals("30973-2"))
 				throw new DocumentImportException("Immunization seires number must carry code of 30973-2");
 			else
-				this.m_dataUtil.addSubObservationValue(immunizationObs, Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_IMMUNIZATION_SEQUENCE), seriesObservation.getValue());
+				this.m_dataUtil.addSubObservationValue(immunizationObs, this.m_wellKnownConcepts.getConcept(WellKnownConcept.IMMUNIZATION_SEQUENCE), seriesObservation.getValue());
 		}
 		
-		immunizationObs = (ExtendedObs)Context.getObsService().saveObs(immunizationObs, null);
+		immunizationObs = (ExtendedObs)this.m_dataUtil.saveObs(immunizationObs, this.getContext());
 		
 		// Process entry relationships (these should be substance administrations) 
 		// Representing them as a flat heirarchy
@@ -42,6 +42,7 @@ import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
 import org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates;
 import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 import org.openmrs.module.shr.cdahandler.processor.entry.impl.SubstanceAdministrationEntryProcessor;
+import org.openmrs.module.shr.cdahandler.processor.util.WellKnownConcept;
 
 /**
  * Medications Entry Processor
@@ -284,6 +285,8 @@ public class MedicationsEntryProcessor extends SubstanceAdministrationEntryProce
 				throw new DocumentPersistenceException(e);
 			}
 
+		// The active orders are checked when the next order is saved
+		this.m_dataUtil.flush(this.getContext());
 		return res;
 	}
 
@@ -304,8 +307,8 @@ public class MedicationsEntryProcessor extends SubstanceAdministrationEntryProce
 		}
 		
 		ExtendedObs medicationHistoryObs = super.createSubstanceAdministrationObs(administration,
-				Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_MEDICATION_HISTORY),
-				Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_MEDICATION_DRUG));
+				this.m_wellKnownConcepts.getConcept(WellKnownConcept.MEDICATION_HISTORY),
+				this.m_wellKnownConcepts.getConcept(WellKnownConcept.MEDICATION_DRUG));
 
 		// Process entry relationships (these should be substance administrations) 
 		// Representing them as a flat heirarchy
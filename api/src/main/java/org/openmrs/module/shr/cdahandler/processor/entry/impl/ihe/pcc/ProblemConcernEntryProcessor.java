@@ -54,11 +54,19 @@ public class ProblemConcernEntryProcessor extends ConcernEntryProcessor {
 	 */
 	@Override
     protected ActiveListItem parseActContents(Act act, ClinicalStatement statement) throws DocumentImportException {
-		EntryProcessor processor = EntryProcessorFactory.getInstance().createProcessor(statement);
-		processor.setContext(this.getContext());
-
+		EntryProcessorFactory factory = EntryProcessorFactory.getInstance();
+		EntryProcessor processor = factory.createProcessor(statement);
 		
-		BaseOpenmrsData processed = processor.process(statement);
+		BaseOpenmrsData processed = null;
+		try
+		{
+			processor.setContext(this.getContext());
+			processed = processor.process(statement);
+		}
+		finally
+		{
+			factory.releaseProcessor(processor);
+		}
 		
 		// Not a problem observation so don't create a problem
 		
@@ -17,4 +17,10 @@ public interface ProcessorFactory {
 	 */
 	Processor createProcessor(InfrastructureRoot object);	
 	
+	/**
+	 * Releases a parser created by this factory once it has finished processing so it can be reused
+	 * @param processor The parser (may be null)
+	 */
+	void releaseProcessor(Processor processor);
+	
 }
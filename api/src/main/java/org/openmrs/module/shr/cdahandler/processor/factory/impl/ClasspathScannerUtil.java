@@ -1,17 +1,23 @@
 package org.openmrs.module.shr.cdahandler.processor.factory.impl;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.marc.everest.datatypes.II;
 import org.marc.everest.datatypes.generic.LIST;
-import org.marc.everest.datatypes.interfaces.IPredicate;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
 import org.openmrs.module.shr.cdahandler.processor.Processor;
 import org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates;
+import org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplatesAnnotationProcessor;
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
 import org.springframework.core.type.filter.AnnotationTypeFilter;
@@ -24,36 +30,28 @@ import org.springframework.core.type.filter.AssignableTypeFilter;
  */
 public final class ClasspathScannerUtil {
 
-	
 	/**
-	 * Predicate used to find best match
+	 * The processor class resolved for a template id signature (null if none can handle it)
 	 */
-	private class TemplateMatcher implements IPredicate<II>
+	private static final class Route
 	{
-
-		private LIST<II> m_sourceTemplateIdList;
+		private final Class<Processor> m_processor;
 		
 		/**
-		 * Constructs the template matcher
+		 * Constructs the route
 		 */
-		public TemplateMatcher(LIST<II> sourceTemplateIds)
+		private Route(Class<Processor> processor)
 		{
-			this.m_sourceTemplateIdList = sourceTemplateIds;
+			this.m_processor = processor;
 		}
-		
-		/**
-		 * Perform match
-		 */
-		@Override
-        public boolean match(II arg0) {
-			for(II id : this.m_sourceTemplateIdList)
-				if(id.getRoot().equals(arg0.getRoot()))
-					return true; 
-			return false;
-        }
-		
 	}
 	
+	// The registry generated from @ProcessTemplates at build time
+	public static final String GENERATED_REGISTRY_NAME = ProcessTemplatesAnnotationProcessor.REGISTRY_PACKAGE + "." + ProcessTemplatesAnnotationProcessor.REGISTRY_NAME;
+	
+	// Maximum number of template id signatures remembered
+	private static final int MAX_ROUTES = 4096;
+	
 	/**
 	 * Gets the current singleton instance
 	 */
@@ -64,8 +62,9 @@ public final class ClasspathScannerUtil {
 			synchronized (s_lockObject) {
 				if(s_instance == null) // double check as someone else may have created this
 				{
-					s_instance = new ClasspathScannerUtil();
-					s_instance.initializeProcessorList();
+					ClasspathScannerUtil instance = new ClasspathScannerUtil();
+					instance.initializeProcessorList();
+					s_instance = instance;
 				}
 			}
 		}
@@ -75,12 +74,26 @@ public final class ClasspathScannerUtil {
 	// Log
 	private final Log log = LogFactory.getLog(this.getClass());
 	// Classpath scanning utility
-	private static ClasspathScannerUtil s_instance;
+	private static volatile ClasspathScannerUtil s_instance;
 	
 	private static Object s_lockObject = new Object();
 	
-	// The procesors and the templates they handle
-	private Map<Class<Processor>, LIST<II>> m_processors;
+	// The procesors and the templates they handle (in registration order)
+	private final Map<Class<Processor>, LIST<II>> m_processors = new LinkedHashMap<Class<Processor>, LIST<II>>();
+	
+	// The processors which handle each template root (in registration order)
+	private volatile Map<String, List<Class<Processor>>> m_candidates = Collections.emptyMap();
+	// The best processor for each template root
+	private volatile Map<String, Class<Processor>> m_winners = Collections.emptyMap();
+	// The best processor for template id signatures already seen
+	private volatile ConcurrentHashMap<String, Route> m_routes = new ConcurrentHashMap<String, Route>();
+	
+	// Processors constructed and waiting for reuse
+	private final ProcessorPool m_pool = new ProcessorPool();
+	
+	// Metrics
+	private final AtomicLong m_routeHitCount = new AtomicLong();
+	private final AtomicLong m_routeMissCount = new AtomicLong();
 	
 	/**
 	 * Private ctor for classpathscanner utility
@@ -94,7 +107,9 @@ public final class ClasspathScannerUtil {
 	 */
 	public Set<Class<Processor>> getProcessors()
 	{
-		return this.m_processors.keySet();
+		synchronized (this.m_processors) {
+			return Collections.unmodifiableSet(new LinkedHashSet<Class<Processor>>(this.m_processors.keySet()));
+		}
 	}
 	
 	
@@ -107,64 +122,235 @@ public final class ClasspathScannerUtil {
 	public final Processor createProcessor(LIST<II> templateIds)
 	{
 
-		TemplateMatcher matcher = new TemplateMatcher(templateIds);
+		Class<Processor> bestMatch = this.getProcessorClass(templateIds);
+			
+		// Construct (or reuse) a processor	
+		if(bestMatch != null)
+			return this.m_pool.acquire(bestMatch);
+		return null; // couldn't create a processor
 
-		// Find the best match that is the candidate with the most matching template ids
-		Class<Processor> bestMatch = null;
-				
-		// Try to exactly match the list of template identifiers
-		for(Entry<Class<Processor>, LIST<II>> entry : this.m_processors.entrySet())
+	}
+	
+	/**
+	 * Create processor instance of the specified class
+	 * @param processorClass The class of processor to create
+	 * @return An idle or newly constructed processor of that class
+	 */
+	public final <P extends Processor> P createProcessor(Class<P> processorClass)
+	{
+		return this.m_pool.acquire(processorClass);
+	}
+	
+	/**
+	 * Release a processor obtained from createProcessor once it has finished processing,
+	 * so it can be handed out again
+	 */
+	public final void releaseProcessor(Processor processor)
+	{
+		this.m_pool.release(processor);
+	}
+	
+	/**
+	 * Get the processor class which best handles the template ids, or null if none can
+	 * @param templateIds The template identifiers
+	 */
+	public Class<Processor> getProcessorClass(LIST<II> templateIds)
+	{
+		if(templateIds == null)
+			return null;
+		
+		// Build the signature, the template roots in the order they appear
+		StringBuilder signature = new StringBuilder();
+		String singleRoot = null;
+		int rootCount = 0;
+		for(II id : templateIds)
+		{
+			if(id == null || id.getRoot() == null)
+				continue;
+			if(rootCount++ > 0)
+				signature.append('|');
+			signature.append(id.getRoot());
+			singleRoot = id.getRoot();
+		}
+		
+		// A single template needs no combining
+		if(rootCount == 0)
+			return null;
+		else if(rootCount == 1)
+		{
+			this.m_routeHitCount.incrementAndGet();
+			return this.m_winners.get(singleRoot);
+		}
+		
+		ConcurrentHashMap<String, Route> routes = this.m_routes;
+		String key = signature.toString();
+		Route route = routes.get(key);
+		if(route != null)
+		{
+			this.m_routeHitCount.incrementAndGet();
+			return route.m_processor;
+		}
+		
+		this.m_routeMissCount.incrementAndGet();
+		route = new Route(this.resolve(templateIds, this.m_candidates));
+		if(routes.size() < MAX_ROUTES)
+			routes.put(key, route);
+		return route.m_processor;
+	}
+	
+	/**
+	 * Resolve the best processor for the template ids from the candidate index. A candidate 
+	 * replaces the current best match if it is the same class or a subclass of it 
+	 */
+	private Class<Processor> resolve(Iterable<II> templateIds, Map<String, List<Class<Processor>>> candidates)
+	{
+		// Gather everything which handles any of the templates
+		Set<Class<Processor>> matches = new LinkedHashSet<Class<Processor>>();
+		for(II id : templateIds)
 		{
-			int noTemplatesHandled = entry.getValue().findAll(matcher).size();
-			if(noTemplatesHandled > 0 && (bestMatch == null || bestMatch.isAssignableFrom(entry.getKey()))) 
+			if(id == null || id.getRoot() == null)
+				continue;
+			List<Class<Processor>> rootCandidates = candidates.get(id.getRoot());
+			if(rootCandidates != null)
+				matches.addAll(rootCandidates);
+		}
+		
+		// Visit them in registration order so the result is stable
+		Class<Processor> bestMatch = null;
+		if(matches.size() == 1)
+			return matches.iterator().next();
+		else if(!matches.isEmpty())
+			synchronized (this.m_processors) {
+				for(Class<Processor> candidate : this.m_processors.keySet())
+					if(matches.contains(candidate) && (bestMatch == null || bestMatch.isAssignableFrom(candidate)))
+						bestMatch = candidate;
+			}
+		return bestMatch;
+	}
+	
+	/**
+	 * Rebuild the template root index and discard remembered signatures
+	 */
+	private void rebuildIndex()
+	{
+		Map<String, List<Class<Processor>>> candidates = new LinkedHashMap<String, List<Class<Processor>>>();
+		for(Map.Entry<Class<Processor>, LIST<II>> entry : this.m_processors.entrySet())
+			for(II id : entry.getValue())
 			{
-				// Is the current proposed processor better (a subclass) of the current?
-				bestMatch = entry.getKey();
+				List<Class<Processor>> rootCandidates = candidates.get(id.getRoot());
+				if(rootCandidates == null)
+				{
+					rootCandidates = new ArrayList<Class<Processor>>();
+					candidates.put(id.getRoot(), rootCandidates);
+				}
+				if(!rootCandidates.contains(entry.getKey()))
+					rootCandidates.add(entry.getKey());
 			}
+		
+		// Pre-resolve the winner for each template on its own
+		Map<String, Class<Processor>> winners = new ConcurrentHashMap<String, Class<Processor>>();
+		for(Map.Entry<String, List<Class<Processor>>> entry : candidates.entrySet())
+		{
+			Class<Processor> bestMatch = null;
+			for(Class<Processor> candidate : entry.getValue())
+				if(bestMatch == null || bestMatch.isAssignableFrom(candidate))
+					bestMatch = candidate;
+			winners.put(entry.getKey(), bestMatch);
 		}
-			
-		// Construct a processor	
-		if(bestMatch != null)
-			try {
-				return bestMatch.newInstance();
-			} catch (InstantiationException e) {
-				log.error(e.getMessage(), e);
-			} catch (IllegalAccessException e) {
-				log.error(e.getMessage(), e);
-			}
-		return null; // couldn't create a processor
-
+		
+		this.m_candidates = candidates;
+		this.m_winners = winners;
+		this.m_routes = new ConcurrentHashMap<String, Route>();
 	}
 	
 	/**
-	 * Initialize document processor list
+	 * Initialize document processor list from the registry generated at build time, scanning 
+	 * the classpath only when there is no registry or scanning is enabled for third party processors
 	 */
-	@SuppressWarnings("unchecked")
 	private void initializeProcessorList()
 	{
+		String[] generated = getGeneratedProcessorNames();
+		if(generated != null)
+		{
+			log.info("Registering processors from " + GENERATED_REGISTRY_NAME);
+			for(String name : generated)
+			{
+				try {
+					this.registerProcessor(Class.forName(name));
+				}
+				catch (ClassNotFoundException e) {
+					log.error(e.getMessage(), e);
+				}
+			}
+		}
+		
+		if(generated == null || this.isClasspathScanEnabled())
+			for(Class<?> cls : scanClasspath())
+				this.registerProcessor(cls);
+	}
+	
+	/**
+	 * True if the classpath should be scanned in addition to the generated registry
+	 */
+	private boolean isClasspathScanEnabled()
+	{
+		try {
+			return CdaHandlerConfiguration.getInstance().getProcessorScanClasspath();
+		}
+		catch (RuntimeException e) {
+			// No OpenMRS context (unit tests), use the default
+			log.debug("Could not read the classpath scanning setting", e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Get the names of the processors in the generated registry, or null if it wasn't generated
+	 * (for example when compiled by an IDE without annotation processing)
+	 */
+	static String[] getGeneratedProcessorNames()
+	{
+		try {
+			return (String[])Class.forName(GENERATED_REGISTRY_NAME).getField("PROCESSORS").get(null);
+		}
+		catch (ClassNotFoundException e) {
+			return null;
+		}
+		catch (Exception e) {
+			LogFactory.getLog(ClasspathScannerUtil.class).error(e.getMessage(), e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Scan the processor package of the classpath for processor classes
+	 */
+	static Set<Class<?>> scanClasspath()
+	{
+		Log log = LogFactory.getLog(ClasspathScannerUtil.class);
 		ClassPathScanningCandidateComponentProvider classPathScanner = new ClassPathScanningCandidateComponentProvider(true);
 		classPathScanner.addIncludeFilter(new AssignableTypeFilter(Processor.class));
 		classPathScanner.addIncludeFilter(new AnnotationTypeFilter(ProcessTemplates.class));
 	
-		this.m_processors = new HashMap<Class<Processor>, LIST<II>>();
+		Set<Class<?>> retVal = new LinkedHashSet<Class<?>>();
 		log.info("Scanning for processors");
 		// scan in org.openmrs.module.RegenstriefHl7Adapter.preprocessorHandler package
-		Set<BeanDefinition> components = classPathScanner.findCandidateComponents("org.openmrs.module.shr.cdahandler.processor");
+		Set<BeanDefinition> components = classPathScanner.findCandidateComponents(ProcessTemplatesAnnotationProcessor.BASE_PACKAGE);
 		for (BeanDefinition component : components) {
 			try {
-				Class<?> cls = Class.forName(component.getBeanClassName());
-				this.registerProcessor(cls);
-				
+				retVal.add(Class.forName(component.getBeanClassName()));
 			}
 			catch (ClassNotFoundException e) {
 				log.error(e.getMessage(), e);
 			}
 		}
+		return retVal;
 	}
 
 	/**
 	 * Manually register a processor
 	 */
+	@SuppressWarnings("unchecked")
 	public void registerProcessor(Class<?> cls) {
 		// Appears not to be a processor
 		if(!Processor.class.isAssignableFrom(cls))
@@ -183,8 +369,41 @@ public final class ClasspathScannerUtil {
 			log.info("Routing " + id + " to " + cls.getName());
 		}
 		// Add to the processor list
-		if(!this.m_processors.containsKey(cls))
-			this.m_processors.put((Class<Processor>)cls, templateIds);
+		synchronized (this.m_processors) {
+			if(!this.m_processors.containsKey(cls))
+			{
+				this.m_processors.put((Class<Processor>)cls, templateIds);
+				this.rebuildIndex();
+			}
+		}
+	}
+	
+	/**
+	 * Get the pool of processors (for metrics)
+	 */
+	public ProcessorPool getProcessorPool() {
+		return this.m_pool;
+	}
+	
+	/**
+	 * Get the number of template id signatures remembered
+	 */
+	public int getRouteCount() {
+		return this.m_routes.size();
+	}
+	
+	/**
+	 * Get the number of lookups answered from the index without resolving
+	 */
+	public long getRouteHitCount() {
+		return this.m_routeHitCount.get();
+	}
+	
+	/**
+	 * Get the number of lookups which had to resolve a new signature
+	 */
+	public long getRouteMissCount() {
+		return this.m_routeMissCount.get();
 	}
 	
 }
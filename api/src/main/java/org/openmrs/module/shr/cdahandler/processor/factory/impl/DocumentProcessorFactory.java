@@ -61,7 +61,8 @@ public final class DocumentProcessorFactory implements ProcessorFactory {
 			log.info(String.format("Using template processor: '%s'", candidateProcessor.getTemplateName()));
 		else 
 		{
-			candidateProcessor = new GenericDocumentProcessor();
+			scanner.releaseProcessor(candidateProcessor);
+			candidateProcessor = scanner.createProcessor(GenericDocumentProcessor.class);
 			log.warn(String.format("Could not find a processor for document template %s ... Fallback processor: StructuredBodyDocumentProcessor", FormatterUtil.toWireFormat(object.getTemplateId())));
 		}
 		
@@ -70,4 +71,13 @@ public final class DocumentProcessorFactory implements ProcessorFactory {
 		
 	}
 
+	/**
+	 * Release the processor for reuse
+	 * @see org.openmrs.module.shr.cdahandler.processor.factory.ProcessorFactory#releaseProcessor(org.openmrs.module.shr.cdahandler.processor.Processor)
+	 */
+	@Override
+	public void releaseProcessor(Processor processor) {
+		ClasspathScannerUtil.getInstance().releaseProcessor(processor);
+	}
+
 }
@@ -60,11 +60,23 @@ public final class EntryProcessorFactory implements ProcessorFactory {
 		if(candidateProcessor instanceof EntryProcessor)
 			log.info(String.format("Using template processor: '%s'", candidateProcessor.getTemplateName()));
 		else 
+		{
+			scanner.releaseProcessor(candidateProcessor);
+			candidateProcessor = null;
 			log.warn(String.format("Could not find a processor for entry template %s ...", FormatterUtil.toWireFormat(object.getTemplateId())));
+		}
 		
 		return (EntryProcessor)candidateProcessor;
 		
 	}
 
-	
+	/**
+	 * Release the processor for reuse
+	 * @see org.openmrs.module.shr.cdahandler.processor.factory.ProcessorFactory#releaseProcessor(org.openmrs.module.shr.cdahandler.processor.Processor)
+	 */
+	@Override
+	public void releaseProcessor(Processor processor) {
+		ClasspathScannerUtil.getInstance().releaseProcessor(processor);
+	}
+
 }
@@ -0,0 +1,102 @@
+package org.openmrs.module.shr.cdahandler.processor.factory.impl;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.shr.cdahandler.processor.Processor;
+
+/**
+ * Keeps constructed processors for reuse by the thread which released them. 
+ * A processor is only handed to one caller at a time, so a processor which  
+ * processes a child element of its own type is given a second instance 
+ */
+public final class ProcessorPool {
+
+	// Maximum number of idle processors kept per class and thread
+	public static final int MAX_IDLE = 8;
+	
+	// Log
+	private final Log log = LogFactory.getLog(this.getClass());
+	
+	// Idle processors by class for each thread
+	private final ThreadLocal<Map<Class<?>, LinkedList<Processor>>> m_idle = new ThreadLocal<Map<Class<?>, LinkedList<Processor>>>() {
+		@Override
+		protected Map<Class<?>, LinkedList<Processor>> initialValue() {
+			return new HashMap<Class<?>, LinkedList<Processor>>();
+		}
+	};
+	
+	// Metrics
+	private final AtomicLong m_createdCount = new AtomicLong();
+	private final AtomicLong m_reusedCount = new AtomicLong();
+	
+	/**
+	 * Get an idle processor of the class or construct one, returning null if it can't be constructed
+	 */
+	public <P extends Processor> P acquire(Class<P> processorClass)
+	{
+		LinkedList<Processor> idle = this.m_idle.get().get(processorClass);
+		if(idle != null && !idle.isEmpty())
+		{
+			this.m_reusedCount.incrementAndGet();
+			return processorClass.cast(idle.removeFirst());
+		}
+		
+		try {
+			P retVal = processorClass.newInstance();
+			this.m_createdCount.incrementAndGet();
+			return retVal;
+		} catch (InstantiationException e) {
+			log.error(e.getMessage(), e);
+		} catch (IllegalAccessException e) {
+			log.error(e.getMessage(), e);
+		}
+		return null;
+	}
+	
+	/**
+	 * Return a processor once the caller is done with it. The processor's context is cleared
+	 */
+	public void release(Processor processor)
+	{
+		if(processor == null)
+			return;
+		processor.setContext(null);
+		
+		Map<Class<?>, LinkedList<Processor>> idleByClass = this.m_idle.get();
+		LinkedList<Processor> idle = idleByClass.get(processor.getClass());
+		if(idle == null)
+		{
+			idle = new LinkedList<Processor>();
+			idleByClass.put(processor.getClass(), idle);
+		}
+		if(idle.size() < MAX_IDLE && !idle.contains(processor))
+			idle.addFirst(processor);
+	}
+	
+	/**
+	 * Discard the current thread's idle processors
+	 */
+	public void clear()
+	{
+		this.m_idle.remove();
+	}
+	
+	/**
+	 * Get the number of processors constructed
+	 */
+	public long getCreatedCount() {
+		return this.m_createdCount.get();
+	}
+	
+	/**
+	 * Get the number of processors handed out again after being released
+	 */
+	public long getReusedCount() {
+		return this.m_reusedCount.get();
+	}
+}
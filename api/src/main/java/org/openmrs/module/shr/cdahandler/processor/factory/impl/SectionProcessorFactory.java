@@ -60,7 +60,8 @@ public final class SectionProcessorFactory implements ProcessorFactory {
 			log.info(String.format("Using template processor: '%s'", candidateProcessor.getTemplateName()));
 		else
 		{
-			candidateProcessor = new GenericLevel2SectionProcessor();
+			scanner.releaseProcessor(candidateProcessor);
+			candidateProcessor = scanner.createProcessor(GenericLevel2SectionProcessor.class);
 			log.warn(String.format("Could not find a processor for section template %s ... Fallback processor: StructuredBodyDocumentProcessor", FormatterUtil.toWireFormat(object.getTemplateId())));
 		}
 
@@ -68,4 +69,13 @@ public final class SectionProcessorFactory implements ProcessorFactory {
 		return (SectionProcessor)candidateProcessor;
 	}
 
+	/**
+	 * Release the processor for reuse
+	 * @see org.openmrs.module.shr.cdahandler.processor.factory.ProcessorFactory#releaseProcessor(org.openmrs.module.shr.cdahandler.processor.Processor)
+	 */
+	@Override
+	public void releaseProcessor(Processor processor) {
+		ClasspathScannerUtil.getInstance().releaseProcessor(processor);
+	}
+
 }
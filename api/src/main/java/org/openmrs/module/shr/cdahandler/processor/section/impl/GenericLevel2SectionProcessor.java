@@ -7,16 +7,20 @@ import org.marc.everest.datatypes.generic.CE;
 import org.marc.everest.interfaces.IGraphable;
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Section;
 import org.openmrs.Concept;
+import org.openmrs.ConceptComplex;
 import org.openmrs.Encounter;
 import org.openmrs.Obs;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.cdahandler.api.CdaImportService;
 import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.exception.DocumentValidationException;
 import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
+import org.openmrs.module.shr.cdahandler.obs.NarrativeBlobHandler;
 import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 import org.openmrs.module.shr.cdahandler.processor.util.DatatypeProcessorUtil;
 import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsConceptUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsDataUtil;
 import org.openmrs.obs.ComplexData;
 
 /**
@@ -29,6 +33,7 @@ public class GenericLevel2SectionProcessor extends SectionProcessorImpl {
 	// Get the processor utils
 	protected final DatatypeProcessorUtil m_datatypeProcessorUtil = DatatypeProcessorUtil.getInstance();
 	protected final OpenmrsConceptUtil m_openmrsConceptUtil = OpenmrsConceptUtil.getInstance();
+	protected final OpenmrsDataUtil m_openmrsDataUtil = OpenmrsDataUtil.getInstance();
 	protected final CdaHandlerConfiguration m_configuration = CdaHandlerConfiguration.getInstance();
 	
 	/**
@@ -76,6 +81,14 @@ public class GenericLevel2SectionProcessor extends SectionProcessorImpl {
 			Concept concept = this.m_openmrsConceptUtil.getConcept(section.getCode(), section.getText());
 			if(concept == null)
 				concept = this.m_openmrsConceptUtil.createConcept(section.getCode(), section.getText());
+			
+			// The handler still reads narrative stored as files, so existing section concepts can be switched
+			if(this.m_configuration.getNarrativeBlobStore() && concept instanceof ConceptComplex &&
+					!NarrativeBlobHandler.HANDLER_NAME.equals(((ConceptComplex)concept).getHandler()))
+			{
+				((ConceptComplex)concept).setHandler(NarrativeBlobHandler.HANDLER_NAME);
+				concept = Context.getService(CdaImportService.class).saveConcept(concept);
+			}
 			obsGrouper.setConcept(concept);
 		}
 		// Patient from visit
@@ -128,7 +141,7 @@ public class GenericLevel2SectionProcessor extends SectionProcessorImpl {
 		}
 
 		Obs res = this.parseSectionElements(section);
-		res = Context.getObsService().saveObs(res, null);
+		res = this.m_openmrsDataUtil.saveObs(res, this.getContext());
 
 		return res;
 	}
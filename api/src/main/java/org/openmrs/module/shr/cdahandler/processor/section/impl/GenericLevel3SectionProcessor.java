@@ -116,8 +116,15 @@ public abstract class GenericLevel3SectionProcessor extends GenericLevel2Section
 	    	}
 	    	else
     		{
-	    		processor.setContext(parseContext);
-	    		processor.process(statement);
+	    		try
+	    		{
+		    		processor.setContext(parseContext);
+		    		processor.process(statement);
+	    		}
+	    		finally
+	    		{
+	    			factory.releaseProcessor(processor);
+	    		}
     		}
 	    	
 	    }
@@ -140,8 +147,15 @@ public abstract class GenericLevel3SectionProcessor extends GenericLevel2Section
 			
 			// Now process section
 			SectionProcessor processor = (SectionProcessor)factory.createProcessor(subSection);
-			processor.setContext(parseContext);
-			processor.process(subSection);
+			try
+			{
+				processor.setContext(parseContext);
+				processor.process(subSection);
+			}
+			finally
+			{
+				factory.releaseProcessor(processor);
+			}
 			
 	    }
 	    
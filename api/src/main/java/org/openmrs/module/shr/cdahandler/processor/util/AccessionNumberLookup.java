@@ -0,0 +1,64 @@
+package org.openmrs.module.shr.cdahandler.processor.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The existing observations and orders for the accession numbers (statement ids and
+ * replaced references) of one document, resolved up front with a few queries instead
+ * of one query per entry. An accession number the lookup wasn't given is not resolved,
+ * and must be queried as before
+ */
+public final class AccessionNumberLookup {
+
+	// The accession numbers which were resolved
+	private final Set<String> m_resolved;
+	// Obs ids by accession number
+	private final Map<String, Integer> m_obsIds;
+	// Order ids by accession number
+	private final Map<String, Integer> m_orderIds;
+
+	/**
+	 * Creates a new lookup of resolved accession numbers and the obs / orders found for them
+	 */
+	public AccessionNumberLookup(Set<String> resolved, Map<String, Integer> obsIds, Map<String, Integer> orderIds)
+	{
+		this.m_resolved = Collections.unmodifiableSet(new HashSet<String>(resolved));
+		this.m_obsIds = Collections.unmodifiableMap(new HashMap<String, Integer>(obsIds));
+		this.m_orderIds = Collections.unmodifiableMap(new HashMap<String, Integer>(orderIds));
+	}
+
+	/**
+	 * True if the accession number was resolved, in which case the ids returned are authoritative
+	 */
+	public boolean isResolved(String accessionNumber)
+	{
+		return accessionNumber != null && this.m_resolved.contains(accessionNumber);
+	}
+
+	/**
+	 * Get the id of the obs with the accession number, or null if there is none
+	 */
+	public Integer getObsId(String accessionNumber)
+	{
+		return this.m_obsIds.get(accessionNumber);
+	}
+
+	/**
+	 * Get the id of the order with the accession number, or null if there is none
+	 */
+	public Integer getOrderId(String accessionNumber)
+	{
+		return this.m_orderIds.get(accessionNumber);
+	}
+
+	/**
+	 * Get the number of accession numbers resolved
+	 */
+	public int getResolvedCount() {
+		return this.m_resolved.size();
+	}
+}
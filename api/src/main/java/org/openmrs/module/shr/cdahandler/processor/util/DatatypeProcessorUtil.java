@@ -65,6 +65,7 @@ public final class DatatypeProcessorUtil {
 	// Identifier format
 	private CdaHandlerConfiguration m_configuration;
 	private OpenmrsConceptUtil m_conceptUtil = OpenmrsConceptUtil.getInstance();
+	private final WellKnownConceptRegistry m_wellKnownConcepts = WellKnownConceptRegistry.getInstance();
 	
 	/**
 	 * Private ctor
@@ -188,7 +189,7 @@ public final class DatatypeProcessorUtil {
 		// Frequency name
 		Concept frequencyConcept = this.m_conceptUtil.getOrCreateFrequencyConcept(frequency);
 		if(frequencyConcept == null)
-			frequencyConcept = Context.getConceptService().getConcept(CdaHandlerConstants.CONCEPT_ID_UNSPECIFIED);
+			frequencyConcept = this.m_wellKnownConcepts.getConcept(WellKnownConcept.UNSPECIFIED);
 		
 		OrderFrequency candidateFrequency = Context.getOrderService().getOrderFrequencyByConcept(frequencyConcept);
 		if(candidateFrequency != null)
@@ -0,0 +1,158 @@
+package org.openmrs.module.shr.cdahandler.processor.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size bounded cache which evicts the least recently used entry,
+ * keeping hit, miss and eviction counts
+ */
+public final class LruCache<K, V> {
+
+	/**
+	 * Selects entries to be removed from the cache
+	 */
+	public interface Matcher<K, V> {
+
+		/**
+		 * True if the entry should be removed
+		 */
+		boolean matches(K key, V value);
+	}
+
+	// Entries in access order (guarded by this)
+	private final LinkedHashMap<K, V> m_entries;
+	// Maximum number of entries
+	private final int m_capacity;
+
+	// Metrics
+	private final AtomicLong m_hitCount = new AtomicLong();
+	private final AtomicLong m_missCount = new AtomicLong();
+	private final AtomicLong m_evictionCount = new AtomicLong();
+	private final AtomicLong m_invalidationCount = new AtomicLong();
+
+	/**
+	 * Creates a new cache holding at most capacity entries
+	 */
+	public LruCache(int capacity)
+	{
+		if(capacity < 1)
+			throw new IllegalArgumentException("capacity");
+		this.m_capacity = capacity;
+		this.m_entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				if(this.size() > m_capacity)
+				{
+					m_evictionCount.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Get the cached value or null if the key isn't cached
+	 */
+	public synchronized V get(K key)
+	{
+		V retVal = this.m_entries.get(key);
+		if(retVal == null)
+			this.m_missCount.incrementAndGet();
+		else
+			this.m_hitCount.incrementAndGet();
+		return retVal;
+	}
+
+	/**
+	 * Cache a value
+	 */
+	public synchronized void put(K key, V value)
+	{
+		this.m_entries.put(key, value);
+	}
+
+	/**
+	 * Remove a cached value
+	 */
+	public synchronized V remove(K key)
+	{
+		V retVal = this.m_entries.remove(key);
+		if(retVal != null)
+			this.m_invalidationCount.incrementAndGet();
+		return retVal;
+	}
+
+	/**
+	 * Remove every entry the matcher selects, returning the number removed
+	 */
+	public synchronized int removeMatching(Matcher<K, V> matcher)
+	{
+		int retVal = 0;
+		for(Iterator<Map.Entry<K, V>> i = this.m_entries.entrySet().iterator(); i.hasNext(); )
+		{
+			Map.Entry<K, V> entry = i.next();
+			if(matcher.matches(entry.getKey(), entry.getValue()))
+			{
+				i.remove();
+				retVal++;
+			}
+		}
+		this.m_invalidationCount.addAndGet(retVal);
+		return retVal;
+	}
+
+	/**
+	 * Remove all entries
+	 */
+	public synchronized void clear()
+	{
+		this.m_invalidationCount.addAndGet(this.m_entries.size());
+		this.m_entries.clear();
+	}
+
+	/**
+	 * Get the number of cached entries
+	 */
+	public synchronized int size() {
+		return this.m_entries.size();
+	}
+
+	/**
+	 * Get the maximum number of entries
+	 */
+	public int getCapacity() {
+		return this.m_capacity;
+	}
+
+	/**
+	 * Get the number of lookups which found a value
+	 */
+	public long getHitCount() {
+		return this.m_hitCount.get();
+	}
+
+	/**
+	 * Get the number of lookups which found nothing
+	 */
+	public long getMissCount() {
+		return this.m_missCount.get();
+	}
+
+	/**
+	 * Get the number of entries evicted to make room
+	 */
+	public long getEvictionCount() {
+		return this.m_evictionCount.get();
+	}
+
+	/**
+	 * Get the number of entries removed because they were out of date
+	 */
+	public long getInvalidationCount() {
+		return this.m_invalidationCount.get();
+	}
+}
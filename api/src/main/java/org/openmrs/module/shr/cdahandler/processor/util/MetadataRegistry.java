@@ -0,0 +1,160 @@
+package org.openmrs.module.shr.cdahandler.processor.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openmrs.OpenmrsObject;
+import org.openmrs.Retireable;
+
+/**
+ * An in-memory index of the ids of unretired metadata by code / name, so that looking up
+ * metadata doesn't scan the full list of that kind of metadata each time.
+ * An index is loaded on first use and reloaded when a key is missing, or
+ * points at an object which was deleted, retired or no longer has that key. Misses are not
+ * remembered, as every caller creates or rejects the metadata when it is missing and it may
+ * have been created elsewhere (admin UI, another node) since the index was loaded
+ */
+public final class MetadataRegistry {
+
+	/**
+	 * A kind of metadata held in the registry
+	 */
+	public static abstract class Kind<T extends OpenmrsObject> {
+
+		/**
+		 * Get all metadata of this kind
+		 */
+		protected abstract List<T> getAll();
+
+		/**
+		 * Get metadata of this kind by id
+		 */
+		protected abstract T get(Integer id);
+
+		/**
+		 * Get the keys (codes, names) the metadata can be found by
+		 */
+		protected abstract String[] getKeys(T item);
+	}
+
+	// Metadata ids by key for each kind
+	private final ConcurrentHashMap<Kind<?>, Map<String, Integer>> m_indexes = new ConcurrentHashMap<Kind<?>, Map<String, Integer>>();
+
+	// Metrics
+	private final AtomicLong m_hitCount = new AtomicLong();
+	private final AtomicLong m_missCount = new AtomicLong();
+	private final AtomicLong m_loadCount = new AtomicLong();
+
+	/**
+	 * Get the metadata of the kind with the key, or null if there is none
+	 */
+	public <T extends OpenmrsObject> T get(Kind<T> kind, String key)
+	{
+		if(key == null)
+			return null;
+
+		T retVal = this.lookup(kind, key);
+		if(retVal != null)
+		{
+			this.m_hitCount.incrementAndGet();
+			return retVal;
+		}
+
+
+		// Maybe created / changed elsewhere since we loaded
+		this.m_missCount.incrementAndGet();
+		this.load(kind);
+		return this.lookup(kind, key);
+	}
+
+	/**
+	 * Register newly created metadata
+	 */
+	public <T extends OpenmrsObject> void put(Kind<T> kind, T item)
+	{
+		Map<String, Integer> index = this.m_indexes.get(kind);
+		if(index == null || item == null || item.getId() == null || isRetired(item))
+			return;
+		for(String key : kind.getKeys(item))
+			if(key != null)
+				index.put(key, item.getId());
+	}
+
+	/**
+	 * Discard all indexes, they are reloaded on next use
+	 */
+	public void clear()
+	{
+		this.m_indexes.clear();
+	}
+
+	/**
+	 * True if the metadata is retired
+	 */
+	private static boolean isRetired(OpenmrsObject item)
+	{
+		return item instanceof Retireable && Boolean.TRUE.equals(((Retireable)item).isRetired());
+	}
+
+	/**
+	 * Find the metadata in the index, checking it still exists and still has the key
+	 */
+	private <T extends OpenmrsObject> T lookup(Kind<T> kind, String key)
+	{
+		Map<String, Integer> index = this.m_indexes.get(kind);
+		if(index == null)
+			index = this.load(kind);
+
+		Integer id = index.get(key);
+		if(id == null)
+			return null;
+
+		T retVal = kind.get(id);
+		if(retVal == null || isRetired(retVal))
+			return null;
+		for(String itemKey : kind.getKeys(retVal))
+			if(key.equals(itemKey))
+				return retVal;
+		return null;
+	}
+
+	/**
+	 * (Re)load the index for a kind of metadata
+	 */
+	private <T extends OpenmrsObject> Map<String, Integer> load(Kind<T> kind)
+	{
+		this.m_loadCount.incrementAndGet();
+		Map<String, Integer> index = new ConcurrentHashMap<String, Integer>();
+		// Later entries win, as they did when the list was scanned
+		for(T item : kind.getAll())
+			if(item.getId() != null && !isRetired(item))
+				for(String key : kind.getKeys(item))
+					if(key != null)
+						index.put(key, item.getId());
+		this.m_indexes.put(kind, index);
+		return index;
+	}
+
+	/**
+	 * Get the number of lookups answered from the index
+	 */
+	public long getHitCount() {
+		return this.m_hitCount.get();
+	}
+
+	/**
+	 * Get the number of lookups which had to reload the index
+	 */
+	public long getMissCount() {
+		return this.m_missCount.get();
+	}
+
+	/**
+	 * Get the number of times an index was loaded
+	 */
+	public long getLoadCount() {
+		return this.m_loadCount.get();
+	}
+}
@@ -6,6 +6,8 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jfree.util.Log;
 import org.marc.everest.datatypes.ANY;
@@ -87,12 +89,24 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 		put("ICD-10-WHO", CdaHandlerConstants.CODE_SYSTEM_ICD_10);
 	}};
 	
+	// Number of stripes guarding concept saves
+	private static final int LOCK_STRIPES = 64;
+
+	// Locks guarding concept / reference term saves, keyed on code system and code or the concept being changed
+	private final StripedLock m_locks = new StripedLock(LOCK_STRIPES);
+	
+	// Concurrent get-or-create calls for the same key are collapsed into one
+	private final SingleFlight<Concept> m_conceptFlight = new SingleFlight<Concept>();
+	private final SingleFlight<ConceptReferenceTerm> m_referenceTermFlight = new SingleFlight<ConceptReferenceTerm>();
+	private final SingleFlight<ConceptSource> m_conceptSourceFlight = new SingleFlight<ConceptSource>();
+	
 	// Map types
 	private ConceptMapType m_narrowerThan = null;
 	private ConceptMapType m_sameAs = null;
 	
 	// Configuration and util instances
 	private final CdaHandlerConfiguration m_configuration = CdaHandlerConfiguration.getInstance();
+	private final WellKnownConceptRegistry m_wellKnownConcepts = WellKnownConceptRegistry.getInstance();
 		
 	// pq Unit maps
 	private final Map<String, String> m_openMrsUcumUnitMaps = new HashMap<String,String>();
@@ -109,6 +123,11 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 	private final ConceptDatatype DATE_DATATYPE = this.m_conceptService.getConceptDatatypeByUuid(ConceptDatatype.DATE_UUID);
 	private final ConceptDatatype TEXT_DATATYPE = this.m_conceptService.getConceptDatatypeByUuid(ConceptDatatype.TEXT_UUID);
 	private final ConceptDatatype BOOLEAN_DATATYPE = this.m_conceptService.getConceptDatatypeByUuid(ConceptDatatype.BOOLEAN_UUID);
+
+	// Concept source ids by OID ("oid:") and name ("name:")
+	private final Map<String, Integer> m_conceptSourceIds = new ConcurrentHashMap<String, Integer>();
+	// Reference term ids by concept source id and code
+	private final LruCache<String, Integer> m_referenceTermIds = new LruCache<String, Integer>(this.m_configuration.getCacheReferenceTermsSize());
 	
 	
 	/**
@@ -145,11 +164,15 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 				answer.setAnswerConcept(answerConcept);
 				answer.setConcept(questionConcept);
 				questionConcept.addAnswer(answer);
-				synchronized (s_lockObject) {
+				StripedLock.Stripe lock = this.m_locks.lock(this.getLockKey(questionConcept));
+				try {
 					log.debug(String.format("Added answer %s to set %s", answerConcept, questionConcept));
 	
 					questionConcept = this.m_importService.saveConcept(questionConcept);
 	            }
+				finally {
+					lock.unlock();
+				}
 			}
 			else if(answer == null)
 				throw new DocumentImportException(String.format("Cannot assign code %s to observation concept %s as it is not a valid value", answerConcept, questionConcept));
@@ -194,11 +217,17 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 				log.warn("Cannot add concept to the specified concept set according to configuration rules");
 	
 			if(needsSave)
-				synchronized (s_lockObject) {
+			{
+				StripedLock.Stripe lock = this.m_locks.lock(this.getLockKey(setConcept));
+				try {
 					log.debug(String.format("Adding concept %s to set %s", concept, setConcept));
 	
 					setConcept = this.m_importService.saveConcept(setConcept);
 	            }
+				finally {
+					lock.unlock();
+				}
+			}
 		}
     }
 
@@ -291,10 +320,14 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 
 
 		// Save concept
-		synchronized (s_lockObject) {
+		StripedLock.Stripe lock = this.m_locks.lock(this.getLockKey(code));
+		try {
 			log.debug(String.format("Creating Concept %s, reference term %s, concept source %s", concept, referenceTerm, referenceTerm.getConceptSource()));
 			concept = this.m_importService.saveConcept(concept);
         }
+		finally {
+			lock.unlock();
+		}
 		
 		log.debug("Exit: createConcept");
 
@@ -426,9 +459,10 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 	{
 		log.debug("Enter: getConcepts");
 
-		List<Concept> concept = this.m_importService.getConceptsByMapping(this.getOrCreateReferenceTerm(code), "SAME-AS");
+		ConceptReferenceTerm referenceTerm = this.getOrCreateReferenceTerm(code);
+		List<Concept> concept = this.m_importService.getConceptsByMapping(referenceTerm, "SAME-AS");
 		if(concept == null || concept.size() == 0)
-			concept = this.m_importService.getConceptsByMapping(this.getOrCreateReferenceTerm(code), "NARROWER-THAN");
+			concept = this.m_importService.getConceptsByMapping(referenceTerm, "NARROWER-THAN");
 		log.debug("Exit : getConcepts");
 		
 		return concept;
@@ -439,14 +473,25 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 	 * Gets or creates a concept matching the code 
 	 * 
 	 */
-	public Concept getOrCreateConcept(CV<?> code) throws DocumentImportException
+	public Concept getOrCreateConcept(final CV<?> code) throws DocumentImportException
 	{
 		log.debug("Enter: getOrCreateConcept");
 		
-		Concept concept = this.getConcept(code, null);
-		// Was the concept found?
-		if(concept == null && this.m_configuration.getAutoCreateConcepts())
-			concept = this.createConcept(code, null);
+		// Only one thread looks up / creates a code at a time
+		Concept concept = this.m_conceptFlight.get(this.getLockKey(code), new Callable<Concept>() {
+			@Override
+			public Concept call() throws Exception {
+				return getConcept(code, null);
+			}
+		}, new Callable<Concept>() {
+			@Override
+			public Concept call() throws Exception {
+				// Was the concept found?
+				if(m_configuration.getAutoCreateConcepts())
+					return createConcept(code, null);
+				return null;
+			}
+		}, this.m_configuration.getConceptCreateWait());
 		
 		log.debug("Exit: getOrCreateConcept");
 		
@@ -515,9 +560,13 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 					conceptMap = new ConceptMap(term, this.m_conceptService.getConceptMapTypeByName("SAME-AS"));
 					conceptMap.setConcept(foundConcept);
 					foundConcept.addConceptMapping(conceptMap);
-					synchronized (s_lockObject) {
+					StripedLock.Stripe lock = this.m_locks.lock(this.getLockKey(foundConcept));
+					try {
 						foundConcept = this.m_importService.saveConcept(foundConcept);
                     }
+					finally {
+						lock.unlock();
+					}
 				}
 			}
 		}
@@ -531,20 +580,52 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 	 * Create concept source if it doesn't already exist
 	 * @throws DocumentImportException 
 	 */
-	@SuppressWarnings("unchecked")
-    private ConceptSource getOrCreateConceptSource(String name, String hl7,
-			String description, Class<?> enumeratedVocabularySource) throws DocumentImportException {
+    private ConceptSource getOrCreateConceptSource(String name, final String hl7,
+			final String description, final Class<?> enumeratedVocabularySource) throws DocumentImportException {
 	
 		log.debug("Enter: getOrCreateConceptSource");
-		name = this.mapOidToConceptSourceName(hl7);
+		final String sourceName = this.mapOidToConceptSourceName(hl7);
+		
+		// Only one thread looks up / creates a source at a time
+		ConceptSource conceptSource = this.m_conceptSourceFlight.get("source:" + hl7, new Callable<ConceptSource>() {
+			@Override
+			public ConceptSource call() throws Exception {
+				ConceptSource retVal = getCachedConceptSource(hl7, sourceName);
+				if(retVal != null)
+					return retVal;
+				retVal = m_conceptService.getConceptSourceByName(sourceName);
+				if(retVal == null)
+					retVal = m_importService.getConceptSourceByHl7(hl7);
+				if(retVal != null)
+					cacheConceptSource(retVal, hl7, sourceName);
+				return retVal;
+			}
+		}, new Callable<ConceptSource>() {
+			@Override
+			public ConceptSource call() throws Exception {
+				ConceptSource retVal = createConceptSource(sourceName, hl7, description, enumeratedVocabularySource);
+				cacheConceptSource(retVal, hl7, sourceName);
+				return retVal;
+			}
+		}, this.m_configuration.getConceptCreateWait());
 		
+		log.debug("Exit : getOrCreateConceptSource");
 		
-		ConceptSource conceptSource = this.m_conceptService.getConceptSourceByName(name);
-		if(conceptSource == null)
-			conceptSource = this.m_importService.getConceptSourceByHl7(hl7);
+		return conceptSource;
+	}
+
+	/**
+	 * Create a concept source which was not found
+	 * @throws DocumentImportException 
+	 */
+	@SuppressWarnings("unchecked")
+	private ConceptSource createConceptSource(String name, String hl7,
+			String description, Class<?> enumeratedVocabularySource) throws DocumentImportException {
+
+		ConceptSource conceptSource = null;
 		
 		// Create a new concept source?
-		if(conceptSource == null && this.m_configuration.getAutoCreateConcepts())
+		if(this.m_configuration.getAutoCreateConcepts())
 		{
 			conceptSource = new ConceptSource();
 			conceptSource.setName(name);
@@ -553,20 +634,22 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 				description = "Automatically Created by OpenSHR";
 			conceptSource.setDescription(description);
 			
-			synchronized (s_lockObject) {
+			StripedLock.Stripe lock = this.m_locks.lock("source:" + hl7);
+			try {
 				log.debug(String.format("Saving Concept Source %s", conceptSource));
 				conceptSource = this.m_conceptService.saveConceptSource(conceptSource);
             }
+			finally {
+				lock.unlock();
+			}
 
 			if(enumeratedVocabularySource != null && IEnumeratedVocabulary.class.isAssignableFrom(enumeratedVocabularySource))
 				this.createEnumeratedVocabularyConcepts((Class<? extends IEnumeratedVocabulary>)enumeratedVocabularySource, hl7, null);
 			
 		}
-		else if(conceptSource == null && !this.m_configuration.getAutoCreateConcepts())
+		else
 			throw new DocumentImportException(String.format("MISSING SOURCE: Cannot create concept source %s", hl7));
 		
-		log.debug("Exit : getOrCreateConceptSource");
-		
 		return conceptSource;
 	}
 	
@@ -662,11 +745,15 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 			if(!this.m_configuration.getAutoCreateConcepts())
 				throw new IllegalStateException("Cannot create concepts according to configuration policy");
 			
-			synchronized (s_lockObject) {
+			StripedLock.Stripe lock = this.m_locks.lock("drug:" + drugConcept.getId());
+			try {
 				log.debug(String.format("Saving drug %s", retVal));
 
 				retVal = this.m_conceptService.saveDrug(retVal);
             }
+			finally {
+				lock.unlock();
+			}
 			
 			return retVal;
 		}
@@ -679,7 +766,7 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 	 * Get or creste a reference term
 	 * @throws DocumentImportException 
 	 */
-	public ConceptReferenceTerm getOrCreateReferenceTerm(CV<?> code) throws DocumentImportException {
+	public ConceptReferenceTerm getOrCreateReferenceTerm(final CV<?> code) throws DocumentImportException {
 
 		log.debug("Enter: getOrCreateReferenceTerm");
 
@@ -687,27 +774,67 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 		if(code.getCode() == null) 
 			return null;
 		
-		ConceptSource conceptSource = this.getOrCreateConceptSource(code.getCodeSystemName(), code.getCodeSystem(), code.getCodeSystemName(), code.getCode().getClass());
+		final ConceptSource conceptSource = this.getOrCreateConceptSource(code.getCodeSystemName(), code.getCodeSystem(), code.getCodeSystemName(), code.getCode().getClass());
 		
-		// Reference term exists? We create a reference a term if not 
-		ConceptReferenceTerm referenceTerm = this.m_conceptService.getConceptReferenceTermByCode(code.getCode().toString(), conceptSource);
-		if(referenceTerm == null && this.m_configuration.getAutoCreateConcepts())
+		// Reference term exists? We create a reference a term if not, only one thread looks up / creates a code at a time 
+		ConceptReferenceTerm referenceTerm = this.m_referenceTermFlight.get(this.getLockKey(code), new Callable<ConceptReferenceTerm>() {
+			@Override
+			public ConceptReferenceTerm call() throws Exception {
+				String cacheKey = getReferenceTermCacheKey(conceptSource, code.getCode().toString());
+				Integer termId = m_referenceTermIds.get(cacheKey);
+				if(termId != null)
+				{
+					ConceptReferenceTerm retVal = m_conceptService.getConceptReferenceTerm(termId);
+					if(retVal != null && code.getCode().toString().equals(retVal.getCode()) && conceptSource.equals(retVal.getConceptSource()))
+						return retVal;
+					m_referenceTermIds.remove(cacheKey); // Creation was rolled back or the term was changed
+				}
+				
+				ConceptReferenceTerm retVal = m_conceptService.getConceptReferenceTermByCode(code.getCode().toString(), conceptSource);
+				if(retVal != null)
+					m_referenceTermIds.put(cacheKey, retVal.getId());
+				return retVal;
+			}
+		}, new Callable<ConceptReferenceTerm>() {
+			@Override
+			public ConceptReferenceTerm call() throws Exception {
+				ConceptReferenceTerm retVal = createReferenceTerm(code, conceptSource);
+				m_referenceTermIds.put(getReferenceTermCacheKey(conceptSource, retVal.getCode()), retVal.getId());
+				return retVal;
+			}
+		}, this.m_configuration.getConceptCreateWait());
+
+		log.debug("Exit: getOrCreateReferenceTerm");
+
+		return referenceTerm;
+    }
+
+	/**
+	 * Create a reference term which was not found
+	 * @throws DocumentImportException 
+	 */
+	private ConceptReferenceTerm createReferenceTerm(CV<?> code, ConceptSource conceptSource) throws DocumentImportException {
+
+		ConceptReferenceTerm referenceTerm = null;
+		if(this.m_configuration.getAutoCreateConcepts())
 		{
 			referenceTerm = new ConceptReferenceTerm();
 			referenceTerm.setCode(code.getCode().toString());
 			referenceTerm.setName(code.getDisplayName());
 			referenceTerm.setDescription(code.getDisplayName());
 			referenceTerm.setConceptSource(conceptSource);
-			synchronized (s_lockObject) {
+			StripedLock.Stripe lock = this.m_locks.lock(this.getLockKey(code));
+			try {
 				log.debug(String.format("Saving Reference term %s", referenceTerm));
 				referenceTerm = this.m_importService.saveConceptReferenceTerm(referenceTerm);
             }
+			finally {
+				lock.unlock();
+			}
 		}
-		else if (referenceTerm == null && !this.m_configuration.getAutoCreateConcepts())
+		else
 			throw new DocumentImportException(String.format("MISSING CONCEPT: Cannot find specified code %s in concept source %s", code.getCode(), code.getCodeSystem()));
 
-		log.debug("Exit: getOrCreateReferenceTerm");
-
 		return referenceTerm;
     }
 
@@ -740,20 +867,28 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 			concept.setVersion("CDAr2");
 			concept.setConceptClass(conceptClass);
 			concept.setDatatype(datatype);
-			synchronized (s_lockObject) {
+			StripedLock.Stripe lock = this.m_locks.lock("rmim:" + rmimUuid);
+			try {
 				log.debug(String.format("Saving RMIM Concept %s", concept));
 				concept = this.m_conceptService.saveConcept(concept);
             }
+			finally {
+				lock.unlock();
+			}
 		}
 		else if(concept == null && !this.m_configuration.getAutoCreateConcepts())
 			throw new DocumentImportException(String.format("MISSING CONCEPT: Cannot find conept %s in database", rmimUuid));
 		else if(concept.getNames().size() == 0)
 		{
 			concept.setFullySpecifiedName(new ConceptName(rmimUuid, Context.getLocale()));
-			synchronized (s_lockObject) {
+			StripedLock.Stripe lock = this.m_locks.lock("rmim:" + rmimUuid);
+			try {
 				log.debug(String.format("Saving RMIM Concept %s", concept));
 				concept = this.m_conceptService.saveConcept(concept);
             }
+			finally {
+				lock.unlock();
+			}
 		}
 		return this.m_conceptService.getConcept(concept.getConceptId());
 	}
@@ -775,9 +910,13 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 		if(drugDoses != null && !drugDoses.getSetMembers().contains(concept))
 		{
 			drugDoses.addSetMember(concept);
-			synchronized (s_lockObject) {
+			StripedLock.Stripe lock = this.m_locks.lock(this.getLockKey(drugDoses));
+			try {
 				drugDoses = this.m_importService.saveConcept(drugDoses);
             }
+			finally {
+				lock.unlock();
+			}
 		}
 		
 		return concept;
@@ -837,6 +976,129 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 		return mappedUnit;
 	}
 
+	/**
+	 * Get the lock key for a code
+	 */
+	private String getLockKey(CV<?> code) {
+		return String.format("code:%s^%s", code.getCodeSystem(), code.getCode());
+	}
+
+	/**
+	 * Get the lock key for an existing concept
+	 */
+	private String getLockKey(Concept concept) {
+		if(concept.getId() != null)
+			return "concept:" + concept.getId();
+		return "concept:" + concept.getUuid();
+	}
+
+	/**
+	 * Get the locks guarding concept saves (for contention metrics)
+	 */
+	public StripedLock getConceptLocks() {
+		return this.m_locks;
+	}
+
+	/**
+	 * Get the key of a reference term in the reference term cache
+	 */
+	private String getReferenceTermCacheKey(ConceptSource conceptSource, String code) {
+		return conceptSource.getId() + "^" + code;
+	}
+
+	/**
+	 * Get a concept source from the cache of concept source ids
+	 */
+	private ConceptSource getCachedConceptSource(String hl7, String name) {
+		Integer sourceId = hl7 == null ? null : this.m_conceptSourceIds.get("oid:" + hl7);
+		if(sourceId == null && name != null)
+			sourceId = this.m_conceptSourceIds.get("name:" + name);
+		if(sourceId == null)
+			return null;
+		
+		ConceptSource retVal = this.m_conceptService.getConceptSource(sourceId);
+		if(retVal == null) // Creation was rolled back
+			while(this.m_conceptSourceIds.values().remove(sourceId));
+		return retVal;
+	}
+
+	/**
+	 * Remember a concept source id by its OID and name, and by the OID and name it was looked up with
+	 */
+	private void cacheConceptSource(ConceptSource conceptSource, String hl7, String name) {
+		if(conceptSource.getId() == null)
+			return;
+		if(conceptSource.getHl7Code() != null)
+			this.m_conceptSourceIds.put("oid:" + conceptSource.getHl7Code(), conceptSource.getId());
+		if(conceptSource.getName() != null)
+			this.m_conceptSourceIds.put("name:" + conceptSource.getName(), conceptSource.getId());
+		if(hl7 != null)
+			this.m_conceptSourceIds.put("oid:" + hl7, conceptSource.getId());
+		if(name != null)
+			this.m_conceptSourceIds.put("name:" + name, conceptSource.getId());
+	}
+
+	/**
+	 * Fill the concept source and reference term caches from the database
+	 */
+	public void warmCaches() {
+		for(ConceptSource conceptSource : this.m_conceptService.getAllConceptSources())
+			this.cacheConceptSource(conceptSource, null, null);
+		
+		// Reference terms up to the size of the cache
+		int room = this.m_referenceTermIds.getCapacity() - this.m_referenceTermIds.size();
+		for(ConceptSource conceptSource : this.m_conceptService.getAllConceptSources())
+		{
+			if(room <= 0)
+				break;
+			List<ConceptReferenceTerm> terms = this.m_conceptService.getConceptReferenceTerms(null, conceptSource, 0, room, false);
+			for(ConceptReferenceTerm term : terms)
+				this.m_referenceTermIds.put(this.getReferenceTermCacheKey(conceptSource, term.getCode()), term.getId());
+			room -= terms.size();
+		}
+		log.info(String.format("Cached %s concept source keys and %s reference terms", this.m_conceptSourceIds.size(), this.m_referenceTermIds.size()));
+	}
+
+	/**
+	 * Forget the cached id of a reference term which is being changed
+	 */
+	public void invalidateReferenceTerm(final Integer termId) {
+		this.m_referenceTermIds.removeMatching(new LruCache.Matcher<String, Integer>() {
+			@Override
+			public boolean matches(String key, Integer value) {
+				return termId.equals(value);
+			}
+		});
+	}
+
+	/**
+	 * Get the reference term cache (for metrics)
+	 */
+	public LruCache<String, Integer> getReferenceTermCache() {
+		return this.m_referenceTermIds;
+	}
+
+	/**
+	 * Get the single flight guarding concept get-or-create (for metrics)
+	 */
+	public SingleFlight<Concept> getConceptFlight() {
+		return this.m_conceptFlight;
+	}
+
+	/**
+	 * Get the single flight guarding reference term get-or-create (for metrics)
+	 */
+	public SingleFlight<ConceptReferenceTerm> getReferenceTermFlight() {
+		return this.m_referenceTermFlight;
+	}
+
+	/**
+	 * Get the single flight guarding concept source get-or-create (for metrics)
+	 */
+	public SingleFlight<ConceptSource> getConceptSourceFlight() {
+		return this.m_conceptSourceFlight;
+	}
+
 	/**
 	 * Initialize instance
 	 */
@@ -869,10 +1131,10 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 	public Concept getOrCreateFrequencyConcept(ANY frequency) throws DocumentImportException {
 		if(frequency == null || frequency.isNull())
 		{
-			return this.m_conceptService.getConcept(CdaHandlerConstants.CONCEPT_ID_UNSPECIFIED);
+			return this.m_wellKnownConcepts.getConcept(WellKnownConcept.UNSPECIFIED);
 		}
 		else if(frequency instanceof TS)
-			return this.m_conceptService.getConcept(CdaHandlerConstants.MEDICATION_FREQUENCY_ONCE);
+			return this.m_wellKnownConcepts.getConcept(WellKnownConcept.MEDICATION_FREQUENCY_ONCE);
 		else if(frequency instanceof PIVL)
 		{
 			PIVL<TS> pivlValue = (PIVL<TS>)frequency;
@@ -995,17 +1257,25 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 				conceptClass.setName("Frequency");
 				conceptClass.setUuid(ConceptClass.FREQUENCY_UUID);
 				conceptClass.setDescription("Automatically created");
-				synchronized (s_lockObject) {
+				StripedLock.Stripe lock = this.m_locks.lock("class:" + ConceptClass.FREQUENCY_UUID);
+				try {
 					conceptClass = this.m_conceptService.saveConceptClass(conceptClass);
                 }
+				finally {
+					lock.unlock();
+				}
 			}
 			concept = new Concept();
 			concept.addName(new ConceptName(conceptName, Context.getLocale()));
 			concept.setPreferredName(concept.getName());
 			concept.setConceptClass(conceptClass);
-			synchronized (s_lockObject) {
+			StripedLock.Stripe lock = this.m_locks.lock("frequency:" + conceptName);
+			try {
 				concept = this.m_importService.saveConcept(concept);
             }
+			finally {
+				lock.unlock();
+			}
 		}
 		return concept;
     }
@@ -1024,9 +1294,13 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 		if(routeCodes != null && !routeCodes.getSetMembers().contains(concept))
 		{
 			routeCodes.addSetMember(concept);
-			synchronized (s_lockObject) {
+			StripedLock.Stripe lock = this.m_locks.lock(this.getLockKey(routeCodes));
+			try {
 				routeCodes = this.m_importService.saveConcept(routeCodes);
             }
+			finally {
+				lock.unlock();
+			}
 		}
 		
 		return concept;
@@ -1049,13 +1323,21 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 				conceptClass = new ConceptClass();
 				conceptClass.setName("Drug Form");
 				conceptClass.setDescription("Automatically created");
-				synchronized (s_lockObject) {
+				StripedLock.Stripe lock = this.m_locks.lock("class:" + CdaHandlerConstants.UUID_CONCEPT_CLS_DRUG_FORM);
+				try {
 					conceptClass = this.m_conceptService.saveConceptClass(conceptClass);
                 }
+				finally {
+					lock.unlock();
+				}
 			}
-			synchronized (s_lockObject) {
+			StripedLock.Stripe lock = this.m_locks.lock(this.getLockKey(concept));
+			try {
 				concept = this.m_importService.saveConcept(concept);
             }
+			finally {
+				lock.unlock();
+			}
 		}
 		
 		return concept;
@@ -1078,9 +1360,13 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 				conceptClass.setName("Drug");
 				conceptClass.setUuid(ConceptClass.DRUG_UUID);
 				conceptClass.setDescription("Automatically created");
-				synchronized (s_lockObject) {
+				StripedLock.Stripe lock = this.m_locks.lock("class:" + ConceptClass.DRUG_UUID);
+				try {
 					conceptClass = this.m_conceptService.saveConceptClass(conceptClass);
                 }
+				finally {
+					lock.unlock();
+				}
 			}
 			// Make this a drug
 			if(concept != null && !concept.getConceptClass().equals(conceptClass))
@@ -1102,8 +1388,8 @@ public final class OpenmrsConceptUtil extends OpenmrsMetadataUtil {
 		Concept rmimConcept = this.getOrCreateRMIMConcept(CdaHandlerConstants.RMIM_CONCEPT_UUID_ROUTE_OF_ADM, new CV<String>());
 		
 		// Now, add as a set member to History of Medications
-		Concept historyOfMedications = this.m_conceptService.getConcept(CdaHandlerConstants.CONCEPT_ID_MEDICATION_HISTORY),
-				historyOfIz = this.m_conceptService.getConcept(CdaHandlerConstants.CONCEPT_ID_IMMUNIZATION_HISTORY);
+		Concept historyOfMedications = this.m_wellKnownConcepts.getConcept(WellKnownConcept.MEDICATION_HISTORY),
+				historyOfIz = this.m_wellKnownConcepts.getConcept(WellKnownConcept.IMMUNIZATION_HISTORY);
 		
 		if(historyOfMedications != null)
 			this.addConceptToSet(historyOfMedications, rmimConcept);
@@ -5,8 +5,13 @@ import java.math.BigDecimal;
 import java.net.URLEncoder;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import org.apache.commons.lang.StringUtils;
@@ -29,7 +34,22 @@ import org.marc.everest.datatypes.generic.CS;
 import org.marc.everest.datatypes.generic.RTO;
 import org.marc.everest.datatypes.generic.SET;
 import org.marc.everest.interfaces.IEnumeratedVocabulary;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Act;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalStatement;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component3;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component4;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Component5;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Entry;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.EntryRelationship;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Observation;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Organizer;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Procedure;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Reference;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.Section;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.SubstanceAdministration;
 import org.marc.everest.rmim.uv.cdar2.vocabulary.ActPriority;
+import org.marc.everest.rmim.uv.cdar2.vocabulary.x_ActRelationshipExternalReference;
 import org.openmrs.Concept;
 import org.openmrs.ConceptNumeric;
 import org.openmrs.Drug;
@@ -42,17 +62,21 @@ import org.openmrs.Patient;
 import org.openmrs.Provider;
 import org.openmrs.User;
 import org.openmrs.Visit;
-import org.openmrs.VisitAttribute;
 import org.openmrs.VisitAttributeType;
+import org.openmrs.activelist.ActiveListItem;
 import org.openmrs.activelist.Allergy;
 import org.openmrs.activelist.Problem;
 import org.openmrs.api.ConceptService;
 import org.openmrs.api.context.Context;
 import org.openmrs.customdatatype.InvalidCustomValueException;
 import org.openmrs.module.shr.cdahandler.api.CdaImportService;
+import org.openmrs.module.shr.cdahandler.api.db.CdaImportServiceDAO;
 import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.obs.ExtendedObs;
+import org.openmrs.module.shr.cdahandler.processor.context.DocumentProcessorContext;
+import org.openmrs.module.shr.cdahandler.processor.context.DocumentUnitOfWork;
+import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
 import org.openmrs.obs.ComplexData;
 
 /**
@@ -126,6 +150,17 @@ public final class OpenmrsDataUtil {
 		return null;
     }
 
+	/**
+	 * Get the visit identifier which is derived from the specified document identifier
+	 */
+	public II getVisitId(II documentId) {
+		String visitId = this.m_datatypeUtil.formatIdentifier(documentId);
+		if (visitId != null && visitId.contains("/")) {
+			visitId = visitId.split("/")[0];
+		}
+		return new II("visit", visitId);
+	}
+
 	/**
 	 * Get a visit by its id
 	 * @return
@@ -134,15 +169,7 @@ public final class OpenmrsDataUtil {
 	 */
 	public Visit getVisitById(II id, Patient patient) throws InvalidCustomValueException, DocumentImportException {
 		VisitAttributeType vat = this.m_conceptUtil.getOrCreateVisitExternalIdAttributeType();
-		for (Visit visit : Context.getVisitService().getVisitsByPatient(patient)) {
-			for (VisitAttribute attr : visit.getAttributes()) {
-				if (attr.getAttributeType().equals(vat) &&
-						attr.getValue().equals(this.m_datatypeUtil.formatIdentifier(id))) {
-					return visit;
-				}
-			}
-		}
-		return null;
+		return Context.getService(CdaImportService.class).getVisitByAttribute(patient, vat, this.m_datatypeUtil.formatIdentifier(id));
     }
 
 	/**
@@ -235,10 +262,90 @@ public final class OpenmrsDataUtil {
 		return observation;
 	}
 
+	/**
+	 * Get the unit of work of the document being processed in the context, or null if the document's
+	 * data is saved as it is built
+	 */
+	public DocumentUnitOfWork getUnitOfWork(ProcessorContext context)
+	{
+		if(context == null)
+			return null;
+		ProcessorContext rootContext = context.getRootContext();
+		if(rootContext instanceof DocumentProcessorContext)
+			return ((DocumentProcessorContext)rootContext).getUnitOfWork();
+		return null;
+	}
+
+	/**
+	 * Turn flushing of the current session before each query on or off, returning whether it was on.
+	 * While it is off, changes are only seen by queries once the session is flushed
+	 */
+	public boolean setAutoFlush(boolean autoFlush)
+	{
+		return Context.getRegisteredComponents(CdaImportServiceDAO.class).get(0).setAutoFlush(autoFlush);
+	}
+
+	/**
+	 * Flush the session if the document being processed in the context isn't auto-flushed, so the
+	 * lookups of the entries which follow see changes made to existing data (voids, stopped orders).
+	 * New rows need no flush as their database generated ids have them inserted when saved
+	 */
+	public void flush(ProcessorContext context)
+	{
+		if(context == null)
+			return;
+		ProcessorContext rootContext = context.getRootContext();
+		if(rootContext instanceof DocumentProcessorContext && ((DocumentProcessorContext)rootContext).isManualFlush())
+			Context.flushSession();
+	}
+
+	/**
+	 * Save a new obs, or add it to the document's unit of work to be saved with its encounter
+	 */
+	public Obs saveObs(Obs obs, ProcessorContext context)
+	{
+		DocumentUnitOfWork unitOfWork = this.getUnitOfWork(context);
+		if(obs.getObsId() != null)
+		{
+			Obs retVal = Context.getObsService().saveObs(obs, null);
+			this.flush(context);
+			return retVal;
+		}
+		else if(unitOfWork == null || obs.getEncounter() == null)
+			return Context.getObsService().saveObs(obs, null);
+		unitOfWork.addObs(obs);
+		return obs;
+	}
+
+	/**
+	 * Save a new active list item, or add it to the document's unit of work to be saved after the obs
+	 */
+	public void saveActiveListItem(ActiveListItem item, ProcessorContext context)
+	{
+		DocumentUnitOfWork unitOfWork = this.getUnitOfWork(context);
+		if(item.getId() != null)
+		{
+			Context.getActiveListService().saveActiveListItem(item);
+			this.flush(context);
+		}
+		else if(unitOfWork == null)
+			Context.getActiveListService().saveActiveListItem(item);
+		else
+			unitOfWork.addActiveListItem(item);
+	}
+
 	/**
 	 * Find an existing obs 
 	 */
 	public ExtendedObs findExistingObs(SET<II> ids, Patient patient)
+	{
+		return this.findExistingObs(ids, patient, null);
+	}
+
+	/**
+	 * Find an existing obs, using the document's accession number lookup (if any) in place of querying
+	 */
+	public ExtendedObs findExistingObs(SET<II> ids, Patient patient, AccessionNumberLookup lookup)
 	{
 		//return this.findExistingItem(ids, this.m_configuration.getObsRoot(), Context.getObsService().getObservationsByPerson(patient));
 		try
@@ -247,12 +354,23 @@ public final class OpenmrsDataUtil {
 			{
 				if(this.m_configuration.getObsRoot().equals(id.getRoot())) // Then try to get the ID
 					return Context.getService(CdaImportService.class).getExtendedObs(Integer.parseInt(id.getExtension()));
-				else {
-					List<Obs> candidate = Context.getService(CdaImportService.class).getObsByAccessionNumber(this.m_datatypeUtil.formatIdentifier(id));
-					log.debug(String.format("Foun d %s existing obs", candidate.size()));
-					if(candidate.size() > 0)
-						return Context.getService(CdaImportService.class).getExtendedObs(candidate.get(0).getId());
+				
+				String accessionNumber = this.m_datatypeUtil.formatIdentifier(id);
+				if(lookup != null && lookup.isResolved(accessionNumber))
+				{
+					Integer obsId = lookup.getObsId(accessionNumber);
+					if(obsId == null)
+						continue;
+					ExtendedObs candidate = Context.getService(CdaImportService.class).getExtendedObs(obsId);
+					if(candidate != null && !candidate.isVoided())
+						return candidate;
+					// Otherwise changed since the lookup was made so query
 				}
+
+				List<Obs> candidate = Context.getService(CdaImportService.class).getObsByAccessionNumber(accessionNumber);
+				log.debug(String.format("Foun d %s existing obs", candidate.size()));
+				if(candidate.size() > 0)
+					return Context.getService(CdaImportService.class).getExtendedObs(candidate.get(0).getId());
 			}
 			return null;
 		}
@@ -267,6 +385,14 @@ public final class OpenmrsDataUtil {
 	 * Find an existing obs 
 	 */
 	public Order findExistingOrder(SET<II> ids, Patient patient)
+	{
+		return this.findExistingOrder(ids, patient, null);
+	}
+
+	/**
+	 * Find an existing order, using the document's accession number lookup (if any) in place of querying
+	 */
+	public Order findExistingOrder(SET<II> ids, Patient patient, AccessionNumberLookup lookup)
 	{
 		//return this.findExistingItem(ids, this.m_configuration.getObsRoot(), Context.getObsService().getObservationsByPerson(patient));
 		try
@@ -275,11 +401,22 @@ public final class OpenmrsDataUtil {
 			{
 				if(this.m_configuration.getOrderRoot().equals(id.getRoot())) // Then try to get the ID
 					return Context.getOrderService().getOrder(Integer.parseInt(id.getExtension()));
-				else {
-					List<Order> candidate = Context.getService(CdaImportService.class).getOrdersByAccessionNumber(this.m_datatypeUtil.formatIdentifier(id));
-					if(candidate.size() > 0)
-						return candidate.get(0);
+				
+				String accessionNumber = this.m_datatypeUtil.formatIdentifier(id);
+				if(lookup != null && lookup.isResolved(accessionNumber))
+				{
+					Integer orderId = lookup.getOrderId(accessionNumber);
+					if(orderId == null)
+						continue;
+					Order candidate = Context.getOrderService().getOrder(orderId);
+					if(candidate != null && !candidate.isVoided())
+						return candidate;
+					// Otherwise changed since the lookup was made so query
 				}
+
+				List<Order> candidate = Context.getService(CdaImportService.class).getOrdersByAccessionNumber(accessionNumber);
+				if(candidate.size() > 0)
+					return candidate.get(0);
 			}
 			return null;
 		}
@@ -290,6 +427,136 @@ public final class OpenmrsDataUtil {
 		}
 	}
 
+	/**
+	 * Resolve the existing obs and orders for every statement id and replaced reference in the
+	 * document with a few queries. An id which appears more than once in the document isn't
+	 * resolved as an earlier entry may save it, so it is queried when it is used
+	 */
+	public AccessionNumberLookup createAccessionNumberLookup(ClinicalDocument document)
+	{
+		Map<String, Integer> occurrences = new HashMap<String, Integer>();
+		if(document.getComponent() != null && document.getComponent().getBodyChoiceIfStructuredBody() != null)
+			for(Component3 comp : document.getComponent().getBodyChoiceIfStructuredBody().getComponent())
+				if(comp != null && comp.getNullFlavor() == null)
+					this.collectAccessionNumbers(comp.getSection(), occurrences);
+		
+		Set<String> accessionNumbers = new HashSet<String>();
+		for(Map.Entry<String, Integer> occurrence : occurrences.entrySet())
+			if(occurrence.getValue() == 1)
+				accessionNumbers.add(occurrence.getKey());
+		
+		Map<String, Integer> obsIds = new HashMap<String, Integer>(), 
+				orderIds = new HashMap<String, Integer>();
+		if(accessionNumbers.size() > 0)
+		{
+			CdaImportService importService = Context.getService(CdaImportService.class);
+			obsIds = importService.getObsIdsByAccessionNumbers(accessionNumbers);
+			orderIds = importService.getOrderIdsByAccessionNumbers(accessionNumbers);
+		}
+		log.debug(String.format("Resolved %s accession numbers, %s obs and %s orders exist", accessionNumbers.size(), obsIds.size(), orderIds.size()));
+		return new AccessionNumberLookup(accessionNumbers, obsIds, orderIds);
+	}
+
+	/**
+	 * Collect the accession numbers of the entries in the section and its sub-sections
+	 */
+	private void collectAccessionNumbers(Section section, Map<String, Integer> occurrences)
+	{
+		if(section == null || section.getNullFlavor() != null)
+			return;
+		for(Entry entry : section.getEntry())
+			if(entry != null && entry.getNullFlavor() == null)
+				this.collectAccessionNumbers(entry.getClinicalStatement(), occurrences);
+		for(Component5 comp : section.getComponent())
+			if(comp != null && comp.getNullFlavor() == null)
+				this.collectAccessionNumbers(comp.getSection(), occurrences);
+	}
+
+	/**
+	 * Collect the accession numbers of the statement, the statements it replaces and its nested statements
+	 */
+	private void collectAccessionNumbers(ClinicalStatement statement, Map<String, Integer> occurrences)
+	{
+		if(statement == null || statement.getNullFlavor() != null)
+			return;
+		
+		if(statement instanceof Observation)
+		{
+			Observation observation = (Observation)statement;
+			this.collectAccessionNumbers(observation.getId(), observation.getReference(), occurrences);
+			this.collectAccessionNumbers(observation.getEntryRelationship(), occurrences);
+		}
+		else if(statement instanceof Act)
+		{
+			Act act = (Act)statement;
+			this.collectAccessionNumbers(act.getId(), act.getReference(), occurrences);
+			this.collectAccessionNumbers(act.getEntryRelationship(), occurrences);
+		}
+		else if(statement instanceof SubstanceAdministration)
+		{
+			SubstanceAdministration administration = (SubstanceAdministration)statement;
+			this.collectAccessionNumbers(administration.getId(), administration.getReference(), occurrences);
+			this.collectAccessionNumbers(administration.getEntryRelationship(), occurrences);
+		}
+		else if(statement instanceof Procedure)
+		{
+			Procedure procedure = (Procedure)statement;
+			this.collectAccessionNumbers(procedure.getId(), procedure.getReference(), occurrences);
+			this.collectAccessionNumbers(procedure.getEntryRelationship(), occurrences);
+		}
+		else if(statement instanceof Organizer)
+		{
+			Organizer organizer = (Organizer)statement;
+			this.collectAccessionNumbers(organizer.getId(), organizer.getReference(), occurrences);
+			for(Component4 comp : organizer.getComponent())
+				if(comp != null && comp.getNullFlavor() == null)
+					this.collectAccessionNumbers(comp.getClinicalStatement(), occurrences);
+		}
+	}
+
+	/**
+	 * Collect the accession numbers of nested statements
+	 */
+	private void collectAccessionNumbers(List<EntryRelationship> relationships, Map<String, Integer> occurrences)
+	{
+		if(relationships == null)
+			return;
+		for(EntryRelationship relationship : relationships)
+			if(relationship != null && relationship.getNullFlavor() == null)
+				this.collectAccessionNumbers(relationship.getClinicalStatement(), occurrences);
+	}
+
+	/**
+	 * Count the statement ids and the ids of the statements it replaces 
+	 */
+	private void collectAccessionNumbers(SET<II> ids, List<Reference> references, Map<String, Integer> occurrences)
+	{
+		this.countAccessionNumbers(ids, occurrences);
+		if(references == null)
+			return;
+		for(Reference reference : references)
+			if(reference != null && reference.getExternalActChoiceIfExternalAct() != null &&
+				reference.getTypeCode() != null && x_ActRelationshipExternalReference.RPLC.equals(reference.getTypeCode().getCode()))
+				this.countAccessionNumbers(reference.getExternalActChoiceIfExternalAct().getId(), occurrences);
+	}
+
+	/**
+	 * Count the ids (formatted as accession numbers)
+	 */
+	private void countAccessionNumbers(SET<II> ids, Map<String, Integer> occurrences)
+	{
+		if(ids == null)
+			return;
+		for(II id : ids)
+		{
+			if(id == null || id.isNull())
+				continue;
+			String accessionNumber = this.m_datatypeUtil.formatIdentifier(id);
+			Integer count = occurrences.get(accessionNumber);
+			occurrences.put(accessionNumber, count == null ? 1 : count + 1);
+		}
+	}
+
 	/**
 	 * Find an existing obs 
 	 */
@@ -432,7 +699,7 @@ public final class OpenmrsDataUtil {
 		return res;
 		}
 
-	private void setObsValue(String valueText, Obs medicationHistoryObs) {
+	private void setObsValue(String valueText, Obs medicationHistoryObs, DocumentUnitOfWork unitOfWork) {
 		String value = valueText.substring(valueText.indexOf(" ") + 1);
 
 		if (valueText.contains("value-coded")) {
@@ -452,16 +719,23 @@ public final class OpenmrsDataUtil {
 		} else if (valueText.contains("value-text")) {
 			medicationHistoryObs.setValueText(value);
 		} else if (valueText.contains("group-members")) {
-			//Before we can crate obs group we have to save new Obs
 			medicationHistoryObs.setValueText("This observation represent obs group");	//this is added to avoid error.noValue
-			medicationHistoryObs = Context.getObsService().saveObs(medicationHistoryObs,null);
-			String[] members = value.split(" ");
-			for (String accessionNumber : members) {
-				Obs obs = getMatchedObs(medicationHistoryObs.getEncounter(), accessionNumber);
+			List<Obs> members = new ArrayList<Obs>();
+			boolean savedMembers = false;
+			for (String accessionNumber : value.split(" ")) {
+				Obs obs = getMatchedObs(medicationHistoryObs.getEncounter(), accessionNumber, unitOfWork);
 				if (obs != null) {
-					medicationHistoryObs.addGroupMember(obs);
+					members.add(obs);
+					savedMembers |= obs.getObsId() != null;
 				}
 			}
+			//Before we can crate obs group of saved obs we have to save new Obs (new obs are saved with the group)
+			if (unitOfWork == null || savedMembers) {
+				medicationHistoryObs = Context.getObsService().saveObs(medicationHistoryObs,null);
+			}
+			for (Obs obs : members) {
+				medicationHistoryObs.addGroupMember(obs);
+			}
 			medicationHistoryObs.setValueText(null); //return to the default value to avoid error.not.null
 		}
 	}
@@ -479,7 +753,7 @@ public final class OpenmrsDataUtil {
 		return concept;
 	}
 
-	private Obs getMatchedObs(Encounter encounter, String accessionNumber) {
+	private Obs getMatchedObs(Encounter encounter, String accessionNumber, DocumentUnitOfWork unitOfWork) {
 		Obs observation = null;
 		for (Obs obs : encounter.getObs())
 		{
@@ -488,6 +762,9 @@ public final class OpenmrsDataUtil {
 				break;
 			}
 		}
+		if (observation == null && unitOfWork != null) {
+			observation = unitOfWork.getObs(accessionNumber);
+		}
 		if (observation == null) {
 			List<Obs> listOfCandidates = Context.getObsService().getObservations(
 					null, null, null, null, null, null,
@@ -501,6 +778,13 @@ public final class OpenmrsDataUtil {
 	}
 
 	public void processObsData(String textStr, Obs observation) {
+		this.processObsData(textStr, observation, null);
+	}
+
+	/**
+	 * Set the obs concept, value and comment from text, matching group members among the unit of work's (if any) new obs 
+	 */
+	public void processObsData(String textStr, Obs observation, DocumentUnitOfWork unitOfWork) {
 		String obs[] = textStr.split(";");
 		String obsData[] = obs[obs.length-1].split("/");
 
@@ -508,7 +792,7 @@ public final class OpenmrsDataUtil {
 		Concept concept = getConceptByCode(conceptCode);
 		observation.setConcept(concept);
 
-		setObsValue(obsData[1], observation);
+		setObsValue(obsData[1], observation, unitOfWork);
 
 		if (obsData.length > 2) {
 			if (obsData[2].length() > 254) {
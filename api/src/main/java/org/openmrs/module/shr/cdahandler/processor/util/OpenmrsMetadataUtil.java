@@ -62,6 +62,121 @@ public class OpenmrsMetadataUtil {
 	// Auto create encounter roles
 	private final CdaHandlerConfiguration m_configuration = CdaHandlerConfiguration.getInstance();
 	
+	// Metadata ids by code / name
+	private static final MetadataRegistry s_registry = new MetadataRegistry();
+	
+	// Encounter roles by code key (description)
+	private static final MetadataRegistry.Kind<EncounterRole> ENCOUNTER_ROLES = new MetadataRegistry.Kind<EncounterRole>() {
+		@Override
+		protected List<EncounterRole> getAll() {
+			return Context.getEncounterService().getAllEncounterRoles(false);
+		}
+		@Override
+		protected EncounterRole get(Integer id) {
+			return Context.getEncounterService().getEncounterRole(id);
+		}
+		@Override
+		protected String[] getKeys(EncounterRole item) {
+			return new String[] { item.getDescription() };
+		}
+	};
+
+	// Encounter types by code key (description or name)
+	private static final MetadataRegistry.Kind<EncounterType> ENCOUNTER_TYPES = new MetadataRegistry.Kind<EncounterType>() {
+		@Override
+		protected List<EncounterType> getAll() {
+			return Context.getEncounterService().getAllEncounterTypes();
+		}
+		@Override
+		protected EncounterType get(Integer id) {
+			return Context.getEncounterService().getEncounterType(id);
+		}
+		@Override
+		protected String[] getKeys(EncounterType item) {
+			return new String[] { item.getName(), item.getDescription() };
+		}
+	};
+
+	// Visit types by name
+	private static final MetadataRegistry.Kind<VisitType> VISIT_TYPES = new MetadataRegistry.Kind<VisitType>() {
+		@Override
+		protected List<VisitType> getAll() {
+			return Context.getVisitService().getAllVisitTypes();
+		}
+		@Override
+		protected VisitType get(Integer id) {
+			return Context.getVisitService().getVisitType(id);
+		}
+		@Override
+		protected String[] getKeys(VisitType item) {
+			return new String[] { item.getName() };
+		}
+	};
+
+	// Relationship types by code key (description)
+	private static final MetadataRegistry.Kind<RelationshipType> RELATIONSHIP_TYPES = new MetadataRegistry.Kind<RelationshipType>() {
+		@Override
+		protected List<RelationshipType> getAll() {
+			return Context.getPersonService().getAllRelationshipTypes();
+		}
+		@Override
+		protected RelationshipType get(Integer id) {
+			return Context.getPersonService().getRelationshipType(id);
+		}
+		@Override
+		protected String[] getKeys(RelationshipType item) {
+			return new String[] { item.getDescription() };
+		}
+	};
+
+	// Visit attribute types by name
+	private static final MetadataRegistry.Kind<VisitAttributeType> VISIT_ATTRIBUTE_TYPES = new MetadataRegistry.Kind<VisitAttributeType>() {
+		@Override
+		protected List<VisitAttributeType> getAll() {
+			return Context.getVisitService().getAllVisitAttributeTypes();
+		}
+		@Override
+		protected VisitAttributeType get(Integer id) {
+			return Context.getVisitService().getVisitAttributeType(id);
+		}
+		@Override
+		protected String[] getKeys(VisitAttributeType item) {
+			return new String[] { item.getName() };
+		}
+	};
+
+	// Location attribute types by name
+	private static final MetadataRegistry.Kind<LocationAttributeType> LOCATION_ATTRIBUTE_TYPES = new MetadataRegistry.Kind<LocationAttributeType>() {
+		@Override
+		protected List<LocationAttributeType> getAll() {
+			return Context.getLocationService().getAllLocationAttributeTypes();
+		}
+		@Override
+		protected LocationAttributeType get(Integer id) {
+			return Context.getLocationService().getLocationAttributeType(id);
+		}
+		@Override
+		protected String[] getKeys(LocationAttributeType item) {
+			return new String[] { item.getName() };
+		}
+	};
+
+	// Provider attribute types by name
+	private static final MetadataRegistry.Kind<ProviderAttributeType> PROVIDER_ATTRIBUTE_TYPES = new MetadataRegistry.Kind<ProviderAttributeType>() {
+		@Override
+		protected List<ProviderAttributeType> getAll() {
+			return Context.getProviderService().getAllProviderAttributeTypes();
+		}
+		@Override
+		protected ProviderAttributeType get(Integer id) {
+			return Context.getProviderService().getProviderAttributeType(id);
+		}
+		@Override
+		protected String[] getKeys(ProviderAttributeType item) {
+			return new String[] { item.getName() };
+		}
+	};
+	
 	/**
 	 * Private ctor
 	 */
@@ -70,6 +185,13 @@ public class OpenmrsMetadataUtil {
 		
 	}
 
+	/**
+	 * Get the metadata registry (for metrics)
+	 */
+	public MetadataRegistry getMetadataRegistry() {
+		return s_registry;
+	}
+
 	/**
 	 * Creates a base attribute type
 	 * 
@@ -97,11 +219,20 @@ public class OpenmrsMetadataUtil {
 				res.setPreferredHandlerClassname("org.openmrs.web.attribute.handler.LongFreeTextFileUploadHandler");
 			
 			if(VisitAttributeType.class.equals(attributeType))
+			{
 				res = (T)Context.getVisitService().saveVisitAttributeType((VisitAttributeType)res);
+				s_registry.put(VISIT_ATTRIBUTE_TYPES, (VisitAttributeType)res);
+			}
 			else if(LocationAttributeType.class.equals(attributeType))
+			{
 				res = (T)Context.getLocationService().saveLocationAttributeType((LocationAttributeType)res);
+				s_registry.put(LOCATION_ATTRIBUTE_TYPES, (LocationAttributeType)res);
+			}
 			else
+			{
 				res = (T)Context.getProviderService().saveProviderAttributeType((ProviderAttributeType)res);
+				s_registry.put(PROVIDER_ATTRIBUTE_TYPES, (ProviderAttributeType)res);
+			}
 				
 			return res;
 		}
@@ -137,24 +268,13 @@ public class OpenmrsMetadataUtil {
 	@SuppressWarnings("unchecked")
     public <T extends BaseAttributeType<?>> T getAttributeType(String name, Class<T> attributeType) 
 	{
-		T res = null;
-		
-		// Get a list of appropriate types to scan
-		List<? extends BaseAttributeType<?>> allTypes = null;
+		// Find in the registry of appropriate types
 		if(VisitAttributeType.class.equals(attributeType))
-			allTypes = Context.getVisitService().getAllVisitAttributeTypes();
+			return (T)s_registry.get(VISIT_ATTRIBUTE_TYPES, name);
 		else if(LocationAttributeType.class.equals(attributeType))
-			allTypes = Context.getLocationService().getAllLocationAttributeTypes();
+			return (T)s_registry.get(LOCATION_ATTRIBUTE_TYPES, name);
 		else
-			allTypes = Context.getProviderService().getAllProviderAttributeTypes();
-		
-		// Scan the attribute types
-		for(BaseAttributeType<?> attrType : allTypes)
-			if(attrType.getName().equals(name))
-				res = (T)attrType;
-		
-				
-		return res;
+			return (T)s_registry.get(PROVIDER_ATTRIBUTE_TYPES, name);
 	}
 
 	
@@ -173,16 +293,14 @@ public class OpenmrsMetadataUtil {
 		// Get the UUID of this vocabulary entry
 		// TODO: There has to be a better way to do this currently this will create a cda.encounterrol.ActParticipation.AUT|LA|etc.
 		String codeKey = DatatypeProcessorUtil.getInstance().formatSimpleCode(cs);
-		EncounterRole encounterRole = null;
-		for(EncounterRole role : Context.getEncounterService().getAllEncounterRoles(false))
-			if(role.getDescription().equals(codeKey))
-				encounterRole = role;
+		EncounterRole encounterRole = s_registry.get(ENCOUNTER_ROLES, codeKey);
 				
 		if(encounterRole == null && this.m_configuration.getAutoCreateMetaData()) {
 			encounterRole = new EncounterRole();
 			encounterRole.setName(cs.getCode().getCode());
 			encounterRole.setDescription(codeKey);
 			encounterRole = Context.getEncounterService().saveEncounterRole(encounterRole);
+			s_registry.put(ENCOUNTER_ROLES, encounterRole);
 		} 
 		else if(encounterRole == null && !this.m_configuration.getAutoCreateMetaData())
 			throw new DocumentImportException(String.format("Encounter role %s is unknown", cs.getCode()));
@@ -204,16 +322,14 @@ public class OpenmrsMetadataUtil {
 		if(display == null || display.isEmpty())
 			display = code.getCode();
 		
-		EncounterType encounterType = null;
-		for(EncounterType type : Context.getEncounterService().getAllEncounterTypes())
-			if(type.getDescription().equals(codeKey) || type.getName().equals(codeKey))
-				encounterType = type;
+		EncounterType encounterType = s_registry.get(ENCOUNTER_TYPES, codeKey);
 				
 		if(encounterType == null && this.m_configuration.getAutoCreateMetaData()) {
 			encounterType = new EncounterType();
 			encounterType.setName(display);
 			encounterType.setDescription(codeKey);
 			encounterType = Context.getEncounterService().saveEncounterType(encounterType);
+			s_registry.put(ENCOUNTER_TYPES, encounterType);
 		} 
 		else if(encounterType == null && !this.m_configuration.getAutoCreateMetaData())
 			throw new DocumentImportException(String.format("Encounter type %s is unknown", code.getCode()));
@@ -322,10 +438,7 @@ public class OpenmrsMetadataUtil {
 		
 		// TODO: Find a better way of mapping this code as there are a few code ssytems that have similar codes
 		String relationshipTypeName = DatatypeProcessorUtil.getInstance().formatCodeValue(relationship);
-		RelationshipType visitType = null;
-		for(RelationshipType type : Context.getPersonService().getAllRelationshipTypes())
-			if(type.getDescription() != null && type.getDescription().equals(relationshipTypeName))
-				visitType = type;
+		RelationshipType visitType = s_registry.get(RELATIONSHIP_TYPES, relationshipTypeName);
 		
 		if(visitType == null && this.m_configuration.getAutoCreateMetaData())
 		{
@@ -335,6 +448,7 @@ public class OpenmrsMetadataUtil {
 			visitType.setaIsToB(relationship.getCode());
 			visitType.setbIsToA(relationship.getCode());
 			visitType = Context.getPersonService().saveRelationshipType(visitType);
+			s_registry.put(RELATIONSHIP_TYPES, visitType);
 		}
 		else if(visitType == null && !this.m_configuration.getAutoCreateMetaData())
 			throw new DocumentImportException(String.format("Cannot find specified relationship type %s", relationship));
@@ -410,10 +524,7 @@ public class OpenmrsMetadataUtil {
 	 * @throws DocumentImportException 
 	 */
 	public VisitType getVisitType(String visitTypeName) throws DocumentImportException {
-		VisitType visitType = null;
-		for(VisitType type : Context.getVisitService().getAllVisitTypes())
-			if(type.getName().equals(visitTypeName))
-				visitType = type;
+		VisitType visitType = s_registry.get(VISIT_TYPES, visitTypeName);
 		
 		if(visitType == null && this.m_configuration.getAutoCreateMetaData())
 		{
@@ -421,6 +532,7 @@ public class OpenmrsMetadataUtil {
 			visitType.setName(visitTypeName);
 			visitType.setDescription("Auto Created");
 			visitType = Context.getVisitService().saveVisitType(visitType);
+			s_registry.put(VISIT_TYPES, visitType);
 		}
 		else if(visitType == null && !this.m_configuration.getAutoCreateMetaData())
 			throw new DocumentImportException(String.format("Cannot find specified visit type %s", visitTypeName));
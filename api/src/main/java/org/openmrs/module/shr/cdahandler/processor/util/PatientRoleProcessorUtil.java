@@ -124,6 +124,24 @@ public final class PatientRoleProcessorUtil {
 				Context.getLocationService().getDefaultLocation());
 	}
 	
+	/**
+	 * Find an existing patient with one of the specified identifiers without creating
+	 * any patients or identifier types
+	 * @return The matching patient or null if none exists
+	 */
+	public Patient findPatient(COLL<II> patientIds) {
+		for(II id : patientIds)
+		{
+			PatientIdentifierType pit = Context.getPatientService().getPatientIdentifierTypeByName(id.getRoot());
+			if(pit == null || id.getExtension() == null)
+				continue;
+			List<Patient> matches = Context.getPatientService().getPatients(null, id.getExtension(), Collections.singletonList(pit), true);
+			if(!matches.isEmpty())
+				return matches.get(0);
+		}
+		return null;
+	}
+	
 	/**
 	 * Parse OpenMRS patient data from a CDA PatientRole
 	 * @param cd
@@ -0,0 +1,225 @@
+package org.openmrs.module.shr.cdahandler.processor.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Collapses concurrent get-or-create calls for the same key so that only one
+ * thread looks up and creates the object while the others wait for it.
+ *
+ * The key is in flight only while the leader looks up and creates the object.
+ * What the leader created isn't visible to other transactions until the leader's
+ * transaction completes, so followers which find nothing after the create wait for
+ * that and look up again in their own session, rather than creating a duplicate.
+ * Followers only wait up to a timeout, after which they resolve the key themselves
+ */
+public final class SingleFlight<V> {
+
+	/**
+	 * A get-or-create in progress
+	 */
+	private static final class Flight {
+		// The thread resolving the key
+		private final Thread m_owner = Thread.currentThread();
+		// Released when the leader's lookup / create call returns
+		private final CountDownLatch m_done = new CountDownLatch(1);
+		// Released when what the leader created is visible to other transactions
+		private final CountDownLatch m_committed = new CountDownLatch(1);
+		// True if the leader created the object
+		private volatile boolean m_created = false;
+	}
+
+	// Log
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	// Keys currently being resolved
+	private final ConcurrentHashMap<String, Flight> m_inFlight = new ConcurrentHashMap<String, Flight>();
+
+	// Metrics
+	private final AtomicLong m_leaderCount = new AtomicLong();
+	private final AtomicLong m_createCount = new AtomicLong();
+	private final AtomicLong m_followerCount = new AtomicLong();
+	private final AtomicLong m_timeoutCount = new AtomicLong();
+	private final AtomicLong m_totalWaitMillis = new AtomicLong();
+
+	/**
+	 * Get the object with the specified key, creating it if the lookup returns null.
+	 * The lookup and create calls may throw DocumentImportException
+	 */
+	public V get(String key, Callable<V> lookup, Callable<V> create, long waitMillis) throws DocumentImportException
+	{
+		Flight flight = new Flight();
+		Flight existing = this.m_inFlight.putIfAbsent(key, flight);
+
+		// Someone else is resolving this key, wait for them to finish
+		if(existing != null)
+		{
+			// Re-entrant call from the leader's own transaction can see what it created
+			if(existing.m_owner == Thread.currentThread())
+				return this.lookupOrCreate(lookup, create);
+
+			this.m_followerCount.incrementAndGet();
+			long deadline = System.currentTimeMillis() + waitMillis;
+			boolean done = this.await(key, existing.m_done, deadline);
+			V retVal = this.call(lookup);
+
+			// Created but not committed yet, look again once it is
+			if(retVal == null && done && existing.m_created && this.await(key, existing.m_committed, deadline))
+				retVal = this.call(lookup);
+			
+			if(retVal == null)
+				retVal = this.call(create);
+			return retVal;
+		}
+
+		// We're the leader
+		this.m_leaderCount.incrementAndGet();
+		try
+		{
+			V retVal = this.call(lookup);
+			if(retVal == null)
+			{
+				retVal = this.call(create);
+				flight.m_created = retVal != null;
+				if(flight.m_created)
+					this.m_createCount.incrementAndGet();
+			}
+			return retVal;
+		}
+		finally
+		{
+			this.m_inFlight.remove(key, flight);
+			flight.m_done.countDown();
+			if(flight.m_created)
+				this.commitOnCompletion(flight);
+			else
+				flight.m_committed.countDown();
+		}
+	}
+
+	/**
+	 * Look up the object, creating it if it isn't found
+	 */
+	private V lookupOrCreate(Callable<V> lookup, Callable<V> create) throws DocumentImportException
+	{
+		V retVal = this.call(lookup);
+		if(retVal == null)
+			retVal = this.call(create);
+		return retVal;
+	}
+
+	/**
+	 * Wait for the latch until the deadline, returning false if it timed out
+	 */
+	private boolean await(String key, CountDownLatch latch, long deadline) throws DocumentImportException
+	{
+		long start = System.currentTimeMillis();
+		try
+		{
+			if(latch.await(Math.max(0, deadline - start), TimeUnit.MILLISECONDS))
+				return true;
+			this.m_timeoutCount.incrementAndGet();
+			log.warn(String.format("Timed out waiting for %s to be created by another thread", key));
+			return false;
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new DocumentImportException(String.format("Interrupted while waiting for %s", key), e);
+		}
+		finally
+		{
+			this.m_totalWaitMillis.addAndGet(System.currentTimeMillis() - start);
+		}
+	}
+
+	/**
+	 * Tell followers the created object is visible once the current transaction completes
+	 */
+	private void commitOnCompletion(final Flight flight)
+	{
+		if(TransactionSynchronizationManager.isSynchronizationActive())
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					flight.m_committed.countDown();
+				}
+			});
+		else
+			flight.m_committed.countDown();
+	}
+
+	/**
+	 * Run a lookup or create call
+	 */
+	private V call(Callable<V> callable) throws DocumentImportException
+	{
+		try
+		{
+			return callable.call();
+		}
+		catch(DocumentImportException e)
+		{
+			throw e;
+		}
+		catch(RuntimeException e)
+		{
+			throw e;
+		}
+		catch(Exception e)
+		{
+			throw new DocumentImportException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Get the number of keys currently in flight
+	 */
+	public int getInFlightCount() {
+		return this.m_inFlight.size();
+	}
+
+	/**
+	 * Get the number of calls which resolved a key themselves
+	 */
+	public long getLeaderCount() {
+		return this.m_leaderCount.get();
+	}
+
+	/**
+	 * Get the number of objects created
+	 */
+	public long getCreateCount() {
+		return this.m_createCount.get();
+	}
+
+	/**
+	 * Get the number of calls which waited on another thread
+	 */
+	public long getFollowerCount() {
+		return this.m_followerCount.get();
+	}
+
+	/**
+	 * Get the number of waits which timed out
+	 */
+	public long getTimeoutCount() {
+		return this.m_timeoutCount.get();
+	}
+
+	/**
+	 * Get the total time (in ms) spent waiting on other threads
+	 */
+	public long getTotalWaitMillis() {
+		return this.m_totalWaitMillis.get();
+	}
+}
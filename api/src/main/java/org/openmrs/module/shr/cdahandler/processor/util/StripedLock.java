@@ -0,0 +1,178 @@
+package org.openmrs.module.shr.cdahandler.processor.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks selected by the hash of a key, so that work on unrelated
+ * keys can proceed in parallel while work on the same key is serialized.
+ * Each stripe records how often it was taken, contended, waited on and held
+ */
+public final class StripedLock {
+
+	/**
+	 * A single stripe of the lock
+	 */
+	public static final class Stripe {
+
+		// The underlying lock
+		private final ReentrantLock m_lock = new ReentrantLock();
+		// When the outermost hold was acquired (guarded by m_lock)
+		private long m_acquiredAt;
+
+		// Metrics
+		private final AtomicLong m_acquisitionCount = new AtomicLong();
+		private final AtomicLong m_contendedCount = new AtomicLong();
+		private final AtomicLong m_totalWaitNanos = new AtomicLong();
+		private final AtomicLong m_maxWaitNanos = new AtomicLong();
+		private final AtomicLong m_totalHoldNanos = new AtomicLong();
+
+		/**
+		 * Acquire this stripe
+		 */
+		private Stripe lock()
+		{
+			if(this.m_lock.tryLock())
+				this.m_acquisitionCount.incrementAndGet();
+			else
+			{
+				long start = System.nanoTime();
+				this.m_lock.lock();
+				long waited = System.nanoTime() - start;
+				this.m_acquisitionCount.incrementAndGet();
+				this.m_contendedCount.incrementAndGet();
+				this.m_totalWaitNanos.addAndGet(waited);
+				long max = this.m_maxWaitNanos.get();
+				while(waited > max && !this.m_maxWaitNanos.compareAndSet(max, waited))
+					max = this.m_maxWaitNanos.get();
+			}
+			if(this.m_lock.getHoldCount() == 1)
+				this.m_acquiredAt = System.nanoTime();
+			return this;
+		}
+
+		/**
+		 * Release this stripe
+		 */
+		public void unlock()
+		{
+			if(this.m_lock.getHoldCount() == 1)
+				this.m_totalHoldNanos.addAndGet(System.nanoTime() - this.m_acquiredAt);
+			this.m_lock.unlock();
+		}
+
+		/**
+		 * Get the number of times this stripe was acquired
+		 */
+		public long getAcquisitionCount() {
+			return this.m_acquisitionCount.get();
+		}
+
+		/**
+		 * Get the number of acquisitions which had to wait for another thread
+		 */
+		public long getContendedCount() {
+			return this.m_contendedCount.get();
+		}
+
+		/**
+		 * Get the total time (in ns) threads waited to acquire this stripe
+		 */
+		public long getTotalWaitNanos() {
+			return this.m_totalWaitNanos.get();
+		}
+
+		/**
+		 * Get the longest time (in ns) a thread waited to acquire this stripe
+		 */
+		public long getMaxWaitNanos() {
+			return this.m_maxWaitNanos.get();
+		}
+
+		/**
+		 * Get the total time (in ns) this stripe was held
+		 */
+		public long getTotalHoldNanos() {
+			return this.m_totalHoldNanos.get();
+		}
+	}
+
+	// The stripes
+	private final Stripe[] m_stripes;
+
+	/**
+	 * Creates a new striped lock with the specified number of stripes
+	 */
+	public StripedLock(int stripes)
+	{
+		if(stripes < 1)
+			throw new IllegalArgumentException("stripes");
+		this.m_stripes = new Stripe[stripes];
+		for(int i = 0; i < stripes; i++)
+			this.m_stripes[i] = new Stripe();
+	}
+
+	/**
+	 * Acquire the stripe for the key, callers must unlock the returned stripe in a finally block
+	 */
+	public Stripe lock(Object key)
+	{
+		return this.getStripe(key).lock();
+	}
+
+	/**
+	 * Get the stripe which guards the specified key
+	 */
+	public Stripe getStripe(Object key)
+	{
+		int hash = key == null ? 0 : key.hashCode();
+		// Spread the bits so keys differing only in high bits don't collide
+		hash ^= (hash >>> 20) ^ (hash >>> 12);
+		hash ^= (hash >>> 7) ^ (hash >>> 4);
+		return this.m_stripes[(hash & 0x7fffffff) % this.m_stripes.length];
+	}
+
+	/**
+	 * Get the number of stripes
+	 */
+	public int getStripeCount() {
+		return this.m_stripes.length;
+	}
+
+	/**
+	 * Get a stripe by index (for reporting)
+	 */
+	public Stripe getStripeAt(int index) {
+		return this.m_stripes[index];
+	}
+
+	/**
+	 * Get the number of contended acquisitions over all stripes
+	 */
+	public long getContendedCount() {
+		long retVal = 0;
+		for(Stripe stripe : this.m_stripes)
+			retVal += stripe.getContendedCount();
+		return retVal;
+	}
+
+	/**
+	 * Get the total wait time (in ns) over all stripes
+	 */
+	public long getTotalWaitNanos() {
+		long retVal = 0;
+		for(Stripe stripe : this.m_stripes)
+			retVal += stripe.getTotalWaitNanos();
+		return retVal;
+	}
+
+	/**
+	 * Get the total hold time (in ns) over all stripes
+	 */
+	public long getTotalHoldNanos() {
+		long retVal = 0;
+		for(Stripe stripe : this.m_stripes)
+			retVal += stripe.getTotalHoldNanos();
+		return retVal;
+	}
+}
@@ -0,0 +1,78 @@
+package org.openmrs.module.shr.cdahandler.processor.util;
+
+import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
+import org.openmrs.util.OpenmrsConstants;
+
+/**
+ * Concepts the processors use by a fixed id (or an id configured in a global property)
+ */
+public enum WellKnownConcept {
+
+	MEDICATION_HISTORY(CdaHandlerConstants.CONCEPT_ID_MEDICATION_HISTORY),
+	MEDICATION_DRUG(CdaHandlerConstants.CONCEPT_ID_MEDICATION_DRUG),
+	MEDICATION_STRENGTH(CdaHandlerConstants.CONCEPT_ID_MEDICATION_STRENGTH),
+	MEDICATION_QUANTITY(CdaHandlerConstants.CONCEPT_ID_MEDICATION_QUANTITY),
+	MEDICATION_FREQUENCY(CdaHandlerConstants.CONCEPT_ID_MEDICATION_FREQUENCY),
+	MEDICATION_START_DATE(CdaHandlerConstants.CONCEPT_ID_MEDICATION_START_DATE),
+	MEDICATION_STOP_DATE(CdaHandlerConstants.CONCEPT_ID_MEDICATION_STOP_DATE),
+	MEDICATION_INDICATION(CdaHandlerConstants.CONCEPT_ID_MEDICATION_INDICATION),
+	MEDICATION_TEXT(CdaHandlerConstants.CONCEPT_ID_MEDICATION_TEXT),
+	MEDICATION_DURATION(CdaHandlerConstants.CONCEPT_ID_MEDICATION_DURATION),
+	IMMUNIZATION_SEQUENCE(CdaHandlerConstants.CONCEPT_ID_IMMUNIZATION_SEQUENCE),
+	IMMUNIZATION_DATE(CdaHandlerConstants.CONCEPT_ID_IMMUNIZATION_DATE),
+	IMMUNIZATION_DRUG(CdaHandlerConstants.CONCEPT_ID_IMMUNIZATION_DRUG),
+	MEDICATION_FORM(CdaHandlerConstants.CONCEPT_ID_MEDICATION_FORM),
+	IMMUNIZATION_HISTORY(CdaHandlerConstants.CONCEPT_ID_IMMUNIZATION_HISTORY),
+	SIGN_SYMPTOM_PRESENT(CdaHandlerConstants.CONCEPT_ID_SIGN_SYMPTOM_PRESENT),
+	SUPPLY(CdaHandlerConstants.CONCEPT_ID_SUPPLY),
+	SUPPLY_ORDERED_QTY(CdaHandlerConstants.CONCEPT_ID_SUPPLY_ORDERED_QTY),
+	MEDICATION_TREATMENT_NUMBER(CdaHandlerConstants.CONCEPT_ID_MEDICATION_TREATMENT_NUMBER),
+	MEDICATION_DISPENSED(CdaHandlerConstants.CONCEPT_ID_MEDICATION_DISPENSED),
+	PROVIDER_NAME(CdaHandlerConstants.CONCEPT_ID_PROVIDER_NAME),
+	DATE_OF_EVENT(CdaHandlerConstants.CONCEPT_ID_DATE_OF_EVENT),
+	PROCEDURE(CdaHandlerConstants.CONCEPT_ID_PROCEDURE),
+	UNSPECIFIED(CdaHandlerConstants.CONCEPT_ID_UNSPECIFIED),
+	PROCEDURE_HISTORY(CdaHandlerConstants.CONCEPT_ID_PROCEDURE_HISTORY),
+	PROCEDURE_DATE(CdaHandlerConstants.CONCEPT_ID_PROCEDURE_DATE),
+	PROCEDURE_TEXT(CdaHandlerConstants.CONCEPT_ID_PROCEDURE_TEXT),
+	MEDICATION_FREQUENCY_ONCE(CdaHandlerConstants.MEDICATION_FREQUENCY_ONCE),
+	// The concept used for a 'false' coded answer
+	FALSE(OpenmrsConstants.GLOBAL_PROPERTY_FALSE_CONCEPT);
+
+	// The concept id (null if configured in a global property)
+	private final Integer m_conceptId;
+	// The global property holding the concept id
+	private final String m_globalProperty;
+
+	/**
+	 * A concept with a fixed id
+	 */
+	private WellKnownConcept(int conceptId)
+	{
+		this.m_conceptId = conceptId;
+		this.m_globalProperty = null;
+	}
+
+	/**
+	 * A concept whose id is configured in a global property
+	 */
+	private WellKnownConcept(String globalProperty)
+	{
+		this.m_conceptId = null;
+		this.m_globalProperty = globalProperty;
+	}
+
+	/**
+	 * Get the fixed concept id, or null if it is configured in a global property
+	 */
+	public Integer getConceptId() {
+		return this.m_conceptId;
+	}
+
+	/**
+	 * Get the global property holding the concept id, or null if the id is fixed
+	 */
+	public String getGlobalProperty() {
+		return this.m_globalProperty;
+	}
+}
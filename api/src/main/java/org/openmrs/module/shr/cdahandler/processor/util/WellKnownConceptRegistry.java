@@ -0,0 +1,206 @@
+package org.openmrs.module.shr.cdahandler.processor.util;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+
+/**
+ * The ids of the well known concepts, resolved once (checking they exist and reading
+ * any global properties) and resolved again when one of them or their global property changes.
+ * Ids rather than concepts are kept so no concept is shared between sessions; getting a
+ * concept by id is answered from the session / second level cache. Concepts which weren't in the
+ * dictionary aren't cached, they are looked up again on each use until they are created
+ */
+public final class WellKnownConceptRegistry implements GlobalPropertyListener {
+
+	/**
+	 * Gets the current singleton instance
+	 */
+	public static WellKnownConceptRegistry getInstance()
+	{
+		if(s_instance == null)
+			synchronized (s_lockObject) {
+				if(s_instance == null)
+					s_instance = new WellKnownConceptRegistry();
+			}
+		return s_instance;
+	}
+
+	// Singleton instance
+	private static WellKnownConceptRegistry s_instance;
+
+	private static Object s_lockObject = new Object();
+
+	// Log
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	// The ids of the well known concepts which exist (null until resolved)
+	private volatile Map<WellKnownConcept, Integer> m_conceptIds;
+
+	// The configured ids of the well known concepts, whether or not they exist
+	private volatile Map<WellKnownConcept, Integer> m_configuredIds = Collections.emptyMap();
+
+	// Metrics
+	private final AtomicLong m_loadCount = new AtomicLong();
+
+	/**
+	 * Private ctor
+	 */
+	private WellKnownConceptRegistry()
+	{
+	}
+
+	/**
+	 * Get the well known concept, or null if it isn't in the dictionary
+	 */
+	public Concept getConcept(WellKnownConcept concept)
+	{
+		Integer conceptId = this.getConceptId(concept);
+		if(conceptId == null)
+			return null;
+		return Context.getConceptService().getConcept(conceptId);
+	}
+
+	/**
+	 * Get the id of the well known concept, or null if it isn't in the dictionary
+	 */
+	public Integer getConceptId(WellKnownConcept concept)
+	{
+		Integer retVal = this.getConceptIds().get(concept);
+		if(retVal != null)
+			return retVal;
+
+		// Not in the dictionary when resolved, it may have been created since
+		Integer configuredId = this.m_configuredIds.get(concept);
+		if(configuredId != null && Context.getConceptService().getConcept(configuredId) != null)
+		{
+			this.invalidate();
+			retVal = configuredId;
+		}
+		return retVal;
+	}
+
+	/**
+	 * Get the ids of the well known concepts which are in the dictionary, resolving them if needed
+	 */
+	public Map<WellKnownConcept, Integer> getConceptIds()
+	{
+		Map<WellKnownConcept, Integer> retVal = this.m_conceptIds;
+		if(retVal == null)
+			retVal = this.refresh();
+		return retVal;
+	}
+
+	/**
+	 * Resolve the well known concepts now
+	 */
+	public Map<WellKnownConcept, Integer> refresh()
+	{
+		this.m_loadCount.incrementAndGet();
+		ConceptService conceptService = Context.getConceptService();
+		Map<WellKnownConcept, Integer> conceptIds = new EnumMap<WellKnownConcept, Integer>(WellKnownConcept.class),
+				configuredIds = new EnumMap<WellKnownConcept, Integer>(WellKnownConcept.class);
+		for(WellKnownConcept concept : WellKnownConcept.values())
+		{
+			Integer conceptId = concept.getConceptId();
+			if(concept.getGlobalProperty() != null)
+			{
+				String value = Context.getAdministrationService().getGlobalProperty(concept.getGlobalProperty());
+				try
+				{
+					conceptId = value == null ? null : Integer.valueOf(value.trim());
+				}
+				catch(NumberFormatException e)
+				{
+					log.warn(String.format("Global property %s is not a concept id: %s", concept.getGlobalProperty(), value));
+					conceptId = null;
+				}
+			}
+
+			if(conceptId != null)
+				configuredIds.put(concept, conceptId);
+			if(conceptId != null && conceptService.getConcept(conceptId) != null)
+				conceptIds.put(concept, conceptId);
+			else
+				log.debug(String.format("Well known concept %s is not in the dictionary", concept));
+		}
+
+		Map<WellKnownConcept, Integer> retVal = Collections.unmodifiableMap(conceptIds);
+		this.m_configuredIds = Collections.unmodifiableMap(configuredIds);
+		this.m_conceptIds = retVal;
+		return retVal;
+	}
+
+	/**
+	 * Resolve the concepts again on next use
+	 */
+	public void invalidate()
+	{
+		this.m_conceptIds = null;
+	}
+
+	/**
+	 * Called when a concept is saved, resolves again if it is (or has the id of) a well known concept
+	 */
+	public void conceptChanged(Concept concept)
+	{
+		Map<WellKnownConcept, Integer> conceptIds = this.m_conceptIds;
+		if(conceptIds == null || concept == null || concept.getConceptId() == null)
+			return;
+		if(conceptIds.containsValue(concept.getConceptId()))
+			this.invalidate();
+		else
+			for(WellKnownConcept wellKnown : WellKnownConcept.values())
+				if(concept.getConceptId().equals(wellKnown.getConceptId()))
+				{
+					this.invalidate();
+					break;
+				}
+	}
+
+	/**
+	 * True for the global properties which configure a well known concept
+	 * @see org.openmrs.api.GlobalPropertyListener#supportsPropertyName(java.lang.String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		for(WellKnownConcept concept : WellKnownConcept.values())
+			if(propertyName != null && propertyName.equals(concept.getGlobalProperty()))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Resolve again when a global property changes
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyChanged(org.openmrs.GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		this.invalidate();
+	}
+
+	/**
+	 * Resolve again when a global property is deleted
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyDeleted(java.lang.String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		this.invalidate();
+	}
+
+	/**
+	 * Get the number of times the concepts were resolved
+	 */
+	public long getLoadCount() {
+		return this.m_loadCount.get();
+	}
+}
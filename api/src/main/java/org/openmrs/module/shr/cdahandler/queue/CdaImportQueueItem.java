@@ -0,0 +1,188 @@
+package org.openmrs.module.shr.cdahandler.queue;
+
+import java.util.Date;
+
+import org.openmrs.BaseOpenmrsObject;
+
+/**
+ * Represents a CDA document which has been received and is staged for import
+ */
+public class CdaImportQueueItem extends BaseOpenmrsObject {
+
+	/**
+	 * Status of a queued document
+	 */
+	public enum Status {
+		// Waiting to be imported (or retried)
+		PENDING,
+		// Claimed by an import worker
+		PROCESSING,
+		// Imported successfully
+		COMPLETE,
+		// Failed permanently or exceeded the maximum number of attempts
+		DEAD_LETTER
+	}
+
+	// Identifier
+	private Integer id;
+	// The raw document
+	private byte[] payload;
+	// SHA-1 digest of the payload
+	private String digest;
+	// Current status
+	private Status status = Status.PENDING;
+	// Number of import attempts
+	private Integer attempts = 0;
+	// Date the document was received
+	private Date dateCreated;
+	// Date the status last changed
+	private Date dateChanged;
+	// Date of the next attempt
+	private Date nextAttemptDate;
+	// Message from the last failed attempt
+	private String lastError;
+	// The uuid of the visit created by the import
+	private String visitUuid;
+
+	/**
+	 * @see org.openmrs.OpenmrsObject#getId()
+	 */
+	@Override
+	public Integer getId() {
+		return id;
+	}
+
+	/**
+	 * @see org.openmrs.OpenmrsObject#setId(java.lang.Integer)
+	 */
+	@Override
+	public void setId(Integer id) {
+		this.id = id;
+	}
+
+	/**
+	 * @return the payload
+	 */
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	/**
+	 * @param payload the payload to set
+	 */
+	public void setPayload(byte[] payload) {
+		this.payload = payload;
+	}
+
+	/**
+	 * @return the digest
+	 */
+	public String getDigest() {
+		return digest;
+	}
+
+	/**
+	 * @param digest the digest to set
+	 */
+	public void setDigest(String digest) {
+		this.digest = digest;
+	}
+
+	/**
+	 * @return the status
+	 */
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @param status the status to set
+	 */
+	public void setStatus(Status status) {
+		this.status = status;
+	}
+
+	/**
+	 * @return the attempts
+	 */
+	public Integer getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * @param attempts the attempts to set
+	 */
+	public void setAttempts(Integer attempts) {
+		this.attempts = attempts;
+	}
+
+	/**
+	 * @return the dateCreated
+	 */
+	public Date getDateCreated() {
+		return dateCreated;
+	}
+
+	/**
+	 * @param dateCreated the dateCreated to set
+	 */
+	public void setDateCreated(Date dateCreated) {
+		this.dateCreated = dateCreated;
+	}
+
+	/**
+	 * @return the dateChanged
+	 */
+	public Date getDateChanged() {
+		return dateChanged;
+	}
+
+	/**
+	 * @param dateChanged the dateChanged to set
+	 */
+	public void setDateChanged(Date dateChanged) {
+		this.dateChanged = dateChanged;
+	}
+
+	/**
+	 * @return the nextAttemptDate
+	 */
+	public Date getNextAttemptDate() {
+		return nextAttemptDate;
+	}
+
+	/**
+	 * @param nextAttemptDate the nextAttemptDate to set
+	 */
+	public void setNextAttemptDate(Date nextAttemptDate) {
+		this.nextAttemptDate = nextAttemptDate;
+	}
+
+	/**
+	 * @return the lastError
+	 */
+	public String getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * @param lastError the lastError to set
+	 */
+	public void setLastError(String lastError) {
+		this.lastError = lastError;
+	}
+
+	/**
+	 * @return the visitUuid
+	 */
+	public String getVisitUuid() {
+		return visitUuid;
+	}
+
+	/**
+	 * @param visitUuid the visitUuid to set
+	 */
+	public void setVisitUuid(String visitUuid) {
+		this.visitUuid = visitUuid;
+	}
+}
@@ -0,0 +1,287 @@
+package org.openmrs.module.shr.cdahandler.queue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.shr.cdahandler.api.CdaImportService;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+
+/**
+ * Drains the CDA import staging queue using a pool of daemon worker threads
+ */
+public final class CdaImportQueueProcessor {
+
+	// Log
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	// Singleton instance
+	private static CdaImportQueueProcessor s_instance;
+	private static Object s_lockObject = new Object();
+
+	// How long stop() waits for each worker to finish its item (ms)
+	private static final long STOP_WAIT = 5000;
+
+	// Idle workers wait on this until new work arrives
+	private final Object m_signal = new Object();
+	// Serializes start and stop
+	private final Object m_lifecycleLock = new Object();
+	// Running workers
+	private final List<Thread> m_workers = new ArrayList<Thread>();
+	// Workers of a previous start which had not finished when they were stopped
+	private final List<Thread> m_stopping = new ArrayList<Thread>();
+	// True while the workers should keep running
+	private volatile boolean m_running = false;
+
+	// Metrics
+	private final AtomicLong m_completedCount = new AtomicLong();
+	private final AtomicLong m_retryCount = new AtomicLong();
+	private final AtomicLong m_deadLetterCount = new AtomicLong();
+	private final AtomicLong m_totalImportMillis = new AtomicLong();
+
+	/**
+	 * Private ctor
+	 */
+	private CdaImportQueueProcessor()
+	{
+	}
+
+	/**
+	 * Get the singleton instance
+	 */
+	public static CdaImportQueueProcessor getInstance()
+	{
+		if(s_instance == null)
+			synchronized (s_lockObject) {
+				if(s_instance == null)
+					s_instance = new CdaImportQueueProcessor();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Start the configured number of workers
+	 */
+	public void start(DaemonToken token)
+	{
+		synchronized (this.m_lifecycleLock) {
+			if(this.m_running)
+				return;
+			this.m_running = true;
+
+			// Anything that was in flight when we stopped is pending again, unless a worker of the
+			// previous start is still importing it
+			for(Iterator<Thread> iterator = this.m_stopping.iterator(); iterator.hasNext(); )
+				if(!iterator.next().isAlive())
+					iterator.remove();
+			if(this.m_stopping.isEmpty())
+			{
+				int reset = Context.getService(CdaImportService.class).resetProcessingQueueItems();
+				if(reset > 0)
+					log.warn(String.format("Returned %s interrupted queue items to pending", reset));
+			}
+			else
+				log.warn(String.format("%s previous CDA import queue workers are still running, items being processed are not reset", this.m_stopping.size()));
+
+			int workers = CdaHandlerConfiguration.getInstance().getQueueWorkers();
+			synchronized (this.m_workers) {
+				for(int i = 0; i < workers; i++)
+					this.m_workers.add(Daemon.runInDaemonThread(new Runnable() {
+						@Override
+						public void run() {
+							runWorker();
+						}
+					}, token));
+			}
+			log.info(String.format("Started %s CDA import queue workers", workers));
+		}
+	}
+
+	/**
+	 * Stop the workers, waiting for items being imported to finish
+	 */
+	public void stop()
+	{
+		synchronized (this.m_lifecycleLock) {
+			List<Thread> workers;
+			synchronized (this.m_workers) {
+				this.m_running = false;
+				workers = new ArrayList<Thread>(this.m_workers);
+				this.m_workers.clear();
+			}
+
+			for(Thread worker : workers)
+				worker.interrupt();
+			for(Thread worker : workers)
+			{
+				try
+				{
+					worker.join(STOP_WAIT);
+					if(worker.isAlive())
+					{
+						log.warn(String.format("CDA import queue worker %s did not stop", worker.getName()));
+						this.m_stopping.add(worker);
+					}
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wake one idle worker because new work has been queued
+	 */
+	public void signal()
+	{
+		synchronized (this.m_signal) {
+			this.m_signal.notify();
+		}
+	}
+
+	/**
+	 * True if the calling thread is a worker of the current start, workers of a previous start
+	 * exit even if the processor has been started again
+	 */
+	private boolean isCurrentWorker()
+	{
+		synchronized (this.m_workers) {
+			return this.m_workers.contains(Thread.currentThread());
+		}
+	}
+
+	/**
+	 * Worker loop
+	 */
+	private void runWorker()
+	{
+		CdaImportService importService = Context.getService(CdaImportService.class);
+		long pollInterval = CdaHandlerConfiguration.getInstance().getQueuePollInterval();
+
+		while(this.m_running && this.isCurrentWorker())
+		{
+			CdaImportQueueItem queueItem = null;
+			try
+			{
+				queueItem = importService.claimNextQueueItem();
+
+				// Nothing to do, wait for a signal or the poll interval
+				if(queueItem == null)
+				{
+					synchronized (this.m_signal) {
+						this.m_signal.wait(pollInterval);
+					}
+					continue;
+				}
+
+				long start = System.currentTimeMillis();
+				importService.importQueueItem(queueItem);
+				this.m_totalImportMillis.addAndGet(System.currentTimeMillis() - start);
+				this.m_completedCount.incrementAndGet();
+			}
+			catch(InterruptedException e)
+			{
+				break;
+			}
+			catch(Exception e)
+			{
+				// The failed transaction leaves the session unusable
+				Context.clearSession();
+				if(queueItem == null)
+				{
+					log.error("Could not claim queue item", e);
+					continue;
+				}
+
+				log.error(String.format("Import of queue item %s failed", queueItem.getUuid()), e);
+				try
+				{
+					CdaImportQueueItem failed = importService.failQueueItem(queueItem.getId(), e);
+					if(failed != null && failed.getStatus() == CdaImportQueueItem.Status.DEAD_LETTER)
+						this.m_deadLetterCount.incrementAndGet();
+					else
+						this.m_retryCount.incrementAndGet();
+				}
+				catch(Exception fe)
+				{
+					log.error(String.format("Could not record failure of queue item %s", queueItem.getUuid()), fe);
+				}
+			}
+			finally
+			{
+				// Don't let the worker's session grow with each document
+				Context.clearSession();
+			}
+		}
+	}
+
+	/**
+	 * True if the workers are running
+	 */
+	public boolean isRunning() {
+		return this.m_running;
+	}
+
+	/**
+	 * Get the number of running workers
+	 */
+	public int getWorkerCount() {
+		synchronized (this.m_workers) {
+			return this.m_workers.size();
+		}
+	}
+
+	/**
+	 * Get the number of items waiting to be imported
+	 */
+	public long getQueueDepth() {
+		return Context.getService(CdaImportService.class).getQueueDepth(CdaImportQueueItem.Status.PENDING);
+	}
+
+	/**
+	 * Get the number of items in the dead letter state
+	 */
+	public long getDeadLetterDepth() {
+		return Context.getService(CdaImportService.class).getQueueDepth(CdaImportQueueItem.Status.DEAD_LETTER);
+	}
+
+	/**
+	 * Get the number of items imported by this processor
+	 */
+	public long getCompletedCount() {
+		return this.m_completedCount.get();
+	}
+
+	/**
+	 * Get the number of failed attempts which were scheduled for retry
+	 */
+	public long getRetryCount() {
+		return this.m_retryCount.get();
+	}
+
+	/**
+	 * Get the number of items this processor moved to the dead letter state
+	 */
+	public long getDeadLetterCount() {
+		return this.m_deadLetterCount.get();
+	}
+
+	/**
+	 * Get the mean time (in ms) to import a queued item
+	 */
+	public double getMeanImportMillis() {
+		long completed = this.m_completedCount.get();
+		if(completed == 0)
+			return 0;
+		return (double)this.m_totalImportMillis.get() / completed;
+	}
+}
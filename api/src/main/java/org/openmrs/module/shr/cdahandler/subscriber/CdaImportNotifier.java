@@ -0,0 +1,266 @@
+package org.openmrs.module.shr.cdahandler.subscriber;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
+import org.openmrs.Visit;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.shr.cdahandler.api.CdaImportSubscriber;
+import org.openmrs.module.shr.cdahandler.api.SynchronousCdaImportSubscriber;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Delivers import notifications to subscribers. Synchronous subscribers are called
+ * on the importing thread; all others are queued once the import commits and
+ * delivered by a pool of daemon worker threads
+ */
+public final class CdaImportNotifier {
+
+	// Log
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	// Singleton instance
+	private static CdaImportNotifier s_instance;
+	private static Object s_lockObject = new Object();
+
+	// How long an idle worker waits before checking if it should stop (ms)
+	private static final long IDLE_WAIT = 1000;
+	// How long stop() waits for each worker to finish (ms)
+	private static final long STOP_WAIT = 5000;
+
+	/**
+	 * Starts a worker thread running the supplied loop
+	 */
+	interface WorkerLauncher {
+		Thread launch(Runnable worker);
+	}
+
+	// Lanes ready to run
+	private final LinkedBlockingQueue<Runnable> m_work = new LinkedBlockingQueue<Runnable>();
+	// Schedules lanes on the workers
+	private final Executor m_executor = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			m_work.add(command);
+		}
+	};
+	// One channel per subscriber
+	private final ConcurrentHashMap<CdaImportSubscriber, SubscriberChannel> m_channels = new ConcurrentHashMap<CdaImportSubscriber, SubscriberChannel>();
+	// Running workers
+	private final List<Thread> m_workers = new ArrayList<Thread>();
+	// True while the workers should keep running
+	private volatile boolean m_running = false;
+
+	/**
+	 * Private ctor
+	 */
+	private CdaImportNotifier()
+	{
+	}
+
+	/**
+	 * Get the singleton instance
+	 */
+	public static CdaImportNotifier getInstance()
+	{
+		if(s_instance == null)
+			synchronized (s_lockObject) {
+				if(s_instance == null)
+					s_instance = new CdaImportNotifier();
+			}
+		return s_instance;
+	}
+
+	/**
+	 * Start the configured number of delivery workers as daemon threads
+	 */
+	public void start(final DaemonToken token)
+	{
+		this.start(new WorkerLauncher() {
+			@Override
+			public Thread launch(Runnable worker) {
+				return Daemon.runInDaemonThread(worker, token);
+			}
+		});
+	}
+
+	/**
+	 * Start the configured number of delivery workers with the launcher
+	 */
+	void start(WorkerLauncher launcher)
+	{
+		synchronized (this.m_workers) {
+			if(this.m_running)
+				return;
+			this.m_running = true;
+
+			int workers = CdaHandlerConfiguration.getInstance().getSubscriberWorkers();
+			for(int i = 0; i < workers; i++)
+				this.m_workers.add(launcher.launch(new Runnable() {
+					@Override
+					public void run() {
+						runWorker();
+					}
+				}));
+			log.info(String.format("Started %s import notification workers", workers));
+		}
+	}
+
+	/**
+	 * Stop the workers, waiting for them to finish. Notifications still queued are not delivered,
+	 * and importing threads blocked waiting for room in a queue are released
+	 */
+	public void stop()
+	{
+		List<Thread> workers;
+		synchronized (this.m_workers) {
+			this.m_running = false;
+			workers = new ArrayList<Thread>(this.m_workers);
+			this.m_workers.clear();
+		}
+
+		// Channels are created again on the next start
+		for(SubscriberChannel channel : this.m_channels.values())
+			channel.close();
+		this.m_channels.clear();
+
+		for(Thread worker : workers)
+			worker.interrupt();
+		for(Thread worker : workers)
+		{
+			try
+			{
+				worker.join(STOP_WAIT);
+				if(worker.isAlive())
+					log.warn(String.format("Import notification worker %s did not stop", worker.getName()));
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		if(!this.m_work.isEmpty())
+			log.warn(String.format("Stopping with %s subscriber lanes undelivered", this.m_work.size()));
+		this.m_work.clear();
+	}
+
+	/**
+	 * Notify subscribers that a document was imported into the visit
+	 */
+	public void dispatch(ClinicalDocument document, Visit visit, Collection<CdaImportSubscriber> subscribers)
+	{
+		final List<SubscriberChannel> deferred = new ArrayList<SubscriberChannel>(subscribers.size());
+		for(CdaImportSubscriber subscriber : subscribers)
+		{
+			// Synchronous subscribers (or all of them when there are no workers) are called now
+			if(!this.m_running || subscriber instanceof SynchronousCdaImportSubscriber)
+				subscriber.onDocumentImported(document, visit);
+			else
+				deferred.add(this.getChannel(subscriber));
+		}
+
+		if(deferred.isEmpty())
+			return;
+
+		// Order by patient so a subscriber sees a patient's documents in import order
+		String orderingKey = visit.getPatient() != null ? visit.getPatient().getUuid() : visit.getUuid();
+		final ImportNotification notification = new ImportNotification(document, visit.getUuid(), orderingKey);
+		final RejectionPolicy policy = RejectionPolicy.parse(CdaHandlerConfiguration.getInstance().getSubscriberRejectionPolicy());
+
+		// Subscribers shouldn't hear about an import which is rolled back, or read it before it is visible
+		if(TransactionSynchronizationManager.isSynchronizationActive())
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					offer(notification, deferred, policy);
+				}
+			});
+		else
+			this.offer(notification, deferred, policy);
+	}
+
+	/**
+	 * Queue the notification on each channel, or deliver it now if the workers have stopped since the import
+	 */
+	private void offer(ImportNotification notification, List<SubscriberChannel> channels, RejectionPolicy policy)
+	{
+		for(SubscriberChannel channel : channels)
+			if(this.m_running)
+				channel.offer(notification, policy);
+			else
+				channel.deliver(notification);
+	}
+
+	/**
+	 * Get or create the channel for a subscriber
+	 */
+	private SubscriberChannel getChannel(CdaImportSubscriber subscriber)
+	{
+		SubscriberChannel channel = this.m_channels.get(subscriber);
+		if(channel == null)
+		{
+			channel = new SubscriberChannel(subscriber, this.m_executor, CdaHandlerConfiguration.getInstance().getSubscriberQueueCapacity());
+			SubscriberChannel existing = this.m_channels.putIfAbsent(subscriber, channel);
+			if(existing != null)
+				channel = existing;
+		}
+		return channel;
+	}
+
+	/**
+	 * Worker loop
+	 */
+	private void runWorker()
+	{
+		while(this.m_running)
+		{
+			try
+			{
+				Runnable lane = this.m_work.poll(IDLE_WAIT, TimeUnit.MILLISECONDS);
+				if(lane != null)
+					lane.run();
+			}
+			catch(InterruptedException e)
+			{
+				break;
+			}
+			catch(Exception e)
+			{
+				log.error("Error delivering import notification", e);
+			}
+			finally
+			{
+				// Don't let the worker's session grow with each notification
+				Context.clearSession();
+			}
+		}
+	}
+
+	/**
+	 * True if notifications are being delivered asynchronously
+	 */
+	public boolean isRunning() {
+		return this.m_running;
+	}
+
+	/**
+	 * Get the delivery channels (for metrics)
+	 */
+	public Collection<SubscriberChannel> getChannels() {
+		return this.m_channels.values();
+	}
+}
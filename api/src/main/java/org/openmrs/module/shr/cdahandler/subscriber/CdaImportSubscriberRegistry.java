@@ -0,0 +1,163 @@
+package org.openmrs.module.shr.cdahandler.subscriber;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.marc.everest.datatypes.II;
+import org.openmrs.module.shr.cdahandler.api.CdaImportSubscriber;
+
+/**
+ * Registry of import subscribers keyed by template root. The registry is an immutable
+ * snapshot which is replaced on subscribe / unsubscribe, so imports never see it half
+ * changed. Each snapshot memoizes the subscribers resolved for a document's template ids
+ * so repeat document types resolve with a single lookup
+ */
+public final class CdaImportSubscriberRegistry {
+
+	// Key for subscribers to all documents
+	public static final String ALL_TEMPLATES = "*";
+
+	// Most template id signatures memoized per snapshot
+	private static final int MAX_RESOLVED = 1024;
+
+	/**
+	 * An immutable view of the subscriptions
+	 */
+	private static final class Snapshot {
+
+		// Subscribers by template root
+		private final Map<String, Set<CdaImportSubscriber>> m_subscribers;
+		// Resolved subscribers by template id signature
+		private final ConcurrentHashMap<String, List<CdaImportSubscriber>> m_resolved = new ConcurrentHashMap<String, List<CdaImportSubscriber>>();
+
+		/**
+		 * Creates a new snapshot
+		 */
+		private Snapshot(Map<String, Set<CdaImportSubscriber>> subscribers)
+		{
+			this.m_subscribers = subscribers;
+		}
+
+		/**
+		 * Resolve the subscribers for the template ids
+		 */
+		private List<CdaImportSubscriber> resolve(Iterable<II> templateIds)
+		{
+			Set<CdaImportSubscriber> retVal = new LinkedHashSet<CdaImportSubscriber>();
+			Set<CdaImportSubscriber> candidates = this.m_subscribers.get(ALL_TEMPLATES);
+			if(candidates != null)
+				retVal.addAll(candidates);
+			if(templateIds != null)
+				for(II templateId : templateIds)
+				{
+					candidates = this.m_subscribers.get(templateId.getRoot());
+					if(candidates != null)
+						retVal.addAll(candidates);
+				}
+			return Collections.unmodifiableList(new ArrayList<CdaImportSubscriber>(retVal));
+		}
+	}
+
+	// The current snapshot, writers replace it while holding m_writeLock
+	private volatile Snapshot m_snapshot = new Snapshot(Collections.<String, Set<CdaImportSubscriber>>emptyMap());
+	private final Object m_writeLock = new Object();
+
+	/**
+	 * Subscribe to documents with the template root (null for all documents)
+	 */
+	public void subscribe(String templateId, CdaImportSubscriber subscriber)
+	{
+		if(templateId == null)
+			templateId = ALL_TEMPLATES;
+
+		synchronized (this.m_writeLock) {
+			Set<CdaImportSubscriber> existing = this.m_snapshot.m_subscribers.get(templateId);
+			if(existing != null && existing.contains(subscriber))
+				return;
+
+			Set<CdaImportSubscriber> subscribers = new LinkedHashSet<CdaImportSubscriber>();
+			if(existing != null)
+				subscribers.addAll(existing);
+			subscribers.add(subscriber);
+			this.replace(templateId, subscribers);
+		}
+	}
+
+	/**
+	 * Remove a subscription (null template for the all documents subscription)
+	 */
+	public void unsubscribe(String templateId, CdaImportSubscriber subscriber)
+	{
+		if(templateId == null)
+			templateId = ALL_TEMPLATES;
+
+		synchronized (this.m_writeLock) {
+			Set<CdaImportSubscriber> existing = this.m_snapshot.m_subscribers.get(templateId);
+			if(existing == null || !existing.contains(subscriber))
+				return;
+
+			Set<CdaImportSubscriber> subscribers = new LinkedHashSet<CdaImportSubscriber>(existing);
+			subscribers.remove(subscriber);
+			this.replace(templateId, subscribers.isEmpty() ? null : subscribers);
+		}
+	}
+
+	/**
+	 * Publish a new snapshot with the template's subscribers replaced (must hold m_writeLock)
+	 */
+	private void replace(String templateId, Set<CdaImportSubscriber> subscribers)
+	{
+		Map<String, Set<CdaImportSubscriber>> map = new HashMap<String, Set<CdaImportSubscriber>>(this.m_snapshot.m_subscribers);
+		if(subscribers == null)
+			map.remove(templateId);
+		else
+			map.put(templateId, Collections.unmodifiableSet(subscribers));
+		this.m_snapshot = new Snapshot(Collections.unmodifiableMap(map));
+	}
+
+	/**
+	 * Get the subscribers to notify for a document with the template ids, in subscription order
+	 */
+	public List<CdaImportSubscriber> getSubscribers(Iterable<II> templateIds)
+	{
+		Snapshot snapshot = this.m_snapshot;
+		if(snapshot.m_subscribers.isEmpty())
+			return Collections.emptyList();
+
+		String signature = getSignature(templateIds);
+		List<CdaImportSubscriber> retVal = snapshot.m_resolved.get(signature);
+		if(retVal == null)
+		{
+			retVal = snapshot.resolve(templateIds);
+			if(snapshot.m_resolved.size() < MAX_RESOLVED)
+				snapshot.m_resolved.putIfAbsent(signature, retVal);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Get the number of template id signatures resolved in the current snapshot
+	 */
+	public int getResolvedCount() {
+		return this.m_snapshot.m_resolved.size();
+	}
+
+	/**
+	 * Get the signature of a document's template ids
+	 */
+	private static String getSignature(Iterable<II> templateIds)
+	{
+		if(templateIds == null)
+			return "";
+		StringBuilder signature = new StringBuilder();
+		for(II templateId : templateIds)
+			signature.append(templateId.getRoot()).append('|');
+		return signature.toString();
+	}
+}
@@ -0,0 +1,57 @@
+package org.openmrs.module.shr.cdahandler.subscriber;
+
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
+
+/**
+ * A notification that a document was imported, waiting to be delivered.
+ * The visit is carried by uuid since the importing session's objects can't be used on another thread
+ */
+public final class ImportNotification {
+
+	// The imported document
+	private final ClinicalDocument m_document;
+	// The uuid of the visit the document was imported into
+	private final String m_visitUuid;
+	// Notifications with the same ordering key are delivered in order
+	private final String m_orderingKey;
+	// When the notification was created (ms)
+	private final long m_createdAt = System.currentTimeMillis();
+
+	/**
+	 * Creates a new notification
+	 */
+	public ImportNotification(ClinicalDocument document, String visitUuid, String orderingKey)
+	{
+		this.m_document = document;
+		this.m_visitUuid = visitUuid;
+		this.m_orderingKey = orderingKey;
+	}
+
+	/**
+	 * Get the imported document
+	 */
+	public ClinicalDocument getDocument() {
+		return this.m_document;
+	}
+
+	/**
+	 * Get the uuid of the visit the document was imported into
+	 */
+	public String getVisitUuid() {
+		return this.m_visitUuid;
+	}
+
+	/**
+	 * Get the key (patient) within which delivery is ordered
+	 */
+	public String getOrderingKey() {
+		return this.m_orderingKey;
+	}
+
+	/**
+	 * Get the time the notification was created (ms)
+	 */
+	public long getCreatedAt() {
+		return this.m_createdAt;
+	}
+}
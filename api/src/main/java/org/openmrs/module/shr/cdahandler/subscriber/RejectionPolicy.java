@@ -0,0 +1,25 @@
+package org.openmrs.module.shr.cdahandler.subscriber;
+
+/**
+ * What to do with a notification when a subscriber's queue is full
+ */
+public enum RejectionPolicy {
+	// Wait on the importing thread until the subscriber has room (keeps per-patient order)
+	BLOCK,
+	// Deliver the notification on the importing thread (may overtake queued notifications)
+	CALLER_RUNS,
+	// Discard the notification
+	DROP;
+
+	/**
+	 * Parse a policy name, falling back to BLOCK when it isn't recognized
+	 */
+	public static RejectionPolicy parse(String name)
+	{
+		if(name != null)
+			for(RejectionPolicy policy : values())
+				if(policy.name().equalsIgnoreCase(name.trim()))
+					return policy;
+		return BLOCK;
+	}
+}
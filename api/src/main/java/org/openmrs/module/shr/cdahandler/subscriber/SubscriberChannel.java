@@ -0,0 +1,277 @@
+package org.openmrs.module.shr.cdahandler.subscriber;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Visit;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.cdahandler.api.CdaImportSubscriber;
+
+/**
+ * The bounded queue of notifications for one subscriber. Notifications are split into
+ * lanes by ordering key (patient); each lane is delivered serially, different lanes in parallel
+ */
+public final class SubscriberChannel {
+
+	/**
+	 * Notifications for one ordering key
+	 */
+	private final class Lane implements Runnable {
+
+		// The ordering key
+		private final String m_key;
+		// Undelivered notifications (guarded by m_lanes)
+		private final LinkedList<ImportNotification> m_pending = new LinkedList<ImportNotification>();
+
+		/**
+		 * Creates a new lane
+		 */
+		private Lane(String key)
+		{
+			this.m_key = key;
+		}
+
+		/**
+		 * Deliver the next notification then yield the worker to other lanes
+		 */
+		@Override
+		public void run() {
+			ImportNotification notification;
+			synchronized (m_lanes) {
+				notification = this.m_pending.peek();
+			}
+			try
+			{
+				deliver(notification);
+			}
+			finally
+			{
+				m_capacity.release();
+				boolean more;
+				synchronized (m_lanes) {
+					this.m_pending.poll();
+					more = !this.m_pending.isEmpty();
+					if(!more)
+						m_lanes.remove(this.m_key);
+				}
+				if(more)
+					m_executor.execute(this);
+			}
+		}
+	}
+
+	// How long a blocked offer waits before checking if the channel was closed (ms)
+	private static final long BLOCK_WAIT = 500;
+
+	// Log
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	// The subscriber
+	private final CdaImportSubscriber m_subscriber;
+	// Runs lanes
+	private final Executor m_executor;
+	// Room left in the queue
+	private final Semaphore m_capacity;
+	// Lanes with undelivered notifications
+	private final Map<String, Lane> m_lanes = new HashMap<String, Lane>();
+	// True once the channel no longer accepts notifications
+	private volatile boolean m_closed = false;
+
+	// Metrics
+	private final AtomicLong m_deliveredCount = new AtomicLong();
+	private final AtomicLong m_failedCount = new AtomicLong();
+	private final AtomicLong m_droppedCount = new AtomicLong();
+	private final AtomicLong m_callerRunsCount = new AtomicLong();
+	private final AtomicLong m_blockedCount = new AtomicLong();
+	private final AtomicLong m_totalLatencyMillis = new AtomicLong();
+	private final AtomicLong m_maxLatencyMillis = new AtomicLong();
+
+	/**
+	 * Creates a new channel
+	 */
+	SubscriberChannel(CdaImportSubscriber subscriber, Executor executor, int capacity)
+	{
+		this.m_subscriber = subscriber;
+		this.m_executor = executor;
+		this.m_capacity = new Semaphore(capacity);
+	}
+
+	/**
+	 * Queue a notification, applying the rejection policy if the queue is full. Notifications
+	 * offered to (or blocked on) a closed channel are dropped
+	 */
+	void offer(ImportNotification notification, RejectionPolicy policy)
+	{
+		if(this.m_closed)
+		{
+			this.drop(notification, "closed");
+			return;
+		}
+		
+		if(!this.m_capacity.tryAcquire())
+		{
+			switch(policy)
+			{
+				case DROP:
+					this.drop(notification, "full");
+					return;
+				case CALLER_RUNS:
+					this.m_callerRunsCount.incrementAndGet();
+					this.deliver(notification);
+					return;
+				default:
+					this.m_blockedCount.incrementAndGet();
+					try
+					{
+						while(!this.m_capacity.tryAcquire(BLOCK_WAIT, TimeUnit.MILLISECONDS))
+							if(this.m_closed)
+							{
+								this.drop(notification, "closed");
+								return;
+							}
+					}
+					catch(InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						this.drop(notification, "full and the importing thread was interrupted");
+						return;
+					}
+			}
+		}
+
+		Lane schedule = null;
+		synchronized (this.m_lanes) {
+			Lane lane = this.m_lanes.get(notification.getOrderingKey());
+			if(lane == null)
+			{
+				lane = new Lane(notification.getOrderingKey());
+				this.m_lanes.put(lane.m_key, lane);
+				schedule = lane;
+			}
+			lane.m_pending.add(notification);
+		}
+		if(schedule != null)
+			this.m_executor.execute(schedule);
+	}
+
+	/**
+	 * Count and log a notification which won't be delivered
+	 */
+	private void drop(ImportNotification notification, String reason)
+	{
+		this.m_droppedCount.incrementAndGet();
+		log.warn(String.format("Dropped notification for visit %s to %s, its queue is %s", notification.getVisitUuid(), this.m_subscriber, reason));
+	}
+
+	/**
+	 * Stop accepting notifications, releasing any importing thread blocked waiting for room
+	 */
+	void close()
+	{
+		this.m_closed = true;
+	}
+
+	/**
+	 * Deliver a notification to the subscriber
+	 */
+	void deliver(ImportNotification notification)
+	{
+		try
+		{
+			Visit visit = Context.getVisitService().getVisitByUuid(notification.getVisitUuid());
+			this.m_subscriber.onDocumentImported(notification.getDocument(), visit);
+			this.m_deliveredCount.incrementAndGet();
+		}
+		catch(Exception e)
+		{
+			this.m_failedCount.incrementAndGet();
+			log.error(String.format("Subscriber %s failed to handle import of visit %s", this.m_subscriber, notification.getVisitUuid()), e);
+		}
+		finally
+		{
+			long latency = System.currentTimeMillis() - notification.getCreatedAt();
+			this.m_totalLatencyMillis.addAndGet(latency);
+			long max = this.m_maxLatencyMillis.get();
+			while(latency > max && !this.m_maxLatencyMillis.compareAndSet(max, latency))
+				max = this.m_maxLatencyMillis.get();
+		}
+	}
+
+	/**
+	 * Get the subscriber
+	 */
+	public CdaImportSubscriber getSubscriber() {
+		return this.m_subscriber;
+	}
+
+	/**
+	 * Get the number of notifications waiting to be delivered
+	 */
+	public int getQueueDepth() {
+		synchronized (this.m_lanes) {
+			int retVal = 0;
+			for(Lane lane : this.m_lanes.values())
+				retVal += lane.m_pending.size();
+			return retVal;
+		}
+	}
+
+	/**
+	 * Get the number of notifications delivered
+	 */
+	public long getDeliveredCount() {
+		return this.m_deliveredCount.get();
+	}
+
+	/**
+	 * Get the number of notifications the subscriber failed to handle
+	 */
+	public long getFailedCount() {
+		return this.m_failedCount.get();
+	}
+
+	/**
+	 * Get the number of notifications dropped because the queue was full or closed
+	 */
+	public long getDroppedCount() {
+		return this.m_droppedCount.get();
+	}
+
+	/**
+	 * Get the number of notifications delivered on the importing thread because the queue was full
+	 */
+	public long getCallerRunsCount() {
+		return this.m_callerRunsCount.get();
+	}
+
+	/**
+	 * Get the number of times the importing thread waited for room in the queue
+	 */
+	public long getBlockedCount() {
+		return this.m_blockedCount.get();
+	}
+
+	/**
+	 * Get the mean time (in ms) from import to delivery
+	 */
+	public double getMeanLatencyMillis() {
+		long count = this.m_deliveredCount.get() + this.m_failedCount.get();
+		if(count == 0)
+			return 0;
+		return (double)this.m_totalLatencyMillis.get() / count;
+	}
+
+	/**
+	 * Get the longest time (in ms) from import to delivery
+	 */
+	public long getMaxLatencyMillis() {
+		return this.m_maxLatencyMillis.get();
+	}
+}
@@ -0,0 +1,126 @@
+package org.openmrs.module.shr.cdahandler.api.db.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Checks liquibase.xml adds the indexes the module's lookups rely on, each guarded so it
+ * is only created when missing. The changesets are MySQL only and aren't applied to the
+ * test database, so the change log itself is checked
+ */
+public class HibernateCdaImportServiceDAOIndexTest {
+
+	// CREATE INDEX statement of a sql change
+	private static final Pattern CREATE_INDEX = Pattern.compile("CREATE INDEX (\\w+) ON (\\w+) \\((.+)\\)", Pattern.CASE_INSENSITIVE);
+
+	// The change log
+	private Document m_changeLog;
+
+	@Before
+	public void beforeEachTest() throws Exception {
+		InputStream changeLog = this.getClass().getResourceAsStream("/liquibase.xml");
+		try
+		{
+			this.m_changeLog = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(changeLog);
+		}
+		finally
+		{
+			changeLog.close();
+		}
+	}
+
+	/**
+	 * Get a changeset by id
+	 */
+	private Element getChangeSet(String id) {
+		NodeList changeSets = this.m_changeLog.getElementsByTagName("changeSet");
+		for(int i = 0; i < changeSets.getLength(); i++)
+			if(id.equals(((Element)changeSets.item(i)).getAttribute("id")))
+				return (Element)changeSets.item(i);
+		return null;
+	}
+
+	/**
+	 * Assert the changeset creates the index on the table's columns (in order) unless the index exists
+	 */
+	private void assertCreatesIndex(String changeSetId, String indexName, String tableName, String... columns) {
+		Element changeSet = this.getChangeSet(changeSetId);
+		assertNotNull(changeSetId, changeSet);
+
+		List<String> actualColumns = new ArrayList<String>();
+		NodeList createIndexes = changeSet.getElementsByTagName("createIndex");
+		if(createIndexes.getLength() > 0)
+		{
+			Element createIndex = (Element)createIndexes.item(0);
+			assertEquals(indexName, createIndex.getAttribute("indexName"));
+			assertEquals(tableName, createIndex.getAttribute("tableName"));
+			NodeList columnElements = createIndex.getElementsByTagName("column");
+			for(int i = 0; i < columnElements.getLength(); i++)
+				actualColumns.add(((Element)columnElements.item(i)).getAttribute("name"));
+		}
+		else
+		{
+			NodeList sql = changeSet.getElementsByTagName("sql");
+			assertEquals(changeSetId, 1, sql.getLength());
+			Matcher matcher = CREATE_INDEX.matcher(sql.item(0).getTextContent().trim());
+			assertTrue(sql.item(0).getTextContent(), matcher.matches());
+			assertEquals(indexName, matcher.group(1));
+			assertEquals(tableName, matcher.group(2));
+			for(String column : matcher.group(3).split(","))
+				actualColumns.add(column.replaceAll("\\(\\d+\\)", "").trim());
+		}
+		assertEquals(Arrays.asList(columns), actualColumns);
+
+		// Guarded so it isn't created twice
+		boolean guarded = false;
+		NodeList indexExists = changeSet.getElementsByTagName("indexExists");
+		for(int i = 0; i < indexExists.getLength(); i++)
+		{
+			Element precondition = (Element)indexExists.item(i);
+			guarded |= indexName.equals(precondition.getAttribute("indexName")) && tableName.equals(precondition.getAttribute("tableName"));
+		}
+		assertTrue(changeSetId, guarded);
+	}
+
+	@Test
+	public void shouldIndexObsByAccessionNumber() {
+		this.assertCreatesIndex("shr-cdahandler-obs-accession-number-voided-index", "shr_cda_obs_accession_voided", "obs", "accession_number", "voided");
+	}
+
+	@Test
+	public void shouldIndexOrdersByAccessionNumber() {
+		this.assertCreatesIndex("shr-cdahandler-orders-accession-number-voided-index", "shr_cda_orders_accession_voided", "orders", "accession_number", "voided");
+	}
+
+	@Test
+	public void shouldIndexConceptSourceByHl7() {
+		this.assertCreatesIndex("shr-cdahandler-concept-source-hl7-code-index", "shr_cda_concept_source_hl7_code", "concept_source", "hl7_code");
+	}
+
+	@Test
+	public void shouldIndexActiveListByObs() {
+		this.assertCreatesIndex("shr-cdahandler-active-list-start-obs-index", "shr_cda_active_list_start_obs", "active_list", "start_obs_id");
+		this.assertCreatesIndex("shr-cdahandler-active-list-stop-obs-index", "shr_cda_active_list_stop_obs", "active_list", "stop_obs_id");
+	}
+
+	@Test
+	public void shouldIndexVisitAttributeByValue() {
+		this.assertCreatesIndex("shr-cdahandler-visit-attribute-value-index", "shr_cda_visit_attribute_value", "visit_attribute", "attribute_type_id", "value_reference");
+	}
+}
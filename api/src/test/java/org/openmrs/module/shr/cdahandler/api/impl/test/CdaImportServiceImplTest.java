@@ -1,16 +1,31 @@
 package org.openmrs.module.shr.cdahandler.api.impl.test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.math.BigDecimal;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.Before;
 import org.junit.Test;
 import org.marc.everest.datatypes.PQ;
@@ -18,13 +33,22 @@ import org.marc.everest.datatypes.generic.CV;
 import org.marc.everest.formatters.FormatterUtil;
 import org.marc.everest.interfaces.IResultDetail;
 import org.marc.everest.rmim.uv.cdar2.rim.InfrastructureRoot;
+import org.openmrs.Concept;
+import org.openmrs.ConceptMap;
+import org.openmrs.ConceptReferenceTerm;
+import org.openmrs.Encounter;
 import org.openmrs.GlobalProperty;
 import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.Visit;
+import org.openmrs.VisitAttribute;
+import org.openmrs.VisitAttributeType;
+import org.openmrs.activelist.Allergy;
 import org.openmrs.activelist.Problem;
+import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
+import org.openmrs.module.shr.cdahandler.api.CdaImportResult;
 import org.openmrs.module.shr.cdahandler.api.CdaImportService;
 import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
@@ -34,6 +58,9 @@ import org.openmrs.module.shr.cdahandler.processor.document.impl.ihe.pcc.Immuniz
 import org.openmrs.module.shr.cdahandler.processor.document.impl.ihe.pcc.MedicalDocumentsDocumentProcessor;
 import org.openmrs.module.shr.cdahandler.processor.document.impl.ihe.pcc.MedicalSummaryDocumentProcessor;
 import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsConceptUtil;
+import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsMetadataUtil;
+import org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem;
+import org.openmrs.obs.ComplexObsHandler;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.util.OpenmrsConstants;
 
@@ -216,5 +243,394 @@ public class CdaImportServiceImplTest extends BaseModuleContextSensitiveTest  {
 		assertEquals(new AntepartumHistoryAndPhysicalDocumentProcessor().getTemplateName(), Context.getVisitService().getVisitByUuid(id).getVisitType().getName());
 	}
 
+	@Test
+	public void shouldIsolateFailuresInBatch() {
+		List<InputStream> batch = new ArrayList<InputStream>();
+		batch.add(this.getClass().getResourceAsStream("/validAphpSample.xml"));
+		batch.add(this.getClass().getResourceAsStream("/validCdaLevel3Sample2.xml"));
+		batch.add(this.getClass().getResourceAsStream("/minimalIc.xml"));
+		List<CdaImportResult> results = this.m_service.importDocuments(batch);
+		assertEquals(3, results.size());
+		assertTrue(results.get(0).isSuccessful());
+		assertTrue(results.get(0).getVisit() != null);
+		assertFalse(results.get(1).isSuccessful());
+		assertTrue(results.get(2).isSuccessful());
+		assertTrue(Context.getVisitService().getVisitByUuid(results.get(0).getVisit().getUuid()) != null);
+	}
+
+	@Test
+	public void shouldIsolateRuntimeFailuresInBatch() {
+		List<InputStream> batch = new ArrayList<InputStream>();
+		batch.add(this.getClass().getResourceAsStream("/validAphpSample.xml"));
+		batch.add(null); // Fails with a NullPointerException
+		batch.add(this.getClass().getResourceAsStream("/minimalIc.xml"));
+		List<CdaImportResult> results = this.m_service.importDocuments(batch);
+		assertEquals(3, results.size());
+		assertTrue(results.get(0).isSuccessful());
+		assertFalse(results.get(1).isSuccessful());
+		assertTrue(results.get(1).getException().getCause() instanceof NullPointerException);
+		assertTrue(results.get(2).isSuccessful());
+		assertTrue(Context.getVisitService().getVisitByUuid(results.get(0).getVisit().getUuid()) != null);
+		
+		// The visit imported before the failed document is still attached to the session
+		assertTrue(Context.getRegisteredComponents(SessionFactory.class).get(0).getCurrentSession().contains(results.get(0).getVisit()));
+	}
+
+	@Test(expected = APIException.class)
+	public void shouldFailBatchOnCoreServiceFailure() throws Exception {
+		// A birth date in the future is rejected by the core patient validator
+		String document = new String(this.readFully(this.getClass().getResourceAsStream("/minimalIc.xml")), "UTF-8");
+		document = document.replace("<birthTime value=\"20140810\" />", "<birthTime value=\"29140810\" />");
+		
+		List<InputStream> batch = new ArrayList<InputStream>();
+		batch.add(this.getClass().getResourceAsStream("/validAphpSample.xml"));
+		batch.add(new ByteArrayInputStream(document.getBytes("UTF-8")));
+		this.m_service.importDocuments(batch);
+	}
+
+	@Test
+	public void shouldQueueAndImportDocument() throws Exception {
+		CdaImportQueueItem queued = this.m_service.queueDocument(this.getClass().getResourceAsStream("/validAphpSample.xml"));
+		assertEquals(CdaImportQueueItem.Status.PENDING, queued.getStatus());
+		// Re-submission is acknowledged with the original item
+		assertEquals(queued.getUuid(), this.m_service.queueDocument(this.getClass().getResourceAsStream("/validAphpSample.xml")).getUuid());
+		assertEquals(1, this.m_service.getQueueDepth(CdaImportQueueItem.Status.PENDING));
+		
+		CdaImportQueueItem claimed = this.m_service.claimNextQueueItem();
+		assertEquals(queued.getUuid(), claimed.getUuid());
+		assertEquals(CdaImportQueueItem.Status.PROCESSING, claimed.getStatus());
+		assertEquals(Integer.valueOf(1), claimed.getAttempts());
+		
+		Visit visit = this.m_service.importQueueItem(claimed);
+		assertTrue(visit != null);
+		assertEquals(CdaImportQueueItem.Status.COMPLETE, this.m_service.getQueueItemByUuid(queued.getUuid()).getStatus());
+		assertEquals(0, this.m_service.getQueueDepth(CdaImportQueueItem.Status.PENDING));
+	}
+
+	@Test
+	public void shouldQueueResubmissionOfImportedDocument() throws Exception {
+		CdaImportQueueItem queued = this.m_service.queueDocument(this.getClass().getResourceAsStream("/validAphpSample.xml"));
+		this.m_service.importQueueItem(this.m_service.claimNextQueueItem());
+		assertEquals(CdaImportQueueItem.Status.COMPLETE, this.m_service.getQueueItemByUuid(queued.getUuid()).getStatus());
+		
+		// Already imported, so the same document is queued again
+		CdaImportQueueItem resubmitted = this.m_service.queueDocument(this.getClass().getResourceAsStream("/validAphpSample.xml"));
+		assertFalse(queued.getUuid().equals(resubmitted.getUuid()));
+		assertEquals(CdaImportQueueItem.Status.PENDING, resubmitted.getStatus());
+		assertEquals(1, this.m_service.getQueueDepth(CdaImportQueueItem.Status.PENDING));
+	}
+
+	@Test
+	public void shouldClaimQueueItemOnce() throws Exception {
+		CdaImportQueueItem queued = this.m_service.queueDocument(this.getClass().getResourceAsStream("/validAphpSample.xml"));
+		assertEquals(queued.getUuid(), this.m_service.claimNextQueueItem().getUuid());
+		
+		// Already processing, so no other worker can claim it
+		assertNull(this.m_service.claimNextQueueItem());
+		assertEquals(1, this.m_service.getQueueDepth(CdaImportQueueItem.Status.PROCESSING));
+		assertEquals(Integer.valueOf(1), this.m_service.getQueueItemByUuid(queued.getUuid()).getAttempts());
+	}
+
+	@Test
+	public void shouldFindVisitByExternalId() throws Exception {
+		String id = this.doParseCda("/validAphpSample.xml");
+		Visit visit = Context.getVisitService().getVisitByUuid(id);
+		VisitAttributeType externalIdType = OpenmrsMetadataUtil.getInstance().getOrCreateVisitExternalIdAttributeType();
+		String externalId = null;
+		for(VisitAttribute attr : visit.getActiveAttributes())
+			if(attr.getAttributeType().equals(externalIdType))
+				externalId = attr.getValueReference();
+		assertTrue(externalId != null);
+		
+		assertEquals(visit, this.m_service.getVisitByAttribute(visit.getPatient(), externalIdType, externalId));
+		assertTrue(this.m_service.getVisitByAttribute(visit.getPatient(), externalIdType, externalId + "x") == null);
+	}
+
+	@Test
+	public void shouldResolveAccessionNumbersInBulk() throws Exception {
+		String id = this.doParseCda("/validAphpSample.xml");
+		Visit visit = Context.getVisitService().getVisitByUuid(id);
+		Set<String> accessionNumbers = new HashSet<String>();
+		for(Encounter encounter : visit.getEncounters())
+			for(Obs obs : encounter.getAllObs())
+				if(obs.getAccessionNumber() != null)
+					accessionNumbers.add(obs.getAccessionNumber());
+		assertFalse(accessionNumbers.isEmpty());
+		accessionNumbers.add("not-an-accession-number");
+		
+		Map<String, Integer> obsIds = this.m_service.getObsIdsByAccessionNumbers(accessionNumbers);
+		assertEquals(accessionNumbers.size() - 1, obsIds.size());
+		for(Map.Entry<String, Integer> obsId : obsIds.entrySet())
+			assertEquals(obsId.getKey(), Context.getObsService().getObs(obsId.getValue()).getAccessionNumber());
+	}
+
+	@Test
+	public void shouldVoidVisitDataInBulk() throws Exception {
+		String id = this.doParseCda("/validAphpSample.xml");
+		Visit visit = Context.getVisitService().getVisitByUuid(id);
+		assertTrue(this.m_service.voidVisitData(visit, "Replaced") > 0);
+		
+		Context.flushSession();
+		Context.clearSession();
+		visit = Context.getVisitService().getVisitByUuid(id);
+		assertTrue(visit.isVoided());
+		assertEquals("Replaced", visit.getVoidReason());
+		for(Encounter encounter : visit.getEncounters())
+		{
+			assertTrue(encounter.isVoided());
+			for(Obs obs : encounter.getAllObs(true))
+				assertTrue(obs.isVoided());
+		}
+	}
+
+	@Test
+	public void shouldKeepSessionEntitiesVoidedAfterBulkVoid() throws Exception {
+		String id = this.doParseCda("/validAphpSample.xml");
+		Context.flushSession();
+		Context.clearSession();
+		
+		// Load the children into the session before the bulk update
+		Visit visit = Context.getVisitService().getVisitByUuid(id);
+		List<Obs> loaded = new ArrayList<Obs>();
+		for(Encounter encounter : visit.getEncounters())
+			loaded.addAll(encounter.getAllObs());
+		assertFalse(loaded.isEmpty());
+		
+		assertTrue(this.m_service.voidVisitData(visit, "Replaced") > 0);
+		for(Encounter encounter : visit.getEncounters())
+			assertTrue(encounter.isVoided());
+		for(Obs obs : loaded)
+			assertTrue(obs.isVoided());
+		
+		// A flush of the session must not un-void them
+		Context.flushSession();
+		Context.clearSession();
+		for(Obs obs : loaded)
+			assertTrue(Context.getObsService().getObs(obs.getObsId()).isVoided());
+	}
+
+	@Test
+	public void shouldSaveSameObsWithUnitOfWork() throws Exception {
+		Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_UNIT_OF_WORK, "false");
+		int expected = this.countObs(this.doParseCda("/validCdaLevel3Sample.xml"));
+		Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_UPDATE_EXISTING, "true");
+		Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_UNIT_OF_WORK, "true");
+		int actual = this.countObs(this.doParseCda("/validCdaLevel3Sample.xml"));
+		assertTrue(expected > 0);
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void shouldReplaceObsOfSameDocumentWithUnitOfWork() throws Exception {
+		Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_UPDATE_EXISTING, "true");
+		Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_UNIT_OF_WORK, "true");
+
+		// Repeat the allergy concern (under a new concern id) so its observation replaces one of the same document
+		String document = new String(this.readFully(this.getClass().getResourceAsStream("/validCdaLevel3Sample.xml")), "UTF-8");
+		int concernId = document.indexOf("36e3e930-7b14-11db-9fe1-0800200c9a66"),
+				start = document.lastIndexOf("<entry", concernId),
+				end = document.indexOf("</entry>", concernId) + "</entry>".length();
+		String replacement = document.substring(start, end).replace("36e3e930-7b14-11db-9fe1-0800200c9a66", "36e3e931-7b14-11db-9fe1-0800200c9a66");
+		document = document.substring(0, end) + replacement + document.substring(end);
+
+		Visit visit = this.m_service.importDocument(new ByteArrayInputStream(document.getBytes("UTF-8")));
+		Context.flushSession();
+		Context.clearSession();
+		visit = Context.getVisitService().getVisitByUuid(visit.getUuid());
+
+		int replaced = 0;
+		for(Encounter encounter : visit.getEncounters())
+			for(Obs obs : encounter.getAllObs(true))
+				if(obs.isVoided() && "Auto-Replaced".equals(obs.getVoidReason()))
+					replaced++;
+		assertTrue(replaced > 0);
+		for(Allergy allergy : Context.getPatientService().getAllergies(visit.getPatient()))
+			if(allergy.getStartObs() != null)
+				assertFalse(allergy.getStartObs().isVoided());
+	}
+
+	/**
+	 * Count the obs in a visit
+	 */
+	private int countObs(String visitUuid) {
+		Context.flushSession();
+		Context.clearSession();
+		int retVal = 0;
+		for(Encounter encounter : Context.getVisitService().getVisitByUuid(visitUuid).getEncounters())
+			retVal += encounter.getAllObs().size();
+		return retVal;
+	}
+
+	@Test
+	public void shouldDirtyCheckLessWithManualFlush() throws Exception {
+		Statistics statistics = Context.getRegisteredComponents(SessionFactory.class).get(0).getStatistics();
+		boolean statisticsEnabled = statistics.isStatisticsEnabled();
+		statistics.setStatisticsEnabled(true);
+		try
+		{
+			// The first import creates the terminology, the others replace its data
+			Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_UPDATE_EXISTING, "true");
+			this.doParseCda("/validCdaLevel3Sample.xml");
+			
+			Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_MANUAL_FLUSH, "false");
+			long start = System.currentTimeMillis(), flushes = statistics.getFlushCount();
+			assertTrue(this.doParseCda("/validCdaLevel3Sample.xml") != null);
+			long autoFlushes = statistics.getFlushCount() - flushes, autoMillis = System.currentTimeMillis() - start;
+			
+			Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_MANUAL_FLUSH, "true");
+			start = System.currentTimeMillis();
+			flushes = statistics.getFlushCount();
+			assertTrue(this.doParseCda("/validCdaLevel3Sample.xml") != null);
+			long manualFlushes = statistics.getFlushCount() - flushes, manualMillis = System.currentTimeMillis() - start;
+			
+			log.info(String.format("Dirty checks per document: auto-flush %d (%d ms), manual flush %d (%d ms)", 
+				autoFlushes, autoMillis, manualFlushes, manualMillis));
+			assertTrue(manualFlushes < autoFlushes);
+		}
+		finally
+		{
+			statistics.setStatisticsEnabled(statisticsEnabled);
+		}
+	}
+
+	@Test
+	public void shouldFindConceptsByMappingAfterSave() throws Exception {
+		Concept concept = OpenmrsConceptUtil.getInstance().createConcept(new CV<String>("45371-2", CdaHandlerConstants.CODE_SYSTEM_LOINC), null);
+		ConceptMap map = concept.getConceptMappings().iterator().next();
+		ConceptReferenceTerm term = map.getConceptReferenceTerm();
+		String mapType = map.getConceptMapType().getName();
+		
+		// Twice so the second is answered from the query cache (if enabled)
+		assertEquals(1, this.m_service.getConceptsByMapping(term, mapType.toUpperCase()).size());
+		assertEquals(concept, this.m_service.getConceptsByMapping(term, mapType).get(0));
+		
+		// Retiring the concept discards the cached result
+		concept.setRetired(true);
+		concept.setRetireReason("Test");
+		this.m_service.saveConcept(concept);
+		assertTrue(this.m_service.getConceptsByMapping(term, mapType).isEmpty());
+	}
+
+	/**
+	 * The same narrative is stored once, inflated when read and deleted with its last reference
+	 */
+	@Test
+	public void shouldStoreNarrativeOnceByDigest() throws Exception {
+		byte[] narrative = "<text><paragraph>No known allergies</paragraph></text>".getBytes("UTF-8");
+		String digest = this.m_service.saveNarrative(narrative);
+		assertEquals(digest, this.m_service.saveNarrative(narrative.clone()));
+		assertArrayEquals(narrative, this.readFully(this.m_service.getNarrative(digest)));
+		
+		assertFalse(this.m_service.releaseNarrative(digest, null));
+		assertArrayEquals(narrative, this.readFully(this.m_service.getNarrative(digest)));
+		assertTrue(this.m_service.releaseNarrative(digest, null));
+		assertNull(this.m_service.getNarrative(digest));
+	}
+
+	/**
+	 * Section narrative is saved to the blob store and read back through the complex obs
+	 */
+	@Test
+	public void shouldStoreSectionNarrativeAsBlob() throws Exception {
+		String visitUuid = this.doParseCda("/validAphpSample.xml");
+		Context.flushSession();
+		Context.clearSession();
+		
+		int found = 0;
+		for(Encounter encounter : Context.getVisitService().getVisitByUuid(visitUuid).getEncounters())
+			for(Obs obs : encounter.getAllObs())
+			{
+				if(obs.getValueComplex() == null || !obs.getValueComplex().contains("|narrative:"))
+					continue;
+				Obs complexObs = Context.getObsService().getComplexObs(obs.getObsId(), ComplexObsHandler.RAW_VIEW);
+				assertTrue(this.readFully((InputStream)complexObs.getComplexData().getData()).length > 0);
+				found++;
+			}
+		assertTrue(found > 0);
+	}
+
+	/**
+	 * Purging an obs doesn't delete narrative its revised version still points to
+	 */
+	@Test
+	public void shouldKeepNarrativeOfRevisedObs() throws Exception {
+		String visitUuid = this.doParseCda("/validAphpSample.xml");
+		Context.flushSession();
+		Context.clearSession();
+		
+		Obs original = null;
+		for(Encounter encounter : Context.getVisitService().getVisitByUuid(visitUuid).getEncounters())
+			for(Obs obs : encounter.getAllObs())
+				if(obs.getValueComplex() != null && obs.getValueComplex().contains("|narrative:"))
+					original = obs;
+		assertTrue(original != null);
+		
+		// Core copies the value complex to the new version
+		original.setComment("Revised");
+		Obs revised = Context.getObsService().saveObs(original, "Test revision");
+		Context.flushSession();
+		Context.getObsService().purgeObs(Context.getObsService().getObs(original.getObsId()));
+		Context.flushSession();
+		Context.clearSession();
+		
+		Obs complexObs = Context.getObsService().getComplexObs(revised.getObsId(), ComplexObsHandler.RAW_VIEW);
+		assertTrue(this.readFully((InputStream)complexObs.getComplexData().getData()).length > 0);
+	}
+
+	/**
+	 * A level 1 document over the stream threshold has its body decoded to a file, and the complex obs
+	 * saved from that file holds the original attachment
+	 */
+	@Test
+	public void shouldImportLargeLevel1DocumentFromExtractedBody() throws Exception {
+		Context.getAdministrationService().setGlobalProperty(CdaHandlerConfiguration.PROP_STREAM_THRESHOLD, "1024");
+		
+		byte[] attachment = new byte[100000];
+		new Random(42).nextBytes(attachment);
+		
+		// The APHP sample header (without templates so the generic processor is used) with a non-xml body
+		String document = new String(this.readFully(this.getClass().getResourceAsStream("/validAphpSample.xml")), "UTF-8");
+		document = document.replaceAll("<templateId root='1\\.3\\.6\\.1\\.4\\.1\\.19376\\.1\\.5\\.3\\.1\\.1\\.16\\.1\\.[14]' />", "");
+		document = document.replaceAll("(?s)<component>\\s*<structuredBody>.*</structuredBody>\\s*</component>",
+				"<component><nonXMLBody><text mediaType='application/pdf' representation='B64'>" +
+				new String(Base64.encodeBase64(attachment, true), "US-ASCII") +
+				"</text></nonXMLBody></component>");
+		assertTrue(document.contains("nonXMLBody"));
+		
+		Visit visit = this.m_service.importDocument(new ByteArrayInputStream(document.getBytes("UTF-8")));
+		Context.flushSession();
+		Context.clearSession();
+		
+		int found = 0;
+		for(Encounter encounter : Context.getVisitService().getVisitByUuid(visit.getUuid()).getEncounters())
+			for(Obs obs : encounter.getAllObs())
+			{
+				if(!CdaHandlerConstants.RMIM_CONCEPT_UUID_DOCUMENT_TEXT.equals(obs.getConcept().getUuid()))
+					continue;
+				Obs complexObs = Context.getObsService().getComplexObs(obs.getObsId(), ComplexObsHandler.RAW_VIEW);
+				Object data = complexObs.getComplexData().getData();
+				assertArrayEquals(attachment, data instanceof byte[] ? (byte[])data : this.readFully((InputStream)data));
+				found++;
+			}
+		assertEquals(1, found);
+	}
+
+	/**
+	 * Read and close a stream
+	 */
+	private byte[] readFully(InputStream stream) throws Exception {
+		try
+		{
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			for(int count = stream.read(buffer); count > 0; count = stream.read(buffer))
+				bos.write(buffer, 0, count);
+			return bos.toByteArray();
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
 
 }
@@ -0,0 +1,50 @@
+package org.openmrs.module.shr.cdahandler.api.processor.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.openmrs.module.shr.cdahandler.processor.util.LruCache;
+
+public class LruCacheTest {
+
+	/**
+	 * The least recently used entry is evicted when the cache is full
+	 */
+	@Test
+	public void shouldEvictLeastRecentlyUsed() {
+		LruCache<String, Integer> cache = new LruCache<String, Integer>(2);
+		cache.put("a", 1);
+		cache.put("b", 2);
+		assertEquals(Integer.valueOf(1), cache.get("a"));
+		cache.put("c", 3);
+
+		assertNull(cache.get("b"));
+		assertEquals(Integer.valueOf(1), cache.get("a"));
+		assertEquals(Integer.valueOf(3), cache.get("c"));
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(3, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	/**
+	 * Matching entries are removed
+	 */
+	@Test
+	public void shouldRemoveMatching() {
+		LruCache<String, Integer> cache = new LruCache<String, Integer>(10);
+		cache.put("a", 1);
+		cache.put("b", 2);
+		cache.put("c", 3);
+		int removed = cache.removeMatching(new LruCache.Matcher<String, Integer>() {
+			@Override
+			public boolean matches(String key, Integer value) {
+				return value % 2 == 1;
+			}
+		});
+		assertEquals(2, removed);
+		assertEquals(1, cache.size());
+		assertEquals(Integer.valueOf(2), cache.get("b"));
+		assertEquals(2, cache.getInvalidationCount());
+	}
+}
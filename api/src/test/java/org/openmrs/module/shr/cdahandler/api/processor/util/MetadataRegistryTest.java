@@ -0,0 +1,117 @@
+package org.openmrs.module.shr.cdahandler.api.processor.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.VisitType;
+import org.openmrs.module.shr.cdahandler.processor.util.MetadataRegistry;
+
+public class MetadataRegistryTest {
+
+	/**
+	 * Visit types by name, held in a list instead of the database
+	 */
+	private static class VisitTypes extends MetadataRegistry.Kind<VisitType> {
+
+		private final List<VisitType> m_visitTypes = new ArrayList<VisitType>();
+
+		/**
+		 * Add a visit type to the "database"
+		 */
+		public VisitType add(Integer id, String name) {
+			VisitType retVal = new VisitType(name, null);
+			retVal.setId(id);
+			this.m_visitTypes.add(retVal);
+			return retVal;
+		}
+
+		@Override
+		protected List<VisitType> getAll() {
+			return new ArrayList<VisitType>(this.m_visitTypes);
+		}
+
+		@Override
+		protected VisitType get(Integer id) {
+			for(VisitType visitType : this.m_visitTypes)
+				if(visitType.getId().equals(id))
+					return visitType;
+			return null;
+		}
+
+		@Override
+		protected String[] getKeys(VisitType item) {
+			return new String[] { item.getName() };
+		}
+	}
+
+	private VisitTypes m_visitTypes;
+
+	@Before
+	public void beforeEachTest() {
+		this.m_visitTypes = new VisitTypes();
+		this.m_visitTypes.add(1, "Initial HIV Clinic Visit");
+		this.m_visitTypes.add(2, "Return TB Clinic Visit");
+	}
+
+	/**
+	 * Keys are answered from the index loaded on first use
+	 */
+	@Test
+	public void shouldAnswerFromIndex() {
+		MetadataRegistry registry = new MetadataRegistry();
+		assertEquals(Integer.valueOf(1), registry.get(this.m_visitTypes, "Initial HIV Clinic Visit").getId());
+		assertEquals(Integer.valueOf(2), registry.get(this.m_visitTypes, "Return TB Clinic Visit").getId());
+		assertEquals(1, registry.getLoadCount());
+		assertEquals(2, registry.getHitCount());
+	}
+
+	/**
+	 * A missing key reloads the index each time, so metadata created elsewhere is found on the next lookup
+	 */
+	@Test
+	public void shouldReloadForMissingKeys() {
+		MetadataRegistry registry = new MetadataRegistry();
+		assertNull(registry.get(this.m_visitTypes, "Missing Visit"));
+		long loads = registry.getLoadCount();
+		assertNull(registry.get(this.m_visitTypes, "Missing Visit"));
+		assertEquals(loads + 1, registry.getLoadCount());
+
+		// Created elsewhere (never put in the registry)
+		this.m_visitTypes.add(3, "Missing Visit");
+		assertEquals(Integer.valueOf(3), registry.get(this.m_visitTypes, "Missing Visit").getId());
+		assertEquals(loads + 2, registry.getLoadCount());
+	}
+
+	/**
+	 * Registered metadata is found without reloading
+	 */
+	@Test
+	public void shouldFindRegisteredMetadata() {
+		MetadataRegistry registry = new MetadataRegistry();
+		assertNull(registry.get(this.m_visitTypes, "Missing Visit"));
+		long loads = registry.getLoadCount();
+
+		registry.put(this.m_visitTypes, this.m_visitTypes.add(3, "Missing Visit"));
+		assertEquals(Integer.valueOf(3), registry.get(this.m_visitTypes, "Missing Visit").getId());
+		assertEquals(loads, registry.getLoadCount());
+	}
+
+	/**
+	 * Retired metadata isn't found, whether it was retired before or after loading
+	 */
+	@Test
+	public void shouldNotFindRetiredMetadata() {
+		this.m_visitTypes.add(3, "Retired Visit").setRetired(true);
+		MetadataRegistry registry = new MetadataRegistry();
+		assertNull(registry.get(this.m_visitTypes, "Retired Visit"));
+
+		VisitType visitType = registry.get(this.m_visitTypes, "Return TB Clinic Visit");
+		assertNotNull(visitType);
+		visitType.setRetired(true);
+		assertNull(registry.get(this.m_visitTypes, "Return TB Clinic Visit"));
+	}
+}
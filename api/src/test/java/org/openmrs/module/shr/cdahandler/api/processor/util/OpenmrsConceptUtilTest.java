@@ -15,7 +15,10 @@ import org.marc.everest.datatypes.generic.CE;
 import org.openmrs.*;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
+import org.openmrs.module.shr.cdahandler.api.CdaImportService;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
+import org.openmrs.module.shr.cdahandler.processor.util.LruCache;
 import org.openmrs.module.shr.cdahandler.processor.util.OpenmrsConceptUtil;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 
@@ -195,4 +198,70 @@ public class OpenmrsConceptUtilTest extends BaseModuleContextSensitiveTest {
         }
 	}
 
+	/**
+	 * A reference term which was resolved before is answered from the id cache
+	 */
+	@Test
+	public void shouldResolveReferenceTermFromCache() throws Exception {
+		assertEquals(this.m_weightTerm, this.m_conceptUtil.getOrCreateReferenceTerm(this.m_loincWeightTerm));
+
+		LruCache<String, Integer> cache = this.m_conceptUtil.getReferenceTermCache();
+		long hits = cache.getHitCount(), misses = cache.getMissCount();
+		assertEquals(this.m_weightTerm, this.m_conceptUtil.getOrCreateReferenceTerm(this.m_loincWeightTerm));
+		assertEquals(hits + 1, cache.getHitCount());
+		assertEquals(misses, cache.getMissCount());
+	}
+
+	/**
+	 * A reference term which isn't cached is found in the database and cached
+	 */
+	@Test
+	public void shouldResolveReferenceTermFromDatabaseOnMiss() throws Exception {
+		LruCache<String, Integer> cache = this.m_conceptUtil.getReferenceTermCache();
+		cache.clear();
+		long misses = cache.getMissCount();
+		assertEquals(this.m_weightTerm, this.m_conceptUtil.getOrCreateReferenceTerm(this.m_loincWeightTerm));
+		assertEquals(misses + 1, cache.getMissCount());
+		assertEquals(1, cache.size());
+
+		long hits = cache.getHitCount();
+		assertEquals(this.m_weightTerm, this.m_conceptUtil.getOrCreateReferenceTerm(this.m_loincWeightTerm));
+		assertEquals(hits + 1, cache.getHitCount());
+	}
+
+	/**
+	 * Warming fills the cache from the database
+	 */
+	@Test
+	public void shouldWarmReferenceTermCache() throws Exception {
+		LruCache<String, Integer> cache = this.m_conceptUtil.getReferenceTermCache();
+		cache.clear();
+		this.m_conceptUtil.warmCaches();
+		assertTrue(cache.size() > 0);
+
+		long hits = cache.getHitCount(), misses = cache.getMissCount();
+		assertEquals(this.m_weightTerm, this.m_conceptUtil.getOrCreateReferenceTerm(this.m_loincWeightTerm));
+		assertEquals(hits + 1, cache.getHitCount());
+		assertEquals(misses, cache.getMissCount());
+	}
+
+	/**
+	 * Saving a reference term through the import service forgets its cached id
+	 */
+	@Test
+	public void shouldInvalidateReferenceTermOnSave() throws Exception {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(CdaHandlerConfiguration.PROP_AUTOCREATE_CONCEPTS, "true"));
+		assertEquals(this.m_weightTerm, this.m_conceptUtil.getOrCreateReferenceTerm(this.m_loincWeightTerm));
+
+		LruCache<String, Integer> cache = this.m_conceptUtil.getReferenceTermCache();
+		long invalidations = cache.getInvalidationCount();
+		this.m_weightTerm.setCode("3141-9X");
+		Context.getService(CdaImportService.class).saveConceptReferenceTerm(this.m_weightTerm);
+		assertEquals(invalidations + 1, cache.getInvalidationCount());
+
+		// The renamed term no longer answers for the old code
+		ConceptReferenceTerm term = this.m_conceptUtil.getOrCreateReferenceTerm(this.m_loincWeightTerm);
+		assertEquals("3141-9", term.getCode());
+		assertFalse(this.m_weightTerm.getId().equals(term.getId()));
+	}
 }
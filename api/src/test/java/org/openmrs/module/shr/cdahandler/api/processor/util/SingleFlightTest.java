@@ -0,0 +1,176 @@
+package org.openmrs.module.shr.cdahandler.api.processor.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
+import org.openmrs.module.shr.cdahandler.processor.util.SingleFlight;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+public class SingleFlightTest {
+
+	/**
+	 * Concurrent callers for the same key create the object once
+	 */
+	@Test
+	public void shouldCreateOnceForConcurrentCallers() throws Exception {
+		final SingleFlight<String> flight = new SingleFlight<String>();
+		final ConcurrentHashMap<String, String> store = new ConcurrentHashMap<String, String>();
+		final AtomicInteger creates = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(8);
+		final AtomicInteger failures = new AtomicInteger();
+
+		for(int i = 0; i < 8; i++)
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try
+					{
+						start.await();
+						String result = flight.get("code:LN^3141-9", new Callable<String>() {
+							@Override
+							public String call() {
+								return store.get("code:LN^3141-9");
+							}
+						}, new Callable<String>() {
+							@Override
+							public String call() throws Exception {
+								creates.incrementAndGet();
+								Thread.sleep(50);
+								store.put("code:LN^3141-9", "BODY WEIGHT");
+								return "BODY WEIGHT";
+							}
+						}, 5000);
+						if(!"BODY WEIGHT".equals(result))
+							failures.incrementAndGet();
+					}
+					catch(Exception e)
+					{
+						failures.incrementAndGet();
+					}
+					finally
+					{
+						finished.countDown();
+					}
+				}
+			}).start();
+
+		start.countDown();
+		assertTrue(finished.await(10, TimeUnit.SECONDS));
+		assertEquals(0, failures.get());
+		assertEquals(1, creates.get());
+		assertEquals(1, flight.getCreateCount());
+		assertEquals(0, flight.getInFlightCount());
+	}
+
+	/**
+	 * A failed create is propagated and does not leave the key in flight
+	 */
+	@Test
+	public void shouldReleaseKeyWhenCreateFails() throws Exception {
+		SingleFlight<String> flight = new SingleFlight<String>();
+		Callable<String> lookup = new Callable<String>() {
+			@Override
+			public String call() {
+				return null;
+			}
+		};
+		try
+		{
+			flight.get("source:2.16.840.1.113883.6.1", lookup, new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					throw new DocumentImportException("MISSING SOURCE");
+				}
+			}, 5000);
+			fail("Expected DocumentImportException");
+		}
+		catch(DocumentImportException e)
+		{
+			assertEquals("MISSING SOURCE", e.getMessage());
+		}
+		assertEquals(0, flight.getInFlightCount());
+	}
+
+	/**
+	 * The key is released when the create returns, and a follower which joined the flight
+	 * finds the object once the leader's transaction commits
+	 */
+	@Test
+	public void shouldReleaseKeyAfterCreateAndLookUpAfterCommit() throws Exception {
+		final SingleFlight<String> flight = new SingleFlight<String>();
+		final ConcurrentHashMap<String, String> committed = new ConcurrentHashMap<String, String>();
+		final AtomicInteger creates = new AtomicInteger();
+		final AtomicReference<String> followerResult = new AtomicReference<String>();
+		final Callable<String> lookup = new Callable<String>() {
+			@Override
+			public String call() {
+				return committed.get("code:LN^3141-9");
+			}
+		};
+		final Callable<String> create = new Callable<String>() {
+			@Override
+			public String call() {
+				creates.incrementAndGet();
+				return "BODY WEIGHT";
+			}
+		};
+		final Thread follower = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try
+				{
+					followerResult.set(flight.get("code:LN^3141-9", lookup, create, 5000));
+				}
+				catch(DocumentImportException e)
+				{
+					followerResult.set(e.getMessage());
+				}
+			}
+		});
+
+		TransactionSynchronizationManager.initSynchronization();
+		try
+		{
+			// The leader creates in its transaction while the follower joins the flight
+			String result = flight.get("code:LN^3141-9", lookup, new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					follower.start();
+					for(int i = 0; i < 100 && flight.getFollowerCount() == 0; i++)
+						Thread.sleep(50);
+					return create.call();
+				}
+			}, 5000);
+			assertEquals("BODY WEIGHT", result);
+			assertEquals(0, flight.getInFlightCount());
+
+			// Not committed yet, so the follower is still waiting
+			Thread.sleep(200);
+			assertTrue(follower.isAlive());
+
+			committed.put("code:LN^3141-9", result);
+			for(TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations())
+				synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+		}
+		finally
+		{
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+
+		follower.join(5000);
+		assertFalse(follower.isAlive());
+		assertEquals("BODY WEIGHT", followerResult.get());
+		assertEquals(1, creates.get());
+		assertEquals(0, flight.getTimeoutCount());
+	}
+}
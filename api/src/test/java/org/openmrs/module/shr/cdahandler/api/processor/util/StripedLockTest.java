@@ -0,0 +1,97 @@
+package org.openmrs.module.shr.cdahandler.api.processor.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import org.openmrs.module.shr.cdahandler.processor.util.StripedLock;
+
+public class StripedLockTest {
+
+	/**
+	 * The same key always maps to the same stripe
+	 */
+	@Test
+	public void shouldMapSameKeyToSameStripe() {
+		StripedLock locks = new StripedLock(16);
+		assertSame(locks.getStripe("code:2.16.840.1.113883.6.1^3141-9"), locks.getStripe("code:2.16.840.1.113883.6.1^3141-9"));
+		assertSame(locks.getStripe(null), locks.getStripe(null));
+	}
+
+	/**
+	 * Holding one key does not block a key on another stripe
+	 */
+	@Test
+	public void shouldNotBlockUnrelatedKeys() throws Exception {
+		final StripedLock locks = new StripedLock(16);
+		String heldKey = "concept:1";
+		String otherKey = null;
+		for(int i = 2; otherKey == null; i++)
+			if(locks.getStripe("concept:" + i) != locks.getStripe(heldKey))
+				otherKey = "concept:" + i;
+
+		final String freeKey = otherKey;
+		final CountDownLatch acquired = new CountDownLatch(1);
+		StripedLock.Stripe held = locks.lock(heldKey);
+		try
+		{
+			Thread other = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					locks.lock(freeKey).unlock();
+					acquired.countDown();
+				}
+			});
+			other.start();
+			assertTrue(acquired.await(5, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			held.unlock();
+		}
+		assertEquals(0, locks.getContendedCount());
+	}
+
+	/**
+	 * Waiting on a held key is recorded as contention
+	 */
+	@Test
+	public void shouldRecordContention() throws Exception {
+		final StripedLock locks = new StripedLock(4);
+		final AtomicBoolean entered = new AtomicBoolean(false);
+		StripedLock.Stripe held = locks.lock("code:LN^8302-2");
+		Thread other = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				StripedLock.Stripe stripe = locks.lock("code:LN^8302-2");
+				try {
+					entered.set(true);
+				}
+				finally {
+					stripe.unlock();
+				}
+			}
+		});
+		try
+		{
+			other.start();
+			Thread.sleep(100);
+			assertFalse(entered.get());
+		}
+		finally
+		{
+			held.unlock();
+		}
+		other.join(5000);
+		assertTrue(entered.get());
+
+		StripedLock.Stripe stripe = locks.getStripe("code:LN^8302-2");
+		assertEquals(2, stripe.getAcquisitionCount());
+		assertEquals(1, stripe.getContendedCount());
+		assertTrue(stripe.getMaxWaitNanos() > 0);
+		assertTrue(stripe.getTotalHoldNanos() > 0);
+	}
+}
@@ -0,0 +1,76 @@
+package org.openmrs.module.shr.cdahandler.api.processor.util;
+
+import static org.junit.Assert.*;
+
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.cdahandler.processor.util.WellKnownConcept;
+import org.openmrs.module.shr.cdahandler.processor.util.WellKnownConceptRegistry;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.util.OpenmrsConstants;
+
+public class WellKnownConceptRegistryTest extends BaseModuleContextSensitiveTest {
+
+	private WellKnownConceptRegistry m_registry = WellKnownConceptRegistry.getInstance();
+
+	@Before
+	public void registerListener() {
+		Context.getAdministrationService().addGlobalPropertyListener(this.m_registry);
+		this.m_registry.invalidate();
+	}
+
+	@After
+	public void removeListener() {
+		Context.getAdministrationService().removeGlobalPropertyListener(this.m_registry);
+		this.m_registry.invalidate();
+	}
+
+	/**
+	 * The false concept is read from its global property once, and again when the property changes
+	 */
+	@Test
+	public void shouldResolveFalseConceptFromGlobalProperty() {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_FALSE_CONCEPT, "5089"));
+		assertEquals(Integer.valueOf(5089), this.m_registry.getConceptId(WellKnownConcept.FALSE));
+		assertEquals(Integer.valueOf(5089), this.m_registry.getConcept(WellKnownConcept.FALSE).getConceptId());
+
+		long loads = this.m_registry.getLoadCount();
+		this.m_registry.getConcept(WellKnownConcept.FALSE);
+		assertEquals(loads, this.m_registry.getLoadCount());
+
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_FALSE_CONCEPT, "5497"));
+		assertEquals(Integer.valueOf(5497), this.m_registry.getConceptId(WellKnownConcept.FALSE));
+	}
+
+	/**
+	 * Concepts which aren't in the dictionary resolve to null
+	 */
+	@Test
+	public void shouldNotResolveMissingConcepts() {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_FALSE_CONCEPT, "not a concept"));
+		assertNull(this.m_registry.getConceptId(WellKnownConcept.FALSE));
+		assertNull(this.m_registry.getConcept(WellKnownConcept.FALSE));
+	}
+
+	/**
+	 * A concept which was missing is found once it is created, without the registry being told
+	 */
+	@Test
+	public void shouldResolveConceptCreatedAfterMiss() {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_FALSE_CONCEPT, "99999"));
+		assertNull(this.m_registry.getConceptId(WellKnownConcept.FALSE));
+
+		Concept template = Context.getConceptService().getConcept(5089);
+		Context.getAdministrationService().executeSQL(String.format("insert into concept (concept_id, retired, datatype_id, class_id, is_set, creator, date_created, uuid) " +
+				"values (99999, 0, %s, %s, 0, 1, '2014-01-01', '%s')", template.getDatatype().getId(), template.getConceptClass().getId(), UUID.randomUUID()), false);
+
+		assertEquals(Integer.valueOf(99999), this.m_registry.getConceptId(WellKnownConcept.FALSE));
+		assertEquals(Integer.valueOf(99999), this.m_registry.getConcept(WellKnownConcept.FALSE).getConceptId());
+	}
+}
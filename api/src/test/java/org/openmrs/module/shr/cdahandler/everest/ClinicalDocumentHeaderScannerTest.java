@@ -0,0 +1,64 @@
+package org.openmrs.module.shr.cdahandler.everest;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.Test;
+
+public class ClinicalDocumentHeaderScannerTest {
+
+	/**
+	 * Scan the header of a sample document
+	 */
+	@Test
+	public void shouldScanSampleHeader() throws Exception {
+		InputStream sample = this.getClass().getResourceAsStream("/validAphpSample.xml");
+		try
+		{
+			ClinicalDocumentHeader header = ClinicalDocumentHeaderScanner.getInstance().scan(sample);
+			assertEquals("1.2.3.2.2.2.2", header.getId().getRoot());
+			assertEquals("1", header.getId().getExtension());
+			assertEquals("20140409012005", header.getEffectiveTime());
+			assertTrue(header.getTemplateIds().size() >= 2);
+			assertEquals(1, header.getRecordTargetCount());
+			assertEquals(1, header.getPatientIds().size());
+			assertEquals("12345", header.getPatientIds().get(0).getExtension());
+		}
+		finally
+		{
+			sample.close();
+		}
+	}
+
+	/**
+	 * Related documents and multiple record targets are reported
+	 */
+	@Test
+	public void shouldReadRelatedDocumentsAndStopAtComponent() throws Exception {
+		String xml = "<ClinicalDocument xmlns='urn:hl7-org:v3'>" +
+				"<id root='1.2.3' extension='2'/>" +
+				"<recordTarget><patientRole><id root='1.2.3.4' extension='A'/></patientRole></recordTarget>" +
+				"<recordTarget><patientRole><id root='1.2.3.4' extension='B'/></patientRole></recordTarget>" +
+				"<relatedDocument typeCode='RPLC'><parentDocument><id root='1.2.3' extension='1'/></parentDocument></relatedDocument>" +
+				"<component><structuredBody><unclosed></structuredBody></component>" +
+				"</ClinicalDocument>";
+		ClinicalDocumentHeader header = ClinicalDocumentHeaderScanner.getInstance().scan(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+		assertEquals(2, header.getRecordTargetCount());
+		assertEquals(1, header.getPatientIds().size());
+		assertTrue(header.hasRelatedDocument("RPLC"));
+		assertFalse(header.hasRelatedDocument("APND"));
+		assertEquals("1", header.getRelatedDocuments().get(0).getParentDocumentIds().get(0).getExtension());
+	}
+
+	/**
+	 * Non CDA content is rejected
+	 */
+	@Test(expected = XMLStreamException.class)
+	public void shouldRejectNonClinicalDocument() throws Exception {
+		ClinicalDocumentHeaderScanner.getInstance().scan(new ByteArrayInputStream("<foo xmlns='urn:hl7-org:v3'/>".getBytes("UTF-8")));
+	}
+}
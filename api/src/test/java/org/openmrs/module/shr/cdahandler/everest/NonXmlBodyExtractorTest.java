@@ -0,0 +1,105 @@
+package org.openmrs.module.shr.cdahandler.everest;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+public class NonXmlBodyExtractorTest {
+
+	/**
+	 * Create a level 1 document with the body encoded in base64 (split across lines)
+	 */
+	private byte[] createLevel1Document(byte[] body) throws Exception {
+		String xml = "<?xml version='1.0' encoding='UTF-8'?>" +
+				"<ClinicalDocument xmlns='urn:hl7-org:v3' xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance'>" +
+				"<id root='1.2.3' extension='1'/>" +
+				"<!-- header -->" +
+				"<code code='34133-9' codeSystem='2.16.840.1.113883.6.1' xsi:type='CE'/>" +
+				"<component><nonXMLBody><text mediaType='application/pdf' representation='B64'>" +
+				new String(Base64.encodeBase64(body, true), "US-ASCII") +
+				"</text></nonXMLBody></component>" +
+				"</ClinicalDocument>";
+		return xml.getBytes("UTF-8");
+	}
+
+	/**
+	 * The body is decoded and removed from the copy of the document
+	 */
+	@Test
+	public void shouldExtractNonXmlBody() throws Exception {
+		byte[] body = new byte[100000];
+		new Random(42).nextBytes(body);
+
+		ByteArrayOutputStream strippedDocument = new ByteArrayOutputStream(), extractedBody = new ByteArrayOutputStream();
+		assertTrue(NonXmlBodyExtractor.getInstance().extract(new ByteArrayInputStream(this.createLevel1Document(body)), strippedDocument, extractedBody));
+		assertArrayEquals(body, extractedBody.toByteArray());
+
+		String stripped = strippedDocument.toString("UTF-8");
+		assertTrue(stripped, stripped.length() < 1000);
+		assertTrue(stripped, stripped.contains("representation=\"B64\""));
+		assertTrue(stripped, stripped.contains("xsi:type=\"CE\""));
+		ClinicalDocumentHeader header = ClinicalDocumentHeaderScanner.getInstance().scan(new ByteArrayInputStream(strippedDocument.toByteArray()));
+		assertEquals("1", header.getId().getExtension());
+	}
+
+	/**
+	 * A structured body is copied unchanged and nothing is extracted
+	 */
+	@Test
+	public void shouldCopyStructuredBody() throws Exception {
+		InputStream sample = this.getClass().getResourceAsStream("/validAphpSample.xml");
+		ByteArrayOutputStream strippedDocument = new ByteArrayOutputStream(), extractedBody = new ByteArrayOutputStream();
+		try
+		{
+			assertFalse(NonXmlBodyExtractor.getInstance().extract(sample, strippedDocument, extractedBody));
+		}
+		finally
+		{
+			sample.close();
+		}
+		assertEquals(0, extractedBody.size());
+		assertTrue(strippedDocument.toString("UTF-8").contains("structuredBody"));
+	}
+
+	/**
+	 * Documents over the threshold are spooled to disk and read back the same
+	 */
+	@Test
+	public void shouldSpoolLargeDocumentToDisk() throws Exception {
+		byte[] document = this.createLevel1Document(new byte[10000]);
+		DocumentSpool small = new DocumentSpool(new ByteArrayInputStream(document), document.length),
+				large = new DocumentSpool(new ByteArrayInputStream(document), 1024);
+		try
+		{
+			assertFalse(small.isOnDisk());
+			assertTrue(large.isOnDisk());
+			for(DocumentSpool spool : new DocumentSpool[] { small, large })
+			{
+				ByteArrayOutputStream read = new ByteArrayOutputStream();
+				InputStream in = spool.open();
+				try
+				{
+					byte[] buffer = new byte[4096];
+					for(int count = in.read(buffer); count > 0; count = in.read(buffer))
+						read.write(buffer, 0, count);
+				}
+				finally
+				{
+					in.close();
+				}
+				assertArrayEquals(document, read.toByteArray());
+			}
+		}
+		finally
+		{
+			small.delete();
+			large.delete();
+		}
+	}
+}
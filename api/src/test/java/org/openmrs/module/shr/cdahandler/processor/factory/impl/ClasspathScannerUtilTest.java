@@ -0,0 +1,70 @@
+package org.openmrs.module.shr.cdahandler.processor.factory.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.marc.everest.datatypes.II;
+import org.marc.everest.datatypes.generic.LIST;
+import org.openmrs.module.shr.cdahandler.CdaHandlerConstants;
+import org.openmrs.module.shr.cdahandler.processor.annotation.ProcessTemplates;
+import org.openmrs.module.shr.cdahandler.processor.document.impl.ihe.pcc.AntepartumSummaryDocumentProcessor;
+import org.openmrs.module.shr.cdahandler.processor.document.impl.ihe.pcc.MedicalSummaryDocumentProcessor;
+
+public class ClasspathScannerUtilTest {
+
+	/**
+	 * The most specific processor handling any of the templates wins
+	 */
+	@Test
+	public void shouldRouteToMostSpecificProcessor() {
+		ClasspathScannerUtil scanner = ClasspathScannerUtil.getInstance();
+		
+		LIST<II> templateIds = new LIST<II>();
+		templateIds.add(new II(CdaHandlerConstants.DOC_TEMPLATE_MEDICAL_DOCUMENTS));
+		templateIds.add(new II(CdaHandlerConstants.DOC_TEMPLATE_MEDICAL_SUMMARY));
+		templateIds.add(new II(CdaHandlerConstants.DOC_TEMPLATE_ANTEPARTUM_SUMMARY));
+		assertEquals(AntepartumSummaryDocumentProcessor.class, scanner.getProcessorClass(templateIds));
+		
+		// Remembered for the signature
+		long misses = scanner.getRouteMissCount();
+		assertEquals(AntepartumSummaryDocumentProcessor.class, scanner.getProcessorClass(templateIds));
+		assertEquals(misses, scanner.getRouteMissCount());
+		
+		LIST<II> single = new LIST<II>();
+		single.add(new II(CdaHandlerConstants.DOC_TEMPLATE_MEDICAL_SUMMARY));
+		assertEquals(MedicalSummaryDocumentProcessor.class, scanner.getProcessorClass(single));
+	}
+	
+	/**
+	 * Unknown templates route nowhere
+	 */
+	@Test
+	public void shouldNotRouteUnknownTemplate() {
+		LIST<II> templateIds = new LIST<II>();
+		templateIds.add(new II("1.2.3.4.5.6.7.8.9"));
+		templateIds.add(new II("1.2.3.4.5.6.7.8.10"));
+		assertNull(ClasspathScannerUtil.getInstance().getProcessorClass(templateIds));
+		assertNull(ClasspathScannerUtil.getInstance().createProcessor(templateIds));
+	}
+	
+	/**
+	 * The registry generated at build time holds the same processors a classpath scan finds
+	 */
+	@Test
+	public void shouldGenerateSameProcessorsAsScan() {
+		String[] generated = ClasspathScannerUtil.getGeneratedProcessorNames();
+		assertNotNull("Processor registry was not generated", generated);
+		
+		Set<String> scanned = new TreeSet<String>();
+		for(Class<?> cls : ClasspathScannerUtil.scanClasspath())
+			if(cls.getAnnotation(ProcessTemplates.class) != null)
+				scanned.add(cls.getName());
+		Set<String> registered = new TreeSet<String>();
+		for(String name : generated)
+			registered.add(name);
+		assertEquals(scanned, registered);
+	}
+}
@@ -0,0 +1,106 @@
+package org.openmrs.module.shr.cdahandler.processor.factory.impl;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.marc.everest.interfaces.IGraphable;
+import org.openmrs.module.shr.cdahandler.exception.ValidationIssueCollection;
+import org.openmrs.module.shr.cdahandler.processor.Processor;
+import org.openmrs.module.shr.cdahandler.processor.context.ProcessorContext;
+
+public class ProcessorPoolTest {
+
+	/**
+	 * A processor which only holds a context
+	 */
+	public static class TestProcessor implements Processor {
+		
+		private ProcessorContext m_context;
+		
+		@Override
+		public ProcessorContext getContext() {
+			return this.m_context;
+		}
+
+		@Override
+		public String getTemplateName() {
+			return "Test";
+		}
+
+		@Override
+		public void setContext(ProcessorContext context) {
+			this.m_context = context;
+		}
+
+		@Override
+		public ValidationIssueCollection validate(IGraphable object) {
+			return new ValidationIssueCollection();
+		}
+	}
+	
+	/**
+	 * Processing elements one after another constructs a single processor
+	 */
+	@Test
+	public void shouldNotAllocatePerElement() {
+		ProcessorPool pool = new ProcessorPool();
+		for(int i = 0; i < 10000; i++)
+		{
+			TestProcessor processor = pool.acquire(TestProcessor.class);
+			pool.release(processor);
+		}
+		assertEquals(1, pool.getCreatedCount());
+		assertEquals(9999, pool.getReusedCount());
+	}
+	
+	/**
+	 * Nested elements of the same type get their own processor, and allocation is bounded by the nesting depth
+	 */
+	@Test
+	public void shouldNotShareProcessorInUse() {
+		ProcessorPool pool = new ProcessorPool();
+		for(int i = 0; i < 1000; i++)
+		{
+			TestProcessor outer = pool.acquire(TestProcessor.class);
+			TestProcessor inner = pool.acquire(TestProcessor.class);
+			assertNotSame(outer, inner);
+			pool.release(inner);
+			pool.release(outer);
+		}
+		assertEquals(2, pool.getCreatedCount());
+	}
+	
+	/**
+	 * A released processor holds no context
+	 */
+	@Test
+	public void shouldClearContextOnRelease() {
+		ProcessorPool pool = new ProcessorPool();
+		TestProcessor processor = pool.acquire(TestProcessor.class);
+		processor.setContext(new ProcessorContext(null, null, processor));
+		pool.release(processor);
+		assertNull(processor.getContext());
+		assertSame(processor, pool.acquire(TestProcessor.class));
+	}
+	
+	/**
+	 * Threads don't share processors
+	 */
+	@Test
+	public void shouldNotShareAcrossThreads() throws InterruptedException {
+		final ProcessorPool pool = new ProcessorPool();
+		final TestProcessor processor = pool.acquire(TestProcessor.class);
+		pool.release(processor);
+		final Processor[] other = new Processor[1];
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				other[0] = pool.acquire(TestProcessor.class);
+			}
+		});
+		thread.start();
+		thread.join();
+		assertNotNull(other[0]);
+		assertNotSame(processor, other[0]);
+	}
+}
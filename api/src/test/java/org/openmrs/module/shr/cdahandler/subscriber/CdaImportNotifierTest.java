@@ -0,0 +1,172 @@
+package org.openmrs.module.shr.cdahandler.subscriber;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
+import org.openmrs.GlobalProperty;
+import org.openmrs.Patient;
+import org.openmrs.Visit;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.cdahandler.api.CdaImportSubscriber;
+import org.openmrs.module.shr.cdahandler.configuration.CdaHandlerConfiguration;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+public class CdaImportNotifierTest extends BaseModuleContextSensitiveTest {
+
+	/**
+	 * Counts its notifications
+	 */
+	private static class CountingSubscriber implements CdaImportSubscriber {
+		private volatile int m_count;
+
+		@Override
+		public void onDocumentImported(ClinicalDocument rawDocument, Visit processedVisit) {
+			this.m_count++;
+		}
+	}
+
+	/**
+	 * Creates workers which are never started, so queued notifications stay queued
+	 */
+	private static final CdaImportNotifier.WorkerLauncher IDLE_LAUNCHER = new CdaImportNotifier.WorkerLauncher() {
+		@Override
+		public Thread launch(Runnable worker) {
+			return new Thread(worker);
+		}
+	};
+
+	private final CdaImportNotifier m_notifier = CdaImportNotifier.getInstance();
+	private final CountingSubscriber m_subscriber = new CountingSubscriber();
+
+	@Before
+	public void configureQueue() {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(CdaHandlerConfiguration.PROP_SUBSCRIBER_WORKERS, "2"));
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(CdaHandlerConfiguration.PROP_SUBSCRIBER_QUEUE_CAPACITY, "1"));
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(CdaHandlerConfiguration.PROP_SUBSCRIBER_REJECTION_POLICY, "BLOCK"));
+	}
+
+	@After
+	public void stopNotifier() {
+		this.m_notifier.stop();
+	}
+
+	/**
+	 * Dispatch an import in the test's transaction, returning the synchronizations it registered
+	 */
+	private List<TransactionSynchronization> dispatch() {
+		assertTrue(TransactionSynchronizationManager.isSynchronizationActive());
+		Set<TransactionSynchronization> existing = new HashSet<TransactionSynchronization>(TransactionSynchronizationManager.getSynchronizations());
+
+		Visit visit = new Visit();
+		visit.setPatient(new Patient(2));
+		this.m_notifier.dispatch(null, visit, Collections.<CdaImportSubscriber>singletonList(this.m_subscriber));
+
+		List<TransactionSynchronization> retVal = new ArrayList<TransactionSynchronization>(TransactionSynchronizationManager.getSynchronizations());
+		retVal.removeAll(existing);
+		assertEquals(1, retVal.size());
+		return retVal;
+	}
+
+	/**
+	 * Simulate the commit of the import
+	 */
+	private static void commit(List<TransactionSynchronization> synchronizations) {
+		for(TransactionSynchronization synchronization : synchronizations)
+			synchronization.afterCommit();
+	}
+
+	/**
+	 * Nothing is queued for an asynchronous subscriber until the import commits
+	 */
+	@Test
+	public void shouldQueueOnlyAfterCommit() {
+		this.m_notifier.start(IDLE_LAUNCHER);
+		List<TransactionSynchronization> synchronizations = this.dispatch();
+		assertEquals(1, this.m_notifier.getChannels().size());
+		SubscriberChannel channel = this.m_notifier.getChannels().iterator().next();
+		assertEquals(0, channel.getQueueDepth());
+		assertEquals(0, this.m_subscriber.m_count);
+
+		commit(synchronizations);
+		assertEquals(1, channel.getQueueDepth());
+		assertEquals(0, this.m_subscriber.m_count);
+	}
+
+	/**
+	 * Stopping interrupts the workers and waits for them
+	 */
+	@Test
+	public void shouldStopWorkers() {
+		final List<Thread> workers = Collections.synchronizedList(new ArrayList<Thread>());
+		this.m_notifier.start(new CdaImportNotifier.WorkerLauncher() {
+			@Override
+			public Thread launch(final Runnable worker) {
+				Thread retVal = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Context.openSession();
+						try
+						{
+							worker.run();
+						}
+						finally
+						{
+							Context.closeSession();
+						}
+					}
+				});
+				retVal.start();
+				workers.add(retVal);
+				return retVal;
+			}
+		});
+		assertTrue(this.m_notifier.isRunning());
+		assertEquals(2, workers.size());
+
+		this.m_notifier.stop();
+		assertFalse(this.m_notifier.isRunning());
+		for(Thread worker : workers)
+			assertFalse(worker.isAlive());
+	}
+
+	/**
+	 * Stopping releases an import blocked waiting for room in a full queue
+	 */
+	@Test
+	public void shouldReleaseBlockedImportOnStop() throws InterruptedException {
+		this.m_notifier.start(IDLE_LAUNCHER);
+		commit(this.dispatch());
+		final SubscriberChannel channel = this.m_notifier.getChannels().iterator().next();
+		assertEquals(1, channel.getQueueDepth());
+
+		// The second commit blocks since the queue is full and nothing drains it
+		final List<TransactionSynchronization> synchronizations = this.dispatch();
+		Thread committing = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				commit(synchronizations);
+			}
+		});
+		committing.start();
+		for(int i = 0; i < 100 && channel.getBlockedCount() == 0; i++)
+			Thread.sleep(50);
+		assertEquals(1, channel.getBlockedCount());
+
+		this.m_notifier.stop();
+		committing.join(5000);
+		assertFalse(committing.isAlive());
+		assertEquals(1, channel.getDroppedCount());
+		assertTrue(this.m_notifier.getChannels().isEmpty());
+	}
+}
@@ -0,0 +1,69 @@
+package org.openmrs.module.shr.cdahandler.subscriber;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.marc.everest.datatypes.II;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
+import org.openmrs.Visit;
+import org.openmrs.module.shr.cdahandler.api.CdaImportSubscriber;
+
+public class CdaImportSubscriberRegistryTest {
+
+	/**
+	 * A subscriber which does nothing
+	 */
+	private static class NullSubscriber implements CdaImportSubscriber {
+		@Override
+		public void onDocumentImported(ClinicalDocument rawDocument, Visit processedVisit) {
+		}
+	}
+
+	/**
+	 * Subscribers to all documents and to a document's templates are resolved once each
+	 */
+	@Test
+	public void shouldResolveSubscribersForTemplates() {
+		CdaImportSubscriberRegistry registry = new CdaImportSubscriberRegistry();
+		CdaImportSubscriber all = new NullSubscriber(), aphp = new NullSubscriber(), other = new NullSubscriber();
+		registry.subscribe(null, all);
+		registry.subscribe("1.3.6.1.4.1.19376.1.5.3.1.1.11.2", aphp);
+		registry.subscribe("1.3.6.1.4.1.19376.1.5.3.1.1.2", aphp);
+		registry.subscribe("2.16.840.1.113883.10.20.1", other);
+
+		List<II> templateIds = new ArrayList<II>();
+		templateIds.add(new II("1.3.6.1.4.1.19376.1.5.3.1.1.2"));
+		templateIds.add(new II("1.3.6.1.4.1.19376.1.5.3.1.1.11.2"));
+
+		List<CdaImportSubscriber> subscribers = registry.getSubscribers(templateIds);
+		assertEquals(2, subscribers.size());
+		assertSame(all, subscribers.get(0));
+		assertSame(aphp, subscribers.get(1));
+
+		// Memoized for the signature
+		assertSame(subscribers, registry.getSubscribers(templateIds));
+		assertEquals(1, registry.getResolvedCount());
+	}
+
+	/**
+	 * Changing the subscriptions publishes a new snapshot
+	 */
+	@Test
+	public void shouldSeeUnsubscribe() {
+		CdaImportSubscriberRegistry registry = new CdaImportSubscriberRegistry();
+		CdaImportSubscriber all = new NullSubscriber();
+		registry.subscribe(null, all);
+		List<II> templateIds = new ArrayList<II>();
+		templateIds.add(new II("1.3.6.1.4.1.19376.1.5.3.1.1.2"));
+		List<CdaImportSubscriber> before = registry.getSubscribers(templateIds);
+		assertEquals(1, before.size());
+
+		registry.unsubscribe(null, all);
+		assertTrue(registry.getSubscribers(templateIds).isEmpty());
+		// Readers holding the old list are unaffected
+		assertEquals(1, before.size());
+	}
+}
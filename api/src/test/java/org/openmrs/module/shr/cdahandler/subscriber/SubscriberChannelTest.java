@@ -0,0 +1,151 @@
+package org.openmrs.module.shr.cdahandler.subscriber;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
+import org.openmrs.Visit;
+import org.openmrs.module.shr.cdahandler.api.CdaImportSubscriber;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+public class SubscriberChannelTest extends BaseModuleContextSensitiveTest {
+
+	/**
+	 * Holds the lanes it is given until they are run
+	 */
+	private static class HeldExecutor implements Executor {
+		private final List<Runnable> m_held = Collections.synchronizedList(new ArrayList<Runnable>());
+
+		@Override
+		public void execute(Runnable command) {
+			this.m_held.add(command);
+		}
+
+		/**
+		 * Run the held lanes (and any they schedule) on this thread
+		 */
+		public void runAll() {
+			while(!this.m_held.isEmpty())
+				this.m_held.remove(0).run();
+		}
+	}
+
+	/**
+	 * Records the threads it was notified on
+	 */
+	private static class RecordingSubscriber implements CdaImportSubscriber {
+		private final List<Thread> m_threads = Collections.synchronizedList(new ArrayList<Thread>());
+
+		@Override
+		public void onDocumentImported(ClinicalDocument rawDocument, Visit processedVisit) {
+			this.m_threads.add(Thread.currentThread());
+		}
+	}
+
+	private final HeldExecutor m_executor = new HeldExecutor();
+	private final RecordingSubscriber m_subscriber = new RecordingSubscriber();
+	private final SubscriberChannel m_channel = new SubscriberChannel(this.m_subscriber, this.m_executor, 1);
+
+	/**
+	 * Create a notification for a patient
+	 */
+	private ImportNotification createNotification(String visitUuid) {
+		return new ImportNotification(null, visitUuid, "patient");
+	}
+
+	/**
+	 * Offer a notification on another thread
+	 */
+	private Thread offerLater(final ImportNotification notification) {
+		Thread retVal = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				m_channel.offer(notification, RejectionPolicy.BLOCK);
+			}
+		});
+		retVal.start();
+		return retVal;
+	}
+
+	/**
+	 * Wait until the channel has blocked an offer
+	 */
+	private void waitUntilBlocked() throws InterruptedException {
+		for(int i = 0; i < 100 && this.m_channel.getBlockedCount() == 0; i++)
+			Thread.sleep(50);
+		assertEquals(1, this.m_channel.getBlockedCount());
+	}
+
+	/**
+	 * A full queue discards the notification
+	 */
+	@Test
+	public void shouldDropWhenFull() {
+		this.m_channel.offer(this.createNotification("visit-1"), RejectionPolicy.DROP);
+		this.m_channel.offer(this.createNotification("visit-2"), RejectionPolicy.DROP);
+		assertEquals(1, this.m_channel.getDroppedCount());
+		assertEquals(1, this.m_channel.getQueueDepth());
+
+		this.m_executor.runAll();
+		assertEquals(1, this.m_subscriber.m_threads.size());
+		assertEquals(0, this.m_channel.getQueueDepth());
+	}
+
+	/**
+	 * A full queue delivers the notification on the offering thread
+	 */
+	@Test
+	public void shouldRunOnCallerWhenFull() {
+		this.m_channel.offer(this.createNotification("visit-1"), RejectionPolicy.CALLER_RUNS);
+		this.m_channel.offer(this.createNotification("visit-2"), RejectionPolicy.CALLER_RUNS);
+		assertEquals(1, this.m_channel.getCallerRunsCount());
+		assertEquals(1, this.m_channel.getQueueDepth());
+		assertEquals(1, this.m_subscriber.m_threads.size());
+		assertSame(Thread.currentThread(), this.m_subscriber.m_threads.get(0));
+	}
+
+	/**
+	 * A full queue makes the offering thread wait until there is room
+	 */
+	@Test
+	public void shouldBlockUntilRoom() throws InterruptedException {
+		this.m_channel.offer(this.createNotification("visit-1"), RejectionPolicy.BLOCK);
+		Thread blocked = this.offerLater(this.createNotification("visit-2"));
+		this.waitUntilBlocked();
+		assertTrue(blocked.isAlive());
+
+		this.m_executor.runAll();
+		blocked.join(5000);
+		assertFalse(blocked.isAlive());
+		assertEquals(1, this.m_channel.getQueueDepth());
+
+		this.m_executor.runAll();
+		assertEquals(2, this.m_subscriber.m_threads.size());
+		assertEquals(0, this.m_channel.getDroppedCount());
+	}
+
+	/**
+	 * Closing the channel releases a blocked offer, dropping its notification
+	 */
+	@Test
+	public void shouldReleaseBlockedOfferWhenClosed() throws InterruptedException {
+		this.m_channel.offer(this.createNotification("visit-1"), RejectionPolicy.BLOCK);
+		Thread blocked = this.offerLater(this.createNotification("visit-2"));
+		this.waitUntilBlocked();
+
+		this.m_channel.close();
+		blocked.join(5000);
+		assertFalse(blocked.isAlive());
+		assertEquals(1, this.m_channel.getDroppedCount());
+		assertEquals(1, this.m_channel.getQueueDepth());
+
+		// Nothing more is accepted
+		this.m_channel.offer(this.createNotification("visit-3"), RejectionPolicy.BLOCK);
+		assertEquals(2, this.m_channel.getDroppedCount());
+	}
+}
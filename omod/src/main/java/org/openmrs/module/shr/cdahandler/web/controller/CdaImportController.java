@@ -40,6 +40,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.marc.everest.formatters.FormatterUtil;
 import org.marc.everest.formatters.interfaces.IFormatterParseResult;
+import org.marc.everest.formatters.xml.its1.XmlIts1Formatter;
 import org.marc.everest.interfaces.IResultDetail;
 import org.marc.everest.interfaces.ResultDetailType;
 import org.marc.everest.rmim.uv.cdar2.pocd_mt000040uv.ClinicalDocument;
@@ -50,9 +51,10 @@ import org.openmrs.Encounter;
 import org.openmrs.Visit;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.shr.cdahandler.api.CdaImportService;
-import org.openmrs.module.shr.cdahandler.everest.EverestUtil;
+import org.openmrs.module.shr.cdahandler.everest.XmlIts1FormatterPool;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.cdahandler.exception.DocumentValidationException;
+import org.openmrs.module.shr.cdahandler.queue.CdaImportQueueItem;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.ModelAttribute;
@@ -121,6 +123,22 @@ public class CdaImportController {
 			}
 
 		}
+		else if(action.equals("Queue")) // Stage for background import
+		{
+			document.pruneCda(section);
+			InputStream is = document.getInputStream();
+			try
+			{
+				CdaImportQueueItem queueItem = Context.getService(CdaImportService.class).queueDocument(is);
+				log.info(String.format("Queued document for import as %s", queueItem.getUuid()));
+				model.put("queueItem", queueItem);
+				model.put("document", new Document(null));
+			}
+			finally
+			{
+				is.close();
+			}
+		}
 		
 		return new ModelAndView("/module/shr-cdahandler/import", model);
 	}
@@ -209,6 +227,22 @@ public class CdaImportController {
 
 		}
 		
+		/**
+		 * Parse the stream using a pooled formatter
+		 */
+		private IFormatterParseResult parse(InputStream is)
+		{
+			XmlIts1Formatter formatter = XmlIts1FormatterPool.getInstance().borrow();
+			try
+			{
+				return formatter.parse(is);
+			}
+			finally
+			{
+				XmlIts1FormatterPool.getInstance().release(formatter);
+			}
+		}
+		
 		/**
 		 * Prune the CDA of all sections except those in the list
 		 */
@@ -220,7 +254,7 @@ public class CdaImportController {
             	ClinicalDocument document = null;
 				try
 				{
-	    			IFormatterParseResult parseResult = EverestUtil.createFormatter().parse(is);
+	    			IFormatterParseResult parseResult = this.parse(is);
 	    			document = (ClinicalDocument)parseResult.getStructure();
 	    			if(document == null)
 	    			{
@@ -257,7 +291,15 @@ public class CdaImportController {
 				try
 				{
 					fos = new FileOutputStream(new File(this.tempFile));
-					EverestUtil.createFormatter().graph(fos, document);
+					XmlIts1Formatter formatter = XmlIts1FormatterPool.getInstance().borrow();
+					try
+					{
+						formatter.graph(fos, document);
+					}
+					finally
+					{
+						XmlIts1FormatterPool.getInstance().release(formatter);
+					}
 				}
 				finally
 				{
@@ -307,7 +349,7 @@ public class CdaImportController {
     			InputStream is = this.getInputStream();
     			try
     			{
-	    			IFormatterParseResult parseResult = EverestUtil.createFormatter().parse(is);
+	    			IFormatterParseResult parseResult = this.parse(is);
 	    			ClinicalDocument document = (ClinicalDocument)parseResult.getStructure();
 	    			if(document == null)
 	    			{
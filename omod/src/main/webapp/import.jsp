@@ -3,6 +3,10 @@
 
 <%@ include file="template/localHeader.jsp"%>
 
+<c:if test="${queueItem != null}">
+	<div>Document queued for import as ${queueItem.uuid}</div>
+</c:if>
+
 <form id="importForm" modelAttribute="document" method="post" enctype="multipart/form-data">
 		<table>
 			<tr>
@@ -33,6 +37,7 @@
 			</c:forEach>
 		</table>
 		<input type="submit" name="action" value="Import"/>
+		<input type="submit" name="action" value="Queue"/>
 	</c:when>
 	<c:otherwise>
 		<input type="hidden" name="section" value="${document.title }"/>